@@ -0,0 +1,153 @@
+package edu.gatech.chai.ecr.jpa.json;
+
+import java.util.Date;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+
+// Progress of a bulk patient list, uploaded to /bulk or dropped into LOCAL_BULKDATA_PATH,
+// as returned by /bulk/{id}. The counts cover the chunks written so far and grow while
+// the list is being read; bytes and lines are the position reached.
+@JsonSerialize
+@JsonDeserialize
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class BulkFileStatus {
+	public static final String PROCESSING = "processing";
+	public static final String DONE = "done";
+	public static final String FAILED = "failed";
+
+	@JsonProperty("id")
+	private Integer id;
+	@JsonProperty("status")
+	private String status;
+	@JsonProperty("name")
+	private String name;
+	@JsonProperty("startedDate")
+	private Date startedDate;
+	@JsonProperty("lastUpdateDate")
+	private Date lastUpdateDate;
+	@JsonProperty("finishedDate")
+	private Date finishedDate;
+	@JsonProperty("bytes")
+	private Long bytes;
+	@JsonProperty("lines")
+	private Integer lines;
+	@JsonProperty("patients")
+	private Integer patients;
+	@JsonProperty("created")
+	private Integer created;
+	@JsonProperty("skipped")
+	private Integer skipped;
+	@JsonProperty("chunks")
+	private Integer chunks;
+	@JsonProperty("message")
+	private String message;
+
+	public BulkFileStatus() {}
+
+	public Integer getId() {
+		return id;
+	}
+
+	public void setId(Integer id) {
+		this.id = id;
+	}
+
+	public String getStatus() {
+		return status;
+	}
+
+	public void setStatus(String status) {
+		this.status = status;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public void setName(String name) {
+		this.name = name;
+	}
+
+	public Date getStartedDate() {
+		return startedDate;
+	}
+
+	public void setStartedDate(Date startedDate) {
+		this.startedDate = startedDate;
+	}
+
+	public Date getLastUpdateDate() {
+		return lastUpdateDate;
+	}
+
+	public void setLastUpdateDate(Date lastUpdateDate) {
+		this.lastUpdateDate = lastUpdateDate;
+	}
+
+	public Date getFinishedDate() {
+		return finishedDate;
+	}
+
+	public void setFinishedDate(Date finishedDate) {
+		this.finishedDate = finishedDate;
+	}
+
+	public Long getBytes() {
+		return bytes;
+	}
+
+	public void setBytes(Long bytes) {
+		this.bytes = bytes;
+	}
+
+	public Integer getLines() {
+		return lines;
+	}
+
+	public void setLines(Integer lines) {
+		this.lines = lines;
+	}
+
+	public Integer getPatients() {
+		return patients;
+	}
+
+	public void setPatients(Integer patients) {
+		this.patients = patients;
+	}
+
+	public Integer getCreated() {
+		return created;
+	}
+
+	public void setCreated(Integer created) {
+		this.created = created;
+	}
+
+	public Integer getSkipped() {
+		return skipped;
+	}
+
+	public void setSkipped(Integer skipped) {
+		this.skipped = skipped;
+	}
+
+	public Integer getChunks() {
+		return chunks;
+	}
+
+	public void setChunks(Integer chunks) {
+		this.chunks = chunks;
+	}
+
+	public String getMessage() {
+		return message;
+	}
+
+	public void setMessage(String message) {
+		this.message = message;
+	}
+}
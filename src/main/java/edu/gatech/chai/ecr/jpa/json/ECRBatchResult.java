@@ -0,0 +1,69 @@
+package edu.gatech.chai.ecr.jpa.json;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+
+@JsonSerialize
+@JsonDeserialize
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class ECRBatchResult {
+	public static final String CREATED = "created";
+	public static final String UPDATED = "updated";
+	public static final String FAILED = "failed";
+
+	@JsonProperty("index")
+	private Integer index;
+	@JsonProperty("ecrId")
+	private String ecrId;
+	@JsonProperty("status")
+	private String status;
+	@JsonProperty("message")
+	private String message;
+
+	public ECRBatchResult() {}
+
+	public ECRBatchResult(Integer index, String ecrId, String status, String message) {
+		this.index = index;
+		this.ecrId = ecrId;
+		this.status = status;
+		this.message = message;
+	}
+
+	public static ECRBatchResult failed(Integer index, String message) {
+		return new ECRBatchResult(index, null, FAILED, message);
+	}
+
+	public Integer getIndex() {
+		return index;
+	}
+
+	public void setIndex(Integer index) {
+		this.index = index;
+	}
+
+	public String getEcrId() {
+		return ecrId;
+	}
+
+	public void setEcrId(String ecrId) {
+		this.ecrId = ecrId;
+	}
+
+	public String getStatus() {
+		return status;
+	}
+
+	public void setStatus(String status) {
+		this.status = status;
+	}
+
+	public String getMessage() {
+		return message;
+	}
+
+	public void setMessage(String message) {
+		this.message = message;
+	}
+}
@@ -0,0 +1,124 @@
+package edu.gatech.chai.ecr.jpa.json;
+
+import java.util.Date;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+
+// State of an asynchronous CSV export as returned by /exports/{id}. totalRows is filled
+// in once the export has counted the matching rows; writtenRows then grows until the
+// job is done. node is the ecr_manager node that runs the export and holds its file.
+@JsonSerialize
+@JsonDeserialize
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class ECRExportJob {
+	public static final String QUEUED = "queued";
+	public static final String RUNNING = "running";
+	public static final String DONE = "done";
+	public static final String FAILED = "failed";
+
+	@JsonProperty("id")
+	private String id;
+	@JsonProperty("node")
+	private String node;
+	@JsonProperty("status")
+	private String status;
+	@JsonProperty("createdDate")
+	private Date createdDate;
+	@JsonProperty("startedDate")
+	private Date startedDate;
+	@JsonProperty("finishedDate")
+	private Date finishedDate;
+	@JsonProperty("totalRows")
+	private Long totalRows;
+	@JsonProperty("writtenRows")
+	private Long writtenRows;
+	@JsonProperty("fileSize")
+	private Long fileSize;
+	@JsonProperty("message")
+	private String message;
+
+	public ECRExportJob() {}
+
+	public String getId() {
+		return id;
+	}
+
+	public void setId(String id) {
+		this.id = id;
+	}
+
+	public String getNode() {
+		return node;
+	}
+
+	public void setNode(String node) {
+		this.node = node;
+	}
+
+	public String getStatus() {
+		return status;
+	}
+
+	public void setStatus(String status) {
+		this.status = status;
+	}
+
+	public Date getCreatedDate() {
+		return createdDate;
+	}
+
+	public void setCreatedDate(Date createdDate) {
+		this.createdDate = createdDate;
+	}
+
+	public Date getStartedDate() {
+		return startedDate;
+	}
+
+	public void setStartedDate(Date startedDate) {
+		this.startedDate = startedDate;
+	}
+
+	public Date getFinishedDate() {
+		return finishedDate;
+	}
+
+	public void setFinishedDate(Date finishedDate) {
+		this.finishedDate = finishedDate;
+	}
+
+	public Long getTotalRows() {
+		return totalRows;
+	}
+
+	public void setTotalRows(Long totalRows) {
+		this.totalRows = totalRows;
+	}
+
+	public Long getWrittenRows() {
+		return writtenRows;
+	}
+
+	public void setWrittenRows(Long writtenRows) {
+		this.writtenRows = writtenRows;
+	}
+
+	public Long getFileSize() {
+		return fileSize;
+	}
+
+	public void setFileSize(Long fileSize) {
+		this.fileSize = fileSize;
+	}
+
+	public String getMessage() {
+		return message;
+	}
+
+	public void setMessage(String message) {
+		this.message = message;
+	}
+}
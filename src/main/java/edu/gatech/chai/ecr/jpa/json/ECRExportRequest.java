@@ -0,0 +1,89 @@
+package edu.gatech.chai.ecr.jpa.json;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+
+// Filters for POST /exports. Same meaning as the /ECR/search parameters; leave them all
+// out to export every current case.
+@JsonSerialize
+@JsonDeserialize
+@JsonInclude(JsonInclude.Include.NON_EMPTY)
+public class ECRExportRequest {
+	@JsonProperty("lastName")
+	private String lastName;
+	@JsonProperty("firstName")
+	private String firstName;
+	@JsonProperty("zipCode")
+	private String zipCode;
+	@JsonProperty("diagnosisCode")
+	private String diagnosisCode;
+	@JsonProperty("patientId")
+	private String patientId;
+	@JsonProperty("firstDate")
+	private List<String> firstDate = new ArrayList<String>();
+	@JsonProperty("lastDate")
+	private List<String> lastDate = new ArrayList<String>();
+
+	public ECRExportRequest() {}
+
+	public String getLastName() {
+		return lastName;
+	}
+
+	public void setLastName(String lastName) {
+		this.lastName = lastName;
+	}
+
+	public String getFirstName() {
+		return firstName;
+	}
+
+	public void setFirstName(String firstName) {
+		this.firstName = firstName;
+	}
+
+	public String getZipCode() {
+		return zipCode;
+	}
+
+	public void setZipCode(String zipCode) {
+		this.zipCode = zipCode;
+	}
+
+	public String getDiagnosisCode() {
+		return diagnosisCode;
+	}
+
+	public void setDiagnosisCode(String diagnosisCode) {
+		this.diagnosisCode = diagnosisCode;
+	}
+
+	public String getPatientId() {
+		return patientId;
+	}
+
+	public void setPatientId(String patientId) {
+		this.patientId = patientId;
+	}
+
+	public List<String> getFirstDate() {
+		return firstDate;
+	}
+
+	public void setFirstDate(List<String> firstDate) {
+		this.firstDate = firstDate == null ? new ArrayList<String>() : firstDate;
+	}
+
+	public List<String> getLastDate() {
+		return lastDate;
+	}
+
+	public void setLastDate(List<String> lastDate) {
+		this.lastDate = lastDate == null ? new ArrayList<String>() : lastDate;
+	}
+}
@@ -0,0 +1,73 @@
+package edu.gatech.chai.ecr.jpa.json;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+
+@JsonSerialize
+@JsonDeserialize
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class PacerDeliveryResult {
+	public static final String PROCESSED = "processed";
+	public static final String DUPLICATE = "duplicate";
+
+	@JsonProperty("jobKey")
+	private Integer jobKey;
+	@JsonProperty("deliveryId")
+	private String deliveryId;
+	@JsonProperty("status")
+	private String status;
+	@JsonProperty("received")
+	private Integer received;
+	@JsonProperty("merged")
+	private Integer merged;
+
+	public PacerDeliveryResult() {}
+
+	public PacerDeliveryResult(Integer jobKey, String deliveryId, String status) {
+		this.jobKey = jobKey;
+		this.deliveryId = deliveryId;
+		this.status = status;
+	}
+
+	public Integer getJobKey() {
+		return jobKey;
+	}
+
+	public void setJobKey(Integer jobKey) {
+		this.jobKey = jobKey;
+	}
+
+	public String getDeliveryId() {
+		return deliveryId;
+	}
+
+	public void setDeliveryId(String deliveryId) {
+		this.deliveryId = deliveryId;
+	}
+
+	public String getStatus() {
+		return status;
+	}
+
+	public void setStatus(String status) {
+		this.status = status;
+	}
+
+	public Integer getReceived() {
+		return received;
+	}
+
+	public void setReceived(Integer received) {
+		this.received = received;
+	}
+
+	public Integer getMerged() {
+		return merged;
+	}
+
+	public void setMerged(Integer merged) {
+		this.merged = merged;
+	}
+}
@@ -3,8 +3,17 @@ package edu.gatech.chai.ecr.jpa.json.utils;
 import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.OffsetDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import org.apache.commons.lang3.StringUtils;
 
@@ -17,6 +26,10 @@ public class DateUtil {
 	private static final SimpleDateFormat sdFormmatter = new SimpleDateFormat(defaultDateFormat);
 	private static final SimpleDateFormat birthdayFormmatter = new SimpleDateFormat(birthdayDateFormat);
 	private static final DateFormat sdDateTimeFormmatter = DateFormat.getDateTimeInstance();
+	private static final Pattern hl7DateTime = Pattern.compile("(\\d{8})(\\d{2})?(\\d{2})?(\\d{2})?(\\D.*)?");
+	private static final DateTimeFormatter hl7Date = DateTimeFormatter.ofPattern("yyyyMMdd");
+	private static final DateTimeFormatter hl7Time = DateTimeFormatter.ofPattern("HHmmss");
+	private static final DateTimeFormatter shortDate = DateTimeFormatter.ofPattern("dd-MM-yy");
 	
 	public static Calendar stringToCalendar(String string) throws ParseException {
 		Calendar cal = Calendar.getInstance();
@@ -65,4 +78,52 @@ public class DateUtil {
 			return DateUtil.birthdayStringToCalendar(dateStr).getTime();
 		}
 	}
+
+	// Event dates in ECRs come in several shapes: ISO-8601 (2021-01-05, 2021-01-05T10:00:00,
+	// with or without an offset), HL7 (20210105[1000[00]]), dd-MM-yy and the FHIR display form
+	// above. Unlike parse() this is thread-safe and returns null instead of guessing when the
+	// value is in none of them.
+	public static Date parseEventDate(String dateStr) {
+		if (StringUtils.isBlank(dateStr)) {
+			return null;
+		}
+
+		String date = dateStr.trim().replace(' ', 'T');
+		try {
+			Matcher hl7 = hl7DateTime.matcher(date);
+			if (hl7.matches()) {
+				String time = orZero(hl7.group(2)) + orZero(hl7.group(3)) + orZero(hl7.group(4));
+				return toDate(LocalDate.parse(hl7.group(1), hl7Date).atTime(LocalTime.parse(time, hl7Time)));
+			}
+			if (date.length() >= 10 && date.charAt(4) == '-') {
+				if (date.length() == 10) {
+					return toDate(LocalDate.parse(date).atStartOfDay());
+				}
+				try {
+					return Date.from(OffsetDateTime.parse(date).toInstant());
+				} catch (DateTimeParseException e) {
+					return toDate(LocalDateTime.parse(date));
+				}
+			}
+			if (date.length() == 8 && date.charAt(2) == '-') {
+				return toDate(LocalDate.parse(date, shortDate).atStartOfDay());
+			}
+			if (StringUtils.isAlpha(date.substring(0, Math.min(3, date.length())))) {
+				synchronized (fhirDateTimeFormmater) {
+					return fhirDateTimeFormmater.parse(dateStr.trim());
+				}
+			}
+		} catch (DateTimeParseException | ParseException e) {
+			// Not a date we understand
+		}
+		return null;
+	}
+
+	private static String orZero(String digits) {
+		return digits == null ? "00" : digits;
+	}
+
+	private static Date toDate(LocalDateTime dateTime) {
+		return Date.from(dateTime.atZone(ZoneId.systemDefault()).toInstant());
+	}
 }
@@ -0,0 +1,66 @@
+package edu.gatech.chai.ecr.jpa.json.utils;
+
+import java.util.List;
+import java.util.Locale;
+
+import edu.gatech.chai.ecr.jpa.json.TypeableID;
+
+public class PatientIdUtil {
+	public static final String US_SSN_SYSTEM = "http://hl7.org/fhir/sid/us-ssn";
+
+	// Maps the local aliases we receive from ELR feeds and bulk files to a canonical system.
+	public static String canonicalType(String type) {
+		if (type == null) {
+			return "";
+		}
+
+		String canonical = type.trim();
+		if ("SS".equalsIgnoreCase(canonical) || "SSN".equalsIgnoreCase(canonical)) {
+			return US_SSN_SYSTEM;
+		}
+
+		return canonical;
+	}
+
+	public static String canonicalValue(String value) {
+		if (value == null) {
+			return "";
+		}
+
+		return value.trim();
+	}
+
+	public static void canonicalize(TypeableID patientId) {
+		if (patientId == null) {
+			return;
+		}
+
+		patientId.settype(canonicalType(patientId.gettype()));
+		if (patientId.getvalue() != null) {
+			patientId.setvalue(canonicalValue(patientId.getvalue()));
+		}
+	}
+
+	public static void canonicalize(List<TypeableID> patientIds) {
+		if (patientIds == null) {
+			return;
+		}
+
+		for (TypeableID patientId : patientIds) {
+			canonicalize(patientId);
+		}
+	}
+
+	// Lookup keys are case-insensitive, matching the old patient_ids ContainingIgnoreCase search.
+	public static String lookupType(String type) {
+		return canonicalType(type).toLowerCase(Locale.ROOT);
+	}
+
+	public static String lookupValue(String value) {
+		return canonicalValue(value).toLowerCase(Locale.ROOT);
+	}
+
+	public static boolean isValid(TypeableID patientId) {
+		return patientId != null && patientId.getvalue() != null && !patientId.getvalue().isBlank();
+	}
+}
@@ -0,0 +1,221 @@
+package edu.gatech.chai.ecr.jpa.model;
+
+import java.util.Date;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.Id;
+import javax.persistence.Index;
+import javax.persistence.Table;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+
+import org.hibernate.annotations.GenericGenerator;
+import org.hibernate.annotations.Parameter;
+
+// One row per reading of a bulk data file, found again by the SHA-256 of its content.
+// byteOffset and lineNumber are the position after the last line whose chunk has been
+// written, and are committed in the same transaction as that chunk, so a reading that
+// stopped part way carries on from there. The counts are totals for the whole file.
+@Entity
+@Table(name = "bulk_file", schema = "ecr",
+	indexes = @Index(name = "ix_bulk_file_hash", columnList = "content_hash, status_code"))
+public class BulkFile {
+	@Id
+	@Column(name = "bulk_file_key")
+	@GeneratedValue(generator = IdSequence.BULK_FILE_KEY)
+	@GenericGenerator(name = IdSequence.BULK_FILE_KEY, strategy = IdSequence.GENERATOR, parameters = {
+		@Parameter(name = "schema", value = IdSequence.SCHEMA),
+		@Parameter(name = "table_name", value = IdSequence.TABLE),
+		@Parameter(name = "segment_column_name", value = IdSequence.SEGMENT_COLUMN),
+		@Parameter(name = "value_column_name", value = IdSequence.VALUE_COLUMN),
+		@Parameter(name = "segment_value", value = IdSequence.BULK_FILE_KEY),
+		@Parameter(name = "increment_size", value = IdSequence.BLOCK_SIZE),
+		@Parameter(name = "optimizer", value = IdSequence.OPTIMIZER) })
+	private Integer id;
+	// Uploads only get theirs once they have been read to the end.
+	@Column(name = "content_hash", length = 64)
+	private String contentHash;
+	@Column(name = "file_name")
+	private String fileName;
+	@Column(name = "file_size")
+	private Long fileSize;
+	@Column(name = "status_code", length = 3, nullable = false)
+	private String statusCode = P;
+	@Column(name = "byte_offset")
+	private Long byteOffset = 0L;
+	@Column(name = "line_number")
+	private Integer lineNumber = 0;
+	@Column(name = "patient_count")
+	private Integer patientCount = 0;
+	@Column(name = "skipped_count")
+	private Integer skippedCount = 0;
+	@Column(name = "created_count")
+	private Integer createdCount = 0;
+	@Column(name = "chunk_count")
+	private Integer chunkCount = 0;
+	@Column(name = "error_message", length = 1024)
+	private String errorMessage;
+	@Column(name = "started_date")
+	@Temporal(TemporalType.TIMESTAMP)
+	private Date startedDate = new Date();
+	@Column(name = "last_update_date")
+	@Temporal(TemporalType.TIMESTAMP)
+	private Date lastUpdateDate = new Date();
+	@Column(name = "finished_date")
+	@Temporal(TemporalType.TIMESTAMP)
+	private Date finishedDate;
+
+	public static String P = "P";	// Processing
+	public static String D = "D";	// Done
+	public static String F = "F";	// Failed, resumed if the file is dropped again
+
+	public BulkFile() {}
+
+	public BulkFile(String contentHash, String fileName, Long fileSize) {
+		this.contentHash = contentHash;
+		this.fileName = fileName;
+		this.fileSize = fileSize;
+	}
+
+	public Integer getId() {
+		return id;
+	}
+
+	public void setId(Integer id) {
+		this.id = id;
+	}
+
+	public String getContentHash() {
+		return contentHash;
+	}
+
+	public void setContentHash(String contentHash) {
+		this.contentHash = contentHash;
+	}
+
+	public String getFileName() {
+		return fileName;
+	}
+
+	public void setFileName(String fileName) {
+		this.fileName = fileName;
+	}
+
+	public Long getFileSize() {
+		return fileSize;
+	}
+
+	public void setFileSize(Long fileSize) {
+		this.fileSize = fileSize;
+	}
+
+	public String getStatusCode() {
+		return statusCode;
+	}
+
+	public void setStatusCode(String statusCode) {
+		this.statusCode = statusCode;
+	}
+
+	public Long getByteOffset() {
+		return byteOffset;
+	}
+
+	public void setByteOffset(Long byteOffset) {
+		this.byteOffset = byteOffset;
+	}
+
+	public Integer getLineNumber() {
+		return lineNumber;
+	}
+
+	public void setLineNumber(Integer lineNumber) {
+		this.lineNumber = lineNumber;
+	}
+
+	public Integer getPatientCount() {
+		return patientCount;
+	}
+
+	public void setPatientCount(Integer patientCount) {
+		this.patientCount = patientCount;
+	}
+
+	public Integer getSkippedCount() {
+		return skippedCount;
+	}
+
+	public void setSkippedCount(Integer skippedCount) {
+		this.skippedCount = skippedCount;
+	}
+
+	public Integer getCreatedCount() {
+		return createdCount;
+	}
+
+	public void setCreatedCount(Integer createdCount) {
+		this.createdCount = createdCount;
+	}
+
+	public Integer getChunkCount() {
+		return chunkCount;
+	}
+
+	public void setChunkCount(Integer chunkCount) {
+		this.chunkCount = chunkCount;
+	}
+
+	public String getErrorMessage() {
+		return errorMessage;
+	}
+
+	public void setErrorMessage(String errorMessage) {
+		this.errorMessage = errorMessage;
+	}
+
+	public Date getStartedDate() {
+		return startedDate;
+	}
+
+	public void setStartedDate(Date startedDate) {
+		this.startedDate = startedDate;
+	}
+
+	public Date getLastUpdateDate() {
+		return lastUpdateDate;
+	}
+
+	public void setLastUpdateDate(Date lastUpdateDate) {
+		this.lastUpdateDate = lastUpdateDate;
+	}
+
+	public Date getFinishedDate() {
+		return finishedDate;
+	}
+
+	public void setFinishedDate(Date finishedDate) {
+		this.finishedDate = finishedDate;
+	}
+
+	// Picked up again after a crash or failure, possibly under another name.
+	public void resume(String fileName) {
+		this.fileName = fileName;
+		statusCode = P;
+		errorMessage = null;
+		lastUpdateDate = new Date();
+	}
+
+	public void finish() {
+		statusCode = D;
+		lastUpdateDate = finishedDate = new Date();
+	}
+
+	public void fail(String errorMessage) {
+		statusCode = F;
+		this.errorMessage = errorMessage != null && errorMessage.length() > 1024 ? errorMessage.substring(0, 1024)
+				: errorMessage;
+		lastUpdateDate = new Date();
+	}
+}
@@ -0,0 +1,45 @@
+package edu.gatech.chai.ecr.jpa.model;
+
+import java.util.Date;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Table;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+
+// One row per one-off data migration that has been run on this database (see
+// DataMigrations).
+@Entity
+@Table(name = "ecr_data_migration", schema = "ecr")
+public class DataMigration {
+	@Id
+	@Column(name = "migration_name", length = 64)
+	private String name;
+	@Column(name = "applied_date")
+	@Temporal(TemporalType.TIMESTAMP)
+	private Date appliedDate = new Date();
+
+	public DataMigration() {}
+
+	public DataMigration(String name) {
+		this.name = name;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public void setName(String name) {
+		this.name = name;
+	}
+
+	public Date getAppliedDate() {
+		return appliedDate;
+	}
+
+	public void setAppliedDate(Date appliedDate) {
+		this.appliedDate = appliedDate;
+	}
+}
@@ -8,30 +8,60 @@ import javax.persistence.Column;
 import javax.persistence.Convert;
 import javax.persistence.Entity;
 import javax.persistence.GeneratedValue;
-import javax.persistence.GenerationType;
 import javax.persistence.Id;
+import javax.persistence.Index;
 import javax.persistence.Table;
 import javax.persistence.Temporal;
 import javax.persistence.TemporalType;
 
+import org.hibernate.annotations.GenericGenerator;
+import org.hibernate.annotations.Parameter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import edu.gatech.chai.ecr.jpa.json.Diagnosis;
 import edu.gatech.chai.ecr.jpa.json.ECR;
+import edu.gatech.chai.ecr.jpa.json.LabOrderCode;
+import edu.gatech.chai.ecr.jpa.json.LabResult;
+import edu.gatech.chai.ecr.jpa.json.Medication;
 import edu.gatech.chai.ecr.jpa.json.Name;
 import edu.gatech.chai.ecr.jpa.json.Patient;
 import edu.gatech.chai.ecr.jpa.json.TypeableID;
 import edu.gatech.chai.ecr.jpa.json.utils.AddressUtil;
+import edu.gatech.chai.ecr.jpa.json.utils.DateUtil;
 import edu.gatech.chai.ecr.jpa.json.utils.ECRJsonConverter;
+import edu.gatech.chai.ecr.jpa.json.utils.PatientIdUtil;
 
+// Every update through PUT /ECR adds a version row. is_current marks the latest version
+// of each case_report_id, so searches read one row per case straight from the indexes
+// below instead of de-duplicating versions in memory.
 @Entity
-@Table(name = "ecr_data", schema = "ecr")
+@Table(name = "ecr_data", schema = "ecr", indexes = {
+	@Index(name = "ix_ecr_data_case_report_id", columnList = "case_report_id, version"),
+	@Index(name = "ix_ecr_data_current", columnList = "is_current, case_report_id, case_report_key"),
+	@Index(name = "ix_ecr_data_current_last_name", columnList = "is_current, last_name, case_report_id, case_report_key"),
+	@Index(name = "ix_ecr_data_current_name", columnList = "is_current, last_name, first_name, case_report_id, case_report_key"),
+	@Index(name = "ix_ecr_data_current_first_name", columnList = "is_current, first_name, case_report_id, case_report_key"),
+	@Index(name = "ix_ecr_data_current_zip_code", columnList = "is_current, zip_code, case_report_id, case_report_key"),
+	@Index(name = "ix_ecr_data_current_diagnosis", columnList = "is_current, diagnosis, case_report_id, case_report_key"),
+	@Index(name = "ix_ecr_data_current_first_date", columnList = "is_current, first_date"),
+	@Index(name = "ix_ecr_data_current_last_date", columnList = "is_current, last_date"),
+	@Index(name = "ix_ecr_data_current_last_updated", columnList = "is_current, last_updated"),
+	@Index(name = "ix_ecr_data_current_change_seq", columnList = "is_current, change_seq") })
 public class ECRData {
 	private static final Logger log = LoggerFactory.getLogger(ECRData.class);
 
 	@Id
 	@Column(name = "case_report_key")
-	@GeneratedValue(strategy = GenerationType.IDENTITY)
+	@GeneratedValue(generator = IdSequence.CASE_REPORT_KEY)
+	@GenericGenerator(name = IdSequence.CASE_REPORT_KEY, strategy = IdSequence.GENERATOR, parameters = {
+		@Parameter(name = "schema", value = IdSequence.SCHEMA),
+		@Parameter(name = "table_name", value = IdSequence.TABLE),
+		@Parameter(name = "segment_column_name", value = IdSequence.SEGMENT_COLUMN),
+		@Parameter(name = "value_column_name", value = IdSequence.VALUE_COLUMN),
+		@Parameter(name = "segment_value", value = IdSequence.CASE_REPORT_KEY),
+		@Parameter(name = "increment_size", value = IdSequence.BLOCK_SIZE),
+		@Parameter(name = "optimizer", value = IdSequence.OPTIMIZER) })
 	private Integer id;
 	@Column(name = "case_data", length=40960)
 	@Convert(converter = ECRJsonConverter.class)
@@ -40,6 +70,8 @@ public class ECRData {
 	private Integer ecrId;
 	@Column(name = "version")
 	private Integer version;
+	@Column(name = "is_current")
+	private Boolean current;
 	@Column(name = "created_date")
 	@Temporal(TemporalType.TIMESTAMP)
 	private Date created_date;
@@ -62,6 +94,16 @@ public class ECRData {
 	@Column(name = "last_date")
 	@Temporal(TemporalType.TIMESTAMP)
 	private Date lastDate;
+	// Copy of the latest ECRJob status for this row, kept in step by ECRJobService so
+	// reads do not have to query ecr_job.
+	@Column(name = "job_status", length = 3)
+	private String jobStatus;
+	@Column(name = "job_status_date")
+	@Temporal(TemporalType.TIMESTAMP)
+	private Date jobStatusDate;
+	// Set only by ECRChangeSequence when a change commits; Hibernate never writes it.
+	@Column(name = "change_seq", insertable = false, updatable = false)
+	private Long changeSeq;
 	
 	public ECRData() {}
 	
@@ -70,8 +112,10 @@ public class ECRData {
 		data = ecr;
 		ecrId = id;
 		version = 1;
+		current = true;
 		Patient patient = ecr.getPatient();
 		List<TypeableID> patientIdList = patient.getid();
+		PatientIdUtil.canonicalize(patientIdList);
 		patientIds = ECRData.stringPatientIds(patientIdList);
 		Name patientName = patient.getname();
 		if(patientName != null) {
@@ -84,14 +128,18 @@ public class ECRData {
 		if (patient.getDiagnosis() != null && patient.getDiagnosis().size() > 0) {
 			diagnosisCode = patient.getDiagnosis().get(0).getCode();
 		}
+		deriveDates();
 		created_date = new Date();
 		last_updated = new Date();
 	}
 	
+	// Starts the next version of a case. The ECR is copied so that updating the new
+	// version does not also rewrite the case data of the old one.
 	public ECRData(ECRData oldData) {
-		data = oldData.getECR();
+		data = copyOf(oldData.getECR());
 		ecrId = oldData.getECRId();
 		version = oldData.getVersion();
+		current = true;
 		patientIds = oldData.getPatientIds();
 		lastName = oldData.getLastName();
 		firstName = oldData.getFirstName();
@@ -99,6 +147,18 @@ public class ECRData {
 		diagnosisCode = oldData.getDiagnosisCode();
 		created_date = oldData.getCreated_date();
 		last_updated = oldData.getLast_updated();
+		firstDate = oldData.getFirstDate();
+		lastDate = oldData.getLastDate();
+	}
+
+	// A deep copy, through the same JSON the column is stored as.
+	public static ECR copyOf(ECR ecr) {
+		if (ecr == null) {
+			return null;
+		}
+
+		ECRJsonConverter converter = new ECRJsonConverter();
+		return converter.convertToEntityAttribute(converter.convertToDatabaseColumn(ecr));
 	}
 	
 	public Integer getId() {
@@ -133,6 +193,14 @@ public class ECRData {
 		this.version = version;
 	}
 
+	public Boolean getCurrent() {
+		return current;
+	}
+
+	public void setCurrent(Boolean current) {
+		this.current = current;
+	}
+
 	public Date getCreated_date() {
 		return created_date;
 	}
@@ -205,10 +273,76 @@ public class ECRData {
 		this.lastDate = lastDate;
 	}
 
+	public String getJobStatus() {
+		return jobStatus;
+	}
+
+	public void setJobStatus(String jobStatus) {
+		this.jobStatus = jobStatus;
+	}
+
+	public Date getJobStatusDate() {
+		return jobStatusDate;
+	}
+
+	public void setJobStatusDate(Date jobStatusDate) {
+		this.jobStatusDate = jobStatusDate;
+	}
+
+	public Long getChangeSeq() {
+		return changeSeq;
+	}
+
 	public void update(ECR ecr) {
 		this.version = this.version + 1;
 		this.last_updated = new Date();
+		if (ecr != null && ecr.getPatient() != null) {
+			PatientIdUtil.canonicalize(ecr.getPatient().getid());
+		}
 		this.data.update(ecr);
+		deriveDates();
+	}
+
+	// first_date and last_date span the clinical events in the case (visit, admission, onset,
+	// discharge and death, diagnoses, lab orders and results, medications) so that searches
+	// and exports can filter on when the case happened. Dates that do not parse are skipped.
+	private void deriveDates() {
+		Patient patient = data == null ? null : data.getPatient();
+		if (patient == null) {
+			return;
+		}
+
+		List<String> dates = new ArrayList<String>();
+		dates.add(patient.getvisitDateTime());
+		dates.add(patient.getadmissionDateTime());
+		dates.add(patient.getdateOfOnset());
+		dates.add(patient.getdateDischarged());
+		dates.add(patient.getdeathDate());
+		for (Diagnosis diagnosis : patient.getDiagnosis()) {
+			dates.add(diagnosis.getDate());
+		}
+		for (LabOrderCode labOrderCode : patient.getlabOrderCode()) {
+			dates.add(labOrderCode.getDate());
+		}
+		for (LabResult labResult : patient.getlaboratoryResults()) {
+			dates.add(labResult.getDate());
+		}
+		for (Medication medication : patient.getMedicationProvided()) {
+			dates.add(medication.getDate());
+		}
+
+		for (String date : dates) {
+			Date eventDate = DateUtil.parseEventDate(date);
+			if (eventDate == null) {
+				continue;
+			}
+			if (firstDate == null || eventDate.before(firstDate)) {
+				firstDate = eventDate;
+			}
+			if (lastDate == null || eventDate.after(lastDate)) {
+				lastDate = eventDate;
+			}
+		}
 	}
 	
 	static public String stringPatientId(TypeableID patientId) {
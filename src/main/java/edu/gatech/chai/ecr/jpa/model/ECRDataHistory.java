@@ -14,12 +14,13 @@ import javax.persistence.Column;
 import javax.persistence.Convert;
 import javax.persistence.Entity;
 import javax.persistence.GeneratedValue;
-import javax.persistence.GenerationType;
 import javax.persistence.Id;
 import javax.persistence.Table;
 import javax.persistence.Temporal;
 import javax.persistence.TemporalType;
 
+import org.hibernate.annotations.GenericGenerator;
+import org.hibernate.annotations.Parameter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -33,7 +34,15 @@ public class ECRDataHistory {
 
 	@Id
 	@Column(name = "case_report_history_key")
-	@GeneratedValue(strategy = GenerationType.IDENTITY)
+	@GeneratedValue(generator = IdSequence.CASE_REPORT_HISTORY_KEY)
+	@GenericGenerator(name = IdSequence.CASE_REPORT_HISTORY_KEY, strategy = IdSequence.GENERATOR, parameters = {
+		@Parameter(name = "schema", value = IdSequence.SCHEMA),
+		@Parameter(name = "table_name", value = IdSequence.TABLE),
+		@Parameter(name = "segment_column_name", value = IdSequence.SEGMENT_COLUMN),
+		@Parameter(name = "value_column_name", value = IdSequence.VALUE_COLUMN),
+		@Parameter(name = "segment_value", value = IdSequence.CASE_REPORT_HISTORY_KEY),
+		@Parameter(name = "increment_size", value = IdSequence.BLOCK_SIZE),
+		@Parameter(name = "optimizer", value = IdSequence.OPTIMIZER) })
 	private Integer id;
 	@Column(name = "source")
 	private String source; // elr or ehr
@@ -6,21 +6,32 @@ import java.util.Date;
 import javax.persistence.Column;
 import javax.persistence.Entity;
 import javax.persistence.GeneratedValue;
-import javax.persistence.GenerationType;
 import javax.persistence.Id;
+import javax.persistence.Index;
 import javax.persistence.Table;
 import javax.persistence.Temporal;
 import javax.persistence.TemporalType;
 
+import org.hibernate.annotations.GenericGenerator;
+import org.hibernate.annotations.Parameter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 @Entity
-@Table(name = "ecr_job", schema = "ecr")
+@Table(name = "ecr_job", schema = "ecr", indexes = {
+	@Index(name = "ix_ecr_job_due", columnList = "status_code, next_run_date, ecr_job_key") })
 public class ECRJob {
 	@Id
 	@Column(name = "ecr_job_key")
-	@GeneratedValue(strategy = GenerationType.IDENTITY)
+	@GeneratedValue(generator = IdSequence.ECR_JOB_KEY)
+	@GenericGenerator(name = IdSequence.ECR_JOB_KEY, strategy = IdSequence.GENERATOR, parameters = {
+		@Parameter(name = "schema", value = IdSequence.SCHEMA),
+		@Parameter(name = "table_name", value = IdSequence.TABLE),
+		@Parameter(name = "segment_column_name", value = IdSequence.SEGMENT_COLUMN),
+		@Parameter(name = "value_column_name", value = IdSequence.VALUE_COLUMN),
+		@Parameter(name = "segment_value", value = IdSequence.ECR_JOB_KEY),
+		@Parameter(name = "increment_size", value = IdSequence.BLOCK_SIZE),
+		@Parameter(name = "optimizer", value = IdSequence.OPTIMIZER) })
 	private Integer id;
 	@Column(name = "case_report_key")
 	private Integer reportId;
@@ -42,6 +53,14 @@ public class ECRJob {
 	@Temporal(TemporalType.TIMESTAMP)
 	private Date lastUpdateDate = new Date();
 
+	// Which node is working on the job, and until when. Only ECRJobLeaser writes these,
+	// so saving a job never overwrites another node's lease.
+	@Column(name = "lease_owner", length = 64, insertable = false, updatable = false)
+	private String leaseOwner;
+	@Column(name = "lease_expiry", insertable = false, updatable = false)
+	@Temporal(TemporalType.TIMESTAMP)
+	private Date leaseExpiry;
+
 	private static final Logger logger = LoggerFactory.getLogger(ECRJob.class);
 
 	public ECRJob() {
@@ -137,6 +156,14 @@ public class ECRJob {
 		this.lastUpdateDate = lastUpdateDate;
 	}
 
+	public String getLeaseOwner() {
+		return leaseOwner;
+	}
+
+	public Date getLeaseExpiry() {
+		return leaseExpiry;
+	}
+
 	public void startRun() {
 		statusCode = "R";
 	}
@@ -183,4 +210,20 @@ public class ECRJob {
 			nextRunDate = c.getTime();
 		} 
 	}
+
+	// A request that failed on the way to PACER (connection error, timeout, 5xx). Counts
+	// as an attempt like any other failure, but the job stays runnable until nextRunDate
+	// instead of waiting whole days.
+	public void retryAt(Date nextRunDate) {
+		updateQueryStatus(ECRJob.R);
+		if (ECRJob.R.equals(statusCode)) {
+			this.nextRunDate = nextRunDate;
+		}
+	}
+
+	// Pushes the job back without counting an attempt, e.g. while its PACER endpoint's
+	// circuit is open and nothing was sent.
+	public void deferUntil(Date nextRunDate) {
+		this.nextRunDate = nextRunDate;
+	}
 }
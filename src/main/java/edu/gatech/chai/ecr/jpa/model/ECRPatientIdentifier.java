@@ -0,0 +1,86 @@
+package edu.gatech.chai.ecr.jpa.model;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.Id;
+import javax.persistence.Index;
+import javax.persistence.Table;
+import javax.persistence.UniqueConstraint;
+
+import org.hibernate.annotations.GenericGenerator;
+import org.hibernate.annotations.Parameter;
+
+import edu.gatech.chai.ecr.jpa.json.utils.PatientIdUtil;
+
+// One row per (canonical patient identifier, ecr_data row). Replaces the LIKE scan
+// over ecr_data.patient_ids with an exact lookup on the unique index. Value leads the
+// index so both single lookups and value IN (...) batch lookups can use it.
+@Entity
+@Table(name = "ecr_patient_identifier", schema = "ecr",
+	uniqueConstraints = @UniqueConstraint(name = "ux_ecr_patient_identifier", columnNames = { "value", "type", "case_report_key" }),
+	indexes = @Index(name = "ix_ecr_patient_identifier_report", columnList = "case_report_key"))
+public class ECRPatientIdentifier {
+	@Id
+	@Column(name = "patient_identifier_key")
+	@GeneratedValue(generator = IdSequence.PATIENT_IDENTIFIER_KEY)
+	@GenericGenerator(name = IdSequence.PATIENT_IDENTIFIER_KEY, strategy = IdSequence.GENERATOR, parameters = {
+		@Parameter(name = "schema", value = IdSequence.SCHEMA),
+		@Parameter(name = "table_name", value = IdSequence.TABLE),
+		@Parameter(name = "segment_column_name", value = IdSequence.SEGMENT_COLUMN),
+		@Parameter(name = "value_column_name", value = IdSequence.VALUE_COLUMN),
+		@Parameter(name = "segment_value", value = IdSequence.PATIENT_IDENTIFIER_KEY),
+		@Parameter(name = "increment_size", value = IdSequence.BLOCK_SIZE),
+		@Parameter(name = "optimizer", value = IdSequence.OPTIMIZER) })
+	private Integer id;
+	@Column(name = "type", nullable = false)
+	private String type;
+	@Column(name = "value", nullable = false)
+	private String value;
+	@Column(name = "case_report_key", nullable = false)
+	private Integer caseReportKey;
+
+	public ECRPatientIdentifier() {}
+
+	public ECRPatientIdentifier(String type, String value, Integer caseReportKey) {
+		this.type = PatientIdUtil.lookupType(type);
+		this.value = PatientIdUtil.lookupValue(value);
+		this.caseReportKey = caseReportKey;
+	}
+
+	public Integer getId() {
+		return id;
+	}
+
+	public void setId(Integer id) {
+		this.id = id;
+	}
+
+	public String getType() {
+		return type;
+	}
+
+	public void setType(String type) {
+		this.type = type;
+	}
+
+	public String getValue() {
+		return value;
+	}
+
+	public void setValue(String value) {
+		this.value = value;
+	}
+
+	public Integer getCaseReportKey() {
+		return caseReportKey;
+	}
+
+	public void setCaseReportKey(Integer caseReportKey) {
+		this.caseReportKey = caseReportKey;
+	}
+
+	public String lookupKey() {
+		return type + "|" + value;
+	}
+}
@@ -0,0 +1,155 @@
+package edu.gatech.chai.ecr.jpa.model;
+
+import java.util.Date;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Index;
+import javax.persistence.Table;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+
+// One row per CSV export (POST /exports), so that every node can answer for every job.
+// node_id is the node that runs the export and writes the file to its ECR_EXPORT_DIR;
+// file_name is relative to that directory. Progress is written every few seconds while
+// the export runs, and last_update_date is touched every minute while the job is queued
+// or running, so that a job whose node has gone away can be told apart.
+@Entity
+@Table(name = "ecr_export_job", schema = "ecr",
+	indexes = @Index(name = "ix_ecr_export_job_node", columnList = "node_id, finished_date"))
+public class ExportJob {
+	@Id
+	@Column(name = "export_id", length = 36)
+	private String id;
+	@Column(name = "node_id", length = 64, nullable = false)
+	private String nodeId;
+	@Column(name = "status", length = 16, nullable = false)
+	private String status;
+	@Column(name = "file_name")
+	private String fileName;
+	@Column(name = "file_size")
+	private Long fileSize;
+	@Column(name = "total_rows")
+	private Long totalRows;
+	@Column(name = "written_rows")
+	private Long writtenRows = 0L;
+	@Column(name = "error_message", length = 1024)
+	private String errorMessage;
+	@Column(name = "created_date")
+	@Temporal(TemporalType.TIMESTAMP)
+	private Date createdDate = new Date();
+	@Column(name = "started_date")
+	@Temporal(TemporalType.TIMESTAMP)
+	private Date startedDate;
+	@Column(name = "finished_date")
+	@Temporal(TemporalType.TIMESTAMP)
+	private Date finishedDate;
+	@Column(name = "last_update_date")
+	@Temporal(TemporalType.TIMESTAMP)
+	private Date lastUpdateDate;
+
+	public ExportJob() {}
+
+	public ExportJob(String id, String nodeId, String status) {
+		this.id = id;
+		this.nodeId = nodeId;
+		this.status = status;
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	public void setId(String id) {
+		this.id = id;
+	}
+
+	public String getNodeId() {
+		return nodeId;
+	}
+
+	public void setNodeId(String nodeId) {
+		this.nodeId = nodeId;
+	}
+
+	public String getStatus() {
+		return status;
+	}
+
+	public void setStatus(String status) {
+		this.status = status;
+	}
+
+	public String getFileName() {
+		return fileName;
+	}
+
+	public void setFileName(String fileName) {
+		this.fileName = fileName;
+	}
+
+	public Long getFileSize() {
+		return fileSize;
+	}
+
+	public void setFileSize(Long fileSize) {
+		this.fileSize = fileSize;
+	}
+
+	public Long getTotalRows() {
+		return totalRows;
+	}
+
+	public void setTotalRows(Long totalRows) {
+		this.totalRows = totalRows;
+	}
+
+	public Long getWrittenRows() {
+		return writtenRows;
+	}
+
+	public void setWrittenRows(Long writtenRows) {
+		this.writtenRows = writtenRows;
+	}
+
+	public String getErrorMessage() {
+		return errorMessage;
+	}
+
+	public void setErrorMessage(String errorMessage) {
+		this.errorMessage = errorMessage;
+	}
+
+	public Date getCreatedDate() {
+		return createdDate;
+	}
+
+	public void setCreatedDate(Date createdDate) {
+		this.createdDate = createdDate;
+	}
+
+	public Date getStartedDate() {
+		return startedDate;
+	}
+
+	public void setStartedDate(Date startedDate) {
+		this.startedDate = startedDate;
+	}
+
+	public Date getFinishedDate() {
+		return finishedDate;
+	}
+
+	public void setFinishedDate(Date finishedDate) {
+		this.finishedDate = finishedDate;
+	}
+
+	public Date getLastUpdateDate() {
+		return lastUpdateDate;
+	}
+
+	public void setLastUpdateDate(Date lastUpdateDate) {
+		this.lastUpdateDate = lastUpdateDate;
+	}
+}
@@ -0,0 +1,27 @@
+package edu.gatech.chai.ecr.jpa.model;
+
+// Names shared by the Hibernate table generators on our entities and by ECRIdAllocator.
+// Both lease blocks from the same ecr.ecr_id_sequence rows with pooled-lo semantics. For
+// the entity keys next_val is the last key handed out, as Hibernate stores it; for ECR
+// ids, which only ECRIdAllocator serves, it is the first id of the next block.
+public final class IdSequence {
+	public static final String SCHEMA = "ecr";
+	public static final String TABLE = "ecr_id_sequence";
+	public static final String SEGMENT_COLUMN = "sequence_name";
+	public static final String VALUE_COLUMN = "next_val";
+	public static final String OPTIMIZER = "pooled-lo";
+	public static final String GENERATOR = "org.hibernate.id.enhanced.TableGenerator";
+	public static final String BLOCK_SIZE = "50";
+
+	public static final String CASE_REPORT_ID = "case_report_id";
+	public static final String CASE_REPORT_KEY = "case_report_key";
+	public static final String CASE_REPORT_HISTORY_KEY = "case_report_history_key";
+	public static final String ECR_JOB_KEY = "ecr_job_key";
+	public static final String PATIENT_IDENTIFIER_KEY = "patient_identifier_key";
+	public static final String PACER_DELIVERY_KEY = "pacer_delivery_key";
+	public static final String BULK_FILE_KEY = "bulk_file_key";
+	// Not a key: a counter bumped once per committed change to ecr_data (see ECRChangeSequence).
+	public static final String CHANGE_SEQ = "ecr_change_seq";
+
+	private IdSequence() {}
+}
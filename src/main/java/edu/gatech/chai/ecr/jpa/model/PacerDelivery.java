@@ -0,0 +1,83 @@
+package edu.gatech.chai.ecr.jpa.model;
+
+import java.util.Date;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.Id;
+import javax.persistence.Index;
+import javax.persistence.Table;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+import javax.persistence.UniqueConstraint;
+
+import org.hibernate.annotations.GenericGenerator;
+import org.hibernate.annotations.Parameter;
+
+// One row per PACER result delivery that has been merged. The unique constraint makes a
+// redelivery of the same (job, delivery id) fail to insert, on whichever node it lands.
+@Entity
+@Table(name = "pacer_delivery", schema = "ecr",
+	uniqueConstraints = @UniqueConstraint(name = "ux_pacer_delivery", columnNames = { "ecr_job_key", "delivery_id" }),
+	indexes = @Index(name = "ix_pacer_delivery_received", columnList = "received_date"))
+public class PacerDelivery {
+	@Id
+	@Column(name = "pacer_delivery_key")
+	@GeneratedValue(generator = IdSequence.PACER_DELIVERY_KEY)
+	@GenericGenerator(name = IdSequence.PACER_DELIVERY_KEY, strategy = IdSequence.GENERATOR, parameters = {
+		@Parameter(name = "schema", value = IdSequence.SCHEMA),
+		@Parameter(name = "table_name", value = IdSequence.TABLE),
+		@Parameter(name = "segment_column_name", value = IdSequence.SEGMENT_COLUMN),
+		@Parameter(name = "value_column_name", value = IdSequence.VALUE_COLUMN),
+		@Parameter(name = "segment_value", value = IdSequence.PACER_DELIVERY_KEY),
+		@Parameter(name = "increment_size", value = IdSequence.BLOCK_SIZE),
+		@Parameter(name = "optimizer", value = IdSequence.OPTIMIZER) })
+	private Integer id;
+	@Column(name = "ecr_job_key", nullable = false)
+	private Integer jobKey;
+	@Column(name = "delivery_id", length = 128, nullable = false)
+	private String deliveryId;
+	@Column(name = "received_date", nullable = false)
+	@Temporal(TemporalType.TIMESTAMP)
+	private Date receivedDate = new Date();
+
+	public PacerDelivery() {}
+
+	public PacerDelivery(Integer jobKey, String deliveryId) {
+		this.jobKey = jobKey;
+		this.deliveryId = deliveryId;
+	}
+
+	public Integer getId() {
+		return id;
+	}
+
+	public void setId(Integer id) {
+		this.id = id;
+	}
+
+	public Integer getJobKey() {
+		return jobKey;
+	}
+
+	public void setJobKey(Integer jobKey) {
+		this.jobKey = jobKey;
+	}
+
+	public String getDeliveryId() {
+		return deliveryId;
+	}
+
+	public void setDeliveryId(String deliveryId) {
+		this.deliveryId = deliveryId;
+	}
+
+	public Date getReceivedDate() {
+		return receivedDate;
+	}
+
+	public void setReceivedDate(Date receivedDate) {
+		this.receivedDate = receivedDate;
+	}
+}
@@ -0,0 +1,26 @@
+package edu.gatech.chai.ecr.jpa.repo;
+
+import java.util.Date;
+import java.util.List;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+import edu.gatech.chai.ecr.jpa.model.BulkFile;
+
+@Repository
+public interface BulkFileRepository extends JpaRepository<BulkFile, Integer> {
+	BulkFile findFirstByContentHashAndStatusCodeNotOrderByIdDesc(String contentHash, String statusCode);
+	List<BulkFile> findTop50ByOrderByIdDesc();
+	// Moves the checkpoint on; runs in the transaction that wrote the chunk.
+	@Modifying
+	@Query("update BulkFile f set f.byteOffset = :byteOffset, f.lineNumber = :lineNumber, "
+			+ "f.patientCount = :patientCount, f.skippedCount = :skippedCount, f.createdCount = :createdCount, "
+			+ "f.chunkCount = f.chunkCount + 1, f.lastUpdateDate = :now where f.id = :id")
+	int advance(@Param("id") Integer id, @Param("byteOffset") long byteOffset, @Param("lineNumber") int lineNumber,
+			@Param("patientCount") int patientCount, @Param("skippedCount") int skippedCount,
+			@Param("createdCount") int createdCount, @Param("now") Date now);
+}
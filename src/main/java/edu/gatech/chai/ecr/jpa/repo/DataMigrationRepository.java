@@ -0,0 +1,10 @@
+package edu.gatech.chai.ecr.jpa.repo;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.stereotype.Repository;
+
+import edu.gatech.chai.ecr.jpa.model.DataMigration;
+
+@Repository
+public interface DataMigrationRepository extends JpaRepository<DataMigration, String> {
+}
@@ -0,0 +1,49 @@
+package edu.gatech.chai.ecr.jpa.repo;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+import edu.gatech.chai.ecr.jpa.model.ECRData;
+
+// Position of the last row returned by a keyset search: (case_report_id, case_report_key).
+// Clients only ever see it as an opaque URL-safe token.
+public class ECRDataCursor {
+	private final int ecrId;
+	private final int id;
+
+	public ECRDataCursor(int ecrId, int id) {
+		this.ecrId = ecrId;
+		this.id = id;
+	}
+
+	public static ECRDataCursor after(ECRData ecrData) {
+		return new ECRDataCursor(ecrData.getECRId(), ecrData.getId());
+	}
+
+	public int getECRId() {
+		return ecrId;
+	}
+
+	public int getId() {
+		return id;
+	}
+
+	public String encode() {
+		String position = ecrId + ":" + id;
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(position.getBytes(StandardCharsets.UTF_8));
+	}
+
+	public static ECRDataCursor decode(String token) {
+		try {
+			String position = new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8);
+			String[] parts = position.split(":");
+			if (parts.length != 2) {
+				throw new IllegalArgumentException("Malformed cursor " + token);
+			}
+			return new ECRDataCursor(Integer.parseInt(parts[0]), Integer.parseInt(parts[1]));
+		} catch (IllegalArgumentException e) {
+			// NumberFormatException is an IllegalArgumentException too.
+			throw new IllegalArgumentException("Malformed cursor " + token, e);
+		}
+	}
+}
@@ -4,28 +4,46 @@ import java.util.List;
 
 import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
 import edu.gatech.chai.ecr.jpa.model.ECRData;
 
 @Repository
-public interface ECRDataRepository extends JpaRepository<ECRData, Integer> {
+public interface ECRDataRepository extends JpaRepository<ECRData, Integer>, ECRDataRepositoryCustom {
 	List<ECRData> findByEcrIdOrderByVersionDesc(Integer ecrId);
-	List<ECRData> findByLastNameOrderByVersionDesc(String lastName,Pageable pageable);
-	List<ECRData> findByFirstNameOrderByVersionDesc(String firstName,Pageable pageable);
-	List<ECRData> findByZipCodeOrderByVersionDesc(String zipCode,Pageable pageable);
-	List<ECRData> findByDiagnosisCodeOrderByVersionDesc(String diagnosisCode,Pageable pageable);
-	List<ECRData> findByLastNameAndFirstNameOrderByVersionDesc(String lastName,String firstName,Pageable pageable);
-	List<ECRData> findByLastNameAndZipCodeOrderByVersionDesc(String lastName,String zipCode,Pageable pageable);
-	List<ECRData> findByLastNameAndDiagnosisCodeOrderByVersionDesc(String lastName,String diagnosisCode,Pageable pageable);
-	List<ECRData> findByFirstNameAndZipCodeOrderByVersionDesc(String firstName,String zipCode,Pageable pageable);
-	List<ECRData> findByFirstNameAndDiagnosisCodeOrderByVersionDesc(String firstName,String diagnosisCode,Pageable pageable);
-	List<ECRData> findByZipCodeAndDiagnosisCodeOrderByVersionDesc(String zipCode,String diagnosisCode,Pageable pageable);
-	List<ECRData> findByLastNameAndFirstNameAndZipCodeOrderByVersionDesc(String lastName,String firstName,String zipCode,Pageable pageable);
-	List<ECRData> findByLastNameAndFirstNameAndDiagnosisCodeOrderByVersionDesc(String lastName,String firstName,String diagnosisCode,Pageable pageable);
-	List<ECRData> findByLastNameAndZipCodeAndDiagnosisCodeOrderByVersionDesc(String lastName,String zipCode,String diagnosisCode,Pageable pageable);
-	List<ECRData> findByFirstNameAndZipCodeAndDiagnosisCodeOrderByVersionDesc(String firstName,String zipCode,String diagnosisCode,Pageable pageable);
-	List<ECRData> findByLastNameAndFirstNameAndZipCodeAndDiagnosisCodeOrderByVersionDesc(String lastName,String firstName,String zipCode,String diagnosisCode,Pageable pageable);
-	List<ECRData> findByPatientIdsContainingIgnoreCase(String stringPatientId);
+	List<ECRData> findByEcrIdAndCurrentTrue(Integer ecrId);
+	@Query("select d from ECRData d where d.current = true and d.id in "
+			+ "(select p.caseReportKey from ECRPatientIdentifier p where p.value = :value and p.type = :type)")
+	List<ECRData> findByPatientIdentifier(@Param("type") String type, @Param("value") String value);
+
+	@Query("select d from ECRData d where d.id > :afterId and not exists "
+			+ "(select p.id from ECRPatientIdentifier p where p.caseReportKey = d.id) order by d.id")
+	List<ECRData> findWithoutPatientIdentifiers(@Param("afterId") Integer afterId, Pageable pageable);
+
+	// Marks the highest version of every case as current. Used once to fill is_current
+	// on rows written before the column existed.
+	@Modifying
+	@Query("update ECRData d set d.current = true where d.current is null and not exists "
+			+ "(select n.id from ECRData n where n.ecrId = d.ecrId and "
+			+ "(n.version > d.version or (n.version = d.version and n.id > d.id)))")
+	int markLatestVersionsCurrent();
+
+	@Modifying
+	@Query("update ECRData d set d.current = false where d.current is null")
+	int markRemainingVersionsNotCurrent();
+
+	// Copies the status of the latest job onto rows written before job_status existed.
+	@Modifying
+	@Query("update ECRData d set "
+			+ "d.jobStatus = (select j.statusCode from ECRJob j where j.id = "
+			+ "(select max(m.id) from ECRJob m where m.reportId = d.id)), "
+			+ "d.jobStatusDate = (select j.lastUpdateDate from ECRJob j where j.id = "
+			+ "(select max(m.id) from ECRJob m where m.reportId = d.id)) "
+			+ "where d.jobStatus is null and exists (select j.id from ECRJob j where j.reportId = d.id)")
+	int copyLatestJobStatus();
+
 	ECRData	findTopByOrderByIdDesc();
 }
\ No newline at end of file
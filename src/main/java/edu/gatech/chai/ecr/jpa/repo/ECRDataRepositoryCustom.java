@@ -0,0 +1,17 @@
+package edu.gatech.chai.ecr.jpa.repo;
+
+import java.util.List;
+import java.util.stream.Stream;
+
+import edu.gatech.chai.ecr.jpa.model.ECRData;
+
+public interface ECRDataRepositoryCustom {
+	// Current versions matching every filter in the criteria, ordered by (case_report_id,
+	// case_report_key) and starting after the cursor when one is given.
+	List<ECRData> search(ECRSearchCriteria criteria, ECRDataCursor after, int offset, int limit);
+
+	// Rows matching the criteria with case_report_key up to maxId, in key order, read
+	// through a server-side cursor. Callers must hold a transaction while consuming the
+	// stream and should detach rows as they go.
+	Stream<ECRData> stream(ECRSearchCriteria criteria, Integer maxId);
+}
@@ -0,0 +1,136 @@
+package edu.gatech.chai.ecr.jpa.repo;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.stream.Stream;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.Path;
+import javax.persistence.criteria.Predicate;
+import javax.persistence.criteria.Root;
+import javax.persistence.criteria.Subquery;
+
+import org.hibernate.jpa.QueryHints;
+
+import edu.gatech.chai.ecr.jpa.json.utils.PatientIdUtil;
+import edu.gatech.chai.ecr.jpa.model.ECRData;
+import edu.gatech.chai.ecr.jpa.model.ECRPatientIdentifier;
+import edu.gatech.chai.ecr.jpa.repo.ECRSearchCriteria.DateFilter;
+
+// Builds one query for any combination of ECR search filters. Keyset pagination: the
+// cursor turns into a range predicate on (case_report_id, case_report_key), which the
+// is_current composite indexes on ecr_data satisfy in order, so every page costs the
+// same however deep the client has walked.
+public class ECRDataRepositoryImpl implements ECRDataRepositoryCustom {
+	private static final int STREAM_FETCH_SIZE = 500;
+
+	@PersistenceContext
+	private EntityManager entityManager;
+
+	@Override
+	public List<ECRData> search(ECRSearchCriteria criteria, ECRDataCursor after, int offset, int limit) {
+		CriteriaBuilder cb = entityManager.getCriteriaBuilder();
+		CriteriaQuery<ECRData> query = cb.createQuery(ECRData.class);
+		Root<ECRData> root = query.from(ECRData.class);
+
+		List<Predicate> predicates = predicates(cb, query, root, criteria);
+		if (after != null) {
+			predicates.add(cb.or(
+					cb.greaterThan(root.get("ecrId"), after.getECRId()),
+					cb.and(cb.equal(root.get("ecrId"), after.getECRId()), cb.greaterThan(root.get("id"), after.getId()))));
+		}
+
+		query.select(root)
+			.where(predicates.toArray(new Predicate[0]))
+			.orderBy(cb.asc(root.get("ecrId")), cb.asc(root.get("id")));
+
+		return entityManager.createQuery(query)
+				.setFirstResult(offset)
+				.setMaxResults(limit)
+				.getResultList();
+	}
+
+	@Override
+	public Stream<ECRData> stream(ECRSearchCriteria criteria, Integer maxId) {
+		CriteriaBuilder cb = entityManager.getCriteriaBuilder();
+		CriteriaQuery<ECRData> query = cb.createQuery(ECRData.class);
+		Root<ECRData> root = query.from(ECRData.class);
+
+		List<Predicate> predicates = predicates(cb, query, root, criteria);
+		predicates.add(cb.lessThanOrEqualTo(root.get("id"), maxId));
+
+		query.select(root)
+			.where(predicates.toArray(new Predicate[0]))
+			.orderBy(cb.asc(root.get("id")));
+
+		return entityManager.createQuery(query)
+				.setHint(QueryHints.HINT_FETCH_SIZE, STREAM_FETCH_SIZE)
+				.setHint(QueryHints.HINT_READONLY, true)
+				.getResultStream();
+	}
+
+	private static List<Predicate> predicates(CriteriaBuilder cb, CriteriaQuery<?> query, Root<ECRData> root,
+			ECRSearchCriteria criteria) {
+		List<Predicate> predicates = new ArrayList<Predicate>();
+		if (!criteria.isAllVersions()) {
+			predicates.add(cb.isTrue(root.get("current")));
+		}
+		if (criteria.getLastName() != null) {
+			predicates.add(cb.equal(root.get("lastName"), criteria.getLastName()));
+		}
+		if (criteria.getFirstName() != null) {
+			predicates.add(cb.equal(root.get("firstName"), criteria.getFirstName()));
+		}
+		if (criteria.getZipCode() != null) {
+			predicates.add(cb.equal(root.get("zipCode"), criteria.getZipCode()));
+		}
+		if (criteria.getDiagnosisCode() != null) {
+			predicates.add(cb.equal(root.get("diagnosisCode"), criteria.getDiagnosisCode()));
+		}
+		if (criteria.getPatientIdValue() != null) {
+			// Resolved through the unique (value, type, case_report_key) index on ecr_patient_identifier.
+			Subquery<Integer> identifiers = query.subquery(Integer.class);
+			Root<ECRPatientIdentifier> identifier = identifiers.from(ECRPatientIdentifier.class);
+			identifiers.select(identifier.get("caseReportKey")).where(
+					cb.equal(identifier.get("value"), PatientIdUtil.lookupValue(criteria.getPatientIdValue())),
+					cb.equal(identifier.get("type"), PatientIdUtil.lookupType(criteria.getPatientIdType())));
+			predicates.add(root.get("id").in(identifiers));
+		}
+		for (DateFilter filter : criteria.getFirstDate()) {
+			predicates.add(datePredicate(cb, root.get("firstDate"), filter));
+		}
+		for (DateFilter filter : criteria.getLastDate()) {
+			predicates.add(datePredicate(cb, root.get("lastDate"), filter));
+		}
+		for (DateFilter filter : criteria.getLastUpdated()) {
+			predicates.add(datePredicate(cb, root.get("last_updated"), filter));
+		}
+		if (criteria.getChangedAfter() != null) {
+			predicates.add(cb.greaterThan(root.get("changeSeq"), criteria.getChangedAfter()));
+		}
+		if (criteria.getChangedThrough() != null) {
+			Path<Long> changeSeq = root.get("changeSeq");
+			predicates.add(cb.or(cb.isNull(changeSeq), cb.lessThanOrEqualTo(changeSeq, criteria.getChangedThrough())));
+		}
+		return predicates;
+	}
+
+	private static Predicate datePredicate(CriteriaBuilder cb, Path<Date> path, DateFilter filter) {
+		switch (filter.getOperator()) {
+		case DateFilter.LT:
+			return cb.lessThan(path, filter.getValue());
+		case DateFilter.LE:
+			return cb.lessThanOrEqualTo(path, filter.getValue());
+		case DateFilter.GT:
+			return cb.greaterThan(path, filter.getValue());
+		case DateFilter.GE:
+			return cb.greaterThanOrEqualTo(path, filter.getValue());
+		default:
+			return cb.equal(path, filter.getValue());
+		}
+	}
+}
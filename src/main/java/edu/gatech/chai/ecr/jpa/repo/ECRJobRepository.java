@@ -1,8 +1,13 @@
 package edu.gatech.chai.ecr.jpa.repo;
 
+import java.util.Collection;
+import java.util.Date;
 import java.util.List;
 
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
 import edu.gatech.chai.ecr.jpa.model.ECRJob;
@@ -10,6 +15,13 @@ import edu.gatech.chai.ecr.jpa.model.ECRJob;
 @Repository
 public interface ECRJobRepository extends JpaRepository<ECRJob, Integer>{
 	List<ECRJob> findByReportIdOrderByIdDesc(Integer reportId);
-	List<ECRJob> findByStatusCode(String statusCode);
+	List<ECRJob> findByReportIdIn(Collection<Integer> reportIds);
 	List<ECRJob> findByPatientIdContainingIgnoreCase(String stringPatientId);
-}
\ No newline at end of file
+	List<ECRJob> findByReportIdAndStatusCode(Integer reportId, String statusCode);
+	// Only jobs still in the given status are touched, so a job answered in the meantime
+	// (e.g. by a PACER callback) keeps its state.
+	@Modifying
+	@Query("update ECRJob j set j.nextRunDate = :nextRunDate where j.id in :ids and j.statusCode = :status")
+	int deferInStatus(@Param("ids") Collection<Integer> ids, @Param("status") String status,
+			@Param("nextRunDate") Date nextRunDate);
+}
@@ -0,0 +1,20 @@
+package edu.gatech.chai.ecr.jpa.repo;
+
+import java.util.Collection;
+import java.util.List;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+import edu.gatech.chai.ecr.jpa.model.ECRPatientIdentifier;
+
+@Repository
+public interface ECRPatientIdentifierRepository extends JpaRepository<ECRPatientIdentifier, Integer> {
+	List<ECRPatientIdentifier> findByCaseReportKey(Integer caseReportKey);
+	List<ECRPatientIdentifier> findByCaseReportKeyIn(Collection<Integer> caseReportKeys);
+	@Query("select p from ECRPatientIdentifier p where p.value in :values and exists "
+			+ "(select d.id from ECRData d where d.id = p.caseReportKey and d.current = true)")
+	List<ECRPatientIdentifier> findCurrentByValueIn(@Param("values") Collection<String> values);
+}
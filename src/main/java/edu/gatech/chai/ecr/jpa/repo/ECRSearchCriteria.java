@@ -0,0 +1,222 @@
+package edu.gatech.chai.ecr.jpa.repo;
+
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+// Any subset of the filters supported by ECR search. Unset (null or blank) filters are
+// ignored. Date filters use the same eq/lt/le/gt/ge prefixes as /ECRhistory and may be
+// repeated to form a range, e.g. lastDate=ge2021-01-01&lastDate=lt2021-02-01.
+public class ECRSearchCriteria {
+	private String lastName;
+	private String firstName;
+	private String zipCode;
+	private String diagnosisCode;
+	private String patientIdType;
+	private String patientIdValue;
+	private List<DateFilter> firstDate = new ArrayList<DateFilter>();
+	private List<DateFilter> lastDate = new ArrayList<DateFilter>();
+	private List<DateFilter> lastUpdated = new ArrayList<DateFilter>();
+	private Long changedAfter;
+	private Long changedThrough;
+	private boolean allVersions = false;
+
+	public String getLastName() {
+		return lastName;
+	}
+
+	public ECRSearchCriteria setLastName(String lastName) {
+		this.lastName = blankToNull(lastName);
+		return this;
+	}
+
+	public String getFirstName() {
+		return firstName;
+	}
+
+	public ECRSearchCriteria setFirstName(String firstName) {
+		this.firstName = blankToNull(firstName);
+		return this;
+	}
+
+	public String getZipCode() {
+		return zipCode;
+	}
+
+	public ECRSearchCriteria setZipCode(String zipCode) {
+		this.zipCode = blankToNull(zipCode);
+		return this;
+	}
+
+	public String getDiagnosisCode() {
+		return diagnosisCode;
+	}
+
+	public ECRSearchCriteria setDiagnosisCode(String diagnosisCode) {
+		this.diagnosisCode = blankToNull(diagnosisCode);
+		return this;
+	}
+
+	public String getPatientIdType() {
+		return patientIdType;
+	}
+
+	public String getPatientIdValue() {
+		return patientIdValue;
+	}
+
+	// Accepts "type|value" as stored in ecr_data.patient_ids.
+	public ECRSearchCriteria setPatientId(String patientId) {
+		patientId = blankToNull(patientId);
+		if (patientId == null) {
+			patientIdType = null;
+			patientIdValue = null;
+			return this;
+		}
+
+		int separator = patientId.indexOf('|');
+		if (separator <= 0 || separator == patientId.length() - 1) {
+			throw new IllegalArgumentException("patientId must be type|value, got " + patientId);
+		}
+		patientIdType = patientId.substring(0, separator);
+		patientIdValue = patientId.substring(separator + 1);
+		return this;
+	}
+
+	public List<DateFilter> getFirstDate() {
+		return firstDate;
+	}
+
+	public ECRSearchCriteria addFirstDate(String prefixedDate) {
+		firstDate.add(DateFilter.parse(prefixedDate));
+		return this;
+	}
+
+	public List<DateFilter> getLastDate() {
+		return lastDate;
+	}
+
+	public ECRSearchCriteria addLastDate(String prefixedDate) {
+		lastDate.add(DateFilter.parse(prefixedDate));
+		return this;
+	}
+
+	public List<DateFilter> getLastUpdated() {
+		return lastUpdated;
+	}
+
+	public ECRSearchCriteria addLastUpdated(DateFilter filter) {
+		lastUpdated.add(filter);
+		return this;
+	}
+
+	// Bounds on change_seq, the commit-ordered change number behind /exportCSV?since.
+	// Rows changed before change numbers existed have none: changedThrough lets them
+	// through, changedAfter does not.
+	public Long getChangedAfter() {
+		return changedAfter;
+	}
+
+	public ECRSearchCriteria setChangedAfter(Long changedAfter) {
+		this.changedAfter = changedAfter;
+		return this;
+	}
+
+	public Long getChangedThrough() {
+		return changedThrough;
+	}
+
+	public ECRSearchCriteria setChangedThrough(Long changedThrough) {
+		this.changedThrough = changedThrough;
+		return this;
+	}
+
+	// Searches only see the current version of each case. Exports of the whole table
+	// (/exportCSV) include every version, as they always have.
+	public boolean isAllVersions() {
+		return allVersions;
+	}
+
+	public ECRSearchCriteria setAllVersions(boolean allVersions) {
+		this.allVersions = allVersions;
+		return this;
+	}
+
+	// Names the filters in use, in a fixed order, e.g. "lastName+zipCode+lastDate".
+	// Used to tag search timings so slow filter combinations stand out.
+	public String shape() {
+		StringBuilder shape = new StringBuilder();
+		appendShape(shape, lastName != null, "lastName");
+		appendShape(shape, firstName != null, "firstName");
+		appendShape(shape, zipCode != null, "zipCode");
+		appendShape(shape, diagnosisCode != null, "diagnosisCode");
+		appendShape(shape, patientIdValue != null, "patientId");
+		appendShape(shape, !firstDate.isEmpty(), "firstDate");
+		appendShape(shape, !lastDate.isEmpty(), "lastDate");
+		appendShape(shape, !lastUpdated.isEmpty(), "lastUpdated");
+		appendShape(shape, changedAfter != null, "changedAfter");
+		return shape.length() == 0 ? "all" : shape.toString();
+	}
+
+	private static void appendShape(StringBuilder shape, boolean used, String name) {
+		if (used) {
+			if (shape.length() > 0) {
+				shape.append('+');
+			}
+			shape.append(name);
+		}
+	}
+
+	private static String blankToNull(String value) {
+		return value == null || value.isBlank() ? null : value;
+	}
+
+	public static class DateFilter {
+		public static final String EQ = "eq";
+		public static final String LT = "lt";
+		public static final String LE = "le";
+		public static final String GT = "gt";
+		public static final String GE = "ge";
+
+		private final String operator;
+		private final Date value;
+
+		public DateFilter(String operator, Date value) {
+			this.operator = operator;
+			this.value = value;
+		}
+
+		// "ge2021-01-01T00:00:00" or "ge2021-01-01". Without a prefix, eq is assumed.
+		public static DateFilter parse(String prefixedDate) {
+			String operator = EQ;
+			String date = prefixedDate.trim();
+			if (date.length() > 2 && Character.isLetter(date.charAt(0)) && Character.isLetter(date.charAt(1))) {
+				operator = date.substring(0, 2);
+				date = date.substring(2);
+			}
+			if (!EQ.equals(operator) && !LT.equals(operator) && !LE.equals(operator) && !GT.equals(operator)
+					&& !GE.equals(operator)) {
+				throw new IllegalArgumentException("Unknown date prefix " + operator + " in " + prefixedDate);
+			}
+
+			try {
+				LocalDateTime dateTime = date.length() == 10 ? LocalDate.parse(date).atStartOfDay() : LocalDateTime.parse(date);
+				return new DateFilter(operator, Timestamp.valueOf(dateTime));
+			} catch (DateTimeParseException e) {
+				throw new IllegalArgumentException("Could not parse date " + prefixedDate, e);
+			}
+		}
+
+		public String getOperator() {
+			return operator;
+		}
+
+		public Date getValue() {
+			return value;
+		}
+	}
+}
@@ -0,0 +1,30 @@
+package edu.gatech.chai.ecr.jpa.repo;
+
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+import edu.gatech.chai.ecr.jpa.model.ExportJob;
+
+@Repository
+public interface ExportJobRepository extends JpaRepository<ExportJob, String> {
+	List<ExportJob> findByNodeIdAndStatusIn(String nodeId, Collection<String> statuses);
+	List<ExportJob> findByNodeIdAndFinishedDateBefore(String nodeId, Date finishedDate);
+	List<ExportJob> findByFinishedDateBefore(Date finishedDate);
+
+	// Unfinished jobs whose node stopped touching them; rows written before
+	// last_update_date existed go by their creation date.
+	@Query("select j from ExportJob j where j.finishedDate is null "
+			+ "and coalesce(j.lastUpdateDate, j.createdDate) < :before")
+	List<ExportJob> findUnfinishedNotUpdatedSince(@Param("before") Date before);
+
+	@Modifying
+	@Query("update ExportJob j set j.lastUpdateDate = :now where j.id in :ids and j.finishedDate is null")
+	int touch(@Param("ids") Collection<String> ids, @Param("now") Date now);
+}
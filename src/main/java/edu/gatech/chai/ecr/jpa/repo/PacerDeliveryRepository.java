@@ -0,0 +1,19 @@
+package edu.gatech.chai.ecr.jpa.repo;
+
+import java.util.Date;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+import edu.gatech.chai.ecr.jpa.model.PacerDelivery;
+
+@Repository
+public interface PacerDeliveryRepository extends JpaRepository<PacerDelivery, Integer> {
+	boolean existsByJobKeyAndDeliveryId(Integer jobKey, String deliveryId);
+	@Modifying
+	@Query("delete from PacerDelivery d where d.receivedDate < :before")
+	int deleteReceivedBefore(@Param("before") Date before);
+}
@@ -0,0 +1,35 @@
+package edu.gatech.chai.ecr.repository;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.stereotype.Component;
+
+import edu.gatech.chai.ecr.jpa.model.DataMigration;
+import edu.gatech.chai.ecr.jpa.repo.DataMigrationRepository;
+
+// Backfills for rows written by earlier versions only need to run once per database.
+// Each one is recorded in ecr.ecr_data_migration when it has finished, and is skipped on
+// every later startup. Backfills are idempotent, so nodes that start together may both run
+// one; a backfill cut short by a stop is simply run again on the next startup.
+@Component
+public class DataMigrations {
+	private static final Logger logger = LoggerFactory.getLogger(DataMigrations.class);
+
+	@Autowired
+	private DataMigrationRepository dataMigrationRepository;
+
+	public boolean isApplied(String name) {
+		return dataMigrationRepository.existsById(name);
+	}
+
+	public void markApplied(String name) {
+		try {
+			dataMigrationRepository.saveAndFlush(new DataMigration(name));
+			logger.info("Data migration " + name + " is done");
+		} catch (DataIntegrityViolationException e) {
+			// Another node finished it at the same time.
+		}
+	}
+}
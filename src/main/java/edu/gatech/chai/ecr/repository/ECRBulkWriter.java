@@ -0,0 +1,571 @@
+package edu.gatech.chai.ecr.repository;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import javax.annotation.PostConstruct;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.sql.DataSource;
+
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyIn;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.jdbc.support.JdbcUtils;
+import org.springframework.jdbc.support.MetaDataAccessException;
+import org.springframework.stereotype.Component;
+
+import com.microsoft.sqlserver.jdbc.ISQLServerBulkData;
+import com.microsoft.sqlserver.jdbc.SQLServerBulkCopy;
+import com.microsoft.sqlserver.jdbc.SQLServerBulkCopyOptions;
+import com.microsoft.sqlserver.jdbc.SQLServerConnection;
+
+import edu.gatech.chai.ecr.jpa.json.Patient;
+import edu.gatech.chai.ecr.jpa.json.TypeableID;
+import edu.gatech.chai.ecr.jpa.json.utils.ECRJsonConverter;
+import edu.gatech.chai.ecr.jpa.json.utils.PatientIdUtil;
+import edu.gatech.chai.ecr.jpa.model.ECRData;
+import edu.gatech.chai.ecr.jpa.model.ECRJob;
+import edu.gatech.chai.ecr.jpa.model.ECRPatientIdentifier;
+import edu.gatech.chai.ecr.jpa.model.IdSequence;
+
+// Writes case, job and patient identifier rows for bulk loads straight through JDBC
+// instead of one entity save per row. On Postgres the rows are streamed into temp
+// tables with COPY, on SQL Server with bulk copy, and each table is then merged with
+// one upsert from its staging table. Other databases get plain JDBC batches.
+// ecr.bulk.writer picks the path: auto (by database), batch, or jpa to keep using
+// the entity saves. Keys are leased from the same ecr_id_sequence rows as Hibernate's,
+// and everything runs on the caller's transaction and connection.
+@Component
+public class ECRBulkWriter {
+	private static final Logger logger = LoggerFactory.getLogger(ECRBulkWriter.class);
+
+	public static final String COPY = "copy";
+	public static final String BULK_COPY = "bulkcopy";
+	public static final String BATCH = "batch";
+	public static final String JPA = "jpa";
+
+	// Columns in the order of the row() arrays below, key first.
+	private static final Table DATA = new Table("ecr.ecr_data", "ecr_data_stage")
+			.column("case_report_key", Types.INTEGER)
+			.column("case_data", Types.VARCHAR)
+			.column("case_report_id", Types.INTEGER)
+			.column("version", Types.INTEGER)
+			.column("is_current", Types.BOOLEAN)
+			.column("created_date", Types.TIMESTAMP)
+			.column("last_updated", Types.TIMESTAMP)
+			.column("patient_ids", Types.VARCHAR)
+			.column("last_name", Types.VARCHAR)
+			.column("first_name", Types.VARCHAR)
+			.column("zip_code", Types.VARCHAR)
+			.column("diagnosis", Types.VARCHAR)
+			.column("first_date", Types.TIMESTAMP)
+			.column("last_date", Types.TIMESTAMP)
+			.column("job_status", Types.VARCHAR)
+			.column("job_status_date", Types.TIMESTAMP);
+	private static final Table JOB = new Table("ecr.ecr_job", "ecr_job_stage")
+			.column("ecr_job_key", Types.INTEGER)
+			.column("case_report_key", Types.INTEGER)
+			.column("patient_id", Types.VARCHAR)
+			.column("next_run_date", Types.TIMESTAMP)
+			.column("status_code", Types.VARCHAR)
+			.column("update_count", Types.INTEGER)
+			.column("max_updates", Types.INTEGER)
+			.column("created_date", Types.TIMESTAMP)
+			.column("last_update_date", Types.TIMESTAMP);
+	private static final Table IDENTIFIER = new Table("ecr.ecr_patient_identifier", "ecr_patient_identifier_stage")
+			.column("patient_identifier_key", Types.INTEGER)
+			.column("type", Types.VARCHAR)
+			.column("value", Types.VARCHAR)
+			.column("case_report_key", Types.INTEGER);
+
+	@Value("${ecr.bulk.writer:auto}")
+	private String writer;
+
+	@Autowired
+	private NamedParameterJdbcTemplate jdbcTemplate;
+
+	@Autowired
+	private DataSource dataSource;
+
+	@Autowired
+	private ECRIdAllocator ecrIdAllocator;
+
+	@Autowired
+	private ECRChangeSequence ecrChangeSequence;
+
+	@PersistenceContext
+	private EntityManager entityManager;
+
+	private final ECRJsonConverter converter = new ECRJsonConverter();
+
+	private String path;
+
+	@PostConstruct
+	public void start() throws MetaDataAccessException {
+		String database = JdbcUtils.extractDatabaseMetaData(dataSource, DatabaseMetaData::getDatabaseProductName);
+		if (JPA.equalsIgnoreCase(writer)) {
+			path = JPA;
+		} else if (BATCH.equalsIgnoreCase(writer)) {
+			path = BATCH;
+		} else if ("PostgreSQL".equalsIgnoreCase(database)) {
+			path = COPY;
+		} else if (database != null && database.toLowerCase().contains("sql server")) {
+			path = BULK_COPY;
+		} else {
+			path = BATCH;
+		}
+		logger.info("Bulk writes to " + database + " use " + path);
+	}
+
+	// copy, bulkcopy, batch, or jpa when bulk loads should save entities as before.
+	public String getPath() {
+		return path;
+	}
+
+	public boolean isEnabled() {
+		return !JPA.equals(path);
+	}
+
+	// New cases get their keys here, before the jobs that refer to them are built.
+	public void assignKeys(Collection<ECRData> ecrDatas) {
+		List<ECRData> unkeyed = new ArrayList<ECRData>();
+		for (ECRData ecrData : ecrDatas) {
+			if (ecrData.getId() == null) {
+				unkeyed.add(ecrData);
+			}
+		}
+		if (unkeyed.isEmpty()) {
+			return;
+		}
+
+		int key = ecrIdAllocator.leaseKeys(IdSequence.CASE_REPORT_KEY, unkeyed.size());
+		for (ECRData ecrData : unkeyed) {
+			ecrData.setId(key++);
+		}
+	}
+
+	// Inserts the created cases (keyed by assignKeys), updates the others in place and
+	// inserts or updates the jobs, new ones being those without a key. As in
+	// ECRJobService, ecr_data.job_status follows the job of each case. Identifiers the
+	// cases do not have rows for yet are added; bulk updates merge patients and never
+	// drop an identifier, so there is nothing to delete. Cases and jobs loaded through
+	// JPA are detached first, or the session would write them a second time at commit.
+	public void write(Collection<ECRData> created, Collection<ECRData> updated, Collection<ECRJob> ecrJobs) {
+		detach(updated);
+		detach(ecrJobs);
+
+		Date now = new Date();
+		Map<Integer, ECRJob> jobByReport = new HashMap<Integer, ECRJob>();
+		for (ECRJob ecrJob : ecrJobs) {
+			jobByReport.put(ecrJob.getReportId(), ecrJob);
+		}
+		List<ECRData> cases = new ArrayList<ECRData>(created);
+		cases.addAll(updated);
+		ecrChangeSequence.changed(cases);
+		for (ECRData ecrData : cases) {
+			ECRJob ecrJob = jobByReport.get(ecrData.getId());
+			if (ecrJob != null && !Objects.equals(ecrJob.getStatusCode(), ecrData.getJobStatus())) {
+				ecrData.setJobStatus(ecrJob.getStatusCode());
+				ecrData.setJobStatusDate(now);
+			}
+		}
+
+		List<ECRJob> newJobs = new ArrayList<ECRJob>();
+		List<ECRJob> oldJobs = new ArrayList<ECRJob>();
+		for (ECRJob ecrJob : ecrJobs) {
+			if (ecrJob.getId() == null) {
+				newJobs.add(ecrJob);
+			} else {
+				oldJobs.add(ecrJob);
+			}
+		}
+		if (!newJobs.isEmpty()) {
+			int key = ecrIdAllocator.leaseKeys(IdSequence.ECR_JOB_KEY, newJobs.size());
+			for (ECRJob ecrJob : newJobs) {
+				ecrJob.setId(key++);
+			}
+		}
+
+		List<ECRPatientIdentifier> identifiers = newIdentifiers(created, updated);
+		if (!identifiers.isEmpty()) {
+			int key = ecrIdAllocator.leaseKeys(IdSequence.PATIENT_IDENTIFIER_KEY, identifiers.size());
+			for (ECRPatientIdentifier identifier : identifiers) {
+				identifier.setId(key++);
+			}
+		}
+
+		List<Object[]> dataRows = new ArrayList<Object[]>();
+		for (ECRData ecrData : cases) {
+			dataRows.add(row(ecrData));
+		}
+		// New jobs first, as with the cases.
+		List<Object[]> jobRows = new ArrayList<Object[]>();
+		for (ECRJob ecrJob : newJobs) {
+			jobRows.add(row(ecrJob));
+		}
+		for (ECRJob ecrJob : oldJobs) {
+			jobRows.add(row(ecrJob));
+		}
+		List<Object[]> identifierRows = new ArrayList<Object[]>();
+		for (ECRPatientIdentifier identifier : identifiers) {
+			identifierRows.add(row(identifier));
+		}
+
+		if (BATCH.equals(path)) {
+			batch(DATA, dataRows.subList(0, created.size()), dataRows.subList(created.size(), dataRows.size()));
+			batch(JOB, jobRows.subList(0, newJobs.size()), jobRows.subList(newJobs.size(), jobRows.size()));
+			batch(IDENTIFIER, identifierRows, Collections.<Object[]>emptyList());
+			return;
+		}
+
+		jdbcTemplate.getJdbcTemplate().execute((ConnectionCallback<Void>) connection -> {
+			stage(connection, DATA, dataRows);
+			stage(connection, JOB, jobRows);
+			stage(connection, IDENTIFIER, identifierRows);
+			return null;
+		});
+	}
+
+	private void detach(Collection<?> entities) {
+		for (Object entity : entities) {
+			if (entityManager.contains(entity)) {
+				entityManager.detach(entity);
+			}
+		}
+	}
+
+	// The identifiers of each case, canonical and without repeats, less those the
+	// updated cases already have rows for (one read per slice of cases).
+	private List<ECRPatientIdentifier> newIdentifiers(Collection<ECRData> created, Collection<ECRData> updated) {
+		Set<String> existing = new HashSet<String>();
+		List<Integer> updatedKeys = new ArrayList<Integer>();
+		for (ECRData ecrData : updated) {
+			updatedKeys.add(ecrData.getId());
+		}
+		for (List<Integer> slice : ECRIngestService.slices(updatedKeys)) {
+			jdbcTemplate.query("select case_report_key, type, value from ecr.ecr_patient_identifier "
+					+ "where case_report_key in (:keys)", new MapSqlParameterSource("keys", slice),
+					rs -> {
+						existing.add(rs.getInt(1) + "|" + rs.getString(2) + "|" + rs.getString(3));
+					});
+		}
+
+		List<ECRPatientIdentifier> identifiers = new ArrayList<ECRPatientIdentifier>();
+		List<ECRData> cases = new ArrayList<ECRData>(created);
+		cases.addAll(updated);
+		for (ECRData ecrData : cases) {
+			Patient patient = ecrData.getECR() == null ? null : ecrData.getECR().getPatient();
+			if (patient == null || patient.getid() == null) {
+				continue;
+			}
+			Map<String, ECRPatientIdentifier> wanted = new LinkedHashMap<String, ECRPatientIdentifier>();
+			for (TypeableID patientId : patient.getid()) {
+				if (PatientIdUtil.isValid(patientId)) {
+					ECRPatientIdentifier identifier = new ECRPatientIdentifier(patientId.gettype(), patientId.getvalue(),
+							ecrData.getId());
+					if (!existing.contains(ecrData.getId() + "|" + identifier.lookupKey())) {
+						wanted.putIfAbsent(identifier.lookupKey(), identifier);
+					}
+				}
+			}
+			identifiers.addAll(wanted.values());
+		}
+		return identifiers;
+	}
+
+	private Object[] row(ECRData ecrData) {
+		return new Object[] { ecrData.getId(), converter.convertToDatabaseColumn(ecrData.getECR()), ecrData.getECRId(),
+				ecrData.getVersion(), ecrData.getCurrent(), timestamp(ecrData.getCreated_date()),
+				timestamp(ecrData.getLast_updated()), ecrData.getPatientIds(), ecrData.getLastName(),
+				ecrData.getFirstName(), ecrData.getZipCode(), ecrData.getDiagnosisCode(),
+				timestamp(ecrData.getFirstDate()), timestamp(ecrData.getLastDate()), ecrData.getJobStatus(),
+				timestamp(ecrData.getJobStatusDate()) };
+	}
+
+	private static Object[] row(ECRJob ecrJob) {
+		return new Object[] { ecrJob.getId(), ecrJob.getReportId(), ecrJob.getPatientId(),
+				timestamp(ecrJob.getNextRunDate()), ecrJob.getStatusCode(), ecrJob.getUpdateCount(),
+				ecrJob.getMaxUpdates(), timestamp(ecrJob.getCreatedDate()), timestamp(ecrJob.getLastUpdateDate()) };
+	}
+
+	private static Object[] row(ECRPatientIdentifier identifier) {
+		return new Object[] { identifier.getId(), identifier.getType(), identifier.getValue(),
+				identifier.getCaseReportKey() };
+	}
+
+	private static Timestamp timestamp(Date date) {
+		return date == null ? null : new Timestamp(date.getTime());
+	}
+
+	// Other databases: inserts and updates in JDBC batches, no staging.
+	private void batch(Table table, List<Object[]> inserts, List<Object[]> updates) {
+		if (!inserts.isEmpty()) {
+			jdbcTemplate.getJdbcTemplate().batchUpdate(table.insertSql(), inserts, table.insertTypes());
+		}
+		if (!updates.isEmpty()) {
+			List<Object[]> args = new ArrayList<Object[]>();
+			for (Object[] row : updates) {
+				// Key last, for the where clause.
+				Object[] arg = new Object[row.length];
+				System.arraycopy(row, 1, arg, 0, row.length - 1);
+				arg[row.length - 1] = row[0];
+				args.add(arg);
+			}
+			jdbcTemplate.getJdbcTemplate().batchUpdate(table.updateSql(), args, table.updateTypes());
+		}
+	}
+
+	private void stage(Connection connection, Table table, List<Object[]> rows) throws SQLException {
+		if (rows.isEmpty()) {
+			return;
+		}
+		if (COPY.equals(path)) {
+			copy(connection, table, rows);
+		} else {
+			bulkCopy(connection, table, rows);
+		}
+	}
+
+	// Postgres: COPY ... FROM STDIN in CSV into a temp table, then one
+	// INSERT ... ON CONFLICT DO UPDATE. The temp table lives as long as the pooled
+	// connection and is emptied after every merge.
+	private void copy(Connection connection, Table table, List<Object[]> rows) throws SQLException {
+		try (Statement statement = connection.createStatement()) {
+			statement.execute("create temp table if not exists " + table.stage + " (like " + table.name
+					+ " including defaults) on commit delete rows");
+		}
+
+		CopyIn copyIn = connection.unwrap(PGConnection.class).getCopyAPI()
+				.copyIn("copy " + table.stage + " (" + table.columnList() + ") from stdin with (format csv)");
+		try {
+			StringBuilder line = new StringBuilder();
+			for (Object[] row : rows) {
+				line.setLength(0);
+				for (int i = 0; i < row.length; i++) {
+					if (i > 0) {
+						line.append(',');
+					}
+					appendCsv(line, row[i]);
+				}
+				line.append('\n');
+				byte[] bytes = line.toString().getBytes(StandardCharsets.UTF_8);
+				copyIn.writeToCopy(bytes, 0, bytes.length);
+			}
+			copyIn.endCopy();
+		} finally {
+			if (copyIn.isActive()) {
+				copyIn.cancelCopy();
+			}
+		}
+
+		String merge = "insert into " + table.name + " (" + table.columnList() + ") select " + table.columnList()
+				+ " from " + table.stage + " on conflict (" + table.key() + ") do update set " + table.assignments("excluded.");
+		try (Statement statement = connection.createStatement()) {
+			statement.executeUpdate(merge);
+			statement.executeUpdate("delete from " + table.stage);
+		}
+	}
+
+	// Null is an unquoted empty field and everything else is quoted, so empty strings
+	// stay empty strings.
+	private static void appendCsv(StringBuilder line, Object value) {
+		if (value == null) {
+			return;
+		}
+		if (value instanceof String) {
+			line.append('"').append(((String) value).replace("\"", "\"\"")).append('"');
+		} else {
+			line.append(value);
+		}
+	}
+
+	// SQL Server: SQLServerBulkCopy into a #temp table, then one MERGE.
+	private void bulkCopy(Connection connection, Table table, List<Object[]> rows) throws SQLException {
+		String stage = "#" + table.stage;
+		int count = table.columns.size();
+		int[] types = new int[count];
+		int[] precisions = new int[count];
+		int[] scales = new int[count];
+		try (Statement statement = connection.createStatement()) {
+			statement.execute("if object_id('tempdb.." + stage + "') is null select top 0 " + table.columnList()
+					+ " into " + stage + " from " + table.name);
+			ResultSetMetaData metaData = statement.executeQuery("select top 0 " + table.columnList() + " from " + stage)
+					.getMetaData();
+			for (int i = 0; i < count; i++) {
+				types[i] = metaData.getColumnType(i + 1);
+				precisions[i] = metaData.getPrecision(i + 1);
+				scales[i] = metaData.getScale(i + 1);
+			}
+		}
+
+		SQLServerBulkCopyOptions options = new SQLServerBulkCopyOptions();
+		options.setKeepIdentity(true);
+		options.setKeepNulls(true);
+		options.setBatchSize(rows.size());
+		try (SQLServerBulkCopy bulkCopy = new SQLServerBulkCopy(connection.unwrap(SQLServerConnection.class))) {
+			bulkCopy.setBulkCopyOptions(options);
+			bulkCopy.setDestinationTableName(stage);
+			for (String column : table.columns) {
+				bulkCopy.addColumnMapping(column, column);
+			}
+			bulkCopy.writeToServer(new BulkRows(table.columns.toArray(new String[count]), types, precisions, scales, rows.iterator()));
+		}
+
+		String merge = "merge " + table.name + " with (holdlock) as t using " + stage + " as s on t." + table.key()
+				+ " = s." + table.key() + " when matched then update set " + table.assignments("s.")
+				+ " when not matched then insert (" + table.columnList() + ") values (s."
+				+ String.join(", s.", table.columns) + ");";
+		try (Statement statement = connection.createStatement()) {
+			statement.executeUpdate(merge);
+			statement.executeUpdate("delete from " + stage);
+		}
+	}
+
+	private static class Table {
+		final String name;
+		final String stage;
+		final List<String> columns = new ArrayList<String>();
+		final List<Integer> types = new ArrayList<Integer>();
+
+		Table(String name, String stage) {
+			this.name = name;
+			this.stage = stage;
+		}
+
+		Table column(String column, int type) {
+			columns.add(column);
+			types.add(type);
+			return this;
+		}
+
+		String key() {
+			return columns.get(0);
+		}
+
+		List<String> values() {
+			return columns.subList(1, columns.size());
+		}
+
+		String columnList() {
+			return String.join(", ", columns);
+		}
+
+		String insertSql() {
+			return "insert into " + name + " (" + columnList() + ") values ("
+					+ String.join(", ", Collections.nCopies(columns.size(), "?")) + ")";
+		}
+
+		// column = <source>column for every column but the key.
+		String assignments(String source) {
+			return values().stream().map(column -> column + " = " + source + column).collect(Collectors.joining(", "));
+		}
+
+		String updateSql() {
+			return "update " + name + " set " + String.join(" = ?, ", values()) + " = ? where " + key() + " = ?";
+		}
+
+		// Explicit types spare the driver a metadata round trip for every null.
+		int[] insertTypes() {
+			return types.stream().mapToInt(Integer::intValue).toArray();
+		}
+
+		int[] updateTypes() {
+			int[] updateTypes = new int[types.size()];
+			for (int i = 1; i < types.size(); i++) {
+				updateTypes[i - 1] = types.get(i);
+			}
+			updateTypes[types.size() - 1] = types.get(0);
+			return updateTypes;
+		}
+	}
+
+	// Rows for SQLServerBulkCopy, typed after the staging table.
+	private static class BulkRows implements ISQLServerBulkData {
+		private static final long serialVersionUID = 1L;
+
+		private final String[] columns;
+		private final int[] types;
+		private final int[] precisions;
+		private final int[] scales;
+		private final transient Iterator<Object[]> rows;
+		private Object[] row;
+
+		BulkRows(String[] columns, int[] types, int[] precisions, int[] scales, Iterator<Object[]> rows) {
+			this.columns = columns;
+			this.types = types;
+			this.precisions = precisions;
+			this.scales = scales;
+			this.rows = rows;
+		}
+
+		@Override
+		public Set<Integer> getColumnOrdinals() {
+			Set<Integer> ordinals = new LinkedHashSet<Integer>();
+			for (int i = 1; i <= columns.length; i++) {
+				ordinals.add(i);
+			}
+			return ordinals;
+		}
+
+		@Override
+		public String getColumnName(int column) {
+			return columns[column - 1];
+		}
+
+		@Override
+		public int getColumnType(int column) {
+			return types[column - 1];
+		}
+
+		@Override
+		public int getPrecision(int column) {
+			return precisions[column - 1];
+		}
+
+		@Override
+		public int getScale(int column) {
+			return scales[column - 1];
+		}
+
+		@Override
+		public Object[] getRowData() {
+			return row;
+		}
+
+		@Override
+		public boolean next() {
+			if (!rows.hasNext()) {
+				return false;
+			}
+			row = rows.next();
+			return true;
+		}
+	}
+}
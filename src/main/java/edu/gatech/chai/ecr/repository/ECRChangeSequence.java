@@ -0,0 +1,105 @@
+package edu.gatech.chai.ecr.repository;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import edu.gatech.chai.ecr.jpa.model.ECRData;
+import edu.gatech.chai.ecr.jpa.model.IdSequence;
+
+// Numbers ecr_data changes in commit order, for the /exportCSV?since cursor. Rows written
+// in a transaction are collected as they are saved; just before the commit the transaction
+// takes the next number from the ecr_change_seq row of ecr.ecr_id_sequence and stamps it on
+// them as change_seq. The row lock on the counter is held until the commit, so numbers are
+// committed in order and every change up to the counter's committed value is visible. The
+// lock is only held for the stamping itself, so writers do not queue behind each other's
+// whole transactions.
+@Component
+public class ECRChangeSequence {
+	private static final String SEQUENCE_TABLE = IdSequence.SCHEMA + "." + IdSequence.TABLE;
+	private static final int STAMP_SLICE = 1000;
+
+	@Autowired
+	private JdbcTemplate jdbcTemplate;
+
+	@Autowired
+	private NamedParameterJdbcTemplate namedParameterJdbcTemplate;
+
+	@PersistenceContext
+	private EntityManager entityManager;
+
+	// Records the rows for stamping when the current transaction commits. They must have
+	// their case_report_key by now.
+	public void changed(Collection<ECRData> ecrDatas) {
+		if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+			throw new IllegalStateException("ECR Data changes must be written in a transaction");
+		}
+
+		@SuppressWarnings("unchecked")
+		Set<Integer> keys = (Set<Integer>) TransactionSynchronizationManager.getResource(this);
+		if (keys == null) {
+			Set<Integer> pending = new LinkedHashSet<Integer>();
+			TransactionSynchronizationManager.bindResource(this, pending);
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+				@Override
+				public void beforeCommit(boolean readOnly) {
+					stamp(pending);
+				}
+
+				@Override
+				public void afterCompletion(int status) {
+					TransactionSynchronizationManager.unbindResourceIfPossible(ECRChangeSequence.this);
+				}
+			});
+			keys = pending;
+		}
+		for (ECRData ecrData : ecrDatas) {
+			keys.add(ecrData.getId());
+		}
+	}
+
+	// The highest committed change number. Every change numbered up to it is visible to
+	// queries started after this call.
+	public long committed() {
+		Long value = jdbcTemplate.queryForObject("select " + IdSequence.VALUE_COLUMN + " from " + SEQUENCE_TABLE
+				+ " where " + IdSequence.SEGMENT_COLUMN + " = ?", Long.class, IdSequence.CHANGE_SEQ);
+		return value == null ? 0 : value;
+	}
+
+	private void stamp(Set<Integer> keys) {
+		if (keys.isEmpty()) {
+			return;
+		}
+
+		// Hibernate has not necessarily written the rows yet.
+		entityManager.flush();
+
+		int updated = jdbcTemplate.update("update " + SEQUENCE_TABLE + " set " + IdSequence.VALUE_COLUMN + " = "
+				+ IdSequence.VALUE_COLUMN + " + 1 where " + IdSequence.SEGMENT_COLUMN + " = ?", IdSequence.CHANGE_SEQ);
+		if (updated == 0) {
+			throw new IllegalStateException("ID sequence " + IdSequence.CHANGE_SEQ + " has not been initialized");
+		}
+		// Reads our own increment, under the lock it took.
+		long change = committed();
+
+		List<Integer> all = new ArrayList<Integer>(keys);
+		for (int start = 0; start < all.size(); start += STAMP_SLICE) {
+			List<Integer> slice = all.subList(start, Math.min(start + STAMP_SLICE, all.size()));
+			namedParameterJdbcTemplate.update("update ecr.ecr_data set change_seq = :change where case_report_key in (:keys)",
+					new MapSqlParameterSource("change", change).addValue("keys", slice));
+		}
+	}
+}
@@ -0,0 +1,200 @@
+package edu.gatech.chai.ecr.repository;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.PostConstruct;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.DependsOn;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import edu.gatech.chai.ecr.jpa.json.ECR;
+import edu.gatech.chai.ecr.jpa.json.Patient;
+import edu.gatech.chai.ecr.jpa.json.TypeableID;
+import edu.gatech.chai.ecr.jpa.json.utils.PatientIdUtil;
+import edu.gatech.chai.ecr.jpa.model.ECRData;
+import edu.gatech.chai.ecr.jpa.model.ECRPatientIdentifier;
+import edu.gatech.chai.ecr.jpa.repo.ECRDataRepository;
+import edu.gatech.chai.ecr.jpa.repo.ECRPatientIdentifierRepository;
+
+// All ECRData writes go through here so that the ecr_patient_identifier lookup table
+// stays in step with the case data it indexes, and every change gets its change number.
+@Component
+@DependsOn("ECRIdAllocator")
+public class ECRDataService {
+	private static final Logger logger = LoggerFactory.getLogger(ECRDataService.class);
+	private static final int BACKFILL_PAGE_SIZE = 500;
+	private static final String CURRENT_VERSION_MIGRATION = "current_versions";
+	private static final String PATIENT_IDENTIFIER_MIGRATION = "patient_identifiers";
+
+	@Autowired
+	private ECRDataRepository ecrDataRepository;
+
+	@Autowired
+	private ECRPatientIdentifierRepository ecrPatientIdentifierRepository;
+
+	@Autowired
+	private ECRChangeSequence ecrChangeSequence;
+
+	@Autowired
+	private DataMigrations dataMigrations;
+
+	@Autowired
+	private PlatformTransactionManager transactionManager;
+
+	@Transactional
+	public ECRData save(ECRData ecrData) {
+		ECRData saved = ecrDataRepository.save(ecrData);
+		syncPatientIdentifiers(saved);
+		ecrChangeSequence.changed(Collections.singletonList(saved));
+		return saved;
+	}
+
+	@Transactional
+	public List<ECRData> saveAll(Collection<ECRData> ecrDatas) {
+		List<ECRData> saved = ecrDataRepository.saveAll(ecrDatas);
+		syncPatientIdentifiers(saved);
+		ecrChangeSequence.changed(saved);
+		return saved;
+	}
+
+	// Writes the update as a new version of the case and retires the version it was
+	// based on in the same transaction, so exactly one row per case stays current.
+	@Transactional
+	public ECRData saveNewVersion(ECRData previous, ECR ecr) {
+		ECRData next = new ECRData(previous);
+		next.update(ecr);
+		previous.setCurrent(false);
+		ecrDataRepository.save(previous);
+		return save(next);
+	}
+
+	public List<ECRData> findByPatientId(TypeableID patientId) {
+		if (!PatientIdUtil.isValid(patientId)) {
+			return new ArrayList<ECRData>();
+		}
+
+		return ecrDataRepository.findByPatientIdentifier(PatientIdUtil.lookupType(patientId.gettype()),
+				PatientIdUtil.lookupValue(patientId.getvalue()));
+	}
+
+	public List<ECRData> findByPatientId(String type, String value) {
+		TypeableID patientId = new TypeableID();
+		patientId.settype(type);
+		patientId.setvalue(value);
+		return findByPatientId(patientId);
+	}
+
+	void syncPatientIdentifiers(ECRData ecrData) {
+		syncPatientIdentifiers(Collections.singletonList(ecrData));
+	}
+
+	// Diffs the wanted identifiers of every row against what is stored with one read
+	// for the whole set, so batch writes do not pay a lookup per row.
+	void syncPatientIdentifiers(Collection<ECRData> ecrDatas) {
+		Map<Integer, Map<String, ECRPatientIdentifier>> wantedByKey = new HashMap<Integer, Map<String, ECRPatientIdentifier>>();
+		for (ECRData ecrData : ecrDatas) {
+			Map<String, ECRPatientIdentifier> wanted = new HashMap<String, ECRPatientIdentifier>();
+			Patient patient = ecrData.getECR() == null ? null : ecrData.getECR().getPatient();
+			if (patient != null && patient.getid() != null) {
+				for (TypeableID patientId : patient.getid()) {
+					if (!PatientIdUtil.isValid(patientId)) {
+						continue;
+					}
+
+					ECRPatientIdentifier identifier = new ECRPatientIdentifier(patientId.gettype(), patientId.getvalue(), ecrData.getId());
+					wanted.putIfAbsent(identifier.lookupKey(), identifier);
+				}
+			}
+			wantedByKey.put(ecrData.getId(), wanted);
+		}
+
+		if (wantedByKey.isEmpty()) {
+			return;
+		}
+
+		List<ECRPatientIdentifier> existing = ecrPatientIdentifierRepository.findByCaseReportKeyIn(wantedByKey.keySet());
+		List<ECRPatientIdentifier> stale = new ArrayList<ECRPatientIdentifier>();
+		for (ECRPatientIdentifier identifier : existing) {
+			Map<String, ECRPatientIdentifier> wanted = wantedByKey.get(identifier.getCaseReportKey());
+			if (wanted == null || wanted.remove(identifier.lookupKey()) == null) {
+				stale.add(identifier);
+			}
+		}
+
+		List<ECRPatientIdentifier> added = new ArrayList<ECRPatientIdentifier>();
+		for (Map<String, ECRPatientIdentifier> wanted : wantedByKey.values()) {
+			added.addAll(wanted.values());
+		}
+
+		if (!stale.isEmpty()) {
+			ecrPatientIdentifierRepository.deleteAll(stale);
+		}
+		if (!added.isEmpty()) {
+			ecrPatientIdentifierRepository.saveAll(added);
+		}
+	}
+
+	// Rows written before is_current existed get it filled in once: the highest version
+	// of each case is current and the rest are not.
+	@PostConstruct
+	public void backfillCurrentVersions() {
+		if (dataMigrations.isApplied(CURRENT_VERSION_MIGRATION)) {
+			return;
+		}
+		TransactionTemplate transactionTemplate = new TransactionTemplate(transactionManager);
+		Integer marked = transactionTemplate.execute(status -> {
+			int current = ecrDataRepository.markLatestVersionsCurrent();
+			return current + ecrDataRepository.markRemainingVersionsNotCurrent();
+		});
+
+		if (marked != null && marked > 0) {
+			logger.info("Filled in is_current for " + marked + " existing ECR Data rows");
+		}
+		dataMigrations.markApplied(CURRENT_VERSION_MIGRATION);
+	}
+
+	// Rows written before ecr_patient_identifier existed are indexed once, in pages,
+	// before we start accepting traffic. Otherwise an early lookup would miss them
+	// and create a duplicate case.
+	@PostConstruct
+	public void backfillPatientIdentifiers() {
+		if (dataMigrations.isApplied(PATIENT_IDENTIFIER_MIGRATION)) {
+			return;
+		}
+		TransactionTemplate transactionTemplate = new TransactionTemplate(transactionManager);
+		int afterId = 0;
+		int indexed = 0;
+		while (true) {
+			final int lastId = afterId;
+			List<ECRData> page = transactionTemplate.execute(status -> {
+				List<ECRData> ecrDatas = ecrDataRepository.findWithoutPatientIdentifiers(lastId,
+						PageRequest.of(0, BACKFILL_PAGE_SIZE));
+				syncPatientIdentifiers(ecrDatas);
+				return ecrDatas;
+			});
+
+			if (page == null || page.isEmpty()) {
+				break;
+			}
+			indexed += page.size();
+			afterId = page.get(page.size() - 1).getId();
+		}
+
+		if (indexed > 0) {
+			logger.info("Indexed patient identifiers for " + indexed + " existing ECR Data rows");
+		}
+		dataMigrations.markApplied(PATIENT_IDENTIFIER_MIGRATION);
+	}
+}
@@ -0,0 +1,141 @@
+package edu.gatech.chai.ecr.repository;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.annotation.PostConstruct;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import edu.gatech.chai.ecr.jpa.model.IdSequence;
+
+// Hands out ECR ids (case_report_id) that are unique across every ecr_manager node.
+// Each node leases a block of ids from ecr.ecr_id_sequence in one short transaction and
+// then serves the block from memory without locking. The entity primary keys lease
+// from the same table through Hibernate's pooled-lo table generator.
+@Component
+public class ECRIdAllocator {
+	private static final Logger logger = LoggerFactory.getLogger(ECRIdAllocator.class);
+	private static final String SEQUENCE_TABLE = IdSequence.SCHEMA + "." + IdSequence.TABLE;
+
+	@Value("${ecr.id.block-size:50}")
+	private int blockSize;
+
+	@Autowired
+	private JdbcTemplate jdbcTemplate;
+
+	@Autowired
+	private PlatformTransactionManager transactionManager;
+
+	private final AtomicReference<Block> block = new AtomicReference<Block>();
+
+	public int nextId() {
+		while (true) {
+			Block current = block.get();
+			if (current != null) {
+				long id = current.next.getAndIncrement();
+				if (id < current.limit) {
+					return Math.toIntExact(id);
+				}
+			}
+
+			// Block exhausted. Only one thread leases the next one; the rest retry on it.
+			synchronized (this) {
+				if (block.get() == current) {
+					block.set(lease(IdSequence.CASE_REPORT_ID, blockSize));
+				}
+			}
+		}
+	}
+
+	// A block of count keys from one of the entity sequences, for rows written without
+	// Hibernate (see ECRBulkWriter). Returns the first key of the block. Hibernate's table
+	// generator stores the last key it handed out rather than the next free one, so the
+	// block is (previous value, new value], one above what lease() serves for ECR ids.
+	public int leaseKeys(String segment, int count) {
+		return Math.toIntExact(lease(segment, count).next.get() + 1);
+	}
+
+	private Block lease(String segment, int size) {
+		TransactionTemplate transactionTemplate = new TransactionTemplate(transactionManager);
+		transactionTemplate.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+		Long limit = transactionTemplate.execute(status -> {
+			// The update takes the row lock, so the read that follows sees our own increment.
+			int updated = jdbcTemplate.update("update " + SEQUENCE_TABLE + " set " + IdSequence.VALUE_COLUMN + " = "
+					+ IdSequence.VALUE_COLUMN + " + ? where " + IdSequence.SEGMENT_COLUMN + " = ?", size, segment);
+			if (updated == 0) {
+				throw new IllegalStateException("ID sequence " + segment + " has not been initialized");
+			}
+			return jdbcTemplate.queryForObject("select " + IdSequence.VALUE_COLUMN + " from " + SEQUENCE_TABLE + " where "
+					+ IdSequence.SEGMENT_COLUMN + " = ?", Long.class, segment);
+		});
+
+		logger.debug("Leased ids [" + (limit - size) + ", " + limit + ") from " + segment);
+		return new Block(limit - size, limit);
+	}
+
+	// Makes sure every sequence starts above the ids already in use. This covers databases
+	// created before the sequence table existed, when ids came from IDENTITY columns and
+	// from MAX(case_report_id) at startup.
+	@PostConstruct
+	public void initializeSequences() {
+		Map<String, String> sequences = new LinkedHashMap<String, String>();
+		sequences.put(IdSequence.CASE_REPORT_ID, "select max(case_report_id) from ecr.ecr_data");
+		sequences.put(IdSequence.CASE_REPORT_KEY, "select max(case_report_key) from ecr.ecr_data");
+		sequences.put(IdSequence.CASE_REPORT_HISTORY_KEY, "select max(case_report_history_key) from ecr.ecr_data_history");
+		sequences.put(IdSequence.ECR_JOB_KEY, "select max(ecr_job_key) from ecr.ecr_job");
+		sequences.put(IdSequence.PATIENT_IDENTIFIER_KEY, "select max(patient_identifier_key) from ecr.ecr_patient_identifier");
+		sequences.put(IdSequence.CHANGE_SEQ, "select max(change_seq) from ecr.ecr_data");
+
+		for (Map.Entry<String, String> sequence : sequences.entrySet()) {
+			Long max = jdbcTemplate.queryForObject(sequence.getValue(), Long.class);
+			long floor = (max == null ? 0 : max) + 1;
+			initializeSequence(sequence.getKey(), floor);
+		}
+	}
+
+	private void initializeSequence(String segment, long floor) {
+		int raised = jdbcTemplate.update("update " + SEQUENCE_TABLE + " set " + IdSequence.VALUE_COLUMN + " = ? where "
+				+ IdSequence.SEGMENT_COLUMN + " = ? and " + IdSequence.VALUE_COLUMN + " < ?", floor, segment, floor);
+		if (raised > 0) {
+			logger.info("ID sequence " + segment + " raised to " + floor);
+			return;
+		}
+
+		Integer exists = jdbcTemplate.queryForObject("select count(*) from " + SEQUENCE_TABLE + " where "
+				+ IdSequence.SEGMENT_COLUMN + " = ?", Integer.class, segment);
+		if (exists != null && exists > 0) {
+			return;
+		}
+
+		try {
+			jdbcTemplate.update("insert into " + SEQUENCE_TABLE + " (" + IdSequence.SEGMENT_COLUMN + ", "
+					+ IdSequence.VALUE_COLUMN + ") values (?, ?)", segment, floor);
+			logger.info("ID sequence " + segment + " starts at " + floor);
+		} catch (DuplicateKeyException e) {
+			// Another node created it first; run the floor check against its row.
+			initializeSequence(segment, floor);
+		}
+	}
+
+	private static class Block {
+		final AtomicLong next;
+		final long limit;
+
+		Block(long first, long limit) {
+			this.next = new AtomicLong(first);
+			this.limit = limit;
+		}
+	}
+}
@@ -0,0 +1,388 @@
+package edu.gatech.chai.ecr.repository;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import edu.gatech.chai.ecr.jpa.json.ECR;
+import edu.gatech.chai.ecr.jpa.json.ECRBatchResult;
+import edu.gatech.chai.ecr.jpa.json.TypeableID;
+import edu.gatech.chai.ecr.jpa.json.utils.PatientIdUtil;
+import edu.gatech.chai.ecr.jpa.model.ECRData;
+import edu.gatech.chai.ecr.jpa.model.ECRDataHistory;
+import edu.gatech.chai.ecr.jpa.model.ECRJob;
+import edu.gatech.chai.ecr.jpa.model.ECRPatientIdentifier;
+import edu.gatech.chai.ecr.jpa.repo.ECRDataHistoryRepository;
+import edu.gatech.chai.ecr.jpa.repo.ECRDataRepository;
+import edu.gatech.chai.ecr.jpa.repo.ECRJobRepository;
+import edu.gatech.chai.ecr.jpa.repo.ECRPatientIdentifierRepository;
+
+// Ingest path for ELR/ECR messages. A single POST /ECR and every chunk of POST /ECR/batch
+// run the same set-based merge: one identifier query resolves the patient matches for the
+// whole chunk and the data, job and history rows are written with saveAll so Hibernate
+// can group them into JDBC batches inside one transaction.
+@Component
+public class ECRIngestService {
+	private static final Logger logger = LoggerFactory.getLogger(ECRIngestService.class);
+
+	// Keeps IN lists well below the SQL Server limit of 2100 parameters.
+	static final int MAX_IN_PARAMETERS = 1000;
+
+	@Value("${ecr.ingest.chunk-size:500}")
+	private int chunkSize;
+
+	@Autowired
+	private ECRDataRepository ecrDataRepository;
+
+	@Autowired
+	private ECRJobRepository ecrJobRepository;
+
+	@Autowired
+	private ECRDataHistoryRepository ecrDataHistoryRepository;
+
+	@Autowired
+	private ECRPatientIdentifierRepository ecrPatientIdentifierRepository;
+
+	@Autowired
+	private ECRDataService ecrDataService;
+
+	@Autowired
+	private ECRIdAllocator ecrIdAllocator;
+
+	@Autowired
+	private ECRJobService ecrJobService;
+
+	@Autowired
+	private ECRBulkWriter ecrBulkWriter;
+
+	@Autowired
+	private PlatformTransactionManager transactionManager;
+
+	public int getChunkSize() {
+		return chunkSize;
+	}
+
+	@Transactional
+	public ECRData ingest(ECR ecr, String source) {
+		return writeChunk(Collections.singletonList(ecr), source).get(0).ecrData;
+	}
+
+	// Writes one chunk in its own transaction. If the chunk fails, every item in it is
+	// reported as failed; earlier chunks stay committed.
+	public List<ECRBatchResult> ingestChunk(List<ECR> ecrs, List<Integer> indexes, String source) {
+		List<ECRBatchResult> results = new ArrayList<ECRBatchResult>();
+		List<ECR> valid = new ArrayList<ECR>();
+		List<Integer> validIndexes = new ArrayList<Integer>();
+		for (int i = 0; i < ecrs.size(); i++) {
+			ECR ecr = ecrs.get(i);
+			if (ecr == null || ecr.getPatient() == null) {
+				results.add(ECRBatchResult.failed(indexes.get(i), "ECR has no Patient"));
+			} else {
+				valid.add(ecr);
+				validIndexes.add(indexes.get(i));
+			}
+		}
+
+		if (valid.isEmpty()) {
+			return results;
+		}
+
+		try {
+			TransactionTemplate transactionTemplate = new TransactionTemplate(transactionManager);
+			List<Outcome> outcomes = transactionTemplate.execute(status -> writeChunk(valid, source));
+			for (int i = 0; i < outcomes.size(); i++) {
+				Outcome outcome = outcomes.get(i);
+				results.add(new ECRBatchResult(validIndexes.get(i), Integer.toString(outcome.ecrData.getECRId()),
+						outcome.created ? ECRBatchResult.CREATED : ECRBatchResult.UPDATED, null));
+			}
+		} catch (RuntimeException e) {
+			logger.error("ECR batch chunk of " + valid.size() + " failed: " + e.getMessage());
+			for (Integer index : validIndexes) {
+				results.add(ECRBatchResult.failed(index, e.getMessage()));
+			}
+		}
+
+		return results;
+	}
+
+	// One chunk of a bulk patient list (see bulk.BulkFileIngester), in its own transaction.
+	// keyByLookup was resolved before the chunk got here; identifiers it has no case for
+	// are looked up again, since an earlier chunk may have created the case since. Cases
+	// are merged as in writeChunk and the latest job of each is set running, but as before
+	// bulk lists write no history and leave the job's next run date alone. The rows go
+	// through ECRBulkWriter unless ecr.bulk.writer is jpa. Returns the number of cases
+	// created.
+	@Transactional
+	public int ingestBulkChunk(List<ECR> ecrs, Map<String, Integer> keyByLookup) {
+		List<TypeableID> unresolved = new ArrayList<TypeableID>();
+		for (TypeableID patientId : patientIds(ecrs)) {
+			if (PatientIdUtil.isValid(patientId) && !keyByLookup.containsKey(lookupKey(patientId))) {
+				unresolved.add(patientId);
+			}
+		}
+		Map<String, Integer> keys = new HashMap<String, Integer>(keyByLookup);
+		if (!unresolved.isEmpty()) {
+			keys.putAll(resolveCaseKeys(unresolved));
+		}
+		Map<String, ECRData> matches = loadCases(keys);
+
+		List<ECRData> created = new ArrayList<ECRData>();
+		Set<ECRData> touched = new LinkedHashSet<ECRData>();
+		for (ECR ecr : ecrs) {
+			ECRData data = null;
+			for (TypeableID patientId : ecr.getPatient().getid()) {
+				if (PatientIdUtil.isValid(patientId)) {
+					data = matches.get(lookupKey(patientId));
+					if (data != null) {
+						break;
+					}
+				}
+			}
+
+			if (data == null) {
+				int id = ecrIdAllocator.nextId();
+				ecr.setECRId(Integer.toString(id));
+				data = new ECRData(ecr, id);
+				created.add(data);
+			} else {
+				data.update(ecr);
+			}
+
+			for (TypeableID patientId : data.getECR().getPatient().getid()) {
+				if (PatientIdUtil.isValid(patientId)) {
+					matches.putIfAbsent(lookupKey(patientId), data);
+				}
+			}
+			touched.add(data);
+		}
+
+		boolean bulk = ecrBulkWriter.isEnabled();
+		if (bulk) {
+			ecrBulkWriter.assignKeys(created);
+		} else {
+			ecrDataService.saveAll(touched);
+		}
+
+		Map<Integer, ECRJob> latest = latestJobs(touched);
+		List<ECRJob> ecrJobs = new ArrayList<ECRJob>();
+		for (ECRData ecrData : touched) {
+			ECRJob ecrJob = latest.get(ecrData.getId());
+			if (ecrJob == null) {
+				ecrJob = new ECRJob(ecrData);
+			}
+			ecrJob.startRun();
+			ecrJobs.add(ecrJob);
+		}
+
+		if (bulk) {
+			List<ECRData> updated = new ArrayList<ECRData>(touched);
+			updated.removeAll(new HashSet<ECRData>(created));
+			ecrBulkWriter.write(created, updated, ecrJobs);
+		} else {
+			ecrJobService.saveAll(ecrJobs);
+		}
+
+		return created.size();
+	}
+
+	private List<Outcome> writeChunk(List<ECR> ecrs, String source) {
+		Map<String, ECRData> matches = findExistingCases(ecrs);
+
+		List<Outcome> outcomes = new ArrayList<Outcome>();
+		Map<ECRData, Boolean> touched = new LinkedHashMap<ECRData, Boolean>();
+		for (ECR ecr : ecrs) {
+			ECRData data = null;
+			for (TypeableID patientId : ecr.getPatient().getid()) {
+				if (PatientIdUtil.isValid(patientId)) {
+					data = matches.get(lookupKey(patientId));
+					if (data != null) {
+						break;
+					}
+				}
+			}
+
+			boolean created = data == null;
+			if (created) {
+				data = new ECRData(ecr, ecrIdAllocator.nextId());
+			} else {
+				data.update(ecr);
+				ecr.setECRId(Integer.toString(data.getECRId()));
+				logger.info("ELR received for an existing case, case_report_key=" + data.getId());
+			}
+
+			// Later messages in the same chunk for this patient merge into this case.
+			for (TypeableID patientId : data.getECR().getPatient().getid()) {
+				if (PatientIdUtil.isValid(patientId)) {
+					matches.putIfAbsent(lookupKey(patientId), data);
+				}
+			}
+
+			// The history row records this message as received. A new case holds ecr itself, and
+			// merging later messages for the patient into the case may also change objects
+			// shared with it, so the history gets a copy taken now.
+			touched.putIfAbsent(data, created);
+			outcomes.add(new Outcome(ECRData.copyOf(ecr), data, created));
+		}
+
+		ecrDataService.saveAll(touched.keySet());
+
+		Map<Integer, ECRJob> jobs = startJobs(touched.keySet());
+
+		List<ECRDataHistory> histories = new ArrayList<ECRDataHistory>();
+		for (Outcome outcome : outcomes) {
+			ECRJob ecrJob = jobs.get(outcome.ecrData.getId());
+			outcome.ecr.setStatus(ecrJob.getStatusCode());
+			ECRDataHistory ecrDataHistory = new ECRDataHistory(outcome.ecr, source);
+			ecrDataHistory.setECRId(outcome.ecrData.getECRId());
+			histories.add(ecrDataHistory);
+		}
+		ecrDataHistoryRepository.saveAll(histories);
+
+		return outcomes;
+	}
+
+	// Resolves every patient identifier in the chunk with one indexed IN query (split only
+	// to respect driver parameter limits) and loads the matched cases in one more.
+	private Map<String, ECRData> findExistingCases(List<ECR> ecrs) {
+		return loadCases(resolveCaseKeys(patientIds(ecrs)));
+	}
+
+	// Maps each patient identifier (by lookup key) to the current case that carries it.
+	// One indexed IN query per MAX_IN_PARAMETERS distinct values.
+	public Map<String, Integer> resolveCaseKeys(Collection<TypeableID> patientIds) {
+		Set<String> values = new HashSet<String>();
+		for (TypeableID patientId : patientIds) {
+			if (PatientIdUtil.isValid(patientId)) {
+				values.add(PatientIdUtil.lookupValue(patientId.getvalue()));
+			}
+		}
+
+		Map<String, Integer> keyByLookup = new HashMap<String, Integer>();
+		for (List<String> slice : slices(new ArrayList<String>(values))) {
+			for (ECRPatientIdentifier identifier : ecrPatientIdentifierRepository.findCurrentByValueIn(slice)) {
+				// Lowest key wins so repeated lookups resolve to the same case.
+				keyByLookup.merge(identifier.lookupKey(), identifier.getCaseReportKey(), Math::min);
+			}
+		}
+		return keyByLookup;
+	}
+
+	private Map<String, ECRData> loadCases(Map<String, Integer> keyByLookup) {
+		Map<Integer, ECRData> dataById = new HashMap<Integer, ECRData>();
+		for (List<Integer> slice : slices(new ArrayList<Integer>(new HashSet<Integer>(keyByLookup.values())))) {
+			for (ECRData ecrData : ecrDataRepository.findAllById(slice)) {
+				dataById.put(ecrData.getId(), ecrData);
+			}
+		}
+
+		Map<String, ECRData> matches = new HashMap<String, ECRData>();
+		for (Map.Entry<String, Integer> entry : keyByLookup.entrySet()) {
+			ECRData ecrData = dataById.get(entry.getValue());
+			if (ecrData != null) {
+				matches.put(entry.getKey(), ecrData);
+			}
+		}
+
+		return matches;
+	}
+
+	private Map<Integer, ECRJob> startJobs(Set<ECRData> ecrDatas) {
+		Map<Integer, ECRJob> latest = latestJobs(ecrDatas);
+
+		Date now = new Date();
+		Calendar c = Calendar.getInstance();
+		c.setTime(now);
+		c.add(Calendar.MINUTE, 2);
+		Date nextRunDate = c.getTime();
+
+		List<ECRJob> ecrJobs = new ArrayList<ECRJob>();
+		for (ECRData ecrData : ecrDatas) {
+			ECRJob ecrJob = latest.get(ecrData.getId());
+			if (ecrJob == null) {
+				ecrJob = new ECRJob(ecrData);
+				latest.put(ecrData.getId(), ecrJob);
+			} else {
+				ecrJob.setLastUpdateDate(now);
+			}
+
+			ecrJob.setNextRunDate(nextRunDate);
+			// Set/Reset the Max Update to 3
+			ecrJob.setUpdateCount(0);
+			ecrJob.startRun();
+			ecrJobs.add(ecrJob);
+		}
+		ecrJobService.saveAll(ecrJobs);
+
+		return latest;
+	}
+
+	// Latest job of each case, whatever its state.
+	private Map<Integer, ECRJob> latestJobs(Set<ECRData> ecrDatas) {
+		Set<Integer> reportIds = new HashSet<Integer>();
+		for (ECRData ecrData : ecrDatas) {
+			reportIds.add(ecrData.getId());
+		}
+
+		Map<Integer, ECRJob> latest = new HashMap<Integer, ECRJob>();
+		for (List<Integer> slice : slices(new ArrayList<Integer>(reportIds))) {
+			for (ECRJob ecrJob : ecrJobRepository.findByReportIdIn(slice)) {
+				ECRJob current = latest.get(ecrJob.getReportId());
+				if (current == null || current.getId() < ecrJob.getId()) {
+					latest.put(ecrJob.getReportId(), ecrJob);
+				}
+			}
+		}
+		return latest;
+	}
+
+	private static List<TypeableID> patientIds(List<ECR> ecrs) {
+		List<TypeableID> patientIds = new ArrayList<TypeableID>();
+		for (ECR ecr : ecrs) {
+			patientIds.addAll(ecr.getPatient().getid());
+		}
+		return patientIds;
+	}
+
+	// The key resolveCaseKeys answers with.
+	public static String lookupKey(TypeableID patientId) {
+		return PatientIdUtil.lookupType(patientId.gettype()) + "|" + PatientIdUtil.lookupValue(patientId.getvalue());
+	}
+
+	static <T> List<List<T>> slices(List<T> values) {
+		List<List<T>> slices = new ArrayList<List<T>>();
+		for (int i = 0; i < values.size(); i += MAX_IN_PARAMETERS) {
+			slices.add(values.subList(i, Math.min(values.size(), i + MAX_IN_PARAMETERS)));
+		}
+		return slices;
+	}
+
+	private static class Outcome {
+		final ECR ecr;
+		final ECRData ecrData;
+		final boolean created;
+
+		Outcome(ECR ecr, ECRData ecrData, boolean created) {
+			this.ecr = ecr;
+			this.ecrData = ecrData;
+			this.created = created;
+		}
+	}
+}
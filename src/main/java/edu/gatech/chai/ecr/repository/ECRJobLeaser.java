@@ -0,0 +1,160 @@
+package edu.gatech.chai.ecr.repository;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.sql.DatabaseMetaData;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.annotation.PostConstruct;
+import javax.sql.DataSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.jdbc.support.JdbcUtils;
+import org.springframework.jdbc.support.MetaDataAccessException;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+
+// Lets several ecr_manager nodes poll the same ecr_job table without sending the same
+// job twice. A node claims due jobs in batches by stamping lease_owner and lease_expiry
+// on them; the select skips rows another node is claiming at the same moment (FOR
+// UPDATE SKIP LOCKED on Postgres, UPDLOCK/READPAST on SQL Server) instead of waiting
+// for them. Leases are renewed right before a job is sent and released once it has been
+// handled. A node that dies simply lets its leases run out, and the jobs are claimed
+// again by whoever polls next.
+@Component
+public class ECRJobLeaser {
+	private static final Logger logger = LoggerFactory.getLogger(ECRJobLeaser.class);
+
+	private static final String DUE = "status_code = :status and (next_run_date is null or next_run_date <= :now) "
+			+ "and (lease_expiry is null or lease_expiry < :now)";
+	private static final String CLAIM_POSTGRES = "select ecr_job_key from ecr.ecr_job where " + DUE
+			+ " order by next_run_date nulls first, ecr_job_key limit :limit for update skip locked";
+	private static final String CLAIM_SQL_SERVER = "select top (:limit) ecr_job_key from ecr.ecr_job "
+			+ "with (updlock, rowlock, readpast) where " + DUE + " order by next_run_date, ecr_job_key";
+	// Other databases get no row skipping, which is fine for one node.
+	private static final String CLAIM_OTHER = "select ecr_job_key from ecr.ecr_job where " + DUE
+			+ " order by next_run_date, ecr_job_key fetch first :limit rows only";
+
+	@Autowired
+	private NamedParameterJdbcTemplate jdbcTemplate;
+
+	@Autowired
+	private DataSource dataSource;
+
+	@Autowired
+	private PlatformTransactionManager transactionManager;
+
+	@Value("${ecr.node-id:}")
+	private String nodeId;
+
+	@Value("${ecr.pacer.lease-seconds:1800}")
+	private long leaseSeconds;
+
+	private String claimSql;
+
+	@PostConstruct
+	public void start() throws MetaDataAccessException {
+		if (nodeId == null || nodeId.isBlank()) {
+			// The host name, so that a node keeps its id across restarts; two nodes on one host
+			// need ECR_NODE_ID.
+			String hostName = hostName();
+			nodeId = hostName.substring(0, Math.min(hostName.length(), 64));
+		}
+
+		String database = JdbcUtils.extractDatabaseMetaData(dataSource, DatabaseMetaData::getDatabaseProductName);
+		if ("PostgreSQL".equalsIgnoreCase(database)) {
+			claimSql = CLAIM_POSTGRES;
+		} else if (database != null && database.toLowerCase().contains("sql server")) {
+			claimSql = CLAIM_SQL_SERVER;
+		} else {
+			claimSql = CLAIM_OTHER;
+			logger.warn(database + " cannot skip locked rows; run a single ecr_manager node against it");
+		}
+		logger.info("Leasing PACER jobs as " + nodeId);
+	}
+
+	public String getNodeId() {
+		return nodeId;
+	}
+
+	// Raises the lease to at least the given time, so that a job cannot be claimed again
+	// by another node while it is still waiting to be sent here.
+	public void ensureLeaseCovers(long millis) {
+		long seconds = (millis + 999) / 1000;
+		if (leaseSeconds < seconds) {
+			logger.warn("ecr.pacer.lease-seconds=" + leaseSeconds + " is shorter than a PACER job can wait to be sent; using "
+					+ seconds);
+			leaseSeconds = seconds;
+		}
+	}
+
+	// Claims up to limit due jobs in status R for this node and returns their keys.
+	public List<Integer> claim(int limit) {
+		TransactionTemplate transactionTemplate = new TransactionTemplate(transactionManager);
+		transactionTemplate.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+		List<Integer> claimed = transactionTemplate.execute(status -> {
+			Timestamp now = new Timestamp(System.currentTimeMillis());
+			MapSqlParameterSource params = new MapSqlParameterSource()
+					.addValue("status", "R")
+					.addValue("now", now)
+					.addValue("limit", limit);
+			List<Integer> ids = jdbcTemplate.queryForList(claimSql, params, Integer.class);
+			if (!ids.isEmpty()) {
+				jdbcTemplate.update("update ecr.ecr_job set lease_owner = :owner, lease_expiry = :expiry "
+						+ "where ecr_job_key in (:ids)", leaseParams(now).addValue("ids", ids));
+			}
+			return ids;
+		});
+		if (!claimed.isEmpty()) {
+			logger.debug("Claimed " + claimed.size() + " PACER jobs");
+		}
+		return claimed;
+	}
+
+	// Extends the lease on the given jobs and returns the ones this node still holds.
+	public Set<Integer> renew(Collection<Integer> ids) {
+		Set<Integer> held = new HashSet<Integer>();
+		Timestamp now = new Timestamp(System.currentTimeMillis());
+		for (List<Integer> slice : ECRIngestService.slices(new ArrayList<Integer>(ids))) {
+			MapSqlParameterSource params = leaseParams(now).addValue("ids", slice);
+			jdbcTemplate.update("update ecr.ecr_job set lease_expiry = :expiry "
+					+ "where ecr_job_key in (:ids) and lease_owner = :owner", params);
+			held.addAll(jdbcTemplate.queryForList("select ecr_job_key from ecr.ecr_job "
+					+ "where ecr_job_key in (:ids) and lease_owner = :owner", params, Integer.class));
+		}
+		return held;
+	}
+
+	public void release(Collection<Integer> ids) {
+		for (List<Integer> slice : ECRIngestService.slices(new ArrayList<Integer>(ids))) {
+			jdbcTemplate.update("update ecr.ecr_job set lease_owner = null, lease_expiry = null "
+					+ "where ecr_job_key in (:ids) and lease_owner = :owner",
+					new MapSqlParameterSource("owner", nodeId).addValue("ids", slice));
+		}
+	}
+
+	private MapSqlParameterSource leaseParams(Timestamp now) {
+		return new MapSqlParameterSource("owner", nodeId)
+				.addValue("expiry", new Timestamp(now.getTime() + leaseSeconds * 1000));
+	}
+
+	private static String hostName() {
+		try {
+			return InetAddress.getLocalHost().getHostName();
+		} catch (UnknownHostException e) {
+			return "ecr-manager";
+		}
+	}
+}
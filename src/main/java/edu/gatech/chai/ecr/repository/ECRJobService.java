@@ -0,0 +1,107 @@
+package edu.gatech.chai.ecr.repository;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import javax.annotation.PostConstruct;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import edu.gatech.chai.ecr.jpa.model.ECRData;
+import edu.gatech.chai.ecr.jpa.model.ECRJob;
+import edu.gatech.chai.ecr.jpa.repo.ECRDataRepository;
+import edu.gatech.chai.ecr.jpa.repo.ECRJobRepository;
+
+// All ECRJob writes go through here. Whenever a job changes state (startRun,
+// updateQueryStatus, cancelJob, ...) its status is copied onto the ecr_data row it
+// belongs to in the same transaction, so the read paths never have to look at ecr_job.
+@Component
+public class ECRJobService {
+	private static final Logger logger = LoggerFactory.getLogger(ECRJobService.class);
+	private static final String JOB_STATUS_MIGRATION = "job_status";
+
+	@Autowired
+	private ECRJobRepository ecrJobRepository;
+
+	@Autowired
+	private ECRDataRepository ecrDataRepository;
+
+	@Autowired
+	private DataMigrations dataMigrations;
+
+	@Autowired
+	private PlatformTransactionManager transactionManager;
+
+	@Transactional
+	public ECRJob save(ECRJob ecrJob) {
+		ECRJob saved = ecrJobRepository.save(ecrJob);
+		syncJobStatus(Collections.singletonList(saved));
+		return saved;
+	}
+
+	@Transactional
+	public List<ECRJob> saveAll(Collection<ECRJob> ecrJobs) {
+		List<ECRJob> saved = ecrJobRepository.saveAll(ecrJobs);
+		syncJobStatus(saved);
+		return saved;
+	}
+
+	// Moves nextRunDate without loading the jobs; jobs that have left the status since
+	// they were read (e.g. answered meanwhile) are not touched. Status is unchanged, so
+	// there is nothing to copy onto ecr_data.
+	@Transactional
+	public int deferInStatus(Collection<Integer> ids, String status, Date nextRunDate) {
+		if (ids.isEmpty()) {
+			return 0;
+		}
+		return ecrJobRepository.deferInStatus(ids, status, nextRunDate);
+	}
+
+	// The case rows are usually already in the persistence context (the caller just
+	// read or wrote them), so this is mostly dirty checking rather than extra queries.
+	private void syncJobStatus(Collection<ECRJob> ecrJobs) {
+		Map<Integer, ECRJob> jobByReport = new HashMap<Integer, ECRJob>();
+		for (ECRJob ecrJob : ecrJobs) {
+			if (ecrJob.getReportId() != null) {
+				jobByReport.put(ecrJob.getReportId(), ecrJob);
+			}
+		}
+
+		Date now = new Date();
+		for (List<Integer> slice : ECRIngestService.slices(new ArrayList<Integer>(jobByReport.keySet()))) {
+			for (ECRData ecrData : ecrDataRepository.findAllById(slice)) {
+				String statusCode = jobByReport.get(ecrData.getId()).getStatusCode();
+				if (!Objects.equals(statusCode, ecrData.getJobStatus())) {
+					ecrData.setJobStatus(statusCode);
+					ecrData.setJobStatusDate(now);
+				}
+			}
+		}
+	}
+
+	// Rows written before ecr_data.job_status existed take the status of their latest job.
+	@PostConstruct
+	public void backfillJobStatus() {
+		if (dataMigrations.isApplied(JOB_STATUS_MIGRATION)) {
+			return;
+		}
+		TransactionTemplate transactionTemplate = new TransactionTemplate(transactionManager);
+		Integer copied = transactionTemplate.execute(status -> ecrDataRepository.copyLatestJobStatus());
+		if (copied != null && copied > 0) {
+			logger.info("Copied job status onto " + copied + " existing ECR Data rows");
+		}
+		dataMigrations.markApplied(JOB_STATUS_MIGRATION);
+	}
+}
@@ -0,0 +1,89 @@
+package edu.gatech.chai.ecr.repository;
+
+import java.sql.DatabaseMetaData;
+import java.util.List;
+
+import javax.annotation.PostConstruct;
+import javax.sql.DataSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.orm.jpa.EntityManagerFactoryDependsOnPostProcessor;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.support.JdbcUtils;
+import org.springframework.jdbc.support.MetaDataAccessException;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+
+// Upgrades databases created before table keys were leased from ecr.ecr_id_sequence (see
+// ECRIdAllocator). Those created ecr_data, ecr_data_history and ecr_job with IDENTITY keys.
+// PostgreSQL (serial) accepts the explicit keys we now insert, but SQL Server refuses them
+// ("Cannot insert explicit value for identity column"), so there the key column is rebuilt
+// without IDENTITY. This runs before Hibernate updates the schema, which recreates the
+// indexes dropped here.
+@Component
+public class ECRSchemaUpgrade {
+	private static final Logger logger = LoggerFactory.getLogger(ECRSchemaUpgrade.class);
+
+	// Table, key column
+	private static final String[][] KEYS = {
+			{ "ecr.ecr_data", "case_report_key" },
+			{ "ecr.ecr_data_history", "case_report_history_key" },
+			{ "ecr.ecr_job", "ecr_job_key" } };
+
+	@Autowired
+	private DataSource dataSource;
+
+	@PostConstruct
+	public void upgrade() throws MetaDataAccessException {
+		String product = JdbcUtils.extractDatabaseMetaData(dataSource, DatabaseMetaData::getDatabaseProductName);
+		if (product == null || !product.toLowerCase().contains("sql server")) {
+			return;
+		}
+
+		JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+		TransactionTemplate transactionTemplate = new TransactionTemplate(new DataSourceTransactionManager(dataSource));
+		for (String[] key : KEYS) {
+			Integer identity = jdbcTemplate.queryForObject("select count(*) from sys.identity_columns where object_id = object_id(?) and name = ?",
+					Integer.class, key[0], key[1]);
+			if (identity != null && identity > 0) {
+				transactionTemplate.executeWithoutResult(status -> dropIdentity(jdbcTemplate, key[0], key[1]));
+			}
+		}
+	}
+
+	// SQL Server cannot drop IDENTITY from a column, so the keys are copied into a new column
+	// that takes the old one's place. The primary key keeps its name; other indexes on the
+	// column are dropped and come back with Hibernate's schema update.
+	private void dropIdentity(JdbcTemplate jdbcTemplate, String table, String column) {
+		logger.info("Removing IDENTITY from " + table + "." + column + "; this rewrites the column and can take a while on large tables");
+
+		String primaryKey = jdbcTemplate.queryForObject("select name from sys.key_constraints where type = 'PK' and parent_object_id = object_id(?)",
+				String.class, table);
+		List<String> indexes = jdbcTemplate.queryForList("select distinct i.name from sys.indexes i"
+				+ " join sys.index_columns ic on ic.object_id = i.object_id and ic.index_id = i.index_id"
+				+ " join sys.columns c on c.object_id = ic.object_id and c.column_id = ic.column_id"
+				+ " where i.object_id = object_id(?) and c.name = ? and i.is_primary_key = 0", String.class, table, column);
+
+		for (String index : indexes) {
+			jdbcTemplate.execute("drop index [" + index + "] on " + table);
+		}
+		jdbcTemplate.execute("alter table " + table + " drop constraint [" + primaryKey + "]");
+		jdbcTemplate.execute("alter table " + table + " add " + column + "_upgrade int null");
+		jdbcTemplate.execute("update " + table + " set " + column + "_upgrade = " + column);
+		jdbcTemplate.execute("alter table " + table + " drop column " + column);
+		jdbcTemplate.update("exec sp_rename ?, ?, 'COLUMN'", table + "." + column + "_upgrade", column);
+		jdbcTemplate.execute("alter table " + table + " alter column " + column + " int not null");
+		jdbcTemplate.execute("alter table " + table + " add constraint [" + primaryKey + "] primary key (" + column + ")");
+	}
+
+	// Makes Hibernate's EntityManagerFactory, and with it the schema update, wait for the upgrade.
+	@Component
+	public static class DependsOn extends EntityManagerFactoryDependsOnPostProcessor {
+		public DependsOn() {
+			super(ECRSchemaUpgrade.class);
+		}
+	}
+}
@@ -0,0 +1,67 @@
+package edu.gatech.chai.ecr.repository;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.annotation.Transactional;
+
+import edu.gatech.chai.ecr.jpa.model.ECRData;
+import edu.gatech.chai.ecr.jpa.repo.ECRDataCursor;
+import edu.gatech.chai.ecr.jpa.repo.ECRDataRepository;
+import edu.gatech.chai.ecr.jpa.repo.ECRSearchCriteria;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+// Single entry point for ECR searches. Each search runs one query and is timed in the
+// ecr.search timer, tagged with the filter shape (e.g. lastName+zipCode), so the slow
+// combinations show up in /actuator/metrics/ecr.search and in the log.
+//
+// Index plan on ecr_data (see ECRData), all led by is_current and ending in the
+// (case_report_id, case_report_key) sort key so a page is a single ordered range scan:
+//   lastName, lastName+firstName, firstName, zipCode, diagnosisCode.
+// first_date and last_date (the span of the case's clinical events, see ECRData) have
+// (is_current, date) indexes; a date range is read from its index and the matches sorted.
+// Other combinations start from the most selective of these and filter the rest.
+// patientId resolves through the unique index on ecr_patient_identifier.
+@Component
+public class ECRSearchService {
+	private static final Logger logger = LoggerFactory.getLogger(ECRSearchService.class);
+
+	@Value("${ecr.search.slow-query-ms:500}")
+	private long slowQueryMillis;
+
+	@Autowired
+	private ECRDataRepository ecrDataRepository;
+
+	@Autowired
+	private MeterRegistry meterRegistry;
+
+	@Transactional(readOnly = true)
+	public List<ECRData> search(ECRSearchCriteria criteria, ECRDataCursor after, int offset, int limit) {
+		String shape = criteria.shape();
+		long start = System.nanoTime();
+		List<ECRData> results = ecrDataRepository.search(criteria, after, offset, limit);
+		long elapsed = System.nanoTime() - start;
+
+		Timer.builder("ecr.search")
+			.description("ECR search query time by filter shape")
+			.tag("shape", shape)
+			.tag("paging", after != null ? "cursor" : offset > 0 ? "offset" : "first")
+			.register(meterRegistry)
+			.record(elapsed, TimeUnit.NANOSECONDS);
+
+		long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(elapsed);
+		if (elapsedMillis >= slowQueryMillis) {
+			logger.warn("Slow ECR search (" + shape + "): " + elapsedMillis + " ms for " + results.size() + " rows");
+		} else {
+			logger.debug("ECR search (" + shape + "): " + elapsedMillis + " ms for " + results.size() + " rows");
+		}
+
+		return results;
+	}
+}
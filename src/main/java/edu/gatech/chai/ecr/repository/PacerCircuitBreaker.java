@@ -0,0 +1,141 @@
+package edu.gatech.chai.ecr.repository;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+
+// One circuit breaker per PACER Job Manager. After ecr.pacer.circuit.failure-threshold
+// failures in a row (connection errors, timeouts, 5xx) the circuit opens and requests
+// to that endpoint are refused without a network call for open-seconds. Then a single
+// trial request is let through (half-open): success closes the circuit, failure opens
+// it again. State is published as ecr.pacer.circuit.state (0 closed, 1 half-open,
+// 2 open) and every change as ecr.pacer.circuit.transitions, both tagged by endpoint.
+@Component
+public class PacerCircuitBreaker {
+	private static final Logger logger = LoggerFactory.getLogger(PacerCircuitBreaker.class);
+
+	public static final int CLOSED = 0;
+	public static final int HALF_OPEN = 1;
+	public static final int OPEN = 2;
+
+	@Autowired
+	private MeterRegistry meterRegistry;
+
+	@Value("${ecr.pacer.circuit.failure-threshold:5}")
+	private int failureThreshold;
+
+	@Value("${ecr.pacer.circuit.open-seconds:300}")
+	private long openSeconds;
+
+	private final Map<String, Circuit> circuits = new ConcurrentHashMap<String, Circuit>();
+
+	// True if a request may be sent to the endpoint now. In half-open state only one
+	// caller gets true until that request is recorded.
+	public boolean allowRequest(String endpoint) {
+		Circuit circuit = circuit(endpoint);
+		synchronized (circuit) {
+			if (circuit.state == OPEN && System.currentTimeMillis() >= circuit.openUntil) {
+				transition(endpoint, circuit, HALF_OPEN);
+				circuit.trialInFlight = false;
+			}
+			if (circuit.state == CLOSED) {
+				return true;
+			}
+			if (circuit.state == HALF_OPEN && !circuit.trialInFlight) {
+				circuit.trialInFlight = true;
+				return true;
+			}
+		}
+		Counter.builder("ecr.pacer.circuit.rejected").tag("endpoint", endpoint).register(meterRegistry).increment();
+		return false;
+	}
+
+	// When a refused request may be tried again.
+	public long retryAt(String endpoint) {
+		Circuit circuit = circuit(endpoint);
+		synchronized (circuit) {
+			return Math.max(circuit.openUntil, System.currentTimeMillis());
+		}
+	}
+
+	public void recordSuccess(String endpoint) {
+		Circuit circuit = circuit(endpoint);
+		synchronized (circuit) {
+			circuit.failures = 0;
+			circuit.trialInFlight = false;
+			if (circuit.state != CLOSED) {
+				transition(endpoint, circuit, CLOSED);
+			}
+		}
+	}
+
+	public void recordFailure(String endpoint) {
+		Circuit circuit = circuit(endpoint);
+		synchronized (circuit) {
+			circuit.failures++;
+			circuit.trialInFlight = false;
+			if (circuit.state == HALF_OPEN || (circuit.state == CLOSED && circuit.failures >= failureThreshold)) {
+				circuit.openUntil = System.currentTimeMillis() + openSeconds * 1000;
+				transition(endpoint, circuit, OPEN);
+			}
+		}
+	}
+
+	// For a request that was allowed but never sent (e.g. its payload could not be
+	// written). Nothing is learned about the endpoint, but a half-open circuit lets the
+	// next request through as its trial.
+	public void releaseTrial(String endpoint) {
+		Circuit circuit = circuit(endpoint);
+		synchronized (circuit) {
+			circuit.trialInFlight = false;
+		}
+	}
+
+	private Circuit circuit(String endpoint) {
+		return circuits.computeIfAbsent(endpoint, key -> {
+			Circuit circuit = new Circuit();
+			Gauge.builder("ecr.pacer.circuit.state", circuit, c -> c.state)
+				.tag("endpoint", key)
+				.description("0 closed, 1 half-open, 2 open")
+				.register(meterRegistry);
+			return circuit;
+		});
+	}
+
+	private void transition(String endpoint, Circuit circuit, int state) {
+		logger.info("PACER circuit for " + endpoint + " is now " + name(state) + " (was " + name(circuit.state) + ")");
+		circuit.state = state;
+		Counter.builder("ecr.pacer.circuit.transitions")
+			.tag("endpoint", endpoint)
+			.tag("state", name(state))
+			.register(meterRegistry)
+			.increment();
+	}
+
+	private static String name(int state) {
+		switch (state) {
+		case OPEN:
+			return "open";
+		case HALF_OPEN:
+			return "half-open";
+		default:
+			return "closed";
+		}
+	}
+
+	private static class Circuit {
+		private volatile int state = CLOSED;
+		private int failures = 0;
+		private long openUntil = 0;
+		private boolean trialInFlight = false;
+	}
+}
@@ -0,0 +1,162 @@
+package edu.gatech.chai.ecr.repository;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Supplier;
+
+import javax.annotation.PostConstruct;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+
+// Limits how many PACER requests are in flight: at most ecr.pacer.dispatch.max-concurrent
+// overall and at most max-per-endpoint against any one PACER server. Requests are
+// non-blocking (see PacerHttpClient), so a slot is held by a pending future rather than a
+// thread. Work for an endpoint waits in its own queue, so a backlog for one site never
+// takes slots away from the rest; when a request completes the next queued work is
+// started by the thread that completed it. The queues themselves are not bounded; the
+// poller only claims as much work as getFreeSlots() says can start (see PollPACERTask).
+@Component
+public class PacerDispatcher {
+	private static final Logger logger = LoggerFactory.getLogger(PacerDispatcher.class);
+
+	@Autowired
+	private MeterRegistry meterRegistry;
+
+	@Value("${ecr.pacer.dispatch.max-concurrent:200}")
+	private int maxConcurrent;
+
+	@Value("${ecr.pacer.dispatch.max-per-endpoint:2}")
+	private int maxPerEndpoint;
+
+	private final Map<String, Lane> lanes = new LinkedHashMap<String, Lane>();
+	private int inFlight = 0;
+	private int queued = 0;
+
+	// Queues work against a PACER endpoint. The work should only start its request and
+	// return; the returned future completes when the future the work returned does.
+	public CompletableFuture<Void> submit(String endpoint, Supplier<CompletableFuture<Void>> work) {
+		CompletableFuture<Void> done = new CompletableFuture<Void>();
+		synchronized (this) {
+			lanes.computeIfAbsent(endpoint, key -> new Lane()).queue.add(new Work(work, done));
+			queued++;
+		}
+		startWork();
+		return done;
+	}
+
+	@PostConstruct
+	public void start() {
+		Gauge.builder("ecr.pacer.dispatch.in-flight", this, PacerDispatcher::getInFlight)
+			.description("PACER requests waiting for an answer")
+			.register(meterRegistry);
+		Gauge.builder("ecr.pacer.dispatch.queued", this, PacerDispatcher::getQueued)
+			.description("PACER requests waiting for a slot")
+			.register(meterRegistry);
+	}
+
+	public synchronized int getInFlight() {
+		return inFlight;
+	}
+
+	public synchronized int getQueued() {
+		return queued;
+	}
+
+	// True while fewer than max-per-endpoint requests are waiting for the endpoint, i.e.
+	// new work would start within one round of the requests already running there.
+	public synchronized boolean hasRoom(String endpoint) {
+		Lane lane = lanes.get(endpoint);
+		return lane == null || lane.queue.size() < maxPerEndpoint;
+	}
+
+	// Requests that could still be started before reaching max-concurrent, counting the
+	// ones already queued.
+	public synchronized int getFreeSlots() {
+		return Math.max(0, maxConcurrent - inFlight - queued);
+	}
+
+	// Work that finishes straight away (e.g. a deferred batch) frees its slot here and the
+	// loop goes round again, rather than recursing through the completion callback.
+	private void startWork() {
+		boolean freed;
+		do {
+			freed = false;
+			for (Work work : takeStartable()) {
+				CompletableFuture<Void> running;
+				try {
+					running = work.task.get();
+				} catch (RuntimeException | Error e) {
+					running = new CompletableFuture<Void>();
+					running.completeExceptionally(e);
+				}
+				if (running.isDone()) {
+					finish(work, running.handle((result, e) -> e).join());
+					freed = true;
+				} else {
+					running.whenComplete((result, e) -> {
+						finish(work, e);
+						startWork();
+					});
+				}
+			}
+		} while (freed);
+	}
+
+	private void finish(Work work, Throwable e) {
+		finished(work.lane);
+		if (e != null) {
+			logger.error("PACER request failed", e);
+			work.done.completeExceptionally(e);
+		} else {
+			work.done.complete(null);
+		}
+	}
+
+	private synchronized List<Work> takeStartable() {
+		List<Work> startable = new ArrayList<Work>();
+		for (Lane lane : lanes.values()) {
+			while (inFlight < maxConcurrent && lane.inFlight < maxPerEndpoint && !lane.queue.isEmpty()) {
+				Work work = lane.queue.poll();
+				work.lane = lane;
+				lane.inFlight++;
+				inFlight++;
+				queued--;
+				startable.add(work);
+			}
+		}
+		return startable;
+	}
+
+	private synchronized void finished(Lane lane) {
+		lane.inFlight--;
+		inFlight--;
+	}
+
+	private static class Lane {
+		private final Queue<Work> queue = new ConcurrentLinkedQueue<Work>();
+		private int inFlight = 0;
+	}
+
+	private static class Work {
+		private final Supplier<CompletableFuture<Void>> task;
+		private final CompletableFuture<Void> done;
+		private Lane lane;
+
+		private Work(Supplier<CompletableFuture<Void>> task, CompletableFuture<Void> done) {
+			this.task = task;
+			this.done = done;
+		}
+	}
+}
@@ -0,0 +1,281 @@
+package edu.gatech.chai.ecr.repository;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.ToIntFunction;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.NoopHostnameVerifier;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.client.methods.HttpAsyncMethods;
+import org.apache.http.nio.conn.NoopIOSessionStrategy;
+import org.apache.http.nio.conn.SchemeIOSessionStrategy;
+import org.apache.http.nio.conn.ssl.SSLIOSessionStrategy;
+import org.apache.http.nio.reactor.IOReactorException;
+import org.apache.http.pool.ConnPoolControl;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.ssl.SSLContexts;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
+import org.springframework.stereotype.Component;
+import org.springframework.web.client.RestTemplate;
+
+import com.fasterxml.jackson.core.JsonParser;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+
+// The HTTP clients used for PACER calls. Index Service lookups go through a blocking
+// RestTemplate; Job Manager requests go through a non-blocking client whose sockets are
+// served by ecr.pacer.http.io-threads selector threads, so hundreds of requests can wait
+// on PACER without holding a thread each. Their results are handed to a small pool of
+// ecr.pacer.http.callback-threads, never processed on the selector threads. Connections
+// are pooled per route and kept alive between polls, so a run does not pay a new TCP and
+// TLS handshake per request. TRUST_CERT=true turns off hostname verification once, here.
+// Pool usage is published as ecr.pacer.http.connections{pool=index|jobs,state=...}.
+@Component
+public class PacerHttpClient {
+	private static final Logger logger = LoggerFactory.getLogger(PacerHttpClient.class);
+
+	@Autowired
+	private MeterRegistry meterRegistry;
+
+	@Value("${ecr.pacer.http.max-total:200}")
+	private int maxTotal;
+
+	@Value("${ecr.pacer.http.max-per-route:10}")
+	private int maxPerRoute;
+
+	@Value("${ecr.pacer.http.connect-timeout-ms:10000}")
+	private int connectTimeoutMs;
+
+	@Value("${ecr.pacer.http.read-timeout-ms:600000}")
+	private int readTimeoutMs;
+
+	@Value("${ecr.pacer.http.pool-timeout-ms:30000}")
+	private int poolTimeoutMs;
+
+	@Value("${ecr.pacer.http.keep-alive-ms:60000}")
+	private long keepAliveMs;
+
+	@Value("${ecr.pacer.http.io-threads:2}")
+	private int ioThreads;
+
+	@Value("${ecr.pacer.http.callback-threads:4}")
+	private int callbackThreads;
+
+	private PoolingHttpClientConnectionManager connectionManager;
+	private CloseableHttpClient httpClient;
+	private RestTemplate restTemplate;
+
+	private PoolingNHttpClientConnectionManager asyncConnectionManager;
+	private CloseableHttpAsyncClient asyncClient;
+	private ExecutorService callbackExecutor;
+
+	@PostConstruct
+	public void start() throws IOReactorException {
+		boolean trustCert = "true".equalsIgnoreCase(System.getenv("TRUST_CERT"));
+		SSLConnectionSocketFactory sslSocketFactory;
+		if (trustCert) {
+			sslSocketFactory = new SSLConnectionSocketFactory(SSLContexts.createDefault(), NoopHostnameVerifier.INSTANCE);
+			logger.info("ALL CERTIFICATES WILL BE TRUSTED WITHOUT HOSTNAME VERIFICATION.");
+		} else {
+			sslSocketFactory = SSLConnectionSocketFactory.getSocketFactory();
+		}
+		Registry<ConnectionSocketFactory> socketFactories = RegistryBuilder.<ConnectionSocketFactory>create()
+				.register("http", PlainConnectionSocketFactory.getSocketFactory())
+				.register("https", sslSocketFactory)
+				.build();
+
+		connectionManager = new PoolingHttpClientConnectionManager(socketFactories);
+		connectionManager.setMaxTotal(maxTotal);
+		connectionManager.setDefaultMaxPerRoute(maxPerRoute);
+		connectionManager.setValidateAfterInactivity(2000);
+
+		RequestConfig config = RequestConfig.custom()
+			.setConnectTimeout(connectTimeoutMs)
+			.setConnectionRequestTimeout(poolTimeoutMs)
+			.setSocketTimeout(readTimeoutMs).build();
+
+		// Servers that do not send Keep-Alive get keepAliveMs; none are kept longer.
+		DefaultConnectionKeepAliveStrategy serverKeepAlive = DefaultConnectionKeepAliveStrategy.INSTANCE;
+		httpClient = HttpClients.custom()
+			.setConnectionManager(connectionManager)
+			.setDefaultRequestConfig(config)
+			.setKeepAliveStrategy((response, context) -> {
+				long keepAlive = serverKeepAlive.getKeepAliveDuration(response, context);
+				return keepAlive < 0 ? keepAliveMs : Math.min(keepAlive, keepAliveMs);
+			})
+			.evictExpiredConnections()
+			.evictIdleConnections(keepAliveMs, TimeUnit.MILLISECONDS)
+			.build();
+
+		restTemplate = new RestTemplate(new HttpComponentsClientHttpRequestFactory(httpClient));
+
+		SSLIOSessionStrategy sslSessionStrategy = trustCert
+				? new SSLIOSessionStrategy(SSLContexts.createDefault(), NoopHostnameVerifier.INSTANCE)
+				: SSLIOSessionStrategy.getDefaultStrategy();
+		Registry<SchemeIOSessionStrategy> sessionStrategies = RegistryBuilder.<SchemeIOSessionStrategy>create()
+				.register("http", NoopIOSessionStrategy.INSTANCE)
+				.register("https", sslSessionStrategy)
+				.build();
+		IOReactorConfig reactorConfig = IOReactorConfig.custom()
+			.setIoThreadCount(ioThreads)
+			.setConnectTimeout(connectTimeoutMs)
+			.setSoTimeout(readTimeoutMs)
+			.build();
+
+		asyncConnectionManager = new PoolingNHttpClientConnectionManager(new DefaultConnectingIOReactor(reactorConfig),
+				sessionStrategies);
+		asyncConnectionManager.setMaxTotal(maxTotal);
+		asyncConnectionManager.setDefaultMaxPerRoute(maxPerRoute);
+
+		asyncClient = HttpAsyncClients.custom()
+			.setConnectionManager(asyncConnectionManager)
+			.setDefaultRequestConfig(config)
+			.setKeepAliveStrategy((response, context) -> {
+				long keepAlive = serverKeepAlive.getKeepAliveDuration(response, context);
+				return keepAlive < 0 ? keepAliveMs : Math.min(keepAlive, keepAliveMs);
+			})
+			.build();
+		asyncClient.start();
+
+		AtomicInteger threadCount = new AtomicInteger();
+		callbackExecutor = Executors.newFixedThreadPool(callbackThreads, runnable -> {
+			Thread thread = new Thread(runnable, "pacer-callback-" + threadCount.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+
+		gauges("index", connectionManager);
+		gauges("jobs", asyncConnectionManager);
+	}
+
+	@PreDestroy
+	public void stop() throws IOException {
+		httpClient.close();
+		asyncClient.close();
+		callbackExecutor.shutdownNow();
+	}
+
+	public RestTemplate getRestTemplate() {
+		return restTemplate;
+	}
+
+	// The longest a request can wait for a connection, connect and then sit without an
+	// answer before it fails.
+	public long getMaxRequestMs() {
+		return (long) poolTimeoutMs + connectTimeoutMs + readTimeoutMs;
+	}
+
+	// POSTs a JSON body without blocking the caller. The response body is parsed as it
+	// arrives and each ECR element is passed to elementHandler on a callback thread (see
+	// PacerResponseConsumer). The future completes on a callback thread once every element
+	// has been handled, or exceptionally with the IOException (connect failure, timeout,
+	// ...) that ended the exchange, a JsonProcessingException for a malformed body, or
+	// whatever elementHandler threw.
+	public CompletableFuture<Response> postJson(String url, String authHeader, byte[] json,
+			Consumer<JsonParser> elementHandler, int captureBytes) {
+		HttpPost post = new HttpPost(url);
+		post.setEntity(new ByteArrayEntity(json, ContentType.APPLICATION_JSON));
+		if (authHeader != null && !authHeader.isEmpty()) {
+			post.addHeader("Authorization", authHeader);
+		}
+
+		PacerResponseConsumer consumer = new PacerResponseConsumer(elementHandler, callbackExecutor, captureBytes);
+		CompletableFuture<Response> result = new CompletableFuture<Response>();
+		asyncClient.execute(HttpAsyncMethods.create(post), consumer, new FutureCallback<CompletableFuture<Response>>() {
+			@Override
+			public void completed(CompletableFuture<Response> handled) {
+				handled.whenCompleteAsync((response, e) -> {
+					if (e != null) {
+						result.completeExceptionally(e instanceof CompletionException && e.getCause() != null ? e.getCause() : e);
+					} else {
+						result.complete(response);
+					}
+				}, callbackExecutor);
+			}
+
+			@Override
+			public void failed(Exception e) {
+				consumer.getHandled().whenCompleteAsync((done, ignored) -> result.completeExceptionally(e), callbackExecutor);
+			}
+
+			@Override
+			public void cancelled() {
+				failed(new IOException("Request to " + url + " was cancelled"));
+			}
+		});
+		return result;
+	}
+
+	private void gauges(String pool, ConnPoolControl<?> connections) {
+		gauge(pool, "leased", connections, PoolStats::getLeased);
+		gauge(pool, "pending", connections, PoolStats::getPending);
+		gauge(pool, "available", connections, PoolStats::getAvailable);
+		gauge(pool, "max", connections, PoolStats::getMax);
+	}
+
+	private void gauge(String pool, String state, ConnPoolControl<?> connections, ToIntFunction<PoolStats> stat) {
+		Gauge.builder("ecr.pacer.http.connections", connections, manager -> stat.applyAsInt(manager.getTotalStats()))
+			.tag("pool", pool)
+			.tag("state", state)
+			.description("PACER HTTP connection pool")
+			.register(meterRegistry);
+	}
+
+	public static class Response {
+		private final int statusCode;
+		private final int elements;
+		private final String capturedBody;
+
+		Response(int statusCode, int elements, String capturedBody) {
+			this.statusCode = statusCode;
+			this.elements = elements;
+			this.capturedBody = capturedBody;
+		}
+
+		public int getStatusCode() {
+			return statusCode;
+		}
+
+		// Number of ECR elements passed to the element handler.
+		public int getElements() {
+			return elements;
+		}
+
+		// The start of the body, up to the captureBytes asked for.
+		public String getCapturedBody() {
+			return capturedBody;
+		}
+	}
+}
@@ -0,0 +1,145 @@
+package edu.gatech.chai.ecr.repository;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Component;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import com.github.benmanes.caffeine.cache.LoadingCache;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+
+// Looks up the PACER source for a provider in the PACER Index Service. Provider to
+// endpoint mappings rarely change, so answers are cached by (organization-id,
+// provider-name): found entries for ecr.pacer.index-cache.ttl-minutes, "not found"
+// for the shorter negative-ttl-minutes. Entries still in use are reloaded in the
+// background after refresh-minutes, so busy providers never wait on the index service.
+// Failed lookups are not cached. Hit and miss counts are published as cache.* metrics
+// with cache=pacerIndex.
+@Component
+public class PacerIndexService {
+	private static final Logger logger = LoggerFactory.getLogger(PacerIndexService.class);
+
+	@Autowired
+	private MeterRegistry meterRegistry;
+
+	@Autowired
+	private PacerHttpClient pacerHttpClient;
+
+	@Value("${ecr.pacer.index-cache.max-size:10000}")
+	private long maxSize;
+
+	@Value("${ecr.pacer.index-cache.ttl-minutes:60}")
+	private long ttlMinutes;
+
+	@Value("${ecr.pacer.index-cache.negative-ttl-minutes:5}")
+	private long negativeTtlMinutes;
+
+	@Value("${ecr.pacer.index-cache.refresh-minutes:45}")
+	private long refreshMinutes;
+
+	private final ObjectMapper mapper = new ObjectMapper();
+	private LoadingCache<List<String>, Optional<JsonNode>> pacerSources;
+
+	@PostConstruct
+	public void createCache() {
+		pacerSources = Caffeine.newBuilder()
+				.maximumSize(maxSize)
+				.expireAfter(new Expiry<List<String>, Optional<JsonNode>>() {
+					@Override
+					public long expireAfterCreate(List<String> key, Optional<JsonNode> value,
+							long currentTime) {
+						return TimeUnit.MINUTES.toNanos(value.isPresent() ? ttlMinutes : negativeTtlMinutes);
+					}
+
+					@Override
+					public long expireAfterUpdate(List<String> key, Optional<JsonNode> value,
+							long currentTime, long currentDuration) {
+						return expireAfterCreate(key, value, currentTime);
+					}
+
+					@Override
+					public long expireAfterRead(List<String> key, Optional<JsonNode> value,
+							long currentTime, long currentDuration) {
+						return currentDuration;
+					}
+				})
+				.refreshAfterWrite(refreshMinutes, TimeUnit.MINUTES)
+				.recordStats()
+				.build(key -> lookup(key.get(0), key.get(1)));
+		CaffeineCacheMetrics.monitor(meterRegistry, pacerSources, "pacerIndex");
+	}
+
+	// The pacerSource of the provider, or null if it has none or the lookup failed.
+	public JsonNode findPacerSource(String identifier, String name) {
+		try {
+			return pacerSources.get(Arrays.asList(identifier, name)).orElse(null);
+		} catch (RuntimeException e) {
+			logger.error("PACER Index Service lookup failed for identifier=" + identifier + " and name=" + name + ": "
+					+ e.getMessage());
+			return null;
+		}
+	}
+
+	private Optional<JsonNode> lookup(String identifier, String name) throws IOException {
+		String pacerIndexServiceUrl = System.getenv("PACER_INDEX_SERVICE");
+
+		if (pacerIndexServiceUrl.endsWith("/")) {
+			pacerIndexServiceUrl = pacerIndexServiceUrl.substring(0, pacerIndexServiceUrl.length() - 1);
+		}
+
+		Map<String, String> vars = new HashMap<>();
+		String args = null;
+		if (identifier != null && !identifier.isEmpty()) {
+			args = "?organization-id={orgId}";
+			vars.put("orgId", identifier);
+		}
+		if (name != null && !name.isEmpty()) {
+			if (args == null) {
+				args = "?provider-name={providerName}";
+			} else {
+				args += "&provider-name={providerName}";
+			}
+			vars.put("providerName", name);
+		}
+
+		pacerIndexServiceUrl += args;
+
+		ResponseEntity<String> response = pacerHttpClient.getRestTemplate().getForEntity(pacerIndexServiceUrl, String.class, vars);
+		if (!response.getStatusCode().equals(HttpStatus.OK)) {
+			throw new IOException("Failed to access PACER Index Service at " + pacerIndexServiceUrl + " ("
+					+ response.getStatusCode() + ")");
+		}
+
+		JsonNode root = mapper.readTree(response.getBody());
+		JsonNode countNode = root.path("count");
+		int count = countNode.asInt();
+		if (count > 0) {
+			JsonNode list = root.path("list");
+			JsonNode pacerInfo = list.get(0);
+			JsonNode pacerSource = pacerInfo.path("pacerSource");
+			if (pacerSource.path("type").asText().equalsIgnoreCase("ECR")) {
+				return Optional.of(pacerSource);
+			}
+		}
+		return Optional.empty();
+	}
+}
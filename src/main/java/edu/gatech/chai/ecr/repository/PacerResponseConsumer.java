@@ -0,0 +1,208 @@
+package edu.gatech.chai.ecr.repository;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.client.methods.AsyncByteConsumer;
+import org.apache.http.protocol.HttpContext;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.async.ByteArrayFeeder;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
+
+// Reads a PACER Job Manager response as it comes off the socket. The body is fed to a
+// non-blocking JSON parser on the I/O thread; each element of the top-level array is
+// buffered on its own and handed to the element handler on the callback executor, one
+// after the other. While MAX_PENDING elements are waiting to be handled, reading from
+// the socket is suspended, so memory per response stays around the size of one ECR
+// however large the batch is. Only 200 and 201 bodies are parsed; other bodies are
+// read and dropped. Up to captureBytes of the raw body are kept for debug logging.
+public class PacerResponseConsumer extends AsyncByteConsumer<CompletableFuture<PacerHttpClient.Response>> {
+	private static final int MAX_PENDING = 2;
+	private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+	private final Consumer<JsonParser> elementHandler;
+	private final Executor executor;
+	private final int captureBytes;
+
+	private final JsonParser parser;
+	private final ByteArrayOutputStream capture = new ByteArrayOutputStream();
+	private final AtomicInteger pending = new AtomicInteger();
+
+	private int statusCode;
+	private boolean parse;
+	private int depth = 0;
+	private int elementDepth = -1;
+	private TokenBuffer element;
+	private int elements = 0;
+	private JsonProcessingException parseFailure;
+
+	private volatile IOControl ioControl;
+	private volatile boolean suspended = false;
+	private CompletableFuture<Void> handled = CompletableFuture.completedFuture(null);
+
+	public PacerResponseConsumer(Consumer<JsonParser> elementHandler, Executor executor, int captureBytes) {
+		this.elementHandler = elementHandler;
+		this.executor = executor;
+		this.captureBytes = captureBytes;
+		try {
+			this.parser = JSON_FACTORY.createNonBlockingByteArrayParser();
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	// Completes once every element received so far has been handled. Used when the
+	// exchange fails part way, so the failure is not reported while elements are still
+	// being merged.
+	public synchronized CompletableFuture<Void> getHandled() {
+		return handled;
+	}
+
+	@Override
+	protected void onResponseReceived(HttpResponse response) {
+		statusCode = response.getStatusLine().getStatusCode();
+		parse = statusCode == 200 || statusCode == 201;
+	}
+
+	@Override
+	protected void onByteReceived(ByteBuffer buf, IOControl ioControl) throws IOException {
+		this.ioControl = ioControl;
+		byte[] bytes = new byte[buf.remaining()];
+		buf.get(bytes);
+
+		int room = captureBytes - capture.size();
+		if (room > 0) {
+			capture.write(bytes, 0, Math.min(room, bytes.length));
+		}
+		if (!parse || parseFailure != null) {
+			return;
+		}
+
+		((ByteArrayFeeder) parser.getNonBlockingInputFeeder()).feedInput(bytes, 0, bytes.length);
+		readTokens();
+		if (pending.get() >= MAX_PENDING) {
+			suspended = true;
+			ioControl.suspendInput();
+			// The handler may have caught up in the meantime.
+			resumeIfCaughtUp();
+		}
+	}
+
+	@Override
+	protected CompletableFuture<PacerHttpClient.Response> buildResult(HttpContext context) throws Exception {
+		if (parse && parseFailure == null) {
+			((ByteArrayFeeder) parser.getNonBlockingInputFeeder()).endOfInput();
+			readTokens();
+			if (parseFailure == null && (depth != 0 || element != null)) {
+				parseFailure = new JsonParseException(parser, "PACER response ended in the middle of the JSON body");
+			}
+		}
+		JsonProcessingException failure = parseFailure;
+		PacerHttpClient.Response response = new PacerHttpClient.Response(statusCode, elements,
+				new String(capture.toByteArray(), StandardCharsets.UTF_8));
+		return getHandled().thenApply(done -> {
+			if (failure != null) {
+				throw new CompletionException(failure);
+			}
+			return response;
+		});
+	}
+
+	@Override
+	protected void releaseResources() {
+		try {
+			parser.close();
+		} catch (IOException e) {
+			// Nothing to release.
+		}
+	}
+
+	// Top-level array elements (or a single top-level object) are copied into a
+	// TokenBuffer token by token; the buffer is handed off when the element closes.
+	private void readTokens() {
+		if (parseFailure != null) {
+			return;
+		}
+		try {
+			JsonToken token;
+			while ((token = parser.nextToken()) != null && token != JsonToken.NOT_AVAILABLE) {
+				if (element == null) {
+					if (token == JsonToken.START_ARRAY && depth == 0) {
+						depth = 1;
+						continue;
+					}
+					if (token == JsonToken.END_ARRAY && depth == 1) {
+						depth = 0;
+						continue;
+					}
+					if (token != JsonToken.START_OBJECT) {
+						continue;
+					}
+					element = new TokenBuffer(parser);
+					elementDepth = depth;
+				}
+
+				element.copyCurrentEvent(parser);
+				if (token.isStructStart()) {
+					depth++;
+				} else if (token.isStructEnd()) {
+					depth--;
+				}
+				if (depth == elementDepth) {
+					handOff(element);
+					element = null;
+				}
+			}
+		} catch (JsonProcessingException e) {
+			parseFailure = e;
+		} catch (IOException e) {
+			parseFailure = new JsonParseException(parser, e.getMessage(), e);
+		}
+	}
+
+	private synchronized void handOff(TokenBuffer tokens) {
+		elements++;
+		pending.incrementAndGet();
+		// Once an element has failed the rest are skipped, but each still frees its place
+		// so the socket is read to the end.
+		handled = handled.handleAsync((ignored, failure) -> {
+			try {
+				if (failure != null) {
+					throw failure instanceof CompletionException ? (CompletionException) failure
+							: new CompletionException(failure);
+				}
+				try (JsonParser elementParser = tokens.asParser()) {
+					elementHandler.accept(elementParser);
+				} catch (IOException e) {
+					throw new CompletionException(e);
+				}
+				return null;
+			} finally {
+				pending.decrementAndGet();
+				resumeIfCaughtUp();
+			}
+		}, executor);
+	}
+
+	private void resumeIfCaughtUp() {
+		IOControl control = ioControl;
+		if (suspended && pending.get() < MAX_PENDING && control != null) {
+			suspended = false;
+			control.requestInput();
+		}
+	}
+}
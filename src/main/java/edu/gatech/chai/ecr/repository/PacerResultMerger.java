@@ -0,0 +1,148 @@
+package edu.gatech.chai.ecr.repository;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import edu.gatech.chai.ecr.jpa.json.ECR;
+import edu.gatech.chai.ecr.jpa.json.Patient;
+import edu.gatech.chai.ecr.jpa.json.TypeableID;
+import edu.gatech.chai.ecr.jpa.model.ECRData;
+import edu.gatech.chai.ecr.jpa.model.ECRDataHistory;
+import edu.gatech.chai.ecr.jpa.model.ECRJob;
+import edu.gatech.chai.ecr.jpa.repo.ECRDataHistoryRepository;
+import edu.gatech.chai.ecr.jpa.repo.ECRDataRepository;
+
+// Merges an ECR returned by PACER into the case it was asked for, whether it came back
+// on the response to our request (PollPACERTask) or was delivered later to the result
+// callback (PacerResultService).
+@Component
+public class PacerResultMerger {
+	private static final Logger logger = LoggerFactory.getLogger(PacerResultMerger.class);
+
+	@Autowired
+	private ECRDataRepository ecrDataRepository;
+
+	@Autowired
+	private ECRDataHistoryRepository ecrDataHistoryRepository;
+
+	@Autowired
+	private ECRDataService ecrDataService;
+
+	@Autowired
+	private ECRJobService ecrJobService;
+
+	// The case is found by the patient ids in the ECR, or else by its ECR id. When it is
+	// found, the jobs that asked for it are marked answered and true is returned.
+	public boolean merge(ECR ecr, List<ECRJob> ecrJobs) {
+		// First search ecr data to see if we have the matching patient using
+		// received patient id.
+		List<ECRData> ecrDatas = new ArrayList<ECRData>();
+
+		Patient patient = ecr.getPatient();
+		String patientIdentifier = null;
+		if (patient != null) {
+			// See if we can find a ECR record for this patient using
+			// patient ID.
+			List<TypeableID> ids = patient.getid();
+			for (TypeableID pid : ids) {
+				// do the search only when we have a valid patient id
+				if (pid.gettype() != null && !pid.gettype().isBlank() &&
+					pid.getvalue() != null && !pid.getvalue().isBlank()) {	
+					String tempPatientIdentifier = ECRData.stringPatientId(pid);
+					ecrDatas = ecrDataService.findByPatientId(pid);
+					if (ecrDatas.size() > 0) {
+						logger.info("ECR Data found case(s) with a patientID (" + tempPatientIdentifier + ") in ECR DB");
+						patientIdentifier = tempPatientIdentifier;
+						break;
+					}
+				}
+			}
+		}
+
+		// The ECR id comes from PACER, so it is only used when it is a number.
+		Integer ecrId = ecrId(ecr);
+		if (ecrId == null && ecr.getECRId() != null && !ecr.getECRId().isBlank()) {
+			logger.warn("Ignoring ECR id " + ecr.getECRId() + " from PACER: not a number");
+		}
+		if (ecrDatas.size() == 0 && ecrId != null) {
+			ecrDatas = ecrDataRepository.findByEcrIdAndCurrentTrue(ecrId);
+			if (ecrDatas.size() > 0) {
+				logger.info("ECR Data found with requested ecrId (" + ecrId + ") in ECR");
+			} else {
+				// initial case report not found. this is an error.
+				logger.error("Inital Case Report Not found for ecr id = " + ecrId + " and patientID = " + patientIdentifier);
+			}
+		}
+
+		if (ecrDatas.size() == 0) {
+			String msg = "We could not locate the ECR for patientID = " + patientIdentifier;
+			logger.error(msg);
+
+			recordToHistoryLog(ecr, ecrJobs.get(0), ecrId, msg);
+			
+			return false;
+		}
+
+		if (ecrDatas.size() > 1) {
+			String msg = "Multiple (" + ecrDatas.size()
+					+ ") ECR Data sets detected for patientID = " + patientIdentifier + ".\nWe are not updating anything since we do not know which to update.";
+			logger.warn(msg);
+
+			recordToHistoryLog(ecr, ecrJobs.get(0), ecrDatas.get(0).getECRId(), msg);
+
+			return false;
+		}
+
+		// This ecr is good. Merge it into the case.
+		ECRData ecrData = ecrDatas.get(0);
+		ecrData.update(ecr);
+		ecrDataService.save(ecrData);
+
+		// Ok, now we update job entry.
+		for (ECRJob ecrJob : ecrJobs) {
+			ecrJob.updateQueryStatus(ECRJob.A);
+		}
+		ecrJobService.saveAll(ecrJobs);
+
+		// set ecrId in ecr data history and save it to the history table.
+		recordToHistoryLog(ecr, ecrJobs.get(0), ecrData.getECRId(), "");
+
+		return true;
+	}
+
+	// Null when the ECR has no id or one that is not a number.
+	static Integer ecrId(ECR ecr) {
+		String ecrId = ecr.getECRId();
+		if (ecrId == null || ecrId.isBlank()) {
+			return null;
+		}
+		try {
+			return Integer.valueOf(ecrId.trim());
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	public void recordToHistoryLog(List<ECRJob> ecrJobs, String msg) {
+		for (ECRJob ecrJob : ecrJobs) {
+			Optional<ECRData> ecrData = ecrDataRepository.findById(ecrJob.getReportId());
+			if (ecrData.isPresent()) {
+				recordToHistoryLog(ecrData.get().getECR(), ecrJob, ecrData.get().getECRId(), msg);
+			}
+		}
+	}
+
+	public void recordToHistoryLog(ECR ecr, ECRJob ecrJob, Integer ecrId, String statusLog) {
+		ecr.setStatus(ecrJob.getStatusCode());
+		ecr.setStatusLog(statusLog);
+		ECRDataHistory ecrDataHistory = new ECRDataHistory(ecr, "ehr");
+		ecrDataHistory.setECRId(ecrId);
+		ecrDataHistoryRepository.save(ecrDataHistory);
+	}
+}
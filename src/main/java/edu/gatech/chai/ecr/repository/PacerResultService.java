@@ -0,0 +1,151 @@
+package edu.gatech.chai.ecr.repository;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Optional;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.annotation.Transactional;
+
+import edu.gatech.chai.ecr.jpa.json.ECR;
+import edu.gatech.chai.ecr.jpa.json.PacerDeliveryResult;
+import edu.gatech.chai.ecr.jpa.model.ECRData;
+import edu.gatech.chai.ecr.jpa.model.ECRJob;
+import edu.gatech.chai.ecr.jpa.model.PacerDelivery;
+import edu.gatech.chai.ecr.jpa.repo.ECRDataRepository;
+import edu.gatech.chai.ecr.jpa.repo.ECRJobRepository;
+import edu.gatech.chai.ecr.jpa.repo.PacerDeliveryRepository;
+
+// Push mode for PACER results. When ecr.pacer.callback.base-url is set, every patient
+// we send carries a callbackUrl of <base-url>/pacer/results/<ecr_job_key>. A PACER Job
+// Manager that supports it answers 202 straight away and POSTs the ECRs there once the
+// EHR query is done, so no connection is held open while it works. Jobs wait for the
+// callback until ecr.pacer.callback.timeout-minutes and are then sent again by the
+// poller. Each (job, delivery id) is merged once; a redelivery is acknowledged without
+// being applied again.
+@Component
+public class PacerResultService {
+	private static final Logger logger = LoggerFactory.getLogger(PacerResultService.class);
+
+	@Autowired
+	private ECRJobRepository ecrJobRepository;
+
+	@Autowired
+	private ECRDataRepository ecrDataRepository;
+
+	@Autowired
+	private PacerDeliveryRepository pacerDeliveryRepository;
+
+	@Autowired
+	private PacerResultMerger pacerResultMerger;
+
+	@Value("${ecr.pacer.callback.base-url:}")
+	private String callbackBaseUrl;
+
+	@Value("${ecr.pacer.callback.timeout-minutes:60}")
+	private long timeoutMinutes;
+
+	@Value("${ecr.pacer.callback.retention-days:30}")
+	private long retentionDays;
+
+	// Hands out the ECRs of a delivery one at a time, null at the end.
+	public interface ECRSource {
+		ECR next() throws IOException;
+	}
+
+	// Null when push mode is off.
+	public String callbackUrl(ECRJob ecrJob) {
+		if (callbackBaseUrl == null || callbackBaseUrl.isBlank()) {
+			return null;
+		}
+		String base = callbackBaseUrl.endsWith("/") ? callbackBaseUrl.substring(0, callbackBaseUrl.length() - 1)
+				: callbackBaseUrl;
+		return base + "/pacer/results/" + ecrJob.getId();
+	}
+
+	// How long jobs handed to PACER in push mode wait for their callback.
+	public Date callbackDeadline() {
+		return new Date(System.currentTimeMillis() + timeoutMinutes * 60000);
+	}
+
+	// Returns null if there is no such job. The delivery is recorded and merged in one
+	// transaction, so a delivery that fails part way can simply be sent again. A
+	// concurrent duplicate fails on the unique constraint with a
+	// DataIntegrityViolationException.
+	@Transactional(rollbackFor = Exception.class)
+	public PacerDeliveryResult deliver(Integer jobKey, String deliveryId, ECRSource results) throws IOException {
+		Optional<ECRJob> job = ecrJobRepository.findById(jobKey);
+		if (!job.isPresent()) {
+			return null;
+		}
+		if (pacerDeliveryRepository.existsByJobKeyAndDeliveryId(jobKey, deliveryId)) {
+			logger.info("PACER delivery " + deliveryId + " for job " + jobKey + " was already processed");
+			return new PacerDeliveryResult(jobKey, deliveryId, PacerDeliveryResult.DUPLICATE);
+		}
+		pacerDeliveryRepository.saveAndFlush(new PacerDelivery(jobKey, deliveryId));
+
+		// Other jobs still waiting on the same case were asked for it too.
+		ECRJob ecrJob = job.get();
+		List<ECRJob> ecrJobs = new ArrayList<ECRJob>();
+		ecrJobs.add(ecrJob);
+		for (ECRJob other : ecrJobRepository.findByReportIdAndStatusCode(ecrJob.getReportId(), ECRJob.R)) {
+			if (!other.getId().equals(ecrJob.getId())) {
+				ecrJobs.add(other);
+			}
+		}
+		Integer expectedEcrId = ecrDataRepository.findById(ecrJob.getReportId())
+				.map(ECRData::getECRId).orElse(null);
+
+		int received = 0;
+		int merged = 0;
+		ECR ecr;
+		while ((ecr = results.next()) != null) {
+			received++;
+			if (ecr.getECRId() != null && !ecr.getECRId().isBlank()) {
+				Integer ecrId = PacerResultMerger.ecrId(ecr);
+				if (ecrId == null) {
+					logger.warn("PACER delivered ECR id " + ecr.getECRId() + " for job " + jobKey
+							+ ", which is not a number. Skipping.");
+					continue;
+				}
+				if (expectedEcrId != null && !expectedEcrId.equals(ecrId)) {
+					logger.warn("PACER delivered ECR id " + ecrId + " for job " + jobKey + " which asked for "
+							+ expectedEcrId + ". Skipping.");
+					continue;
+				}
+			}
+			if (pacerResultMerger.merge(ecr, ecrJobs)) {
+				merged++;
+			}
+		}
+		logger.info("PACER delivery " + deliveryId + " for job " + jobKey + ": merged " + merged + " of " + received
+				+ " ECR(s)");
+
+		PacerDeliveryResult result = new PacerDeliveryResult(jobKey, deliveryId, PacerDeliveryResult.PROCESSED);
+		result.setReceived(received);
+		result.setMerged(merged);
+		return result;
+	}
+
+	// Whether the delivery has been recorded, e.g. by a concurrent request that won the
+	// race on the unique constraint.
+	public boolean isDelivered(Integer jobKey, String deliveryId) {
+		return pacerDeliveryRepository.existsByJobKeyAndDeliveryId(jobKey, deliveryId);
+	}
+
+	@Scheduled(fixedDelayString = "${ecr.pacer.callback.cleanup-interval-ms:3600000}")
+	@Transactional
+	public void purgeDeliveries() {
+		int purged = pacerDeliveryRepository.deleteReceivedBefore(new Date(System.currentTimeMillis() - retentionDays * 86400000L));
+		if (purged > 0) {
+			logger.info("Removed " + purged + " PACER deliveries older than " + retentionDays + " days");
+		}
+	}
+}
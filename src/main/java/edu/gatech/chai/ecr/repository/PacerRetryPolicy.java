@@ -0,0 +1,34 @@
+package edu.gatech.chai.ecr.repository;
+
+import java.util.Date;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+// When to retry a PACER job whose request failed on the way (connection error,
+// timeout, 5xx). The delay doubles with every attempt from ecr.pacer.retry.base-minutes
+// up to max-minutes, and a random half of it is jittered away so jobs that failed
+// together do not all come back at the same moment.
+@Component
+public class PacerRetryPolicy {
+	@Value("${ecr.pacer.retry.base-minutes:5}")
+	private long baseMinutes;
+
+	@Value("${ecr.pacer.retry.max-minutes:1440}")
+	private long maxMinutes;
+
+	// attempt counts from 1 for the first retry.
+	public Date nextAttempt(int attempt) {
+		long delayMinutes = Math.min(maxMinutes, baseMinutes << Math.min(Math.max(attempt - 1, 0), 30));
+		long delayMs = delayMinutes * 60000;
+		long jittered = delayMs / 2 + ThreadLocalRandom.current().nextLong(delayMs / 2 + 1);
+		return new Date(System.currentTimeMillis() + jittered);
+	}
+
+	// Spreads jobs deferred to the same moment (e.g. the end of an open circuit) over a
+	// minute.
+	public Date jitter(long at) {
+		return new Date(at + ThreadLocalRandom.current().nextLong(60000));
+	}
+}
@@ -1,70 +1,61 @@
 package edu.gatech.chai.ecr.repository;
 
-import java.io.BufferedReader;
-import java.io.FileReader;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.charset.StandardCharsets;
-import java.nio.file.FileAlreadyExistsException;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
 import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.annotation.PostConstruct;
 
 import org.apache.commons.codec.binary.Base64;
-import org.apache.http.client.config.RequestConfig;
-import org.apache.http.conn.ssl.NoopHostnameVerifier;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClientBuilder;
-import org.apache.http.impl.client.HttpClients;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.http.HttpEntity;
-import org.springframework.http.HttpHeaders;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.HttpStatus;
-import org.springframework.http.MediaType;
-import org.springframework.http.ResponseEntity;
-import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
 import org.springframework.scheduling.annotation.Async;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
-import org.springframework.web.client.RestTemplate;
 
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
-import com.opencsv.CSVParser;
 
 import edu.gatech.chai.ecr.jpa.json.ECR;
-import edu.gatech.chai.ecr.jpa.json.LabOrderCode;
-import edu.gatech.chai.ecr.jpa.json.LabResult;
 import edu.gatech.chai.ecr.jpa.json.Name;
 import edu.gatech.chai.ecr.jpa.json.Patient;
 import edu.gatech.chai.ecr.jpa.json.Provider;
 import edu.gatech.chai.ecr.jpa.json.TypeableID;
+import edu.gatech.chai.ecr.jpa.json.utils.PatientIdUtil;
 import edu.gatech.chai.ecr.jpa.model.ECRData;
 import edu.gatech.chai.ecr.jpa.model.ECRDataHistory;
 import edu.gatech.chai.ecr.jpa.model.ECRJob;
 import edu.gatech.chai.ecr.jpa.repo.ECRDataHistoryRepository;
 import edu.gatech.chai.ecr.jpa.repo.ECRDataRepository;
 import edu.gatech.chai.ecr.jpa.repo.ECRJobRepository;
-import edu.gatech.chai.ecr.repository.controller.ECRController;
 
 @Component
 public class PollPACERTask {
 	private static final Logger logger = LoggerFactory.getLogger(PollPACERTask.class);
+	private static final long POLL_DELAY_MS = 120000;
 	ObjectMapper mapper = new ObjectMapper();
 
 	@Autowired
@@ -76,488 +67,318 @@ public class PollPACERTask {
 	@Autowired
 	private ECRDataHistoryRepository ecrDataHistoryRepository;
 
+	@Autowired
+	private ECRJobService ecrJobService;
 
-	private JsonNode searchPacerIndexService(String identifier, String name) {
-		RestTemplate restTemplate = new RestTemplate();
-		String pacerIndexServiceUrl = System.getenv("PACER_INDEX_SERVICE");
+	@Autowired
+	private PacerIndexService pacerIndexService;
 
-		if (pacerIndexServiceUrl.endsWith("/")) {
-			pacerIndexServiceUrl = pacerIndexServiceUrl.substring(0, pacerIndexServiceUrl.length() - 1);
-		}
+	@Autowired
+	private PacerHttpClient pacerHttpClient;
 
-		Map<String, String> vars = new HashMap<>();
-		String args = null;
-		if (identifier != null && !identifier.isEmpty()) {
-			args = "?organization-id={orgId}";
-			vars.put("orgId", identifier);
-		}
-		if (name != null && !name.isEmpty()) {
-			if (args == null) {
-				args = "?provider-name={providerName}";
-			} else {
-				args += "&provider-name={providerName}";
-			}
-			vars.put("providerName", name);
-		}
-
-		pacerIndexServiceUrl += args;
-
-		ResponseEntity<String> response = restTemplate.getForEntity(pacerIndexServiceUrl, String.class, vars);
-		if (response.getStatusCode().equals(HttpStatus.OK)) {
-//			ObjectMapper mapper = new ObjectMapper();
-			JsonNode root;
-			try {
-				root = mapper.readTree(response.getBody());
-				JsonNode countNode = root.path("count");
-				int count = countNode.asInt();
-				if (count > 0) {
-					JsonNode list = root.path("list");
-					JsonNode pacerInfo = list.get(0);
-					JsonNode pacerSource = pacerInfo.path("pacerSource");
-					if (pacerSource.path("type").asText().equalsIgnoreCase("ECR")) {
-						return pacerSource; // pacerSource.path("serverUrl").asText();
-					}
-				}
-			} catch (IOException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			}
-		} else {
-			logger.info("Failed to access PACER Index Service at " + pacerIndexServiceUrl);
-		}
+	@Autowired
+	private PacerDispatcher pacerDispatcher;
+
+	@Autowired
+	private ECRJobLeaser ecrJobLeaser;
+
+	@Autowired
+	private PacerCircuitBreaker pacerCircuitBreaker;
+
+	@Autowired
+	private PacerRetryPolicy pacerRetryPolicy;
 
-		return null;
+	@Autowired
+	private PacerResultMerger pacerResultMerger;
+
+	@Autowired
+	private PacerResultService pacerResultService;
+
+	@Value("${ecr.pacer.batch-size:100}")
+	private int pacerBatchSize;
+
+	@Value("${ecr.pacer.batch-window-ms:30000}")
+	private long pacerBatchWindowMs;
+
+	@Value("${ecr.pacer.poll.page-size:500}")
+	private int pollPageSize;
+
+	@Value("${ecr.pacer.response-log-bytes:4096}")
+	private int responseLogBytes;
+
+	// Jobs in a batch on this node, from being queued until their batch has been handled.
+	// A job whose lease ran out while it waited can be claimed here again; it is not
+	// queued a second time.
+	private final Set<Integer> queuedJobs = ConcurrentHashMap.newKeySet();
+
+	// A job waits at most batch-window-ms in an open batch and then, as queueJob only
+	// opens a batch while its endpoint has room, behind at most two rounds of requests.
+	// The lease must outlast that, or another node could claim and send it meanwhile.
+	@PostConstruct
+	public void start() {
+		ecrJobLeaser.ensureLeaseCovers(pacerBatchWindowMs + 2 * pacerHttpClient.getMaxRequestMs());
 	}
 
-	private int sendPacerRequest(String pacerJobManagerEndPoint, JsonNode query, ECRJob ecrJob) {
-		int retv = -1;
-
-		int timeout = 600;
-		RequestConfig config = RequestConfig.custom()
-			.setConnectTimeout(timeout * 1000)
-			.setConnectionRequestTimeout(timeout * 1000)
-			.setSocketTimeout(timeout * 1000).build();
-		CloseableHttpClient httpClient = HttpClients.custom()
-			.setDefaultRequestConfig(config)
-			.setSSLHostnameVerifier(new NoopHostnameVerifier())
-			.build();
-
-		HttpComponentsClientHttpRequestFactory requestFactory = new HttpComponentsClientHttpRequestFactory();
-		requestFactory.setHttpClient(httpClient);
-
-		// Generate request JSON
-		RestTemplate restTemplate;
-		if ("true".equalsIgnoreCase(System.getenv("TRUST_CERT"))) {
-			restTemplate = new RestTemplate(requestFactory);
-			logger.info("ALL CERTIFICATES WILL BE TRUSTED WITHOUT HOSTNAME VERIFICATION.");
-		} else {
-			restTemplate = new RestTemplate();
+	// Jobs whose lease has passed to another node are dropped from the batch; the rest
+	// are released once handled so they are free for the next run. While the endpoint's
+	// circuit is open the jobs are only pushed back, nothing is sent.
+	private CompletableFuture<Void> sendPacerRequest(PacerBatch batch) {
+		Set<Integer> held = ecrJobLeaser.renew(batch.getJobIds());
+		if (batch.retainJobs(held)) {
+			logger.warn("Lost the lease on some jobs for " + batch.getEndpoint() + "; another node will send them");
 		}
-		
-		JsonNode security = query.get("security");
-		String authHeader = null;
-		if (security != null) {
-			authHeader = security.textValue();
+		if (batch.size() == 0) {
+			return CompletableFuture.completedFuture(null);
 		}
 
-		HttpHeaders headers = new HttpHeaders();
-		headers.setContentType(MediaType.APPLICATION_JSON);
-		if (authHeader != null && !authHeader.isEmpty()) {
-			headers.add("Authorization", authHeader);
+		CompletableFuture<Void> sent;
+		boolean allowed = false;
+		try {
+			if (pacerCircuitBreaker.allowRequest(batch.getEndpoint())) {
+				allowed = true;
+				sent = postPacerRequest(batch);
+			} else {
+				deferBatch(batch);
+				sent = CompletableFuture.completedFuture(null);
+			}
+		} catch (RuntimeException e) {
+			// The request never got an answer to record, so a half-open trial is handed back.
+			if (allowed) {
+				pacerCircuitBreaker.releaseTrial(batch.getEndpoint());
+			}
+			ecrJobLeaser.release(batch.getJobIds());
+			throw e;
 		}
+		return sent.whenComplete((result, e) -> ecrJobLeaser.release(batch.getJobIds()));
+	}
+
+	// Sends one batch to its PACER Job Manager without waiting for the answer. The
+	// returned future completes once the response has been handled on a PACER callback
+	// thread.
+	private CompletableFuture<Void> postPacerRequest(PacerBatch batch) {
+		String pacerJobManagerEndPoint = batch.getEndpoint();
 
 		DateFormat dateFormat = new SimpleDateFormat("yyyyMMddHHmmss");
 		Date date = new Date();
 		JsonNode requestJson = mapper.createObjectNode();
 		((ObjectNode) requestJson).put("name", "STD_ECR_" + dateFormat.format(date));
 		((ObjectNode) requestJson).put("jobType", "ECR");
-		((ObjectNode) requestJson).set("listElements", query.get("patients"));
-
-		HttpEntity<JsonNode> entity = new HttpEntity<JsonNode>(requestJson, headers);
-
-		logger.info("Posting to " + pacerJobManagerEndPoint + " with payload: \n" + requestJson.toPrettyString());
+		((ObjectNode) requestJson).set("listElements", batch.getPatients());
 
+		byte[] payload;
 		try {
-			ResponseEntity<String> response = restTemplate.postForEntity(pacerJobManagerEndPoint, entity, String.class);
-			if (response.getStatusCode().equals(HttpStatus.CREATED) || response.getStatusCode().equals(HttpStatus.OK)) {
-//				ObjectMapper mapper = new ObjectMapper();
-				String ecrReport = null;
-			
-				ecrReport = response.getBody();
-				logger.info("updateECR received:" + ecrReport);
-
-				if ("[]".equals(ecrReport.trim())) {
-					logger.info("Patient does not exist or no data found");
-					return retv;
-				}
-//				ECR ecr = mapper.readValue(ecrReport, ECR.class);
-				List<ECR> ecrs = mapper.readValue(ecrReport,
-						mapper.getTypeFactory().constructCollectionType(List.class, ECR.class));
-
-				for (ECR ecr : ecrs) {
-					// First search ecr data to see if we have the matching patient using
-					// received patient id.
-					List<ECRData> ecrDatas = new ArrayList<ECRData>();
-
-					Patient patient = ecr.getPatient();
-					String patientIdentifier = null;
-					if (patient != null) {
-						// See if we can find a ECR record for this patient using
-						// patient ID.
-						List<TypeableID> ids = patient.getid();
-						for (TypeableID pid : ids) {
-							// do the search only when we have a valid patient id
-							if (pid.gettype() != null && !pid.gettype().isBlank() &&
-								pid.getvalue() != null && !pid.getvalue().isBlank()) {	
-								String tempPatientIdentifier = ECRData.stringPatientId(pid);
-								ecrDatas = ecrDataRepository.findByPatientIdsContainingIgnoreCase(tempPatientIdentifier);
-								if (ecrDatas.size() > 0) {
-									logger.info("ECR Data found case(s) with a patientID (" + tempPatientIdentifier + ") in ECR DB");
-									patientIdentifier = tempPatientIdentifier;
-									break;
-								}
-							}
-						}
-					}
-
-					ECRData ecrData;
-					if (ecrDatas.size() == 0 && ecr.getECRId() != null) {
-						ecrDatas = ecrDataRepository.findByEcrIdOrderByVersionDesc(Integer.valueOf(ecr.getECRId()));
-						if (ecrDatas.size() > 0) {
-							logger.info("ECR Data found with requested ecrId (" + ecr.getECRId() + ") in ECR");
-						} else {
-							// initial case report not found. this is an error.
-							logger.error("Inital Case Report Not found for ecr id = " + ecr.getECRId() + " and patientID = " + patientIdentifier);
-							ecrData = new ECRData(ecr, Integer.valueOf(ecr.getECRId()));
-						}
-					}
-
-					if (ecrDatas.size() == 0) {
-						String msg = "We could not locate the ECR for patientID = " + patientIdentifier;
-						logger.error(msg);
-
-						recordToHistoryLog(ecr, ecrJob, Integer.parseInt(ecr.getECRId()), msg);
-						
-						continue;
-					}
-
-					if (ecrDatas.size() > 1) {
-						String msg = "Multiple (" + ecrDatas.size()
-								+ ") ECR Data sets detected for patientID = " + patientIdentifier + ".\nWe are not updating anything since we do not know which to update.";
-						logger.warn(msg);
-
-						recordToHistoryLog(ecr, ecrJob, ecrDatas.get(0).getECRId(), msg);
-
-						continue;
-					}
-
-					// This ecr is good. We need to add this to the history table.
-					// ECRDataHistory ecrDataHistory = new ECRDataHistory(ecr, "ehr");
-					
-					ecrData = ecrDatas.get(0);
-					ecrData.update(ecr);
-//					}
+			payload = mapper.writeValueAsBytes(requestJson);
+		} catch (JsonProcessingException e) {
+			pacerCircuitBreaker.releaseTrial(pacerJobManagerEndPoint);
+			failBatch(batch, ECRJob.E, e.getMessage());
+			return CompletableFuture.completedFuture(null);
+		}
 
-					ecrDataRepository.save(ecrData);
-
-					// Ok, now we update job entry.
-					ecrJob.updateQueryStatus(ECRJob.A);
-					ecrJobRepository.save(ecrJob);
-
-					// set ecrId in ecr data history and save it to the history table.
-					recordToHistoryLog(ecr, ecrJob, ecrData.getECRId(), "");
-				
-					// boolean jobFound = false;
-					// if (patientIdentifier != null) {
-					// 	List<ECRJob> ecrJobs = ecrJobRepository.findByPatientIdContainingIgnoreCase(patientIdentifier);
-					// 	for (ECRJob myEcrJob : ecrJobs) {
-					// 		myEcrJob.instantUpdate();
-					// 		ecrJobRepository.save(myEcrJob);	
-					// 		jobFound = true;
-					// 	}
-					// }
-
-					// if (jobFound == false) {
-					// 	List<ECRJob> ecrJobs = ecrJobRepository
-					// 			.findByReportIdOrderByIdDesc(ecrData.getId());
-					// 	for (ECRJob myEcrJob : ecrJobs) {
-					// 		myEcrJob.instantUpdate();
-					// 		ecrJobRepository.save(myEcrJob);	
-					// 	}
-					// }
-				}
+		logger.info("Posting " + batch.size() + " patient(s) to " + pacerJobManagerEndPoint);
+		logger.debug("Payload: \n" + requestJson.toPrettyString());
 
-				retv = 0;
-			} else {
-				String msg = "Received with HTTP code with " + response.getStatusCode(); 
-				logger.error(msg);
-				ecrJob.updateQueryStatus(ECRJob.W);
-				ecrJobRepository.save(ecrJob);
-
-				Optional<ECRData> ecrData = ecrDataRepository.findById(ecrJob.getReportId());
-				ECR ecr = ecrData.get().getECR();
-				recordToHistoryLog(ecr, ecrJob, ecrData.get().getECRId(), msg);
-			}
-		} catch (Exception e) {
-			ecrJob.updateQueryStatus(ECRJob.E);
-			ecrJobRepository.save(ecrJob);
-			
-			Optional<ECRData> ecrData = ecrDataRepository.findById(ecrJob.getReportId());
-			ECR ecr = ecrData.get().getECR();
-			recordToHistoryLog(ecr, ecrJob, ecrData.get().getECRId(), e.getMessage());
+		int captureBytes = logger.isDebugEnabled() ? responseLogBytes : 0;
+		return pacerHttpClient.postJson(pacerJobManagerEndPoint, batch.getAuthHeader(), payload,
+				parser -> mergeEcr(batch, readEcr(parser)), captureBytes)
+			.handle((response, e) -> {
+				if (e == null) {
+					handlePacerResponse(batch, response);
+					return null;
+				}
 
-			e.printStackTrace();
-			logger.error("Posting to PACER-server failed with an error: \n" + e.getMessage());
-			retv = -1;
-		}
+				Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+				if (cause instanceof IOException && !(cause instanceof JsonProcessingException)) {
+					pacerCircuitBreaker.recordFailure(pacerJobManagerEndPoint);
+					logger.error("Posting to " + pacerJobManagerEndPoint + " failed, will retry: " + cause);
+					retryBatch(batch, String.valueOf(cause.getMessage()));
+				} else {
+					pacerCircuitBreaker.recordSuccess(pacerJobManagerEndPoint);
+					failBatch(batch, ECRJob.E, cause.getMessage());
 
-		return retv;
+					logger.error("Posting to PACER-server failed with an error: \n" + cause.getMessage(), cause);
+				}
+				return null;
+			});
 	}
 
-	private void recordToHistoryLog(ECR ecr, ECRJob ecrJob, Integer ecrId, String statusLog) {
-		ecr.setStatus(ecrJob.getStatusCode());
-		ecr.setStatusLog(statusLog);
-		ECRDataHistory ecrDataHistory = new ECRDataHistory(ecr, "ehr");
-		ecrDataHistory.setECRId(ecrId);
-		ecrDataHistoryRepository.save(ecrDataHistory);
+	private ECR readEcr(JsonParser parser) {
+		try {
+			return mapper.readValue(parser, ECR.class);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
 	}
 
-	@Scheduled(fixedDelay = 60000)
-	public void readBulkDataFromFile() {
-		CSVParser parser = new CSVParser();
-		String localFilePath = System.getenv("LOCAL_BULKDATA_PATH");
-		String localPacerUrl = System.getenv("LOCAL_PACER_URL");
-//		String localPacerSecurity = System.getenv("LOCAL_PACER_SECURITY");
-
-		if (localPacerUrl == null || localPacerUrl.isEmpty()) {
+	// Called once the whole response has been read and every ECR in it merged.
+	private void handlePacerResponse(PacerBatch batch, PacerHttpClient.Response response) {
+		String pacerJobManagerEndPoint = batch.getEndpoint();
+		if (response.getStatusCode() >= 500) {
+			String msg = "Received with HTTP code with " + response.getStatusCode();
+			pacerCircuitBreaker.recordFailure(pacerJobManagerEndPoint);
+			logger.error(msg + " from " + pacerJobManagerEndPoint + ", will retry");
+			retryBatch(batch, msg);
 			return;
 		}
+		pacerCircuitBreaker.recordSuccess(pacerJobManagerEndPoint);
+		logger.debug("updateECR received (first " + responseLogBytes + " bytes):" + response.getCapturedBody());
 
-		if (localFilePath != null && !localFilePath.trim().isEmpty() && !"none".equalsIgnoreCase(localFilePath)) {
-			logger.debug("LocalMappingFilePath is set to " + localFilePath);
-			Path path = Paths.get(localFilePath);
-
-			if (!Files.exists(path)) {
-				try {
-					path = Files.createDirectory(path);
-				} catch (FileAlreadyExistsException e) {
-					e.printStackTrace();
-				} catch (IOException e) {
-					e.printStackTrace();
-					return;
-				}
+		if (response.getStatusCode() == HttpStatus.CREATED.value() || response.getStatusCode() == HttpStatus.OK.value()) {
+			logger.info("updateECR received " + response.getElements() + " ECR(s) from " + pacerJobManagerEndPoint);
+			if (response.getElements() == 0) {
+				logger.info("Patient does not exist or no data found");
 			}
+		} else if (response.getStatusCode() == HttpStatus.ACCEPTED.value()) {
+			// Push mode: results come later through /pacer/results/{jobKey}. Until then the
+			// jobs are not due; if no callback arrives they are sent again.
+			List<Integer> waiting = new ArrayList<Integer>();
+			for (ECRJob ecrJob : batch.getUnansweredJobs()) {
+				waiting.add(ecrJob.getId());
+			}
+			ecrJobService.deferInStatus(waiting, ECRJob.R, pacerResultService.callbackDeadline());
+			logger.info(pacerJobManagerEndPoint + " accepted " + batch.size() + " patient(s); waiting for results on the callback");
+		} else {
+			String msg = "Received with HTTP code with " + response.getStatusCode(); 
+			logger.error(msg);
+			failBatch(batch, ECRJob.W, msg);
+		}
+	}
 
-			// get the list of files in this path.
-			BufferedReader reader = null;
-			try (Stream<Path> walk = Files.walk(path)) {
-				List<String> result = walk.filter(Files::isRegularFile).map(x -> x.toString())
-						.collect(Collectors.toList());
-
-				for (String aFile : result) {
-					reader = new BufferedReader(new FileReader(aFile));
-					String line = reader.readLine();
-					int i = 0;
-
-					while (line != null) {
-						String line_ = line.trim();
-						if (line_.isEmpty() || line_.startsWith("#") || line_.charAt(1) == '#') {
-							// This is comment line skip...
-							line = reader.readLine();
-							continue;
-						}
-
-						String[] parsedLine = parser.parseLine(line_);
-						// First item must be patient identifier system type. The second one
-						// must be the value.
-						i++;
-						if (parsedLine.length < 2) {
-							logger.warn("Line #" + i + " has not enough data (" + line_ + "). Skipping.");
-							line = reader.readLine();
-							continue;
-						}
-
-						String patientIdentifier = (parsedLine[0] + "|" + parsedLine[1]).trim();
-
-						ECR ecr = null;
-						List<ECRData> ecrs = ecrDataRepository.findByPatientIdsContainingIgnoreCase(patientIdentifier);
-						Integer id = null;
-						ECRData ecrData = null;
-
-						Provider provider = new Provider();
-						provider.setname("LOCAL PROVIDER");
-						TypeableID providerTId = new TypeableID();
-						providerTId.settype("LOCAL_PROVIDER");
-						providerTId.setvalue("1");
-						provider.setid(providerTId);
-
-						Patient patient;
-						
-						ecr = new ECR();
-						patient = new Patient();
-						TypeableID patientTId = new TypeableID();
-						patientTId.settype(parsedLine[0]);
-						patientTId.setvalue(parsedLine[1]);
-						patient.setid(Arrays.asList(patientTId));
-						ecr.setPatient(patient);
-						ecr.setProvider(Arrays.asList(provider));
-
-						if (parsedLine.length > 2) {
-							// We have LOINC code to populate initial lab data.
-							for (int j=2; j < parsedLine.length; j++) {
-								LabResult labResult = new LabResult();
-								String[] loincLine = parsedLine[j].split("\\^");
-								
-								if (loincLine.length > 2) {
-									labResult.setDate(loincLine[2]);
-								}
-								
-								if (loincLine.length > 1) {
-									labResult.setdisplay(loincLine[1]);
-								}
-								
-								labResult.setcode(loincLine[0]);
-								labResult.setsystem("LN");
-								
-								LabOrderCode labOrder = new LabOrderCode();
-								labOrder.getLaboratory_Results().add(labResult);
-								patient.getlabOrderCode().add(labOrder);
-								patient.getlaboratoryResults().add(labResult);
- 							}
-						}
-						
-						if (ecrs.size() == 0) {
-							id = ECRController.getStaticCurrentId();
-							ecr.setECRId(Integer.toString(id));
-							ecrData = new ECRData(ecr, id);
-						} else {
-							ecrData = ecrs.get(0);
-							ecrData.update(ecr);
-							
-//							ecr = ecrData.getECR();
-//							id = Integer.getInteger(ecr.getECRId());
-//							patient = ecr.getPatient();
-//							if (ecr.getProvider().size() > 0) {
-//								provider = ecr.getProvider().get(0);
-//							} else {
-//								ecr.setProvider(Arrays.asList(provider));
-//							}
-						}
-
-//						TypeableID patientTId = new TypeableID();
-//						patientTId.settype(parsedLine[0]);
-//						patientTId.setvalue(parsedLine[1]);
-//						patient.setid(Arrays.asList(patientTId));
-//
-//						Provider provider = new Provider();
-//						provider.setname("LOCAL PROVIDER");
-//						TypeableID providerTId = new TypeableID();
-//						providerTId.settype("LOCAL_PROVIDER");
-//						providerTId.setvalue("1");
-//						provider.setid(providerTId);
-
-//						if (ecrs.size() == 0) {
-//							id = ECRController.getStaticCurrentId();
-//							ecr = new ECR();
-//							ecr.setECRId(Integer.toString(id));
-//						} else {
-//							ecrData = ecrs.get(0);
-//							ecr = ecrData.getECR();
-//							id = Integer.getInteger(ecr.getECRId());
-//						}
-
-
-						
-
-//						ecr.setPatient(patient);
-//						ecr.setProvider(Arrays.asList(provider));
+	// Every ECR in the response is matched back to the job(s) that asked for it through
+	// recordId, which PACER returns as the ECR id. Runs on a PACER callback thread as each
+	// ECR is parsed.
+	private void mergeEcr(PacerBatch batch, ECR ecr) {
+		List<ECRJob> ecrJobs = batch.jobsFor(ecr.getECRId());
+		if (ecrJobs.isEmpty()) {
+			logger.warn("PACER returned ECR id " + ecr.getECRId() + " which was not requested from "
+					+ batch.getEndpoint() + ". Skipping.");
+			return;
+		}
 
-//						if (ecrData == null) {
-//							ecrData = new ECRData(ecr, id);
-//						}
+		if (pacerResultMerger.merge(ecr, ecrJobs)) {
+			batch.markAnswered(ecrJobs);
+		}
+	}
 
-						ecrDataRepository.save(ecrData);
+	private void failBatch(PacerBatch batch, String status, String msg) {
+		List<ECRJob> ecrJobs = batch.getUnansweredJobs();
+		for (ECRJob ecrJob : ecrJobs) {
+			ecrJob.updateQueryStatus(status);
+		}
+		ecrJobService.saveAll(ecrJobs);
+		pacerResultMerger.recordToHistoryLog(ecrJobs, msg);
+	}
 
-						List<ECRJob> ecrJobs = ecrJobRepository.findByReportIdOrderByIdDesc(ecrData.getId());
-						ECRJob ecrJob;
-						if (ecrJobs == null || ecrJobs.size() == 0) {
-							ecrJob = new ECRJob(ecrData);
-						} else {
-							ecrJob = ecrJobs.get(0);
-						}
-						ecrJob.startRun();
+	// Each job backs off on its own attempt count, so jobs that keep failing spread out
+	// further than jobs that have just joined.
+	private void retryBatch(PacerBatch batch, String msg) {
+		List<ECRJob> ecrJobs = batch.getUnansweredJobs();
+		for (ECRJob ecrJob : ecrJobs) {
+			ecrJob.retryAt(pacerRetryPolicy.nextAttempt(ecrJob.getUpdateCount() + 1));
+		}
+		ecrJobService.saveAll(ecrJobs);
+		pacerResultMerger.recordToHistoryLog(ecrJobs, msg);
+	}
 
-						// Add this to the job.
-						ecrJobRepository.save(ecrJob);
+	private void deferBatch(PacerBatch batch) {
+		long retryAt = pacerCircuitBreaker.retryAt(batch.getEndpoint());
+		List<ECRJob> ecrJobs = batch.getJobs();
+		for (ECRJob ecrJob : ecrJobs) {
+			ecrJob.deferUntil(pacerRetryPolicy.jitter(retryAt));
+		}
+		ecrJobService.saveAll(ecrJobs);
+		logger.info("PACER circuit for " + batch.getEndpoint() + " is open; deferred " + ecrJobs.size() + " job(s)");
+	}
 
-						// read next line
-						line = reader.readLine();
+	@Scheduled(fixedDelay = POLL_DELAY_MS)
+	public void pollPACERTaskWithFixedRate() {
+		// Run through ecrJobs and aggregate them into one batch per PACER destination. A
+		// batch is sent once it holds ecr.pacer.batch-size patients or has been open for
+		// ecr.pacer.batch-window-ms; whatever is left is sent at the end of the run.
+		// Batches are handed to PacerDispatcher and the run does not wait for the answers;
+		// jobs still in flight stay leased, so the next run does not pick them up again.
+		Map<String, PacerBatch> ecrQueriesToSend = new HashMap<String, PacerBatch>();
+		List<ECRJob> laneFull = new ArrayList<ECRJob>();
+
+		// Due jobs are claimed a page at a time, in due order, through ECRJobLeaser so that
+		// each one is sent by exactly one node. Claimed jobs are leased, so the next claim
+		// moves on to the following ones; jobs that cannot be sent (no provider, no
+		// endpoint, ...) are left to their lease and come back when it runs out. A run only
+		// claims as many jobs as fit in full batches in the dispatcher's free slots, and the
+		// rest of the backlog stays unleased in the database for the next run or node.
+		int budget = pacerDispatcher.getFreeSlots() * pacerBatchSize;
+		while (budget > 0) {
+			List<Integer> claimed = ecrJobLeaser.claim(Math.min(pollPageSize, budget));
+			if (claimed.isEmpty()) {
+				break;
+			}
+			budget -= claimed.size();
 
-					} // while
-					reader.close();
-					Files.deleteIfExists(Paths.get(aFile));
+			Map<Integer, ECRJob> jobsById = new HashMap<Integer, ECRJob>();
+			for (ECRJob ecrJob : ecrJobRepository.findAllById(claimed)) {
+				jobsById.put(ecrJob.getId(), ecrJob);
+			}
+			for (Integer id : claimed) {
+				ECRJob ecrJob = jobsById.get(id);
+				if (ecrJob != null && !queuedJobs.contains(id)) {
+					sendExpiredBatches(ecrQueriesToSend);
+					queueJob(ecrJob, ecrQueriesToSend, laneFull);
 				}
+			}
+		}
 
-			} catch (IOException e) {
-				e.printStackTrace();
+		// Jobs for endpoints that already have a full round waiting go back until the next
+		// run, rather than queueing here for longer than their lease.
+		if (!laneFull.isEmpty()) {
+			List<Integer> ids = new ArrayList<Integer>();
+			for (ECRJob ecrJob : laneFull) {
+				ecrJob.deferUntil(new Date(System.currentTimeMillis() + POLL_DELAY_MS));
+				ids.add(ecrJob.getId());
 			}
+			ecrJobService.saveAll(laneFull);
+			ecrJobLeaser.release(ids);
+			logger.info("Deferred " + laneFull.size() + " PACER job(s) whose endpoint is busy to the next run");
+		}
 
+		for (PacerBatch batch : ecrQueriesToSend.values()) {
+			dispatch(batch);
 		}
 	}
 
-	@Scheduled(fixedDelay = 120000)
-	public void pollPACERTaskWithFixedRate() {
-		List<ECRJob> ecrJobs = ecrJobRepository.findByStatusCode("R");
-
-		Date now = new Date();
-
-		// Create a map that contains each job.
-		Map<String, JsonNode> ecrQueriesToSend = new HashMap<String, JsonNode>();
-		//
-		// Run through ecrJobs and aggregate them based on the PACER destinations to Map
-		// with the following JSON object.
-		// {"security": "Basic ###",
-		// "patients": [{"referenceId": "type|id", "name": "full name", "ecrId":
-		// "localEcrId"}, ...]
-		// }
-		for (ECRJob ecrJob : ecrJobs) {
-			Date nextDate = ecrJob.getNextRunDate();
-			if (nextDate != null && now.before(nextDate)) {
-				// Skip this for later turn;
-				continue;
-			}
-
-			// It's confusing... ReportId in ECR Job is a primary key ID in ECR Data.
-			Integer ecrDataKeyId = ecrJob.getReportId();
-			Optional<ECRData> ecrDataOptional = ecrDataRepository.findById(ecrDataKeyId);
-			
-			ECRData ecrData = null;
-			if (ecrDataOptional.isPresent()) {
-				ecrData = ecrDataOptional.get();
-			}
+	// Adds the job's patient to the batch for its PACER endpoint, sending the batch once
+	// it is full. A new batch is only opened while the endpoint has room in
+	// PacerDispatcher; otherwise the job is added to laneFull.
+	private void queueJob(ECRJob ecrJob, Map<String, PacerBatch> ecrQueriesToSend, List<ECRJob> laneFull) {
+		// It's confusing... ReportId in ECR Job is a primary key ID in ECR Data.
+		Integer ecrDataKeyId = ecrJob.getReportId();
+		Optional<ECRData> ecrDataOptional = ecrDataRepository.findById(ecrDataKeyId);
+		
+		ECRData ecrData = null;
+		if (ecrDataOptional.isPresent()) {
+			ecrData = ecrDataOptional.get();
+		}
 
-			if (ecrData == null) {
-				logger.warn("No ECR Data for the outstanding ECR Job (" + ecrDataKeyId + ")");
-				continue;
-			}
+		if (ecrData == null) {
+			logger.warn("No ECR Data for the outstanding ECR Job (" + ecrDataKeyId + ")");
+			return;
+		}
 
-			Integer ecrId = ecrData.getECRId();
+		Integer ecrId = ecrData.getECRId();
 
-			// We should have only one ecrData per ecrJob. The JpaRepository returns list.
-			// So, we get the 0th entry.
+		// We should have only one ecrData per ecrJob. The JpaRepository returns list.
+		// So, we get the 0th entry.
 //			ECRData ecrData = ecrDataList.get(0);
-			ECR ecr = ecrData.getECR();
-			List<Provider> providers = ecr.getProvider();
-			if (providers.isEmpty()) {
-				logger.warn("No Providers for the outstanding ECR Job (" + ecrDataKeyId + ")");
-				continue; // We can't request without knowing a provider.
-			}
+		ECR ecr = ecrData.getECR();
+		List<Provider> providers = ecr.getProvider();
+		if (providers.isEmpty()) {
+			logger.warn("No Providers for the outstanding ECR Job (" + ecrDataKeyId + ")");
+			return; // We can't request without knowing a provider.
+		}
 
-			JsonNode pacerSource = null;
-			String pacerJobManagerEndPoint = null;
-			String authHeader = null;
-			for (Provider provider : providers) {
-				TypeableID providerId = provider.getid();
+		JsonNode pacerSource = null;
+		String pacerJobManagerEndPoint = null;
+		String authHeader = null;
+		for (Provider provider : providers) {
+			TypeableID providerId = provider.getid();
 //				if ("LOCAL".equals(providerId.gettype())) {
 //					String[] endpoint_info = providerId.getvalue().split("\\^");
 //					pacerJobManagerEndPoint = endpoint_info[0];
@@ -572,123 +393,243 @@ public class PollPACERTask {
 //					}
 //					break;
 //				}
-				String identifier = providerId.gettype() + "|" + providerId.getvalue();
-				String name = provider.getname();
-
-				// Search from pacer index service.
-				pacerSource = searchPacerIndexService(identifier, name);
-				if (pacerSource != null) {
-					pacerJobManagerEndPoint = pacerSource.path("serverUrl").asText();
-					logger.info("Got PACER endpoint=" + pacerJobManagerEndPoint + " for identifier=" + identifier + " and name=" + name);
-					break;
-				}
+			String identifier = providerId.gettype() + "|" + providerId.getvalue();
+			String name = provider.getname();
+
+			// Search from pacer index service.
+			pacerSource = pacerIndexService.findPacerSource(identifier, name);
+			if (pacerSource != null) {
+				pacerJobManagerEndPoint = pacerSource.path("serverUrl").asText();
+				logger.info("Got PACER endpoint=" + pacerJobManagerEndPoint + " for identifier=" + identifier + " and name=" + name);
+				break;
 			}
+		}
 
-			if (pacerJobManagerEndPoint == null || pacerJobManagerEndPoint.isEmpty()) {
-				String msg = "No PACER Job Manger Endpoint Found. Skipping ECRid: " + ecr.getECRId();
-				logger.info(msg);
+		if (pacerJobManagerEndPoint == null || pacerJobManagerEndPoint.isEmpty()) {
+			String msg = "No PACER Job Manger Endpoint Found. Skipping ECRid: " + ecr.getECRId();
+			logger.info(msg);
 
-				ecr.setStatusLog(msg);
-				ECRDataHistory ecrDataHistory = new ECRDataHistory(ecr, "ehr");
-				ecrDataHistory.setECRId(ecrId);
-				ecrDataHistoryRepository.save(ecrDataHistory);
+			ecr.setStatusLog(msg);
+			ECRDataHistory ecrDataHistory = new ECRDataHistory(ecr, "ehr");
+			ecrDataHistory.setECRId(ecrId);
+			ecrDataHistoryRepository.save(ecrDataHistory);
 
-				continue;
-			}
+			return;
+		}
 
-			// Now we got a valid end point. We need to create an entry for the Map with a
-			// PACER destination
-			// as a key.
-			JsonNode ecrQuery = ecrQueriesToSend.get(pacerJobManagerEndPoint);
-			if (ecrQuery == null) {
-				ecrQuery = mapper.createObjectNode();
+		// Now we got a valid end point. We need to create an entry for the Map with a
+		// PACER destination
+		// as a key.
+		PacerBatch ecrQuery = ecrQueriesToSend.get(pacerJobManagerEndPoint);
+		if (ecrQuery == null) {
+			if (!pacerDispatcher.hasRoom(pacerJobManagerEndPoint)) {
+				laneFull.add(ecrJob);
+				return;
 			}
+			ecrQuery = new PacerBatch(pacerJobManagerEndPoint, mapper.createArrayNode());
+			ecrQueriesToSend.put(pacerJobManagerEndPoint, ecrQuery);
+		}
 
-			if (authHeader == null && pacerSource != null) {
-				JsonNode securityJson = pacerSource.path("security");
-				if (securityJson.isMissingNode() == false) {
-					String authType = securityJson.get("type").asText();
-					if ("basic".equalsIgnoreCase(authType)) {
-						String credential = securityJson.get("username").asText() + ":"
-								+ securityJson.get("password").asText();
-						byte[] encodedAuth = Base64.encodeBase64(credential.getBytes(StandardCharsets.ISO_8859_1));
-						authHeader = "Basic " + new String(encodedAuth);
-//						((ObjectNode) ecrQuery).put("security", authHeader);
-					}
+		if (authHeader == null && pacerSource != null) {
+			JsonNode securityJson = pacerSource.path("security");
+			if (securityJson.isMissingNode() == false) {
+				String authType = securityJson.get("type").asText();
+				if ("basic".equalsIgnoreCase(authType)) {
+					String credential = securityJson.get("username").asText() + ":"
+							+ securityJson.get("password").asText();
+					byte[] encodedAuth = Base64.encodeBase64(credential.getBytes(StandardCharsets.ISO_8859_1));
+					authHeader = "Basic " + new String(encodedAuth);
 				}
-			} 
-			
-			if (authHeader != null && !authHeader.isEmpty()){
-				((ObjectNode) ecrQuery).put("security", authHeader);
 			}
+		} 
+		
+		if (authHeader != null && !authHeader.isEmpty()){
+			ecrQuery.setAuthHeader(authHeader);
+		}
 
-			Patient patient = ecr.getPatient();
-			List<TypeableID> patientIds = patient.getid();
-			String patientIdentifier = null;
-			for (TypeableID patientId : patientIds) {
-				String type = patientId.gettype();
-				String value = patientId.getvalue();
+		Patient patient = ecr.getPatient();
+		List<TypeableID> patientIds = patient.getid();
+		String patientIdentifier = null;
+		for (TypeableID patientId : patientIds) {
+			String type = patientId.gettype();
+			String value = patientId.getvalue();
+
+			if (value != null && !value.isEmpty()) {
+				if (type == null) {
+					type = "";
+					patientId.settype(type);
+				}
 
-				if (value != null && !value.isEmpty()) {
-					if (type == null) {
-						type = "";
-						patientId.settype(type);
-					}
+				// Rows written before identifiers were canonicalized may still carry SS/SSN.
+				type = PatientIdUtil.canonicalType(type);
+				patientId.settype(type);
 
-					if ("SS".equalsIgnoreCase(type) || "SSN".equalsIgnoreCase(type)) {
-						type = "http://hl7.org/fhir/sid/us-ssn";
-						patientId.settype(type);
-					}
+				patientIdentifier = ECRData.stringPatientId(patientId);
 
-					patientIdentifier = ECRData.stringPatientId(patientId);
+				if (type.startsWith("http:") || type.startsWith("urn:") || type.startsWith("oid:"))
+					break;
+			}
+		}
 
-					if (type.startsWith("http:") || type.startsWith("urn:") || type.startsWith("oid:"))
-						break;
+		// Create patient node
+		JsonNode patientNode = mapper.createObjectNode();
+		if (patientIdentifier != null) {
+			((ObjectNode) patientNode).put("recordId", ecrId);
+			((ObjectNode) patientNode).put("referenceId", patientIdentifier);
+
+			Name patientName = patient.getname();
+			String patientFullName = null;
+			if (patientName != null) {
+				if (!patientName.getfamily().isEmpty() || !patientName.getgiven().isEmpty()) {
+					patientFullName = patientName.toString();
+				} else {
+					patientFullName = "";
 				}
+				((ObjectNode) patientNode).put("name", patientFullName);
+			}
+
+			((ObjectNode) patientNode).put("labOrderDate", "2019-10-10");
+
+			String callbackUrl = pacerResultService.callbackUrl(ecrJob);
+			if (callbackUrl != null) {
+				((ObjectNode) patientNode).put("callbackUrl", callbackUrl);
+			}
+
+			ecrQuery.add(patientNode, ecrId, ecrJob);
+			queuedJobs.add(ecrJob.getId());
+			if (ecrQuery.size() >= pacerBatchSize) {
+				ecrQueriesToSend.remove(pacerJobManagerEndPoint);
+				dispatch(ecrQuery);
+			}
+		}
+	}
+
+	// The jobs stay in queuedJobs until the batch has been handled and its leases released.
+	private void dispatch(PacerBatch batch) {
+		List<Integer> jobIds = batch.getJobIds();
+		pacerDispatcher.submit(batch.getEndpoint(), () -> sendPacerRequest(batch))
+			.whenComplete((result, e) -> queuedJobs.removeAll(jobIds));
+	}
+
+	private void sendExpiredBatches(Map<String, PacerBatch> ecrQueriesToSend) {
+		long openedBefore = System.currentTimeMillis() - pacerBatchWindowMs;
+		Iterator<PacerBatch> batches = ecrQueriesToSend.values().iterator();
+		while (batches.hasNext()) {
+			PacerBatch batch = batches.next();
+			if (batch.getOpenedAt() < openedBefore) {
+				batches.remove();
+				dispatch(batch);
 			}
+		}
+	}
 
-			JsonNode patientNodeArray;
-			try {
-				patientNodeArray = ecrQuery.withArray("patients");
-			} catch (UnsupportedOperationException e) {
-				((ObjectNode) ecrQuery).putArray("patients");
-				patientNodeArray = ecrQuery.get("patients");
+	// Patients queued for one PACER Job Manager, with the jobs waiting on each recordId.
+	static class PacerBatch {
+		private final String endpoint;
+		private final ArrayNode patients;
+		private final Map<String, JsonNode> patientByRecordId = new LinkedHashMap<String, JsonNode>();
+		private final Map<String, List<ECRJob>> jobsByRecordId = new LinkedHashMap<String, List<ECRJob>>();
+		private final Set<ECRJob> answered = new HashSet<ECRJob>();
+		private final long openedAt = System.currentTimeMillis();
+		private String authHeader;
+
+		PacerBatch(String endpoint, ArrayNode patients) {
+			this.endpoint = endpoint;
+			this.patients = patients;
+		}
+
+		// The same case can be due under more than one job; it is only asked for once.
+		void add(JsonNode patientNode, Integer recordId, ECRJob ecrJob) {
+			List<ECRJob> ecrJobs = jobsByRecordId.get(String.valueOf(recordId));
+			if (ecrJobs == null) {
+				ecrJobs = new ArrayList<ECRJob>();
+				jobsByRecordId.put(String.valueOf(recordId), ecrJobs);
+				patientByRecordId.put(String.valueOf(recordId), patientNode);
+				patients.add(patientNode);
 			}
+			ecrJobs.add(ecrJob);
+		}
 
-			// Create patient node
-			JsonNode patientNode = mapper.createObjectNode();
-			if (patientIdentifier != null) {
-				((ObjectNode) patientNode).put("recordId", ecrId);
-				((ObjectNode) patientNode).put("referenceId", patientIdentifier);
-
-				Name patientName = patient.getname();
-				String patientFullName = null;
-				if (patientName != null) {
-					if (!patientName.getfamily().isEmpty() || !patientName.getgiven().isEmpty()) {
-						patientFullName = patientName.toString();
-					} else {
-						patientFullName = "";
-					}
-					((ObjectNode) patientNode).put("name", patientFullName);
+		// Keeps only the given jobs, dropping patients nobody is waiting for any more.
+		// Returns true if anything was dropped.
+		boolean retainJobs(Set<Integer> jobIds) {
+			boolean dropped = false;
+			Iterator<Map.Entry<String, List<ECRJob>>> entries = jobsByRecordId.entrySet().iterator();
+			while (entries.hasNext()) {
+				Map.Entry<String, List<ECRJob>> entry = entries.next();
+				dropped |= entry.getValue().removeIf(ecrJob -> !jobIds.contains(ecrJob.getId()));
+				if (entry.getValue().isEmpty()) {
+					entries.remove();
+					patientByRecordId.remove(entry.getKey());
 				}
+			}
+			if (dropped) {
+				patients.removeAll();
+				patients.addAll(patientByRecordId.values());
+			}
+			return dropped;
+		}
+
+		int size() {
+			return patients.size();
+		}
 
-				((ObjectNode) patientNode).put("labOrderDate", "2019-10-10");
+		// A response without an ECR id can only be matched when a single case was asked for.
+		List<ECRJob> jobsFor(String recordId) {
+			if (recordId == null) {
+				return jobsByRecordId.size() == 1 ? jobsByRecordId.values().iterator().next()
+						: new ArrayList<ECRJob>();
+			}
+			List<ECRJob> ecrJobs = jobsByRecordId.get(recordId);
+			return ecrJobs == null ? new ArrayList<ECRJob>() : ecrJobs;
+		}
 
-				((ArrayNode) patientNodeArray).add(patientNode);
-//				ecrList.add("{\"referenceId\": \"" + patientIdentifier + "\", \"name\": \""
-//						+ patientFullName + "\"}");
+		List<ECRJob> getJobs() {
+			List<ECRJob> ecrJobs = new ArrayList<ECRJob>();
+			for (List<ECRJob> jobs : jobsByRecordId.values()) {
+				ecrJobs.addAll(jobs);
+			}
+			return ecrJobs;
+		}
+
+		void markAnswered(List<ECRJob> ecrJobs) {
+			answered.addAll(ecrJobs);
+		}
+
+		// Jobs PACER has not answered yet. When a response breaks off part way, only these
+		// are failed or retried.
+		List<ECRJob> getUnansweredJobs() {
+			List<ECRJob> ecrJobs = getJobs();
+			ecrJobs.removeAll(answered);
+			return ecrJobs;
+		}
 
-				// ecrQueriesToSend.put(pacerJobManagerEndPoint, ecrQuery);
-				sendPacerRequest(pacerJobManagerEndPoint, ecrQuery, ecrJob);
+		List<Integer> getJobIds() {
+			List<Integer> jobIds = new ArrayList<Integer>();
+			for (ECRJob ecrJob : getJobs()) {
+				jobIds.add(ecrJob.getId());
 			}
+			return jobIds;
 		}
 
-// 		for (Map.Entry<String, JsonNode> entry : ecrQueriesToSend.entrySet()) {
-// 			// logger.info("Sending to PACER url : " + entry.getKey() + ", listElement : " + entry.getValue().toString());
-// 			sendPacerRequest(entry.getKey(), entry.getValue());
-// //					ecrJob.instantUpdate();
-// //					ecrJobRepository.save(ecrJob);
-// //			}
-// 		}
+		String getEndpoint() {
+			return endpoint;
+		}
+
+		ArrayNode getPatients() {
+			return patients;
+		}
+
+		long getOpenedAt() {
+			return openedAt;
+		}
+
+		String getAuthHeader() {
+			return authHeader;
+		}
+
+		void setAuthHeader(String authHeader) {
+			this.authHeader = authHeader;
+		}
 	}
 }
@@ -0,0 +1,577 @@
+package edu.gatech.chai.ecr.repository.bulk;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPInputStream;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import com.opencsv.CSVParser;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+import edu.gatech.chai.ecr.jpa.json.BulkFileStatus;
+import edu.gatech.chai.ecr.jpa.json.ECR;
+import edu.gatech.chai.ecr.jpa.json.LabOrderCode;
+import edu.gatech.chai.ecr.jpa.json.LabResult;
+import edu.gatech.chai.ecr.jpa.json.Patient;
+import edu.gatech.chai.ecr.jpa.json.Provider;
+import edu.gatech.chai.ecr.jpa.json.TypeableID;
+import edu.gatech.chai.ecr.jpa.json.utils.PatientIdUtil;
+import edu.gatech.chai.ecr.jpa.model.BulkFile;
+import edu.gatech.chai.ecr.jpa.repo.BulkFileRepository;
+import edu.gatech.chai.ecr.repository.ECRBulkWriter;
+import edu.gatech.chai.ecr.repository.ECRIngestService;
+
+// Reads one local bulk data file: one patient per line as "idType,idValue[,loinc^display^date...]",
+// with # comment lines. Each patient gets (or keeps) a case with a LOCAL PROVIDER and a
+// running PACER job.
+//
+// The file goes through three stages joined by bounded queues, so reading, looking up
+// and writing overlap: the calling thread parses lines into chunks of
+// ecr.bulk.chunk-size, a resolve stage finds the existing cases of a whole chunk with one
+// IN query, and a write stage creates or updates the chunk's cases and jobs in one
+// transaction (see ECRIngestService.ingestBulkChunk). At most ecr.bulk.pipeline-depth
+// chunks wait between two stages. Several files are read at once (see BulkFileWatcher);
+// chunks that create cases are written one at a time, so two files cannot both create a
+// case for the same patient.
+//
+// Each file is tracked in ecr.bulk_file by the SHA-256 of its content. The byte offset and
+// line number after each chunk are committed with the chunk's writes, so a file that was
+// being read when the node stopped (it comes back from .processing/ at startup) or that
+// failed and is dropped again carries on after the last chunk written instead of
+// merging every earlier line a second time.
+@Component
+public class BulkFileIngester {
+	private static final Logger logger = LoggerFactory.getLogger(BulkFileIngester.class);
+	static final Chunk END = new Chunk(0);
+
+	@Autowired
+	private ECRIngestService ecrIngestService;
+
+	@Autowired
+	private BulkFileRepository bulkFileRepository;
+
+	@Autowired
+	private PlatformTransactionManager transactionManager;
+
+	@Autowired
+	private ECRBulkWriter ecrBulkWriter;
+
+	@Autowired
+	private MeterRegistry meterRegistry;
+
+	@Value("${ecr.bulk.chunk-size:500}")
+	private int chunkSize;
+
+	@Value("${ecr.bulk.pipeline-depth:4}")
+	private int pipelineDepth;
+
+	@Value("${ecr.bulk.max-uploads:2}")
+	private int maxUploads;
+
+	// Held while a chunk that may create cases is written.
+	private final ReentrantLock createLock = new ReentrantLock();
+
+	private ExecutorService stages;
+
+	// Content hashes of the files being read on this node.
+	private final Set<String> reading = ConcurrentHashMap.newKeySet();
+
+	private Semaphore uploads;
+
+	@PostConstruct
+	public void start() {
+		uploads = new Semaphore(maxUploads);
+		AtomicInteger threadNumber = new AtomicInteger();
+		stages = Executors.newCachedThreadPool(runnable -> {
+			Thread thread = new Thread(runnable, "bulk-stage-" + threadNumber.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	@PreDestroy
+	public void stop() {
+		stages.shutdownNow();
+	}
+
+	// Returns the number of lines read by this call. Chunks written before a failure stay
+	// written, and the checkpoint records how far they got.
+	public int ingest(Path file) throws IOException {
+		String contentHash;
+		try (InputStream in = Files.newInputStream(file)) {
+			contentHash = DigestUtils.sha256Hex(in);
+		}
+		if (!reading.add(contentHash)) {
+			logger.warn(file.getFileName() + " is identical to a file being read now. Skipping.");
+			return 0;
+		}
+		try {
+			return ingest(file, contentHash);
+		} finally {
+			reading.remove(contentHash);
+		}
+	}
+
+	private int ingest(Path file, String contentHash) throws IOException {
+		String fileName = file.getFileName().toString();
+		BulkFile bulkFile = bulkFileRepository.findFirstByContentHashAndStatusCodeNotOrderByIdDesc(contentHash, BulkFile.D);
+		if (bulkFile == null) {
+			bulkFile = new BulkFile(contentHash, fileName, Files.size(file));
+		} else {
+			logger.info(fileName + ": carrying on after line #" + bulkFile.getLineNumber());
+			bulkFile.resume(fileName);
+		}
+		bulkFile = bulkFileRepository.save(bulkFile);
+
+		int lineNumber = bulkFile.getLineNumber();
+		Pipeline pipeline = new Pipeline(bulkFile);
+		try (BulkLineReader reader = BulkLineReader.open(file, bulkFile.getByteOffset())) {
+			bulkFile = run(pipeline, reader);
+		}
+		pipeline.rethrow();
+		return bulkFile.getLineNumber() - lineNumber;
+	}
+
+	// An uploaded list (POST /bulk) is taken in two steps, so that its id can be returned
+	// before the body is read: startUpload() takes an upload slot and creates the row,
+	// then ingestUpload() reads the body as it arrives and gives the slot back. Throws
+	// RejectedExecutionException when ecr.bulk.max-uploads uploads are running already.
+	public BulkFileStatus startUpload(String name) {
+		if (!uploads.tryAcquire()) {
+			throw new RejectedExecutionException("Too many bulk uploads running");
+		}
+		try {
+			return toStatus(bulkFileRepository.save(new BulkFile(null, name, null)));
+		} catch (RuntimeException e) {
+			uploads.release();
+			throw e;
+		}
+	}
+
+	// Must follow startUpload() exactly once. There is nothing to carry on from if the
+	// upload breaks off, so the row is only marked failed and the client sends the list
+	// again. A body that cannot be read (including a broken gzip stream) fails the upload
+	// and is returned as such; database errors are thrown.
+	public BulkFileStatus ingestUpload(Integer id, InputStream in, boolean gzip) throws IOException {
+		try {
+			BulkFile bulkFile = bulkFileRepository.findById(id)
+					.orElseThrow(() -> new IllegalStateException("No bulk upload " + id));
+			String name = bulkFile.getFileName();
+			MessageDigest digest = DigestUtils.getSha256Digest();
+			InputStream body;
+			try {
+				body = new DigestInputStream(gzip ? new GZIPInputStream(in) : in, digest);
+			} catch (IOException e) {
+				logger.warn(name + ": upload failed: " + e.getMessage());
+				bulkFile.fail(String.valueOf(e.getMessage()));
+				return toStatus(bulkFileRepository.save(bulkFile));
+			}
+
+			Pipeline pipeline = new Pipeline(bulkFile);
+			try (BulkLineReader reader = new BulkLineReader(body, 0)) {
+				bulkFile = run(pipeline, reader);
+			}
+			if (pipeline.failure instanceof IOException) {
+				logger.warn(name + ": upload failed: " + pipeline.failure.getMessage());
+				return toStatus(bulkFile);
+			}
+			pipeline.rethrow();
+			bulkFile.setContentHash(Hex.encodeHexString(digest.digest()));
+			bulkFile.setFileSize(bulkFile.getByteOffset());
+			return toStatus(bulkFileRepository.save(bulkFile));
+		} finally {
+			uploads.release();
+		}
+	}
+
+	public BulkFileStatus getStatus(Integer id) {
+		return bulkFileRepository.findById(id).map(BulkFileIngester::toStatus).orElse(null);
+	}
+
+	// The latest 50, newest first.
+	public List<BulkFileStatus> getRecent() {
+		return bulkFileRepository.findTop50ByOrderByIdDesc().stream().map(BulkFileIngester::toStatus)
+				.collect(Collectors.toList());
+	}
+
+	private static BulkFileStatus toStatus(BulkFile bulkFile) {
+		BulkFileStatus status = new BulkFileStatus();
+		status.setId(bulkFile.getId());
+		if (BulkFile.D.equals(bulkFile.getStatusCode())) {
+			status.setStatus(BulkFileStatus.DONE);
+		} else if (BulkFile.F.equals(bulkFile.getStatusCode())) {
+			status.setStatus(BulkFileStatus.FAILED);
+		} else {
+			status.setStatus(BulkFileStatus.PROCESSING);
+		}
+		status.setName(bulkFile.getFileName());
+		status.setStartedDate(bulkFile.getStartedDate());
+		status.setLastUpdateDate(bulkFile.getLastUpdateDate());
+		status.setFinishedDate(bulkFile.getFinishedDate());
+		status.setBytes(bulkFile.getByteOffset());
+		status.setLines(bulkFile.getLineNumber());
+		status.setPatients(bulkFile.getPatientCount());
+		status.setCreated(bulkFile.getCreatedCount());
+		status.setSkipped(bulkFile.getSkippedCount());
+		status.setChunks(bulkFile.getChunkCount());
+		status.setMessage(bulkFile.getErrorMessage());
+		return status;
+	}
+
+	// Runs the reader through the pipeline and records the outcome on the row; the
+	// caller decides what to do with pipeline.failure. The chunks updated the row with
+	// queries, so the final counts come from the pipeline rather than from reading it
+	// back, which could return a stale copy.
+	private BulkFile run(Pipeline pipeline, BulkLineReader reader) {
+		CompletableFuture<Void> resolving = CompletableFuture.runAsync(pipeline::resolve, stages);
+		CompletableFuture<Void> writing = CompletableFuture.runAsync(pipeline::write, stages);
+
+		try {
+			pipeline.parse(reader);
+		} catch (IOException | RuntimeException e) {
+			pipeline.fail(e);
+		} finally {
+			try {
+				resolving.join();
+				writing.join();
+			} catch (CompletionException e) {
+				pipeline.fail(e.getCause());
+			}
+		}
+
+		BulkFile bulkFile = pipeline.bulkFile;
+		bulkFile.setCreatedCount(pipeline.created);
+		bulkFile.setChunkCount(pipeline.chunks);
+		if (pipeline.failure != null) {
+			Chunk written = pipeline.written;
+			if (written != null) {
+				bulkFile.setByteOffset(written.endOffset);
+				bulkFile.setLineNumber(written.endLine);
+				bulkFile.setPatientCount(written.patients);
+				bulkFile.setSkippedCount(written.skipped);
+			}
+			bulkFile.fail(String.valueOf(pipeline.failure.getMessage()));
+			return bulkFileRepository.save(bulkFile);
+		}
+
+		bulkFile.setByteOffset(pipeline.offset);
+		bulkFile.setLineNumber(pipeline.lineNumber);
+		bulkFile.setPatientCount(pipeline.patients);
+		bulkFile.setSkippedCount(pipeline.skipped);
+		bulkFile.finish();
+		bulkFile = bulkFileRepository.save(bulkFile);
+		logger.info(bulkFile.getFileName() + ": " + bulkFile.getLineNumber() + " line(s), " + bulkFile.getPatientCount()
+				+ " patient(s), " + bulkFile.getCreatedCount() + " new case(s), " + bulkFile.getSkippedCount() + " skipped");
+		return bulkFile;
+	}
+
+	// Package-private, like Chunk, so that parse() can be driven on its own in tests.
+	class Pipeline {
+		private final String name;
+		private final BulkFile bulkFile;
+		final BlockingQueue<Chunk> parsed = new ArrayBlockingQueue<Chunk>(pipelineDepth);
+		private final BlockingQueue<Chunk> resolved = new ArrayBlockingQueue<Chunk>(pipelineDepth);
+		private volatile Throwable failure;
+
+		// Written by the write stage: the last chunk committed and the totals with it.
+		private Chunk written;
+		private int created;
+		private int chunks;
+
+		// Where parsing got to, for the checkpoint once the whole file is written.
+		long offset;
+		int lineNumber;
+		int patients;
+		int skipped;
+
+		Pipeline(BulkFile bulkFile) {
+			this.name = bulkFile.getFileName();
+			this.bulkFile = bulkFile;
+			offset = bulkFile.getByteOffset();
+			lineNumber = bulkFile.getLineNumber();
+			patients = bulkFile.getPatientCount();
+			skipped = bulkFile.getSkippedCount();
+			created = bulkFile.getCreatedCount();
+			chunks = bulkFile.getChunkCount();
+		}
+
+		// Every stage passes END on whatever happens, and a stage that has failed keeps
+		// draining its input, so no stage is ever left blocked on a full queue.
+		void parse(BulkLineReader reader) throws IOException {
+			CSVParser parser = new CSVParser();
+			try {
+				Chunk chunk = new Chunk(lineNumber + 1);
+				String line;
+				while (failure == null && (line = reader.readLine()) != null) {
+					lineNumber++;
+					String line_ = line.trim();
+					if (line_.isEmpty() || line_.startsWith("#") || (line_.length() > 1 && line_.charAt(1) == '#')) {
+						// This is comment line skip...
+						continue;
+					}
+
+					String[] parsedLine = parser.parseLine(line_);
+					// First item must be patient identifier system type. The second one
+					// must be the value.
+					if (parsedLine.length < 2) {
+						skipped++;
+						logger.warn(name + " line #" + lineNumber + " has not enough data (" + line_ + "). Skipping.");
+						continue;
+					}
+
+					patients++;
+					chunk.ecrs.add(toECR(parsedLine));
+					if (chunk.ecrs.size() >= chunkSize) {
+						put(parsed, chunk.end(reader.getOffset(), lineNumber, patients, skipped));
+						chunk = new Chunk(lineNumber + 1);
+					}
+				}
+				if (failure == null && !chunk.ecrs.isEmpty()) {
+					put(parsed, chunk.end(reader.getOffset(), lineNumber, patients, skipped));
+				}
+				offset = reader.getOffset();
+			} finally {
+				put(parsed, END);
+			}
+		}
+
+		void resolve() {
+			Chunk chunk;
+			while ((chunk = take(parsed)) != END) {
+				if (chunk == null || failure != null) {
+					continue;
+				}
+				try {
+					List<TypeableID> patientIds = new ArrayList<TypeableID>();
+					for (ECR ecr : chunk.ecrs) {
+						patientIds.addAll(ecr.getPatient().getid());
+					}
+					chunk.keyByLookup = ecrIngestService.resolveCaseKeys(patientIds);
+				} catch (RuntimeException e) {
+					fail(e);
+					continue;
+				}
+				put(resolved, chunk);
+			}
+			put(resolved, END);
+		}
+
+		void write() {
+			Chunk chunk;
+			while ((chunk = take(resolved)) != END) {
+				if (chunk == null || failure != null) {
+					continue;
+				}
+				try {
+					writeChunk(chunk);
+				} catch (RuntimeException e) {
+					logger.error(name + ": chunk starting at line #" + chunk.firstLine + " failed");
+					fail(e);
+				}
+			}
+		}
+
+		// An interrupted stage fails the file but goes on draining, so END still gets through.
+		private Chunk take(BlockingQueue<Chunk> queue) {
+			try {
+				return queue.take();
+			} catch (InterruptedException e) {
+				fail(e);
+				return null;
+			}
+		}
+
+		private void put(BlockingQueue<Chunk> queue, Chunk chunk) {
+			while (true) {
+				try {
+					queue.put(chunk);
+					return;
+				} catch (InterruptedException e) {
+					fail(e);
+				}
+			}
+		}
+
+		// A chunk whose patients all have cases only updates them and needs no lock. The
+		// checkpoint moves on in the same transaction as the chunk's writes.
+		private void writeChunk(Chunk chunk) {
+			boolean creates = false;
+			for (ECR ecr : chunk.ecrs) {
+				if (!hasCase(ecr, chunk.keyByLookup)) {
+					creates = true;
+					break;
+				}
+			}
+			if (creates) {
+				createLock.lock();
+			}
+			try {
+				long start = System.nanoTime();
+				TransactionTemplate transactionTemplate = new TransactionTemplate(transactionManager);
+				created = transactionTemplate.execute(status -> {
+					int total = created + ecrIngestService.ingestBulkChunk(chunk.ecrs, chunk.keyByLookup);
+					bulkFileRepository.advance(bulkFile.getId(), chunk.endOffset, chunk.endLine, chunk.patients,
+							chunk.skipped, total, new Date());
+					return total;
+				});
+				recordWrite(chunk.ecrs.size(), System.nanoTime() - start);
+				chunks++;
+				written = chunk;
+			} finally {
+				if (creates) {
+					createLock.unlock();
+				}
+			}
+		}
+
+		// Whole chunk transactions, commit included, so the paths of ecr.bulk.writer can be
+		// compared on rows per second: ecr.bulk.write.rows over the total time of ecr.bulk.write.
+		private void recordWrite(int rows, long nanos) {
+			String path = ecrBulkWriter.getPath();
+			Timer.builder("ecr.bulk.write")
+				.description("Bulk patient list chunk write time by write path")
+				.tag("path", path)
+				.register(meterRegistry)
+				.record(nanos, TimeUnit.NANOSECONDS);
+			meterRegistry.counter("ecr.bulk.write.rows", "path", path).increment(rows);
+			if (logger.isDebugEnabled()) {
+				logger.debug(name + ": " + rows + " row(s) written (" + path + ") in "
+						+ TimeUnit.NANOSECONDS.toMillis(nanos) + " ms, " + (long) (rows * 1e9 / Math.max(nanos, 1)) + " rows/s");
+			}
+		}
+
+		void fail(Throwable e) {
+			if (failure == null) {
+				failure = e;
+			}
+		}
+
+		void rethrow() throws IOException {
+			Throwable e = failure;
+			if (e == null) {
+				return;
+			}
+			if (e instanceof IOException) {
+				throw (IOException) e;
+			}
+			if (e instanceof RuntimeException) {
+				throw (RuntimeException) e;
+			}
+			throw new IOException("Reading " + name + " failed", e);
+		}
+	}
+
+	static class Chunk {
+		final int firstLine;
+		final List<ECR> ecrs = new ArrayList<ECR>();
+		private Map<String, Integer> keyByLookup = Collections.emptyMap();
+
+		// The checkpoint once this chunk is written.
+		long endOffset;
+		int endLine;
+		int patients;
+		int skipped;
+
+		Chunk(int firstLine) {
+			this.firstLine = firstLine;
+		}
+
+		Chunk end(long endOffset, int endLine, int patients, int skipped) {
+			this.endOffset = endOffset;
+			this.endLine = endLine;
+			this.patients = patients;
+			this.skipped = skipped;
+			return this;
+		}
+	}
+
+	private static boolean hasCase(ECR ecr, Map<String, Integer> keyByLookup) {
+		for (TypeableID patientId : ecr.getPatient().getid()) {
+			if (PatientIdUtil.isValid(patientId) && keyByLookup.containsKey(ECRIngestService.lookupKey(patientId))) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static ECR toECR(String[] parsedLine) {
+		Provider provider = new Provider();
+		provider.setname("LOCAL PROVIDER");
+		TypeableID providerTId = new TypeableID();
+		providerTId.settype("LOCAL_PROVIDER");
+		providerTId.setvalue("1");
+		provider.setid(providerTId);
+
+		ECR ecr = new ECR();
+		Patient patient = new Patient();
+		TypeableID patientTId = new TypeableID();
+		patientTId.settype(parsedLine[0]);
+		patientTId.setvalue(parsedLine[1]);
+		patient.setid(Arrays.asList(patientTId));
+		ecr.setPatient(patient);
+		ecr.setProvider(Arrays.asList(provider));
+
+		if (parsedLine.length > 2) {
+			// We have LOINC code to populate initial lab data.
+			for (int j=2; j < parsedLine.length; j++) {
+				LabResult labResult = new LabResult();
+				String[] loincLine = parsedLine[j].split("\\^");
+
+				if (loincLine.length > 2) {
+					labResult.setDate(loincLine[2]);
+				}
+
+				if (loincLine.length > 1) {
+					labResult.setdisplay(loincLine[1]);
+				}
+
+				labResult.setcode(loincLine[0]);
+				labResult.setsystem("LN");
+
+				LabOrderCode labOrder = new LabOrderCode();
+				labOrder.getLaboratory_Results().add(labResult);
+				patient.getlabOrderCode().add(labOrder);
+				patient.getlaboratoryResults().add(labResult);
+			}
+		}
+		return ecr;
+	}
+}
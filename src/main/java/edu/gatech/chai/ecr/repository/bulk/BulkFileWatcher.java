@@ -0,0 +1,278 @@
+package edu.gatech.chai.ecr.repository.bulk;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.MeterRegistry;
+
+// Picks up bulk data files dropped into LOCAL_BULKDATA_PATH (only when LOCAL_PACER_URL is
+// set as well). New files are seen through a WatchService; a periodic rescan of the
+// directory catches anything the watcher missed (overflow, network file systems). A file
+// is claimed by moving it into a directory of its own under .processing/, so whoever wins
+// the rename reads it and nobody else does, and a file of the same name dropped in
+// meanwhile cannot replace it. It is deleted when done or moved to .failed/ if it could
+// not be read. Files are never moved over another file: when the name is taken, the
+// moved file is prefixed with the time. Up to ecr.bulk.workers files are read at once.
+// Files still in .processing/ at startup were being read when the previous run stopped
+// and are put back in the inbox, which assumes one node per bulk data directory.
+@Component
+public class BulkFileWatcher {
+	private static final Logger logger = LoggerFactory.getLogger(BulkFileWatcher.class);
+	private static final String PROCESSING = ".processing";
+	private static final String FAILED = ".failed";
+
+	@Autowired
+	private BulkFileIngester bulkFileIngester;
+
+	@Autowired
+	private MeterRegistry meterRegistry;
+
+	@Value("${ecr.bulk.workers:4}")
+	private int workers;
+
+	@Value("${ecr.bulk.queue-capacity:100}")
+	private int queueCapacity;
+
+	@Value("${ecr.bulk.settle-ms:1000}")
+	private long settleMs;
+
+	private Path inbox;
+	private Path processing;
+	private Path failed;
+	private WatchService watchService;
+	private ThreadPoolExecutor executor;
+	private final Set<Path> candidates = ConcurrentHashMap.newKeySet();
+
+	@PostConstruct
+	public void start() {
+		String localFilePath = System.getenv("LOCAL_BULKDATA_PATH");
+		String localPacerUrl = System.getenv("LOCAL_PACER_URL");
+		if (localPacerUrl == null || localPacerUrl.isEmpty() || localFilePath == null
+				|| localFilePath.trim().isEmpty() || "none".equalsIgnoreCase(localFilePath)) {
+			return;
+		}
+
+		Path path = Paths.get(localFilePath.trim());
+		try {
+			Files.createDirectories(path.resolve(PROCESSING));
+			Files.createDirectories(path.resolve(FAILED));
+			requeueAbandoned(path.resolve(PROCESSING), path);
+			watchService = FileSystems.getDefault().newWatchService();
+			path.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+		} catch (IOException e) {
+			logger.error("Cannot watch bulk data directory " + path + ". Bulk data files will not be read.", e);
+			return;
+		}
+
+		AtomicInteger threadNumber = new AtomicInteger();
+		executor = new ThreadPoolExecutor(workers, workers, 60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(queueCapacity), runnable -> {
+					Thread thread = new Thread(runnable, "bulk-ingest-" + threadNumber.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				});
+		processing = path.resolve(PROCESSING);
+		failed = path.resolve(FAILED);
+		inbox = path;
+
+		Thread watcher = new Thread(this::watch, "bulk-watch");
+		watcher.setDaemon(true);
+		watcher.start();
+		logger.info("Watching " + inbox + " for bulk data files");
+		rescan();
+	}
+
+	@PreDestroy
+	public void stop() throws InterruptedException {
+		if (watchService != null) {
+			try {
+				watchService.close();
+			} catch (IOException e) {
+				logger.warn("Closing the bulk data watcher failed", e);
+			}
+		}
+		if (executor != null) {
+			executor.shutdown();
+			executor.awaitTermination(30, TimeUnit.SECONDS);
+		}
+	}
+
+	// Fallback for events the watcher dropped or never got.
+	@Scheduled(fixedDelayString = "${ecr.bulk.rescan-interval-ms:300000}")
+	public void rescan() {
+		if (inbox == null) {
+			return;
+		}
+		List<Path> files;
+		try (Stream<Path> list = Files.list(inbox)) {
+			files = list.filter(Files::isRegularFile).collect(Collectors.toList());
+		} catch (IOException e) {
+			logger.error("Cannot list bulk data directory " + inbox, e);
+			return;
+		}
+		for (Path file : files) {
+			offer(file);
+		}
+	}
+
+	private void watch() {
+		try {
+			while (true) {
+				WatchKey key = watchService.take();
+				for (WatchEvent<?> event : key.pollEvents()) {
+					if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+						rescan();
+					} else {
+						offer(inbox.resolve((Path) event.context()));
+					}
+				}
+				if (!key.reset()) {
+					logger.warn("Bulk data directory " + inbox + " can no longer be watched; falling back to rescans");
+					return;
+				}
+			}
+		} catch (ClosedWatchServiceException | InterruptedException e) {
+			// Shutting down.
+		}
+	}
+
+	// A file already queued or being read is not queued again. When the queue is full the
+	// file is left where it is for the next rescan.
+	private void offer(Path file) {
+		String name = file.getFileName().toString();
+		if (name.startsWith(".") || name.endsWith(".tmp") || name.endsWith(".part") || !Files.isRegularFile(file)) {
+			return;
+		}
+		if (!candidates.add(file)) {
+			return;
+		}
+		try {
+			executor.execute(() -> process(file));
+		} catch (RejectedExecutionException e) {
+			candidates.remove(file);
+			logger.debug("Bulk data queue is full; " + file + " waits for the next rescan");
+		}
+	}
+
+	private void process(Path file) {
+		Path claimDirectory = processing.resolve(UUID.randomUUID().toString());
+		Path claimed = claimDirectory.resolve(file.getFileName());
+		try {
+			settle(file);
+			Files.createDirectory(claimDirectory);
+			Files.move(file, claimed, StandardCopyOption.ATOMIC_MOVE);
+		} catch (NoSuchFileException e) {
+			// Someone else claimed it first.
+			deleteQuietly(claimDirectory);
+			return;
+		} catch (IOException e) {
+			logger.error("Cannot claim bulk data file " + file, e);
+			deleteQuietly(claimDirectory);
+			return;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return;
+		} finally {
+			candidates.remove(file);
+		}
+
+		try {
+			bulkFileIngester.ingest(claimed);
+			Files.deleteIfExists(claimed);
+			meterRegistry.counter("ecr.bulk.files", "outcome", "done").increment();
+		} catch (Exception e) {
+			meterRegistry.counter("ecr.bulk.files", "outcome", "failed").increment();
+			logger.error("Bulk data file " + file.getFileName() + " failed; moving it to " + failed, e);
+			try {
+				moveWithoutReplacing(claimed, failed);
+			} catch (IOException moveFailure) {
+				logger.error("Cannot move " + claimed + " to " + failed, moveFailure);
+			}
+		}
+		deleteQuietly(claimDirectory);
+	}
+
+	// Moves the file into the directory under its own name, or prefixed with the time if
+	// a file of that name is already there.
+	private static Path moveWithoutReplacing(Path file, Path directory) throws IOException {
+		String name = file.getFileName().toString();
+		Path target = directory.resolve(name);
+		while (true) {
+			try {
+				return Files.move(file, target);
+			} catch (FileAlreadyExistsException e) {
+				target = directory.resolve(System.currentTimeMillis() + "-" + name);
+			}
+		}
+	}
+
+	// Removes a claim directory once it is empty.
+	private static void deleteQuietly(Path directory) {
+		try {
+			Files.deleteIfExists(directory);
+		} catch (IOException e) {
+			logger.warn("Cannot remove " + directory + ": " + e.getMessage());
+		}
+	}
+
+	// Waits until the file has not been written to for settleMs, so a file that is still
+	// being copied in is not read half way.
+	private void settle(Path file) throws IOException, InterruptedException {
+		long quiet;
+		while ((quiet = System.currentTimeMillis() - Files.getLastModifiedTime(file).toMillis()) < settleMs) {
+			Thread.sleep(settleMs - quiet);
+		}
+	}
+
+	// Claims are one directory deep; files directly in .processing/ were claimed by
+	// earlier versions.
+	private void requeueAbandoned(Path from, Path to) throws IOException {
+		List<Path> abandoned;
+		try (Stream<Path> list = Files.walk(from, 2)) {
+			abandoned = list.filter(Files::isRegularFile).collect(Collectors.toList());
+		}
+		for (Path file : abandoned) {
+			logger.warn("Bulk data file " + file.getFileName() + " was not finished by the last run; reading it again");
+			moveWithoutReplacing(file, to);
+			if (!file.getParent().equals(from)) {
+				deleteQuietly(file.getParent());
+			}
+		}
+		// Claim directories the last run created but never moved a file into.
+		try (Stream<Path> list = Files.list(from)) {
+			list.filter(Files::isDirectory).forEach(BulkFileWatcher::deleteQuietly);
+		}
+	}
+}
@@ -0,0 +1,75 @@
+package edu.gatech.chai.ecr.repository.bulk;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// Reads UTF-8 lines from a stream and knows the byte offset after the last line
+// returned, which BufferedReader does not. Lines end at \n; a \r before it is dropped.
+class BulkLineReader implements Closeable {
+	private static final int BUFFER_SIZE = 65536;
+
+	private final InputStream in;
+	private final byte[] buffer = new byte[BUFFER_SIZE];
+	private int position = 0;
+	private int limit = 0;
+	private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+	private long offset;
+
+	// in is taken to be at offset already.
+	BulkLineReader(InputStream in, long offset) {
+		this.in = in;
+		this.offset = offset;
+	}
+
+	static BulkLineReader open(Path file, long offset) throws IOException {
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+		channel.position(offset);
+		return new BulkLineReader(Channels.newInputStream(channel), offset);
+	}
+
+	// Null at the end of the stream.
+	String readLine() throws IOException {
+		line.reset();
+		boolean read = false;
+		while (true) {
+			if (position == limit) {
+				limit = in.read(buffer);
+				position = 0;
+				if (limit <= 0) {
+					limit = 0;
+					break;
+				}
+			}
+			read = true;
+			byte b = buffer[position++];
+			offset++;
+			if (b == '\n') {
+				break;
+			}
+			line.write(b);
+		}
+		if (!read) {
+			return null;
+		}
+
+		byte[] bytes = line.toByteArray();
+		int length = bytes.length > 0 && bytes[bytes.length - 1] == '\r' ? bytes.length - 1 : bytes.length;
+		return new String(bytes, 0, length, StandardCharsets.UTF_8);
+	}
+
+	long getOffset() {
+		return offset;
+	}
+
+	@Override
+	public void close() throws IOException {
+		in.close();
+	}
+}
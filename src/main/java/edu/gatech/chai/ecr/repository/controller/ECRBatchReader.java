@@ -0,0 +1,123 @@
+package edu.gatech.chai.ecr.repository.controller;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import edu.gatech.chai.ecr.jpa.json.ECR;
+
+// Reads ECRs one at a time from a JSON array or an NDJSON stream so that a large
+// batch request is never held in memory as a whole.
+class ECRBatchReader implements Closeable {
+	static final String NDJSON = "application/x-ndjson";
+
+	private final ObjectMapper mapper;
+	private final boolean ndjson;
+	private BufferedReader lineReader;
+	private JsonParser parser;
+	private boolean done = false;
+	private int index = 0;
+
+	ECRBatchReader(ObjectMapper mapper, InputStream in, boolean ndjson) throws IOException {
+		this.mapper = mapper;
+		this.ndjson = ndjson;
+		if (ndjson) {
+			lineReader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+		} else {
+			parser = mapper.getFactory().createParser(in);
+			JsonToken token = parser.nextToken();
+			if (token == null) {
+				done = true;
+			} else if (token != JsonToken.START_ARRAY) {
+				throw new IOException("ECR batch must be a JSON array or " + NDJSON);
+			}
+		}
+	}
+
+	// Returns null once the input is exhausted. A malformed NDJSON line is reported and
+	// skipped; a malformed array element ends the batch since the parser cannot resync.
+	Item next() throws IOException {
+		if (done) {
+			return null;
+		}
+
+		return ndjson ? nextLine() : nextElement();
+	}
+
+	private Item nextLine() throws IOException {
+		String line = lineReader.readLine();
+		while (line != null && line.isBlank()) {
+			line = lineReader.readLine();
+		}
+
+		if (line == null) {
+			done = true;
+			return null;
+		}
+
+		int itemIndex = index++;
+		try {
+			return new Item(itemIndex, mapper.readValue(line, ECR.class), null);
+		} catch (JsonProcessingException e) {
+			return new Item(itemIndex, null, e.getOriginalMessage());
+		}
+	}
+
+	private Item nextElement() throws IOException {
+		JsonToken token = parser.nextToken();
+		if (token == null || token == JsonToken.END_ARRAY) {
+			done = true;
+			return null;
+		}
+
+		int itemIndex = index++;
+		try {
+			return new Item(itemIndex, mapper.readValue(parser, ECR.class), null);
+		} catch (JsonProcessingException e) {
+			done = true;
+			return new Item(itemIndex, null, e.getOriginalMessage());
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (lineReader != null) {
+			lineReader.close();
+		}
+		if (parser != null) {
+			parser.close();
+		}
+	}
+
+	static class Item {
+		private final int index;
+		private final ECR ecr;
+		private final String error;
+
+		Item(int index, ECR ecr, String error) {
+			this.index = index;
+			this.ecr = ecr;
+			this.error = error;
+		}
+
+		int getIndex() {
+			return index;
+		}
+
+		ECR getECR() {
+			return ecr;
+		}
+
+		String getError() {
+			return error;
+		}
+	}
+}
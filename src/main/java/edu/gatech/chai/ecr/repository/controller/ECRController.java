@@ -1,80 +1,97 @@
 package edu.gatech.chai.ecr.repository.controller;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.sql.Connection;
-import java.sql.DriverManager;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
-import java.sql.SQLException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.file.Path;
 import java.text.SimpleDateFormat;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
-import java.util.Calendar;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.List;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.RejectedExecutionException;
 
-import javax.annotation.PostConstruct;
+import javax.servlet.http.HttpServletRequest;
 
-import org.apache.commons.csv.CSVFormat;
-import org.apache.commons.csv.CSVPrinter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
-import org.springframework.core.io.InputStreamResource;
+import org.springframework.core.io.FileSystemResource;
 import org.springframework.core.io.Resource;
-import org.springframework.data.domain.PageRequest;
-import org.springframework.data.domain.Pageable;
+import org.springframework.dao.DataIntegrityViolationException;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.CrossOrigin;
+import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
-import edu.gatech.chai.ecr.jpa.json.CodeableConcept;
-import edu.gatech.chai.ecr.jpa.json.Diagnosis;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import edu.gatech.chai.ecr.jpa.json.BulkFileStatus;
 import edu.gatech.chai.ecr.jpa.json.ECR;
+import edu.gatech.chai.ecr.jpa.json.ECRBatchResult;
+import edu.gatech.chai.ecr.jpa.json.ECRExportJob;
+import edu.gatech.chai.ecr.jpa.json.ECRExportRequest;
 import edu.gatech.chai.ecr.jpa.json.ECRHistory;
-import edu.gatech.chai.ecr.jpa.json.Facility;
-import edu.gatech.chai.ecr.jpa.json.ImmunizationHistory;
-import edu.gatech.chai.ecr.jpa.json.LabOrderCode;
-import edu.gatech.chai.ecr.jpa.json.LabResult;
-import edu.gatech.chai.ecr.jpa.json.Medication;
-import edu.gatech.chai.ecr.jpa.json.ParentGuardian;
-import edu.gatech.chai.ecr.jpa.json.Patient;
-import edu.gatech.chai.ecr.jpa.json.Provider;
-import edu.gatech.chai.ecr.jpa.json.TestResult;
-import edu.gatech.chai.ecr.jpa.json.TypeableID;
+import edu.gatech.chai.ecr.jpa.json.PacerDeliveryResult;
 import edu.gatech.chai.ecr.jpa.model.ECRData;
 import edu.gatech.chai.ecr.jpa.model.ECRDataHistory;
 import edu.gatech.chai.ecr.jpa.model.ECRJob;
+import edu.gatech.chai.ecr.jpa.repo.ECRDataCursor;
 import edu.gatech.chai.ecr.jpa.repo.ECRDataHistoryRepository;
 import edu.gatech.chai.ecr.jpa.repo.ECRDataRepository;
 import edu.gatech.chai.ecr.jpa.repo.ECRJobRepository;
-import edu.gatech.chai.ecr.repository.ConnectionConfiguration;
-
-@CrossOrigin
+import edu.gatech.chai.ecr.jpa.repo.ECRSearchCriteria;
+import edu.gatech.chai.ecr.jpa.repo.ECRSearchCriteria.DateFilter;
+import edu.gatech.chai.ecr.repository.ECRChangeSequence;
+import edu.gatech.chai.ecr.repository.ECRDataService;
+import edu.gatech.chai.ecr.repository.ECRIngestService;
+import edu.gatech.chai.ecr.repository.ECRJobService;
+import edu.gatech.chai.ecr.repository.ECRSearchService;
+import edu.gatech.chai.ecr.repository.PacerResultService;
+import edu.gatech.chai.ecr.repository.bulk.BulkFileIngester;
+import edu.gatech.chai.ecr.repository.export.ECRCsvExporter;
+import edu.gatech.chai.ecr.repository.export.ECRExportService;
+
+@CrossOrigin(exposedHeaders = ECRController.NEXT_CURSOR_HEADER)
 @RestController
 public class ECRController {
 
 	private static final Logger log = LoggerFactory.getLogger(ECRController.class);
 	private static final Integer PAGE_SIZE = 50;
+	public static final String NEXT_CURSOR_HEADER = "X-Next-Cursor";
+	public static final String DELIVERY_ID_HEADER = "X-Delivery-Id";
+	public static final String EXPORT_NODE_HEADER = "X-ECR-Node";
+	public static final String BULK_ID_HEADER = "X-Bulk-Id";
+	private static final int MISDIRECTED_REQUEST = 421;
+	private static final String GZIP = "application/gzip";
 
-	private static final String GET_CASE_REPORT_SEQ = "select coalesce(MAX(case_report_id),0) as seq_id from ecr.ecr_data;";
-	@Autowired
-	protected ConnectionConfiguration connectionConfig;
 	protected ECRDataRepository ecrDataRepository;
 	protected ECRJobRepository ecrJobRepository;
 	protected ECRDataHistoryRepository ecrDataHistoryRepository;
-	private static AtomicInteger currentId;
+	protected ECRDataService ecrDataService;
+	protected ECRIngestService ecrIngestService;
+	protected ECRSearchService ecrSearchService;
+	protected ECRJobService ecrJobService;
+	protected ECRCsvExporter ecrCsvExporter;
+	protected ECRExportService ecrExportService;
+	protected PacerResultService pacerResultService;
+	protected BulkFileIngester bulkFileIngester;
+	protected ECRChangeSequence ecrChangeSequence;
+	@Autowired
+	private ObjectMapper objectMapper;
+	@Value("${ecr.search.max-page-size:500}")
+	private int maxPageSize;
 
 	@Autowired
 	public void setEcrDataRepository (ECRDataRepository ecrDataRepository) {
@@ -103,93 +120,287 @@ public class ECRController {
 		return ecrDataHistoryRepository;
 	}
 
+	@Autowired
+	public void setEcrDataService(ECRDataService ecrDataService) {
+		this.ecrDataService = ecrDataService;
+	}
+
+	public ECRDataService getEcrDataService() {
+		return ecrDataService;
+	}
+
+	@Autowired
+	public void setEcrIngestService(ECRIngestService ecrIngestService) {
+		this.ecrIngestService = ecrIngestService;
+	}
+
+	public ECRIngestService getEcrIngestService() {
+		return ecrIngestService;
+	}
+
+	@Autowired
+	public void setEcrSearchService(ECRSearchService ecrSearchService) {
+		this.ecrSearchService = ecrSearchService;
+	}
+
+	public ECRSearchService getEcrSearchService() {
+		return ecrSearchService;
+	}
+
+	@Autowired
+	public void setEcrJobService(ECRJobService ecrJobService) {
+		this.ecrJobService = ecrJobService;
+	}
+
+	public ECRJobService getEcrJobService() {
+		return ecrJobService;
+	}
+
+	@Autowired
+	public void setEcrCsvExporter(ECRCsvExporter ecrCsvExporter) {
+		this.ecrCsvExporter = ecrCsvExporter;
+	}
+
+	public ECRCsvExporter getEcrCsvExporter() {
+		return ecrCsvExporter;
+	}
+
+	@Autowired
+	public void setEcrExportService(ECRExportService ecrExportService) {
+		this.ecrExportService = ecrExportService;
+	}
+
+	public ECRExportService getEcrExportService() {
+		return ecrExportService;
+	}
+
+	@Autowired
+	public void setPacerResultService(PacerResultService pacerResultService) {
+		this.pacerResultService = pacerResultService;
+	}
+
+	public PacerResultService getPacerResultService() {
+		return pacerResultService;
+	}
+
+	@Autowired
+	public void setBulkFileIngester(BulkFileIngester bulkFileIngester) {
+		this.bulkFileIngester = bulkFileIngester;
+	}
+
+	public BulkFileIngester getBulkFileIngester() {
+		return bulkFileIngester;
+	}
+
+	@Autowired
+	public void setEcrChangeSequence(ECRChangeSequence ecrChangeSequence) {
+		this.ecrChangeSequence = ecrChangeSequence;
+	}
+
+	public ECRChangeSequence getEcrChangeSequence() {
+		return ecrChangeSequence;
+	}
+
 	@RequestMapping(value = "/ECR", method = RequestMethod.POST)
 	public ResponseEntity<ECR> postNewECR(@RequestBody ECR ecr, @RequestParam(name = "source", defaultValue = "elr", required = false) String source) {
-		ECRData data = null;
-		Patient patient = ecr.getPatient();
-		List<TypeableID> patientIdList = patient.getid();
-		if (patientIdList != null) {
-			for (TypeableID patientIdType : patient.getid()) {
-				String patientId = ECRData.stringPatientId(patientIdType);
-				List<ECRData> ecrs = ecrDataRepository.findByPatientIdsContainingIgnoreCase(patientId);
-				if (ecrs != null && ecrs.size() > 0) {
-					data = ecrs.get(0);
-					data.update(ecr);
-					ecr.setECRId(Integer.toString(data.getECRId()));
-					log.info("ELR received for an existing case, case_report_key=" + data.getId());
-					break;
+		ECRData data = ecrIngestService.ingest(ecr, source);
+		return new ResponseEntity<ECR>(addStatus(data), HttpStatus.CREATED);
+	}
+
+	// Accepts a JSON array of ECRs or NDJSON (one ECR per line). Items are written in
+	// chunks, each chunk in one transaction, and a result is returned for every item.
+	@RequestMapping(value = "/ECR/batch", method = RequestMethod.POST, consumes = { MediaType.APPLICATION_JSON_VALUE, ECRBatchReader.NDJSON })
+	public ResponseEntity<List<ECRBatchResult>> postNewECRBatch(HttpServletRequest request,
+			@RequestParam(name = "source", defaultValue = "elr", required = false) String source) throws IOException {
+		boolean ndjson = request.getContentType() != null && request.getContentType().startsWith(ECRBatchReader.NDJSON);
+		int chunkSize = ecrIngestService.getChunkSize();
+
+		List<ECRBatchResult> results = new ArrayList<ECRBatchResult>();
+		List<ECR> chunk = new ArrayList<ECR>();
+		List<Integer> indexes = new ArrayList<Integer>();
+		try (ECRBatchReader reader = new ECRBatchReader(objectMapper, request.getInputStream(), ndjson)) {
+			ECRBatchReader.Item item;
+			while ((item = reader.next()) != null) {
+				if (item.getError() != null) {
+					results.add(ECRBatchResult.failed(item.getIndex(), item.getError()));
+					continue;
+				}
+
+				chunk.add(item.getECR());
+				indexes.add(item.getIndex());
+				if (chunk.size() >= chunkSize) {
+					results.addAll(ecrIngestService.ingestChunk(chunk, indexes, source));
+					chunk = new ArrayList<ECR>();
+					indexes = new ArrayList<Integer>();
 				}
 			}
 		}
 
-		// Name name = ecr.getPatient().getname();
-		// if (name != null) {
-		// 	String firstName = name.getgiven();
-		// 	String lastName = name.getfamily();
-		// 	String zipCode = AddressUtil.findZip(ecr.getPatient().getstreetAddress());
-		// 	List<ECRData> ecrs = ecrDataRepository.findByLastNameAndFirstNameAndZipCodeOrderByVersionDesc(lastName,
-		// 			firstName, zipCode, PageRequest.of(0, PAGE_SIZE));
-		// 	if (ecrs != null && ecrs.size() > 0) {
-		// 		data = ecrs.get(0);
-		// 		data.update(ecr);
-		// 		log.info("ELR received for an existing case, id="+ecr.getECRId());
-		// 	}
-		// }
-
-		if (data == null) {
-			data = new ECRData(ecr, currentId.incrementAndGet());
+		if (!chunk.isEmpty()) {
+			results.addAll(ecrIngestService.ingestChunk(chunk, indexes, source));
 		}
-		ecrDataRepository.save(data);
 
-		// See if this is in the job list.
-		List<ECRJob> ecrJobs = ecrJobRepository.findByReportIdOrderByIdDesc(data.getId());
-		ECRJob ecrJob;
-		Date now = new Date();
-		if (ecrJobs == null || ecrJobs.size() == 0) {
-			ecrJob = new ECRJob(data);
-		} else {
-			ecrJob = ecrJobs.get(0);
-			ecrJob.setLastUpdateDate(now);
+		results.sort(Comparator.comparing(ECRBatchResult::getIndex));
+		return new ResponseEntity<List<ECRBatchResult>>(results, HttpStatus.OK);
+	}
+
+	// A bulk patient list in the CSV format of LOCAL_BULKDATA_PATH files, as the request
+	// body (gzipped with Content-Encoding: gzip or as application/gzip). The upload's row
+	// is created first and 202 goes out with its Location and X-Bulk-Id before the body is
+	// read, so GET /bulk/{id} can be polled from the start. The body is then read as it
+	// arrives and written in chunks, and the response body, sent once the upload has
+	// ended, carries the final counts; status "failed" means the body broke off or could
+	// not be read, with the counts up to the last chunk written.
+	@RequestMapping(value = "/bulk", method = RequestMethod.POST, consumes = { "text/csv", MediaType.TEXT_PLAIN_VALUE, GZIP })
+	public ResponseEntity<StreamingResponseBody> postBulk(HttpServletRequest request,
+			@RequestParam(name = "name", defaultValue = "upload", required = false) String name) throws IOException {
+		boolean gzip = "gzip".equalsIgnoreCase(request.getHeader(HttpHeaders.CONTENT_ENCODING))
+				|| (request.getContentType() != null && request.getContentType().startsWith(GZIP));
+		BulkFileStatus started;
+		try {
+			started = bulkFileIngester.startUpload(name);
+		} catch (RejectedExecutionException e) {
+			log.warn(e.getMessage());
+			return new ResponseEntity<StreamingResponseBody>(HttpStatus.SERVICE_UNAVAILABLE);
 		}
 
-		Calendar c = Calendar.getInstance();
-		c.setTime(now);
-		c.add(Calendar.MINUTE, 2);
-		ecrJob.setNextRunDate(c.getTime());
-		
-		// Set/Reset the Max Update to 3
-		ecrJob.setUpdateCount(0);
-		ecrJob.startRun();
-			
-		// Add this to the job.
-		ecrJobRepository.save(ecrJob);
-
-		// set ecrId in ecr data history and save it to the history table.
-		ecr.setStatus(ecrJob.getStatusCode());
-		ECRDataHistory ecrDataHistory = new ECRDataHistory(ecr, source);
-		ecrDataHistory.setECRId(data.getECRId());
-		ecrDataHistoryRepository.save(ecrDataHistory);
-				
-		return new ResponseEntity<ECR>(addStatus(data), HttpStatus.CREATED);
+		Integer id = started.getId();
+		InputStream body = request.getInputStream();
+		HttpHeaders headers = new HttpHeaders();
+		headers.setLocation(URI.create(request.getRequestURL() + "/" + id));
+		headers.set(BULK_ID_HEADER, id.toString());
+		headers.setContentType(MediaType.APPLICATION_JSON);
+		StreamingResponseBody stream = out -> {
+			try {
+				// Sends the status line and headers before the body is read.
+				out.flush();
+			} catch (IOException e) {
+				// The client has gone; reading its body fails the upload below.
+				log.warn("Bulk upload " + id + ": could not send the response headers: " + e.getMessage());
+			}
+			BulkFileStatus status;
+			try (InputStream in = body) {
+				status = bulkFileIngester.ingestUpload(id, in, gzip);
+			}
+			out.write(objectMapper.writeValueAsBytes(status));
+		};
+		return new ResponseEntity<StreamingResponseBody>(stream, headers, HttpStatus.ACCEPTED);
+	}
+
+	// The latest bulk lists, newest first, including those still being read.
+	@RequestMapping(value = "/bulk", method = RequestMethod.GET)
+	public ResponseEntity<List<BulkFileStatus>> getBulkList() {
+		return new ResponseEntity<List<BulkFileStatus>>(bulkFileIngester.getRecent(), HttpStatus.OK);
+	}
+
+	@RequestMapping(value = "/bulk/{id}", method = RequestMethod.GET)
+	public ResponseEntity<BulkFileStatus> getBulk(@PathVariable("id") Integer id) {
+		BulkFileStatus status = bulkFileIngester.getStatus(id);
+		if (status == null) {
+			return new ResponseEntity<BulkFileStatus>(HttpStatus.NOT_FOUND);
+		}
+		return new ResponseEntity<BulkFileStatus>(status, HttpStatus.OK);
+	}
+
+	// Results pushed by a PACER Job Manager for one of our jobs (see PacerResultService).
+	// The body is a JSON array of ECRs, read one at a time. The delivery id comes from
+	// the X-Delivery-Id header or the deliveryId parameter; sending the same delivery
+	// again returns 200 with status "duplicate" and changes nothing.
+	@RequestMapping(value = "/pacer/results/{jobKey}", method = RequestMethod.POST, consumes = MediaType.APPLICATION_JSON_VALUE)
+	public ResponseEntity<PacerDeliveryResult> postPacerResults(@PathVariable("jobKey") Integer jobKey,
+			@RequestHeader(name = DELIVERY_ID_HEADER, required = false) String deliveryIdHeader,
+			@RequestParam(name = "deliveryId", required = false) String deliveryIdParam,
+			HttpServletRequest request) {
+		String deliveryId = deliveryIdHeader != null && !deliveryIdHeader.isBlank() ? deliveryIdHeader : deliveryIdParam;
+		if (deliveryId == null || deliveryId.isBlank() || deliveryId.length() > 128) {
+			log.warn("PACER delivery for job " + jobKey + " without a usable delivery id");
+			return new ResponseEntity<PacerDeliveryResult>(HttpStatus.BAD_REQUEST);
+		}
+
+		PacerDeliveryResult result;
+		try (ECRBatchReader reader = new ECRBatchReader(objectMapper, request.getInputStream(), false)) {
+			result = pacerResultService.deliver(jobKey, deliveryId, () -> {
+				ECRBatchReader.Item item = reader.next();
+				if (item == null) {
+					return null;
+				}
+				if (item.getError() != null) {
+					throw new IOException("ECR " + item.getIndex() + ": " + item.getError());
+				}
+				return item.getECR();
+			});
+		} catch (DataIntegrityViolationException e) {
+			// A duplicate only if another request recorded the same delivery first; any
+			// other constraint failure is a real error.
+			if (!pacerResultService.isDelivered(jobKey, deliveryId)) {
+				throw e;
+			}
+			result = new PacerDeliveryResult(jobKey, deliveryId, PacerDeliveryResult.DUPLICATE);
+		} catch (IOException e) {
+			log.warn("Rejected PACER delivery " + deliveryId + " for job " + jobKey + ": " + e.getMessage());
+			return new ResponseEntity<PacerDeliveryResult>(HttpStatus.BAD_REQUEST);
+		}
+
+		if (result == null) {
+			return new ResponseEntity<PacerDeliveryResult>(HttpStatus.NOT_FOUND);
+		}
+		return new ResponseEntity<PacerDeliveryResult>(result, HttpStatus.OK);
 	}
 
+	// Plain search by any of lastName, firstName, zipCode and diagnosisCode. See
+	// /ECR/search for the full set of filters.
 	@RequestMapping(value = "/ECR", method = RequestMethod.GET)
 	public ResponseEntity<List<ECR>> getECR(
-			@RequestParam(name = "page", defaultValue = "0", required = false) Integer page) {
-		List<ECRData> data = new ArrayList<ECRData>();
-		int diffPull = -1;
-		while (diffPull != 0 && data.size() < PAGE_SIZE) {
-			Pageable pageable = PageRequest.of(page, PAGE_SIZE);
-			List<ECRData> incomingData = ecrDataRepository.findAll(pageable).getContent();
-			int oldSize = data.size();
-			data.addAll(incomingData);
-			data = lintVersionsFromECRDataList(data);
-			diffPull = data.size() - oldSize;
-			page = page + 1;
+			@RequestParam(name = "lastName", required = false) String lastName,
+			@RequestParam(name = "firstName", required = false) String firstName,
+			@RequestParam(name = "zipCode", required = false) String zipCode,
+			@RequestParam(name = "diagnosisCode", required = false) String diagnosisCode,
+			@RequestParam(name = "page", defaultValue = "0", required = false) Integer page,
+			@RequestParam(name = "size", required = false) Integer size,
+			@RequestParam(name = "cursor", required = false) String cursor) {
+		ECRSearchCriteria criteria = new ECRSearchCriteria()
+				.setLastName(lastName)
+				.setFirstName(firstName)
+				.setZipCode(zipCode)
+				.setDiagnosisCode(diagnosisCode);
+		return search(criteria, page, size, cursor);
+	}
+
+	@RequestMapping(value = "/ECR/search", method = RequestMethod.GET)
+	public ResponseEntity<List<ECR>> searchECR(
+			@RequestParam(name = "lastName", required = false) String lastName,
+			@RequestParam(name = "firstName", required = false) String firstName,
+			@RequestParam(name = "zipCode", required = false) String zipCode,
+			@RequestParam(name = "diagnosisCode", required = false) String diagnosisCode,
+			@RequestParam(name = "patientId", required = false) String patientId,
+			@RequestParam(name = "firstDate", required = false) List<String> firstDate,
+			@RequestParam(name = "lastDate", required = false) List<String> lastDate,
+			@RequestParam(name = "page", defaultValue = "0", required = false) Integer page,
+			@RequestParam(name = "size", required = false) Integer size,
+			@RequestParam(name = "cursor", required = false) String cursor) {
+		ECRSearchCriteria criteria = new ECRSearchCriteria()
+				.setLastName(lastName)
+				.setFirstName(firstName)
+				.setZipCode(zipCode)
+				.setDiagnosisCode(diagnosisCode);
+		try {
+			criteria.setPatientId(patientId);
+			if (firstDate != null) {
+				for (String date : firstDate) {
+					criteria.addFirstDate(date);
+				}
+			}
+			if (lastDate != null) {
+				for (String date : lastDate) {
+					criteria.addLastDate(date);
+				}
+			}
+		} catch (IllegalArgumentException e) {
+			log.warn(e.getMessage());
+			return new ResponseEntity<List<ECR>>(HttpStatus.BAD_REQUEST);
 		}
-		data = data.size() < PAGE_SIZE ? data.subList(0, data.size()) : data.subList(0, PAGE_SIZE);
-		List<ECR> ecrReturnList = transformECRDataToECR(data);
-		return new ResponseEntity<List<ECR>>(ecrReturnList, HttpStatus.OK);
+
+		return search(criteria, page, size, cursor);
 	}
 
 	private List<ECRHistory> transformECRDataHistoryToECRHistory(List<ECRDataHistory> dataHistories) {
@@ -348,7 +559,7 @@ public class ECRController {
 						ecrJob.setUpdateCount(0);
 					}
 					ecrJob.setStatusCode("R");
-					ecrJobRepository.save(ecrJob);
+					ecrJobService.save(ecrJob);
 					return new ResponseEntity<>(HttpStatus.OK);
 				} 
 			}
@@ -357,435 +568,100 @@ public class ECRController {
 		return new ResponseEntity<>(HttpStatus.NOT_FOUND);
 	}
 
+	// Streams the export as it is produced, so neither the table nor the CSV is ever held
+	// in memory. With since (the X-Next-Cursor of the previous call, or a timestamp to
+	// start from) only the current version of cases created or changed after it are
+	// exported. The cursor is a change number (see ECRChangeSequence) read before the
+	// export starts: every change up to it has committed and is exported now, and changes
+	// still being committed get later numbers and come with the next call.
 	@RequestMapping(value = "/exportCSV", method = RequestMethod.GET, produces = "text/csv")
-	public ResponseEntity<Resource> exportCSV() {
-	// public ResponseEntity<Resource> exportCSV(
-	// 		@RequestParam(name = "page", defaultValue = "0", required = false) Integer page) {
-
-		List<String> csvHeaderList = new ArrayList<String>();
-
-		// List<ECRData> data = new ArrayList<ECRData>();
-		// int diffPull = -1;
-		// while (diffPull != 0 && data.size() < PAGE_SIZE) {
-		// 	Pageable pageable = PageRequest.of(page, PAGE_SIZE);
-		// 	List<ECRData> incomingData = ecrDataRepository.findAll(pageable).getContent();
-		// 	int oldSize = data.size();
-		// 	data.addAll(incomingData);
-		// 	data = lintVersionsFromECRDataList(data);
-		// 	diffPull = data.size() - oldSize;
-		// 	page = page + 1;
-		// }
-		// data = data.size() < PAGE_SIZE ? data.subList(0, data.size()) : data.subList(0, PAGE_SIZE);
-
-		List<ECRData> data = ecrDataRepository.findAll();
-		List<ECR> ecrReturnList = transformECRDataToECR(data);
-
-		List<List<String>> csv = new ArrayList<>();
-
-		// CSV Header
-		csvHeaderList.add("id");
-
-		// First find the size of columns. As some ECR may have multiple entries, we need walk over all of lists.
-		int index = 1;
-		int maxNumOfProviders = 0;
-		for (ECR ecr : ecrReturnList) {
-			int numOfProviders = ecr.getProvider().size();
-			if (numOfProviders > maxNumOfProviders) {
-				int numToWrite = numOfProviders - maxNumOfProviders;
-				for (int i = 0; i < numToWrite; i++) {
-					csvHeaderList.add("Provider_id_" + index);
-					csvHeaderList.add("provider_name_" + index);
-					csvHeaderList.add("provider_phone_" + index);
-					csvHeaderList.add("provider_email_" + index);
-					csvHeaderList.add("provider_fax_" + index);
-					csvHeaderList.add("provider_facility_" + index);
-					csvHeaderList.add("provider_address_" + index);
-					csvHeaderList.add("provider_country_" + index);
-					index++;
-				}
-				maxNumOfProviders = numOfProviders;
-			}
-		}
-
-		csvHeaderList.add("facility_id");
-		csvHeaderList.add("facility_name");
-		csvHeaderList.add("facility_phone");
-		csvHeaderList.add("facility_address");
-		csvHeaderList.add("facility_fax");
-		csvHeaderList.add("facility_hospital_unit");
-		csvHeaderList.add("patient_id");
-		csvHeaderList.add("patient_name");
-
-		index = 1;
-		int maxNumOfParentGuardians = 0;
-		for (ECR ecr : ecrReturnList) {
-			int numOfParentGuardians = ecr.getPatient().getparentsGuardians().size();
-			if (numOfParentGuardians > maxNumOfParentGuardians) {
-				int numToWrite = numOfParentGuardians - maxNumOfParentGuardians;
-				for (int i = 0; i < numToWrite; i++) {
-					csvHeaderList.add("patient_guardian_name_" + index);
-					csvHeaderList.add("patient_guardian_phone_" + index);
-					csvHeaderList.add("patient_guardian_email_" + index);
-					index++;
-				}
-				maxNumOfParentGuardians = numOfParentGuardians;
-			}
-		}
-
-		csvHeaderList.add("patient_address");
-		csvHeaderList.add("patient_brithDate");
-		csvHeaderList.add("patient_sex");
-		csvHeaderList.add("patient_patientClass");
-		csvHeaderList.add("patient_race");
-		csvHeaderList.add("patient_ethnicity");
-		csvHeaderList.add("patient_preferredLanguage");
-		csvHeaderList.add("patient_occupation");
-		csvHeaderList.add("patient_pregnant");
-
-		index = 1;
-		int maxNumOfTravelHistory = 0;
-		for (ECR ecr : ecrReturnList) {
-			int numOfTravelHistory = ecr.getPatient().gettravelHistory().size();
-			if (numOfTravelHistory > maxNumOfTravelHistory) {
-				int numToWrite = numOfTravelHistory - maxNumOfTravelHistory;
-				for (int i = 0; i < numToWrite; i++) {
-					csvHeaderList.add("patient_travelHistory_" + index);
-					index++;
-				}
-				maxNumOfTravelHistory = numOfTravelHistory;
-			}
-		}
-
-		csvHeaderList.add("patient_insuranceType");
-
-		index = 1;
-		int maxNumOfImmunizationHistory = 0;
-		for (ECR ecr : ecrReturnList) {
-			int numOfImmunizationlHistory = ecr.getPatient().getimmunizationHistory().size();
-			if (numOfImmunizationlHistory > maxNumOfImmunizationHistory) {
-				int numToWrite = numOfImmunizationlHistory - maxNumOfImmunizationHistory;
-				for (int i = 0; i < numToWrite; i++) {
-					csvHeaderList.add("patient_immunizationHistory_" + index);
-					index++;
-				}
-				maxNumOfImmunizationHistory = numOfImmunizationlHistory;
-			}
-		}
-
-		csvHeaderList.add("patient_visitDateTime");
-		csvHeaderList.add("patient_admissionDateTime");
-		csvHeaderList.add("patient_dateOfOnset");
-
-		index = 1;
-		int maxNumOfSymptoms = 0;
-		for (ECR ecr : ecrReturnList) {
-			int numOfSymptoms = ecr.getPatient().getsymptoms().size();
-			if (numOfSymptoms > maxNumOfSymptoms) {
-				int numToWrite = numOfSymptoms - maxNumOfSymptoms;
-				for (int i = 0; i < numToWrite; i++) {
-					csvHeaderList.add("patient_symptoms_" + index);
-					index++;
-				}
-				maxNumOfSymptoms = numOfSymptoms;
-			}
-		}
-
-		index = 1;
-		int maxNumOfLabOrderCode = 0;
-		for (ECR ecr : ecrReturnList) {
-			int numOfLabOrderCode = ecr.getPatient().getlabOrderCode().size();
-			if (numOfLabOrderCode > maxNumOfLabOrderCode) {
-				int numToWrite = numOfLabOrderCode - maxNumOfLabOrderCode;
-				for (int i = 0; i < numToWrite; i++) {
-					csvHeaderList.add("patient_labOrderCode_" + index);
-					index++;
-				}
-				maxNumOfLabOrderCode = numOfLabOrderCode;
-			}
-		}
+	public ResponseEntity<StreamingResponseBody> exportCSV(
+			@RequestParam(name = "since", required = false) String since) {
+		Date now = new Date();
+		SimpleDateFormat formatter = new SimpleDateFormat("yyyyMMddHHmmss");
+		String csvFileName = "ecr_" + formatter.format(now) + ".csv";
 
-		csvHeaderList.add("patient_placerOrderCode");
-
-		index = 1;
-		int maxNumOfDiagnosis = 0;
-		for (ECR ecr : ecrReturnList) {
-			int numOfDiagnosis = ecr.getPatient().getDiagnosis().size();
-			if (numOfDiagnosis > maxNumOfDiagnosis) {
-				int numToWrite = numOfDiagnosis - maxNumOfDiagnosis;
-				for (int i = 0; i < numToWrite; i++) {
-					csvHeaderList.add("patient_diagnosis_" + index);
-					index++;
-				}
-				maxNumOfDiagnosis = numOfDiagnosis;
-			}
-		}
+		// setting HTTP headers
+		HttpHeaders headers = new HttpHeaders();
+		headers.set(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=" + csvFileName);
+		// defining the custom Content-Type
+		headers.set(HttpHeaders.CONTENT_TYPE, "text/csv");
 
-		index = 1;
-		int maxNumOfMedicationProvided = 0;
-		for (ECR ecr : ecrReturnList) {
-			int numOfMedicationProvided = ecr.getPatient().getMedicationProvided().size();
-			if (numOfMedicationProvided > maxNumOfMedicationProvided) {
-				int numToWrite = numOfMedicationProvided - maxNumOfMedicationProvided;
-				for (int i = 0; i < numToWrite; i++) {
-					csvHeaderList.add("patient_medicationProvided_" + index);
-					index++;
+		StreamingResponseBody body;
+		if (since == null || since.isBlank()) {
+			body = out -> ecrCsvExporter.export(out);
+		} else {
+			long through = ecrChangeSequence.committed();
+			ECRSearchCriteria criteria = new ECRSearchCriteria().setChangedThrough(through);
+			try {
+				if (since.chars().allMatch(Character::isDigit)) {
+					criteria.setChangedAfter(Long.valueOf(since));
+				} else {
+					criteria.addLastUpdated(DateFilter.parse(DateFilter.GT + since));
 				}
-				maxNumOfMedicationProvided = numOfMedicationProvided;
+			} catch (IllegalArgumentException e) {
+				log.warn(e.getMessage());
+				return new ResponseEntity<StreamingResponseBody>(HttpStatus.BAD_REQUEST);
 			}
+			headers.set(NEXT_CURSOR_HEADER, Long.toString(through));
+			body = out -> ecrCsvExporter.export(criteria, out);
 		}
+		return new ResponseEntity<StreamingResponseBody>(body, headers, HttpStatus.OK);
+	}
 
-		csvHeaderList.add("patient_deathDate");
-		csvHeaderList.add("patient_dateDischarged");
-
-		index = 1;
-		int maxNumOfLaboratoryResult = 0;
-		for (ECR ecr : ecrReturnList) {
-			int numOfLaboratoryResult = ecr.getPatient().getlaboratoryResults().size();
-			if (numOfLaboratoryResult > maxNumOfLaboratoryResult) {
-				int numToWrite = numOfLaboratoryResult - maxNumOfLaboratoryResult;
-				for (int i = 0; i < numToWrite; i++) {
-					csvHeaderList.add("patient_laboratoryResult_" + index);
-					index++;
-				}
-				maxNumOfLaboratoryResult = numOfLaboratoryResult;
-			}
+	// Large exports run in the background: POST the filters, poll the job until it is
+	// done, then download the gzipped CSV (Range requests are honoured, so an interrupted
+	// download can be resumed).
+	@RequestMapping(value = "/exports", method = RequestMethod.POST)
+	public ResponseEntity<ECRExportJob> createExport(@RequestBody(required = false) ECRExportRequest request,
+			HttpServletRequest httpRequest) {
+		ECRExportJob job;
+		try {
+			job = ecrExportService.submit(request == null ? new ECRExportRequest() : request);
+		} catch (IllegalArgumentException e) {
+			log.warn(e.getMessage());
+			return new ResponseEntity<ECRExportJob>(HttpStatus.BAD_REQUEST);
+		} catch (RejectedExecutionException e) {
+			log.warn("Export queue is full");
+			return new ResponseEntity<ECRExportJob>(HttpStatus.SERVICE_UNAVAILABLE);
 		}
 
-		index = 1;
-		int maxNumOfTriggerCode = 0;
-		for (ECR ecr : ecrReturnList) {
-			int numOfTriggerCode = ecr.getPatient().gettriggerCode().size();
-			if (numOfTriggerCode > maxNumOfTriggerCode) {
-				int numToWrite = numOfTriggerCode - maxNumOfTriggerCode;
-				for (int i = 0; i < numToWrite; i++) {
-					csvHeaderList.add("patient_triggerCode_" + index);
-					index++;
-				}
-				maxNumOfTriggerCode = numOfTriggerCode;
-			}
-		}
+		HttpHeaders headers = new HttpHeaders();
+		headers.setLocation(URI.create(httpRequest.getRequestURL() + "/" + job.getId()));
+		return new ResponseEntity<ECRExportJob>(job, headers, HttpStatus.ACCEPTED);
+	}
 
-		index = 1;
-		int maxNumOfLabTestsPerformed = 0;
-		for (ECR ecr : ecrReturnList) {
-			int numOfLabTestsPerformed = ecr.getPatient().getlabTestsPerformed().size();
-			if (numOfLabTestsPerformed > maxNumOfLabTestsPerformed) {
-				int numToWrite = numOfLabTestsPerformed - maxNumOfLabTestsPerformed;
-				for (int i = 0; i < numToWrite; i++) {
-					csvHeaderList.add("patient_labTestsPerformed_" + index);
-					index++;
-				}
-				maxNumOfLabTestsPerformed = numOfLabTestsPerformed;
-			}
+	@RequestMapping(value = "/exports/{id}", method = RequestMethod.GET)
+	public ResponseEntity<ECRExportJob> getExport(@PathVariable("id") String id) {
+		ECRExportJob job = ecrExportService.getJob(id);
+		if (job == null) {
+			return new ResponseEntity<ECRExportJob>(HttpStatus.NOT_FOUND);
 		}
+		return new ResponseEntity<ECRExportJob>(job, HttpStatus.OK);
+	}
 
-		csvHeaderList.add("sendingApplication");
-
-		index = 1;
-		int maxNumOfNote = 0;
-		for (ECR ecr : ecrReturnList) {
-			int numOfNote = ecr.getNotes().size();
-			if (numOfNote > maxNumOfNote) {
-				int numToWrite = numOfNote - maxNumOfNote;
-				for (int i = 0; i < numToWrite; i++) {
-					csvHeaderList.add("note_" + index);
-					index++;
-				}
-				maxNumOfNote = numOfNote;
-			}
+	@RequestMapping(value = "/exports/{id}/file", method = RequestMethod.GET)
+	public ResponseEntity<Resource> getExportFile(@PathVariable("id") String id) {
+		ECRExportJob job = ecrExportService.getJob(id);
+		if (job == null) {
+			return new ResponseEntity<Resource>(HttpStatus.NOT_FOUND);
 		}
-
-		for (ECR ecr : ecrReturnList) {
-			List<String> row = new ArrayList<String>();
-
-			row.add(ecr.getECRId());
-			for (Provider provider : ecr.getProvider()) {
-				row.add(ECRData.stringPatientId(provider.getid()));
-				row.add(provider.getname());
-				row.add(provider.getphone());
-				row.add(provider.getemail());
-				row.add(provider.getfax());
-				row.add(provider.getfacility());
-				row.add(provider.getaddress());
-				row.add(provider.getcountry());
-			}
-			for (int i = 0; i < maxNumOfProviders-ecr.getProvider().size(); i++) {
-				row.add("");
-				row.add("");
-				row.add("");
-				row.add("");
-				row.add("");
-				row.add("");
-				row.add("");
-				row.add("");
-			}
-
-			Facility facility = ecr.getFacility();
-			row.add(facility.getid());
-			row.add(facility.getname());
-			row.add(facility.getphone());
-			row.add(facility.getaddress());
-			row.add(facility.getfax());
-			row.add(facility.gethospitalUnit());
-
-			Patient patient = ecr.getPatient();
-			String idStr = ECRData.stringPatientIds(patient.getid());
-			row.add(idStr);
-			row.add(patient.getname().toString());
-
-			for (ParentGuardian parentGuardian : patient.getparentsGuardians()) {
-				row.add(parentGuardian.getname().toString());
-				row.add(parentGuardian.getphone());
-				row.add(parentGuardian.getemail());					
-			}
-			for (int i = 0; i < maxNumOfParentGuardians-patient.getparentsGuardians().size(); i++) {
-				row.add("");
-				row.add("");
-				row.add("");
-			}
-			
-			row.add(patient.getstreetAddress());
-			row.add(patient.getbirthDate());
-			row.add(patient.getsex());
-			row.add(patient.getpatientClass());
-			row.add(patient.getrace().toString());
-			row.add(patient.getethnicity().toString());
-			row.add(patient.getpreferredLanguage().toString());
-			row.add(patient.getoccupation());
-			if (patient.ispregnant()) {
-				row.add("true");
-			} else {
-				row.add("false");
-			}
-
-			for (String travelHistory : patient.gettravelHistory()) {
-				row.add(travelHistory);
-			}
-			for (int i = 0; i < maxNumOfTravelHistory-patient.gettravelHistory().size(); i++) {
-				row.add("");
-			}
-
-			row.add(patient.getinsuranceType().toString());
-
-			for ( ImmunizationHistory immunizationHistory : patient.getimmunizationHistory()) {
-				row.add(immunizationHistory.toString());
-			}
-			for (int i = 0; i < maxNumOfImmunizationHistory-patient.getimmunizationHistory().size(); i++) {
-				row.add("");
-			}
-
-			row.add(patient.getvisitDateTime());
-			row.add(patient.getadmissionDateTime());
-			row.add(patient.getdateOfOnset());
-			
-			for (CodeableConcept symptom : patient.getsymptoms()) {
-				row.add(symptom.toString());
-			}
-			for (int i = 0; i < maxNumOfSymptoms-patient.getsymptoms().size(); i++) {
-				row.add("");
-			}
-
-			for (LabOrderCode labOrderCode : patient.getlabOrderCode()) {
-				row.add(labOrderCode.toString());
-			}
-			for (int i = 0; i < maxNumOfLabOrderCode-patient.getlabOrderCode().size(); i++) {
-				row.add("");
-			}
-
-			row.add(patient.getplacerOrderCode());
-
-			for (Diagnosis diagnosis : patient.getDiagnosis()) {
-				row.add(diagnosis.toString());
+		Path file = ecrExportService.getFile(id);
+		if (file == null) {
+			// Done, but written to the disk of another node: tell the client (or a routing
+			// proxy) which node to ask instead of pretending the job does not exist.
+			if (ECRExportJob.DONE.equals(job.getStatus()) && !ecrExportService.getNodeId().equals(job.getNode())) {
+				HttpHeaders headers = new HttpHeaders();
+				headers.set(EXPORT_NODE_HEADER, job.getNode());
+				return new ResponseEntity<Resource>(null, headers, MISDIRECTED_REQUEST);
 			}
-			for (int i = 0; i < maxNumOfDiagnosis-patient.getDiagnosis().size(); i++) {
-				row.add("");
-			}
-
-			for (Medication medicationProvided : patient.getMedicationProvided()) {
-				row.add(medicationProvided.toString());
-			}
-			for (int i = 0; i < maxNumOfMedicationProvided-patient.getMedicationProvided().size(); i++) {
-				row.add("");
-			}
-
-			row.add(patient.getdeathDate());
-			row.add(patient.getdateDischarged());
-
-			for (LabResult labResult : patient.getlaboratoryResults()) {
-				row.add(labResult.toString());
-			}
-			for (int i = 0; i < maxNumOfLaboratoryResult-patient.getlaboratoryResults().size(); i++) {
-				row.add("");
-			}
-
-			for (CodeableConcept triggerCode : patient.gettriggerCode()) {
-				row.add(triggerCode.toString());
-			}
-			for (int i = 0; i < maxNumOfTriggerCode-patient.gettriggerCode().size(); i++) {
-				row.add("");
-			}
-
-			for (TestResult labTestsPerformed : patient.getlabTestsPerformed()) {
-				row.add(labTestsPerformed.toString());
-			}
-			for (int i = 0; i < maxNumOfLabTestsPerformed-patient.getlabTestsPerformed().size(); i++) {
-				row.add("");
-			}
-
-			row.add(ecr.getSendingApplication());
-
-			for (String note : ecr.getNotes()) {
-				row.add(note);
-			}
-			for (int i = 0; i < maxNumOfNote-ecr.getNotes().size(); i++) {
-				row.add("");
-			}
-
-			csv.add(row);	
+			return new ResponseEntity<Resource>(HttpStatus.CONFLICT);
 		}
 
-		String[] csvHeader = csvHeaderList.toArray(String[]::new);
-		ByteArrayInputStream byteArrayOutputStream;
-
-		// closing resources by using a try with resources
-		// https://www.baeldung.com/java-try-with-resources
-		try (
-			ByteArrayOutputStream out = new ByteArrayOutputStream();
-			// defining the CSV printer
-			CSVPrinter csvPrinter = new CSVPrinter(
-				new PrintWriter(out),
-				// withHeader is optional
-				CSVFormat.DEFAULT.withHeader(csvHeader)
-			);
-		) {
-			// populating the CSV content
-			for (List<String> record : csv)
-				csvPrinter.printRecord(record);
-
-			// writing the underlying stream
-			csvPrinter.flush();
-			byteArrayOutputStream = new ByteArrayInputStream(out.toByteArray());
-	    } catch (IOException e) {
-    	    throw new RuntimeException(e.getMessage());
-    	}
-
-	    InputStreamResource fileInputStream = new InputStreamResource(byteArrayOutputStream);
-
-		Date now = new Date();
-		SimpleDateFormat formatter = new SimpleDateFormat("yyyyMMddHHmmss");
-	    String csvFileName = "ecr_" + formatter.format(now) + ".csv";
-
-		// setting HTTP headers
 		HttpHeaders headers = new HttpHeaders();
-		headers.set(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=" + csvFileName);
-		// defining the custom Content-Type
-		headers.set(HttpHeaders.CONTENT_TYPE, "text/csv");
-
-		return new ResponseEntity<>(
-				fileInputStream,
-				headers,
-				HttpStatus.OK
-		);
+		headers.set(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=ecr_" + id + ".csv.gz");
+		headers.set(HttpHeaders.CONTENT_TYPE, "application/gzip");
+		return new ResponseEntity<Resource>(new FileSystemResource(file), headers, HttpStatus.OK);
 	}
 
 	@RequestMapping(value = "/ECR", method = RequestMethod.GET, params = "id")
@@ -801,317 +677,6 @@ public class ECRController {
 		return new ResponseEntity<ECR>(ret, HttpStatus.OK);
 	}
 
-	@RequestMapping(value = "/ECR", method = RequestMethod.GET, params = "lastName")
-	public ResponseEntity<List<ECR>> getECRByLastName(@RequestParam String lastName,
-			@RequestParam(name = "page", defaultValue = "0", required = false) Integer page) {
-		List<ECRData> data = new ArrayList<ECRData>();
-		int diffPull = -1;
-		while (diffPull != 0 && data.size() < PAGE_SIZE) {
-			Pageable pageable = PageRequest.of(page, PAGE_SIZE);
-			List<ECRData> incomingData = ecrDataRepository.findByLastNameOrderByVersionDesc(lastName, pageable);
-			int oldSize = data.size();
-			data.addAll(incomingData);
-			data = lintVersionsFromECRDataList(data);
-			diffPull = data.size() - oldSize;
-			page = page + 1;
-		}
-		data = data.size() < PAGE_SIZE ? data.subList(0, data.size()) : data.subList(0, PAGE_SIZE);
-		List<ECR> ecrReturnList = transformECRDataToECR(data);
-		return new ResponseEntity<List<ECR>>(ecrReturnList, HttpStatus.OK);
-	}
-
-	@RequestMapping(value = "/ECR", method = RequestMethod.GET, params = "firstName")
-	public ResponseEntity<List<ECR>> getECRByFirstName(@RequestParam String firstName,
-			@RequestParam(name = "page", defaultValue = "0", required = false) Integer page) {
-		List<ECRData> data = new ArrayList<ECRData>();
-		int diffPull = -1;
-		while (diffPull != 0 && data.size() < PAGE_SIZE) {
-			Pageable pageable = PageRequest.of(page, PAGE_SIZE);
-			List<ECRData> incomingData = ecrDataRepository.findByFirstNameOrderByVersionDesc(firstName, pageable);
-			int oldSize = data.size();
-			data.addAll(incomingData);
-			data = lintVersionsFromECRDataList(data);
-			diffPull = data.size() - oldSize;
-			page = page + 1;
-		}
-		data = data.size() < PAGE_SIZE ? data.subList(0, data.size()) : data.subList(0, PAGE_SIZE);
-		List<ECR> ecrReturnList = transformECRDataToECR(data);
-		return new ResponseEntity<List<ECR>>(ecrReturnList, HttpStatus.OK);
-	}
-
-	@RequestMapping(value = "/ECR", method = RequestMethod.GET, params = "zipCode")
-	public ResponseEntity<List<ECR>> getECRByZipCode(@RequestParam String zipCode,
-			@RequestParam(name = "page", defaultValue = "0", required = false) Integer page) {
-		List<ECRData> data = new ArrayList<ECRData>();
-		int diffPull = -1;
-		while (diffPull != 0 && data.size() < PAGE_SIZE) {
-			Pageable pageable = PageRequest.of(page, PAGE_SIZE);
-			List<ECRData> incomingData = ecrDataRepository.findByZipCodeOrderByVersionDesc(zipCode, pageable);
-			int oldSize = data.size();
-			data.addAll(incomingData);
-			data = lintVersionsFromECRDataList(data);
-			diffPull = data.size() - oldSize;
-			page = page + 1;
-		}
-		data = data.size() < PAGE_SIZE ? data.subList(0, data.size()) : data.subList(0, PAGE_SIZE);
-		List<ECR> ecrReturnList = transformECRDataToECR(data);
-		return new ResponseEntity<List<ECR>>(ecrReturnList, HttpStatus.OK);
-	}
-
-	@RequestMapping(value = "/ECR", method = RequestMethod.GET, params = "diagnosisCode")
-	public ResponseEntity<List<ECR>> getECRByDiagnosisCode(@RequestParam String diagnosisCode,
-			@RequestParam(name = "page", defaultValue = "0", required = false) Integer page) {
-		List<ECRData> data = new ArrayList<ECRData>();
-		int diffPull = -1;
-		while (diffPull != 0 && data.size() < PAGE_SIZE) {
-			Pageable pageable = PageRequest.of(page, PAGE_SIZE);
-			List<ECRData> incomingData = ecrDataRepository.findByDiagnosisCodeOrderByVersionDesc(diagnosisCode,
-					pageable);
-			int oldSize = data.size();
-			data.addAll(incomingData);
-			data = lintVersionsFromECRDataList(data);
-			diffPull = data.size() - oldSize;
-			page = page + 1;
-		}
-		data = data.size() < PAGE_SIZE ? data.subList(0, data.size()) : data.subList(0, PAGE_SIZE);
-		List<ECR> ecrReturnList = transformECRDataToECR(data);
-		return new ResponseEntity<List<ECR>>(ecrReturnList, HttpStatus.OK);
-	}
-
-	@RequestMapping(value = "/ECR", method = RequestMethod.GET, params = { "lastName", "firstName" })
-	public ResponseEntity<List<ECR>> getECRByLastNameAndFirstName(@RequestParam String lastName,
-			@RequestParam String firstName,
-			@RequestParam(name = "page", defaultValue = "0", required = false) Integer page) {
-		List<ECRData> data = new ArrayList<ECRData>();
-		int diffPull = -1;
-		while (diffPull != 0 && data.size() < PAGE_SIZE) {
-			Pageable pageable = PageRequest.of(page, PAGE_SIZE);
-			List<ECRData> incomingData = ecrDataRepository.findByLastNameAndFirstNameOrderByVersionDesc(lastName,
-					firstName, pageable);
-			int oldSize = data.size();
-			data.addAll(incomingData);
-			data = lintVersionsFromECRDataList(data);
-			diffPull = data.size() - oldSize;
-			page = page + 1;
-		}
-		data = data.size() < PAGE_SIZE ? data.subList(0, data.size()) : data.subList(0, PAGE_SIZE);
-		List<ECR> ecrReturnList = transformECRDataToECR(data);
-		return new ResponseEntity<List<ECR>>(ecrReturnList, HttpStatus.OK);
-	}
-
-	@RequestMapping(value = "/ECR", method = RequestMethod.GET, params = { "lastName", "zipCode" })
-	public ResponseEntity<List<ECR>> getECRByLastNameAndZipCode(@RequestParam String lastName,
-			@RequestParam String zipCode,
-			@RequestParam(name = "page", defaultValue = "0", required = false) Integer page) {
-		List<ECRData> data = new ArrayList<ECRData>();
-		int diffPull = -1;
-		while (diffPull != 0 && data.size() < PAGE_SIZE) {
-			Pageable pageable = PageRequest.of(page, PAGE_SIZE);
-			List<ECRData> incomingData = ecrDataRepository.findByLastNameAndZipCodeOrderByVersionDesc(lastName, zipCode,
-					pageable);
-			int oldSize = data.size();
-			data.addAll(incomingData);
-			data = lintVersionsFromECRDataList(data);
-			diffPull = data.size() - oldSize;
-			page = page + 1;
-		}
-		data = data.size() < PAGE_SIZE ? data.subList(0, data.size()) : data.subList(0, PAGE_SIZE);
-		List<ECR> ecrReturnList = transformECRDataToECR(data);
-		return new ResponseEntity<List<ECR>>(ecrReturnList, HttpStatus.OK);
-	}
-
-	@RequestMapping(value = "/ECR", method = RequestMethod.GET, params = { "lastName", "diagnosisCode" })
-	public ResponseEntity<List<ECR>> getECRByLastNameAndDiagnosisCode(@RequestParam String lastName,
-			@RequestParam String diagnosisCode,
-			@RequestParam(name = "page", defaultValue = "0", required = false) Integer page) {
-		List<ECRData> data = new ArrayList<ECRData>();
-		int diffPull = -1;
-		while (diffPull != 0 && data.size() < PAGE_SIZE) {
-			Pageable pageable = PageRequest.of(page, PAGE_SIZE);
-			List<ECRData> incomingData = ecrDataRepository.findByLastNameAndDiagnosisCodeOrderByVersionDesc(lastName,
-					diagnosisCode, pageable);
-			int oldSize = data.size();
-			data.addAll(incomingData);
-			data = lintVersionsFromECRDataList(data);
-			diffPull = data.size() - oldSize;
-			page = page + 1;
-		}
-		data = data.size() < PAGE_SIZE ? data.subList(0, data.size()) : data.subList(0, PAGE_SIZE);
-		List<ECR> ecrReturnList = transformECRDataToECR(data);
-		return new ResponseEntity<List<ECR>>(ecrReturnList, HttpStatus.OK);
-	}
-
-	@RequestMapping(value = "/ECR", method = RequestMethod.GET, params = { "firstName", "zipCode" })
-	public ResponseEntity<List<ECR>> getECRByFirstNameAndZipCode(@RequestParam String firstName,
-			@RequestParam String zipCode,
-			@RequestParam(name = "page", defaultValue = "0", required = false) Integer page) {
-		List<ECRData> data = new ArrayList<ECRData>();
-		int diffPull = -1;
-		while (diffPull != 0 && data.size() < PAGE_SIZE) {
-			Pageable pageable = PageRequest.of(page, PAGE_SIZE);
-			List<ECRData> incomingData = ecrDataRepository.findByFirstNameAndZipCodeOrderByVersionDesc(firstName,
-					zipCode, pageable);
-			int oldSize = data.size();
-			data.addAll(incomingData);
-			data = lintVersionsFromECRDataList(data);
-			diffPull = data.size() - oldSize;
-			page = page + 1;
-		}
-		data = data.size() < PAGE_SIZE ? data.subList(0, data.size()) : data.subList(0, PAGE_SIZE);
-		List<ECR> ecrReturnList = transformECRDataToECR(data);
-		return new ResponseEntity<List<ECR>>(ecrReturnList, HttpStatus.OK);
-	}
-
-	@RequestMapping(value = "/ECR", method = RequestMethod.GET, params = { "firstName", "diagnosisCode" })
-	public ResponseEntity<List<ECR>> getECRByFirstNameAndDiagnosisCode(@RequestParam String firstName,
-			@RequestParam String diagnosisCode,
-			@RequestParam(name = "page", defaultValue = "0", required = false) Integer page) {
-		List<ECRData> data = new ArrayList<ECRData>();
-		int diffPull = -1;
-		while (diffPull != 0 && data.size() < PAGE_SIZE) {
-			Pageable pageable = PageRequest.of(page, PAGE_SIZE);
-			List<ECRData> incomingData = ecrDataRepository.findByFirstNameAndDiagnosisCodeOrderByVersionDesc(firstName,
-					diagnosisCode, pageable);
-			int oldSize = data.size();
-			data.addAll(incomingData);
-			data = lintVersionsFromECRDataList(data);
-			diffPull = data.size() - oldSize;
-			page = page + 1;
-		}
-		data = data.size() < PAGE_SIZE ? data.subList(0, data.size()) : data.subList(0, PAGE_SIZE);
-		List<ECR> ecrReturnList = transformECRDataToECR(data);
-		return new ResponseEntity<List<ECR>>(ecrReturnList, HttpStatus.OK);
-	}
-
-	@RequestMapping(value = "/ECR", method = RequestMethod.GET, params = { "zipCode", "diagnosisCode" })
-	public ResponseEntity<List<ECR>> getECRByZipCodeAndDiagnosisCode(@RequestParam String zipCode,
-			@RequestParam String diagnosisCode,
-			@RequestParam(name = "page", defaultValue = "0", required = false) Integer page) {
-		List<ECRData> data = new ArrayList<ECRData>();
-		int diffPull = -1;
-		while (diffPull != 0 && data.size() < PAGE_SIZE) {
-			Pageable pageable = PageRequest.of(page, PAGE_SIZE);
-			List<ECRData> incomingData = ecrDataRepository.findByZipCodeAndDiagnosisCodeOrderByVersionDesc(zipCode,
-					diagnosisCode, pageable);
-			int oldSize = data.size();
-			data.addAll(incomingData);
-			data = lintVersionsFromECRDataList(data);
-			diffPull = data.size() - oldSize;
-			page = page + 1;
-		}
-		data = data.size() < PAGE_SIZE ? data.subList(0, data.size()) : data.subList(0, PAGE_SIZE);
-		List<ECR> ecrReturnList = transformECRDataToECR(data);
-		return new ResponseEntity<List<ECR>>(ecrReturnList, HttpStatus.OK);
-	}
-
-	@RequestMapping(value = "/ECR", method = RequestMethod.GET, params = { "lastName", "firstName", "zipCode" })
-	public ResponseEntity<List<ECR>> getECRByLastNameAndFirstNameAndZipCode(@RequestParam String lastName,
-			@RequestParam String firstName, @RequestParam String zipCode,
-			@RequestParam(name = "page", defaultValue = "0", required = false) Integer page) {
-		List<ECRData> data = new ArrayList<ECRData>();
-		int diffPull = -1;
-		while (diffPull != 0 && data.size() < PAGE_SIZE) {
-			Pageable pageable = PageRequest.of(page, PAGE_SIZE);
-			List<ECRData> incomingData = ecrDataRepository
-					.findByLastNameAndFirstNameAndZipCodeOrderByVersionDesc(lastName, firstName, zipCode, pageable);
-			int oldSize = data.size();
-			data.addAll(incomingData);
-			data = lintVersionsFromECRDataList(data);
-			diffPull = data.size() - oldSize;
-			page = page + 1;
-		}
-		data = data.size() < PAGE_SIZE ? data.subList(0, data.size()) : data.subList(0, PAGE_SIZE);
-		List<ECR> ecrReturnList = transformECRDataToECR(data);
-		return new ResponseEntity<List<ECR>>(ecrReturnList, HttpStatus.OK);
-	}
-
-	@RequestMapping(value = "/ECR", method = RequestMethod.GET, params = { "lastName", "firstName", "diagnosisCode" })
-	public ResponseEntity<List<ECR>> getECRByLastNameAndFirstNameAndDiagnosisCode(@RequestParam String lastName,
-			@RequestParam String firstName, @RequestParam String diagnosisCode,
-			@RequestParam(name = "page", defaultValue = "0", required = false) Integer page) {
-		List<ECRData> data = new ArrayList<ECRData>();
-		int diffPull = -1;
-		while (diffPull != 0 && data.size() < PAGE_SIZE) {
-			Pageable pageable = PageRequest.of(page, PAGE_SIZE);
-			List<ECRData> incomingData = ecrDataRepository.findByLastNameAndFirstNameAndDiagnosisCodeOrderByVersionDesc(
-					lastName, firstName, diagnosisCode, pageable);
-			int oldSize = data.size();
-			data.addAll(incomingData);
-			data = lintVersionsFromECRDataList(data);
-			diffPull = data.size() - oldSize;
-			page = page + 1;
-		}
-		data = data.size() < PAGE_SIZE ? data.subList(0, data.size()) : data.subList(0, PAGE_SIZE);
-		List<ECR> ecrReturnList = transformECRDataToECR(data);
-		return new ResponseEntity<List<ECR>>(ecrReturnList, HttpStatus.OK);
-	}
-
-	@RequestMapping(value = "/ECR", method = RequestMethod.GET, params = { "lastName", "zipCode", "diagnosisCode" })
-	public ResponseEntity<List<ECR>> getECRByLastNameAndZipCodeAndDiagnosisCode(@RequestParam String lastName,
-			@RequestParam String zipCode, @RequestParam String diagnosisCode,
-			@RequestParam(name = "page", defaultValue = "0", required = false) Integer page) {
-		List<ECRData> data = new ArrayList<ECRData>();
-		int diffPull = -1;
-		while (diffPull != 0 && data.size() < PAGE_SIZE) {
-			Pageable pageable = PageRequest.of(page, PAGE_SIZE);
-			List<ECRData> incomingData = ecrDataRepository.findByLastNameAndZipCodeAndDiagnosisCodeOrderByVersionDesc(
-					lastName, zipCode, diagnosisCode, pageable);
-			int oldSize = data.size();
-			data.addAll(incomingData);
-			data = lintVersionsFromECRDataList(data);
-			diffPull = data.size() - oldSize;
-			page = page + 1;
-		}
-		data = data.size() < PAGE_SIZE ? data.subList(0, data.size()) : data.subList(0, PAGE_SIZE);
-		List<ECR> ecrReturnList = transformECRDataToECR(data);
-		return new ResponseEntity<List<ECR>>(ecrReturnList, HttpStatus.OK);
-	}
-
-	@RequestMapping(value = "/ECR", method = RequestMethod.GET, params = { "firstName", "zipCode", "diagnosisCode" })
-	public ResponseEntity<List<ECR>> getECRByFirstNameAndZipCodeAndDiagnosisCode(@RequestParam String firstName,
-			@RequestParam String zipCode, @RequestParam String diagnosisCode,
-			@RequestParam(name = "page", defaultValue = "0", required = false) Integer page) {
-		List<ECRData> data = new ArrayList<ECRData>();
-		int diffPull = -1;
-		while (diffPull != 0 && data.size() < PAGE_SIZE) {
-			Pageable pageable = PageRequest.of(page, PAGE_SIZE);
-			List<ECRData> incomingData = ecrDataRepository.findByFirstNameAndZipCodeAndDiagnosisCodeOrderByVersionDesc(
-					firstName, zipCode, diagnosisCode, pageable);
-			int oldSize = data.size();
-			data.addAll(incomingData);
-			data = lintVersionsFromECRDataList(data);
-			diffPull = data.size() - oldSize;
-			page = page + 1;
-		}
-		data = data.size() < PAGE_SIZE ? data.subList(0, data.size()) : data.subList(0, PAGE_SIZE);
-		List<ECR> ecrReturnList = transformECRDataToECR(data);
-		return new ResponseEntity<List<ECR>>(ecrReturnList, HttpStatus.OK);
-	}
-
-	@RequestMapping(value = "/ECR", method = RequestMethod.GET, params = { "LastName", "firstName", "zipCode",
-			"diagnosisCode" })
-	public ResponseEntity<List<ECR>> getECRByLastNameAndFirstNameAndZipCodeAndDiagnosisCode(
-			@RequestParam String lastName, @RequestParam String firstName, @RequestParam String zipCode,
-			@RequestParam String diagnosisCode,
-			@RequestParam(name = "page", defaultValue = "0", required = false) Integer page) {
-		List<ECRData> data = new ArrayList<ECRData>();
-		int diffPull = -1;
-		while (diffPull != 0 && data.size() < PAGE_SIZE) {
-			Pageable pageable = PageRequest.of(page, PAGE_SIZE);
-			List<ECRData> incomingData = ecrDataRepository
-					.findByLastNameAndFirstNameAndZipCodeAndDiagnosisCodeOrderByVersionDesc(lastName, firstName,
-							zipCode, diagnosisCode, pageable);
-			int oldSize = data.size();
-			data.addAll(incomingData);
-			data = lintVersionsFromECRDataList(data);
-			diffPull = data.size() - oldSize;
-			page = page + 1;
-		}
-		data = data.size() < PAGE_SIZE ? data.subList(0, data.size()) : data.subList(0, PAGE_SIZE);
-		List<ECR> ecrReturnList = transformECRDataToECR(data);
-		return new ResponseEntity<List<ECR>>(ecrReturnList, HttpStatus.OK);
-	}
-
 	@RequestMapping(value = "/ECR", method = RequestMethod.PUT, params = "id")
 	public ResponseEntity<ECR> updateECR(@RequestBody ECR ecr, @RequestParam String id) {
 		String ecrId = "";
@@ -1121,72 +686,43 @@ public class ECRController {
 			ecrId = id;
 		}
 		ECRData data = ecrDataRepository.findByEcrIdOrderByVersionDesc(Integer.valueOf(ecrId)).get(0);
-		ECRData updatingData = new ECRData(data);
-		updatingData.setId(currentId.incrementAndGet());
-		updatingData.update(ecr);
-		ecrDataRepository.save(updatingData);
+		ECRData updatingData = ecrDataService.saveNewVersion(data, ecr);
 		return new ResponseEntity<ECR>(addStatus(updatingData), HttpStatus.OK);
 	}
 
-	public Connection getConnection() throws SQLException {
-		return DriverManager.getConnection(connectionConfig.getUrl(), connectionConfig.getUsername(),
-				connectionConfig.getPassword());
-	}
-
-	@PostConstruct
-	public void setCurrentId() {
-		log.info(" CONNECTION --- Setting the currentId");
-		try {
-			currentId = new AtomicInteger(getCurrentId());
-		} catch (SQLException e) {
-			currentId = new AtomicInteger(1234);
-			log.warn("Error pulling the currentId");
-			log.warn(e.getMessage());
+	// One keyset page of current ECRs. When more rows follow, the response carries an
+	// X-Next-Cursor header to pass back as cursor= for the next page. The old page=
+	// parameter still works without a cursor, but it is an OFFSET and slows down with depth.
+	private ResponseEntity<List<ECR>> search(ECRSearchCriteria criteria, Integer page, Integer size, String cursor) {
+		int limit = size == null ? PAGE_SIZE : Math.max(1, Math.min(size, maxPageSize));
+		ECRDataCursor after = null;
+		if (cursor != null && !cursor.isBlank()) {
+			try {
+				after = ECRDataCursor.decode(cursor);
+			} catch (IllegalArgumentException e) {
+				log.warn(e.getMessage());
+				return new ResponseEntity<List<ECR>>(HttpStatus.BAD_REQUEST);
+			}
 		}
-	}
-	
-	public static int getStaticCurrentId() {
-		return ECRController.currentId.incrementAndGet();
-	}
+		int offset = after == null ? Math.max(0, page) * limit : 0;
 
-	public Integer getCurrentId() throws SQLException {
-		log.info(" CONNECTION --- Calling get the currentId");
-		log.info(" CONNECTION --- connectionURL:" + connectionConfig.getUrl());
-		log.info(" CONNECTION --- connectionUsername:" + connectionConfig.getUsername());
-		log.info(" CONNECTION --- connectionPassword:" + connectionConfig.getPassword());
-		Connection conn;
-		conn = getConnection();
-		PreparedStatement runETLStatement = conn.prepareStatement(GET_CASE_REPORT_SEQ);
-		ResultSet rs = runETLStatement.executeQuery();
-		int returnValue = 0;
-		while (rs.next()) {
-			returnValue = rs.getInt("seq_id");
+		// Read one row past the page to learn whether there is a next page.
+		List<ECRData> data = ecrSearchService.search(criteria, after, offset, limit + 1);
+		HttpHeaders headers = new HttpHeaders();
+		if (data.size() > limit) {
+			data = data.subList(0, limit);
+			headers.set(NEXT_CURSOR_HEADER, ECRDataCursor.after(data.get(limit - 1)).encode());
 		}
-		return returnValue;
-	}
 
-	// Lints out the old versions of ECRData
-	public List<ECRData> lintVersionsFromECRDataList(List<ECRData> sourceList) {
-		List<ECRData> returnList = new ArrayList<ECRData>(sourceList);
-		for (ECRData a : sourceList) {
-			for (ECRData b : sourceList) {
-				if (a.getECRId().equals(b.getECRId())) {
-					if (a.getVersion().compareTo(b.getVersion()) < 0)
-						returnList.remove(a);
-					else if (a.getVersion().compareTo(b.getVersion()) > 0)
-						returnList.remove(b);
-				}
-			}
-		}
-		return returnList;
+		return new ResponseEntity<List<ECR>>(transformECRDataToECR(data), headers, HttpStatus.OK);
 	}
 
+	// The job status is kept on the ecr_data row by ECRJobService, so this does not
+	// query ecr_job.
 	private ECR addStatus(ECRData ecrData) {
 		ECR ecr = ecrData.getECR();
-		List<ECRJob> ecrJobs = ecrJobRepository.findByReportIdOrderByIdDesc(ecrData.getId());
-
-		if (!ecrJobs.isEmpty()) {
-			ecr.setStatus(ecrJobs.get(0).getStatusCode());
+		if (ecrData.getJobStatus() != null) {
+			ecr.setStatus(ecrData.getJobStatus());
 		}
 
 		return ecr;
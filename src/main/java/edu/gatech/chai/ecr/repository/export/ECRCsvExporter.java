@@ -0,0 +1,145 @@
+package edu.gatech.chai.ecr.repository.export;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVPrinter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import edu.gatech.chai.ecr.jpa.model.ECRData;
+import edu.gatech.chai.ecr.jpa.repo.ECRDataRepository;
+import edu.gatech.chai.ecr.jpa.repo.ECRSearchCriteria;
+
+// Writes the ECR CSV export straight to an output stream. The matching ecr_data rows are
+// read twice through a server-side cursor: once to size the repeating column groups (see
+// ECRCsvLayout) and once to write the rows. Each row is detached as soon as it is used,
+// so memory stays flat no matter how large the table is.
+@Component
+public class ECRCsvExporter {
+	private static final Logger logger = LoggerFactory.getLogger(ECRCsvExporter.class);
+	private static final int FLUSH_EVERY = 500;
+
+	@Autowired
+	private ECRDataRepository ecrDataRepository;
+
+	@Autowired
+	private PlatformTransactionManager transactionManager;
+
+	@PersistenceContext
+	private EntityManager entityManager;
+
+	// Progress callbacks for long running exports. total is known once the first pass is
+	// done; written is reported every time the output is flushed.
+	public interface Progress {
+		void total(long total);
+
+		void written(long written);
+	}
+
+	private static final Progress NO_PROGRESS = new Progress() {
+		@Override
+		public void total(long total) {
+		}
+
+		@Override
+		public void written(long written) {
+		}
+	};
+
+	// Every version of every case, as /exportCSV has always returned.
+	public long export(OutputStream out) throws IOException {
+		return export(new ECRSearchCriteria().setAllVersions(true), out);
+	}
+
+	public long export(ECRSearchCriteria criteria, OutputStream out) throws IOException {
+		return export(criteria, out, NO_PROGRESS);
+	}
+
+	public long export(ECRSearchCriteria criteria, OutputStream out, Progress progress) throws IOException {
+		TransactionTemplate transactionTemplate = new TransactionTemplate(transactionManager);
+		transactionTemplate.setReadOnly(true);
+
+		try {
+			Long rows = transactionTemplate.execute(status -> {
+				ECRData last = ecrDataRepository.findTopByOrderByIdDesc();
+				if (last == null) {
+					progress.total(0);
+					return writeRows(criteria, out, new ECRCsvLayout(), null, progress);
+				}
+
+				// Rows inserted after the first pass are left out of the second as well, so
+				// the header covers every row written.
+				Integer maxId = last.getId();
+				ECRCsvLayout layout = new ECRCsvLayout();
+				long[] total = { 0 };
+				forEach(criteria, maxId, ecrData -> {
+					layout.observe(ecrData.getECR());
+					total[0]++;
+				});
+				progress.total(total[0]);
+				return writeRows(criteria, out, layout, maxId, progress);
+			});
+
+			return rows == null ? 0 : rows;
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+	}
+
+	private long writeRows(ECRSearchCriteria criteria, OutputStream out, ECRCsvLayout layout, Integer maxId,
+			Progress progress) {
+		try {
+			Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+			CSVPrinter csvPrinter = new CSVPrinter(writer, CSVFormat.DEFAULT.withHeader(layout.header()));
+			long[] count = { 0 };
+			if (maxId != null) {
+				forEach(criteria, maxId, ecrData -> {
+					try {
+						csvPrinter.printRecord(layout.row(ecrData.getECR()));
+						if (++count[0] % FLUSH_EVERY == 0) {
+							csvPrinter.flush();
+							progress.written(count[0]);
+						}
+					} catch (IOException e) {
+						throw new UncheckedIOException(e);
+					}
+				});
+			}
+			csvPrinter.flush();
+			progress.written(count[0]);
+
+			if (layout.getTruncated() > 0) {
+				logger.warn("CSV export dropped " + layout.getTruncated()
+						+ " list entries from rows that grew while the export was running");
+			}
+			logger.info("CSV export wrote " + count[0] + " rows");
+			return count[0];
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private void forEach(ECRSearchCriteria criteria, Integer maxId, Consumer<ECRData> action) {
+		try (Stream<ECRData> ecrDatas = ecrDataRepository.stream(criteria, maxId)) {
+			ecrDatas.forEach(ecrData -> {
+				action.accept(ecrData);
+				entityManager.detach(ecrData);
+			});
+		}
+	}
+}
@@ -0,0 +1,229 @@
+package edu.gatech.chai.ecr.repository.export;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import edu.gatech.chai.ecr.jpa.json.ECR;
+import edu.gatech.chai.ecr.jpa.json.Facility;
+import edu.gatech.chai.ecr.jpa.json.ParentGuardian;
+import edu.gatech.chai.ecr.jpa.json.Patient;
+import edu.gatech.chai.ecr.jpa.json.Provider;
+import edu.gatech.chai.ecr.jpa.model.ECRData;
+
+// Column layout of the ECR CSV export. Lists such as providers or lab results get one
+// group of columns per entry, so the widths are the largest list sizes in the export.
+// They are collected with observe() in a first pass that keeps only these counters, and
+// then every row is written against the same header.
+public class ECRCsvLayout {
+	private int maxNumOfProviders = 0;
+	private int maxNumOfParentGuardians = 0;
+	private int maxNumOfTravelHistory = 0;
+	private int maxNumOfImmunizationHistory = 0;
+	private int maxNumOfSymptoms = 0;
+	private int maxNumOfLabOrderCode = 0;
+	private int maxNumOfDiagnosis = 0;
+	private int maxNumOfMedicationProvided = 0;
+	private int maxNumOfLaboratoryResult = 0;
+	private int maxNumOfTriggerCode = 0;
+	private int maxNumOfLabTestsPerformed = 0;
+	private int maxNumOfNote = 0;
+
+	// Entries dropped because a row changed between the two passes and outgrew the header.
+	private long truncated = 0;
+
+	public void observe(ECR ecr) {
+		Patient patient = ecr.getPatient();
+		maxNumOfProviders = Math.max(maxNumOfProviders, ecr.getProvider().size());
+		maxNumOfParentGuardians = Math.max(maxNumOfParentGuardians, patient.getparentsGuardians().size());
+		maxNumOfTravelHistory = Math.max(maxNumOfTravelHistory, patient.gettravelHistory().size());
+		maxNumOfImmunizationHistory = Math.max(maxNumOfImmunizationHistory, patient.getimmunizationHistory().size());
+		maxNumOfSymptoms = Math.max(maxNumOfSymptoms, patient.getsymptoms().size());
+		maxNumOfLabOrderCode = Math.max(maxNumOfLabOrderCode, patient.getlabOrderCode().size());
+		maxNumOfDiagnosis = Math.max(maxNumOfDiagnosis, patient.getDiagnosis().size());
+		maxNumOfMedicationProvided = Math.max(maxNumOfMedicationProvided, patient.getMedicationProvided().size());
+		maxNumOfLaboratoryResult = Math.max(maxNumOfLaboratoryResult, patient.getlaboratoryResults().size());
+		maxNumOfTriggerCode = Math.max(maxNumOfTriggerCode, patient.gettriggerCode().size());
+		maxNumOfLabTestsPerformed = Math.max(maxNumOfLabTestsPerformed, patient.getlabTestsPerformed().size());
+		maxNumOfNote = Math.max(maxNumOfNote, ecr.getNotes().size());
+	}
+
+	public long getTruncated() {
+		return truncated;
+	}
+
+	public String[] header() {
+		List<String> csvHeaderList = new ArrayList<String>();
+		csvHeaderList.add("id");
+
+		for (int index = 1; index <= maxNumOfProviders; index++) {
+			csvHeaderList.add("Provider_id_" + index);
+			csvHeaderList.add("provider_name_" + index);
+			csvHeaderList.add("provider_phone_" + index);
+			csvHeaderList.add("provider_email_" + index);
+			csvHeaderList.add("provider_fax_" + index);
+			csvHeaderList.add("provider_facility_" + index);
+			csvHeaderList.add("provider_address_" + index);
+			csvHeaderList.add("provider_country_" + index);
+		}
+
+		csvHeaderList.add("facility_id");
+		csvHeaderList.add("facility_name");
+		csvHeaderList.add("facility_phone");
+		csvHeaderList.add("facility_address");
+		csvHeaderList.add("facility_fax");
+		csvHeaderList.add("facility_hospital_unit");
+		csvHeaderList.add("patient_id");
+		csvHeaderList.add("patient_name");
+
+		for (int index = 1; index <= maxNumOfParentGuardians; index++) {
+			csvHeaderList.add("patient_guardian_name_" + index);
+			csvHeaderList.add("patient_guardian_phone_" + index);
+			csvHeaderList.add("patient_guardian_email_" + index);
+		}
+
+		csvHeaderList.add("patient_address");
+		csvHeaderList.add("patient_brithDate");
+		csvHeaderList.add("patient_sex");
+		csvHeaderList.add("patient_patientClass");
+		csvHeaderList.add("patient_race");
+		csvHeaderList.add("patient_ethnicity");
+		csvHeaderList.add("patient_preferredLanguage");
+		csvHeaderList.add("patient_occupation");
+		csvHeaderList.add("patient_pregnant");
+
+		addNumbered(csvHeaderList, "patient_travelHistory_", maxNumOfTravelHistory);
+		csvHeaderList.add("patient_insuranceType");
+		addNumbered(csvHeaderList, "patient_immunizationHistory_", maxNumOfImmunizationHistory);
+		csvHeaderList.add("patient_visitDateTime");
+		csvHeaderList.add("patient_admissionDateTime");
+		csvHeaderList.add("patient_dateOfOnset");
+		addNumbered(csvHeaderList, "patient_symptoms_", maxNumOfSymptoms);
+		addNumbered(csvHeaderList, "patient_labOrderCode_", maxNumOfLabOrderCode);
+		csvHeaderList.add("patient_placerOrderCode");
+		addNumbered(csvHeaderList, "patient_diagnosis_", maxNumOfDiagnosis);
+		addNumbered(csvHeaderList, "patient_medicationProvided_", maxNumOfMedicationProvided);
+		csvHeaderList.add("patient_deathDate");
+		csvHeaderList.add("patient_dateDischarged");
+		addNumbered(csvHeaderList, "patient_laboratoryResult_", maxNumOfLaboratoryResult);
+		addNumbered(csvHeaderList, "patient_triggerCode_", maxNumOfTriggerCode);
+		addNumbered(csvHeaderList, "patient_labTestsPerformed_", maxNumOfLabTestsPerformed);
+		csvHeaderList.add("sendingApplication");
+		addNumbered(csvHeaderList, "note_", maxNumOfNote);
+
+		return csvHeaderList.toArray(String[]::new);
+	}
+
+	public List<String> row(ECR ecr) {
+		List<String> row = new ArrayList<String>();
+
+		row.add(ecr.getECRId());
+		List<Provider> providers = ecr.getProvider();
+		for (int i = 0; i < maxNumOfProviders; i++) {
+			if (i < providers.size()) {
+				Provider provider = providers.get(i);
+				row.add(ECRData.stringPatientId(provider.getid()));
+				row.add(provider.getname());
+				row.add(provider.getphone());
+				row.add(provider.getemail());
+				row.add(provider.getfax());
+				row.add(provider.getfacility());
+				row.add(provider.getaddress());
+				row.add(provider.getcountry());
+			} else {
+				addBlank(row, 8);
+			}
+		}
+		countTruncated(providers, maxNumOfProviders);
+
+		Facility facility = ecr.getFacility();
+		row.add(facility.getid());
+		row.add(facility.getname());
+		row.add(facility.getphone());
+		row.add(facility.getaddress());
+		row.add(facility.getfax());
+		row.add(facility.gethospitalUnit());
+
+		Patient patient = ecr.getPatient();
+		String idStr = ECRData.stringPatientIds(patient.getid());
+		row.add(idStr);
+		row.add(patient.getname().toString());
+
+		List<ParentGuardian> parentGuardians = patient.getparentsGuardians();
+		for (int i = 0; i < maxNumOfParentGuardians; i++) {
+			if (i < parentGuardians.size()) {
+				ParentGuardian parentGuardian = parentGuardians.get(i);
+				row.add(parentGuardian.getname().toString());
+				row.add(parentGuardian.getphone());
+				row.add(parentGuardian.getemail());
+			} else {
+				addBlank(row, 3);
+			}
+		}
+		countTruncated(parentGuardians, maxNumOfParentGuardians);
+
+		row.add(patient.getstreetAddress());
+		row.add(patient.getbirthDate());
+		row.add(patient.getsex());
+		row.add(patient.getpatientClass());
+		row.add(patient.getrace().toString());
+		row.add(patient.getethnicity().toString());
+		row.add(patient.getpreferredLanguage().toString());
+		row.add(patient.getoccupation());
+		if (patient.ispregnant()) {
+			row.add("true");
+		} else {
+			row.add("false");
+		}
+
+		addEach(row, patient.gettravelHistory(), maxNumOfTravelHistory);
+		row.add(patient.getinsuranceType().toString());
+		addEach(row, patient.getimmunizationHistory(), maxNumOfImmunizationHistory);
+		row.add(patient.getvisitDateTime());
+		row.add(patient.getadmissionDateTime());
+		row.add(patient.getdateOfOnset());
+		addEach(row, patient.getsymptoms(), maxNumOfSymptoms);
+		addEach(row, patient.getlabOrderCode(), maxNumOfLabOrderCode);
+		row.add(patient.getplacerOrderCode());
+		addEach(row, patient.getDiagnosis(), maxNumOfDiagnosis);
+		addEach(row, patient.getMedicationProvided(), maxNumOfMedicationProvided);
+		row.add(patient.getdeathDate());
+		row.add(patient.getdateDischarged());
+		addEach(row, patient.getlaboratoryResults(), maxNumOfLaboratoryResult);
+		addEach(row, patient.gettriggerCode(), maxNumOfTriggerCode);
+		addEach(row, patient.getlabTestsPerformed(), maxNumOfLabTestsPerformed);
+		row.add(ecr.getSendingApplication());
+		addEach(row, ecr.getNotes(), maxNumOfNote);
+
+		return row;
+	}
+
+	private void addEach(List<String> row, List<?> values, int width) {
+		for (int i = 0; i < width; i++) {
+			if (i < values.size()) {
+				Object value = values.get(i);
+				row.add(value == null ? null : value.toString());
+			} else {
+				row.add("");
+			}
+		}
+		countTruncated(values, width);
+	}
+
+	private void countTruncated(List<?> values, int width) {
+		if (values.size() > width) {
+			truncated += values.size() - width;
+		}
+	}
+
+	private static void addBlank(List<String> row, int count) {
+		for (int i = 0; i < count; i++) {
+			row.add("");
+		}
+	}
+
+	private static void addNumbered(List<String> csvHeaderList, String prefix, int count) {
+		for (int index = 1; index <= count; index++) {
+			csvHeaderList.add(prefix + index);
+		}
+	}
+}
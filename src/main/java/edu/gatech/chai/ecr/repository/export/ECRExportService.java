@@ -0,0 +1,399 @@
+package edu.gatech.chai.ecr.repository.export;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import edu.gatech.chai.ecr.jpa.json.ECRExportJob;
+import edu.gatech.chai.ecr.jpa.json.ECRExportRequest;
+import edu.gatech.chai.ecr.jpa.model.ExportJob;
+import edu.gatech.chai.ecr.jpa.repo.ECRSearchCriteria;
+import edu.gatech.chai.ecr.jpa.repo.ExportJobRepository;
+import edu.gatech.chai.ecr.repository.ECRJobLeaser;
+
+// Runs CSV exports in the background and keeps the gzipped result on disk until it
+// expires. Exports have their own small thread pool and queue, so a burst of requests
+// cannot starve the request threads or the database pool; once the queue is full new
+// exports are rejected. Job state is kept in ecr.ecr_export_job, so any node can report
+// on any job. The file is on the disk of the node that ran the export; other nodes can
+// serve it only when ECR_EXPORT_DIR is shared storage, and otherwise name that node.
+@Component
+public class ECRExportService {
+	private static final Logger logger = LoggerFactory.getLogger(ECRExportService.class);
+	private static final String FILE_PREFIX = "ecr_export_";
+	private static final String FILE_SUFFIX = ".csv.gz";
+	private static final String PART_SUFFIX = ".part";
+
+	private static final long PROGRESS_INTERVAL_MS = 5000;
+	// Queued and running jobs are touched this often; a job not touched for STALE_AFTER_MS
+	// belongs to a node that has gone away.
+	private static final long HEARTBEAT_INTERVAL_MS = 60000;
+	private static final long STALE_AFTER_MS = 10 * HEARTBEAT_INTERVAL_MS;
+
+	@Autowired
+	private ECRCsvExporter ecrCsvExporter;
+
+	@Autowired
+	private ExportJobRepository exportJobRepository;
+
+	@Autowired
+	private ECRJobLeaser ecrJobLeaser;
+
+	@Autowired
+	private PlatformTransactionManager transactionManager;
+
+	@Value("${ecr.export.dir:${java.io.tmpdir}/ecr-exports}")
+	private String exportDir;
+
+	@Value("${ecr.export.max-concurrent:2}")
+	private int maxConcurrent;
+
+	@Value("${ecr.export.queue-capacity:10}")
+	private int queueCapacity;
+
+	@Value("${ecr.export.retention-minutes:1440}")
+	private long retentionMinutes;
+
+	// Exports queued or running on this node, for up to date progress.
+	private final Map<String, ExportTask> tasks = new ConcurrentHashMap<String, ExportTask>();
+	private ThreadPoolExecutor executor;
+	private ScheduledExecutorService heartbeat;
+	private Path directory;
+	private String nodeId;
+	private TransactionTemplate transactionTemplate;
+
+	@PostConstruct
+	public void start() throws IOException {
+		directory = Paths.get(exportDir).toAbsolutePath();
+		Files.createDirectories(directory);
+		nodeId = ecrJobLeaser.getNodeId();
+
+		// Job rows are written from inside the export's read-only transaction.
+		transactionTemplate = new TransactionTemplate(transactionManager);
+		transactionTemplate.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+
+		// Exports this node was running when it stopped died with it, and so did those of
+		// nodes that stopped touching their jobs.
+		for (ExportJob row : exportJobRepository.findByNodeIdAndStatusIn(nodeId, Arrays.asList(ECRExportJob.QUEUED, ECRExportJob.RUNNING))) {
+			fail(row, "Interrupted by a restart");
+		}
+		failAbandonedExports();
+
+		// Files without a job row were left behind by removed jobs or by earlier versions,
+		// and partial files of jobs that are no longer running by nodes that stopped.
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, FILE_PREFIX + "*")) {
+			for (Path file : files) {
+				String name = file.getFileName().toString();
+				String id = name.substring(FILE_PREFIX.length()).replace(PART_SUFFIX, "").replace(FILE_SUFFIX, "");
+				ExportJob row = exportJobRepository.findById(id).orElse(null);
+				if (row == null || (name.endsWith(PART_SUFFIX) && row.getFinishedDate() != null)) {
+					Files.deleteIfExists(file);
+				}
+			}
+		}
+
+		AtomicInteger threadCount = new AtomicInteger();
+		executor = new ThreadPoolExecutor(maxConcurrent, maxConcurrent, 0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(queueCapacity), runnable -> {
+					Thread thread = new Thread(runnable, "ecr-export-" + threadCount.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}, new ThreadPoolExecutor.AbortPolicy());
+		heartbeat = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "ecr-export-heartbeat");
+			thread.setDaemon(true);
+			return thread;
+		});
+		heartbeat.scheduleWithFixedDelay(this::touchExports, HEARTBEAT_INTERVAL_MS, HEARTBEAT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+		logger.info("CSV exports write to " + directory + " with " + maxConcurrent + " workers");
+	}
+
+	@PreDestroy
+	public void stop() {
+		heartbeat.shutdownNow();
+		executor.shutdownNow();
+	}
+
+	// Validates the filters up front (IllegalArgumentException) and queues the export.
+	// Throws RejectedExecutionException when the export queue is full.
+	public ECRExportJob submit(ECRExportRequest request) {
+		ECRSearchCriteria criteria = criteria(request);
+
+		ExportTask task = new ExportTask(UUID.randomUUID().toString(), criteria);
+		exportJobRepository.save(task.toRow(nodeId));
+		tasks.put(task.id, task);
+		try {
+			executor.execute(() -> run(task));
+		} catch (RejectedExecutionException e) {
+			tasks.remove(task.id);
+			exportJobRepository.deleteById(task.id);
+			throw e;
+		}
+		return task.toJob(nodeId);
+	}
+
+	public ECRExportJob getJob(String id) {
+		ExportTask task = tasks.get(id);
+		if (task != null) {
+			return task.toJob(nodeId);
+		}
+		return exportJobRepository.findById(id).map(ECRExportService::toJob).orElse(null);
+	}
+
+	// The finished file, or null if the job is unknown, not done yet, or its file is on
+	// another node's disk.
+	public Path getFile(String id) {
+		ExportJob row = exportJobRepository.findById(id).orElse(null);
+		if (row == null || !ECRExportJob.DONE.equals(row.getStatus()) || row.getFileName() == null) {
+			return null;
+		}
+		Path file = directory.resolve(row.getFileName());
+		return Files.isReadable(file) ? file : null;
+	}
+
+	public String getNodeId() {
+		return nodeId;
+	}
+
+	// Each node removes its own expired jobs and their files. Jobs of nodes that have
+	// been gone for another retention period are removed by whichever node gets there.
+	// Jobs left queued or running by a node that went away are failed first, so that
+	// they expire like any other.
+	@Scheduled(fixedDelayString = "${ecr.export.cleanup-interval-ms:600000}")
+	public void removeExpiredExports() {
+		failAbandonedExports();
+
+		long retention = TimeUnit.MINUTES.toMillis(retentionMinutes);
+		Date expiredBefore = new Date(System.currentTimeMillis() - retention);
+		Date abandonedBefore = new Date(expiredBefore.getTime() - retention);
+		List<ExportJob> expired = new ArrayList<ExportJob>(exportJobRepository.findByNodeIdAndFinishedDateBefore(nodeId, expiredBefore));
+		expired.addAll(exportJobRepository.findByFinishedDateBefore(abandonedBefore));
+		for (ExportJob row : expired) {
+			if (row.getFileName() != null) {
+				Path file = directory.resolve(row.getFileName());
+				try {
+					Files.deleteIfExists(file);
+				} catch (IOException e) {
+					logger.warn("Could not delete expired export " + file + ": " + e.getMessage());
+					continue;
+				}
+			}
+			deletePart(row.getId());
+			if (exportJobRepository.existsById(row.getId())) {
+				exportJobRepository.deleteById(row.getId());
+			}
+		}
+	}
+
+	private void touchExports() {
+		try {
+			List<String> ids = new ArrayList<String>(tasks.keySet());
+			if (!ids.isEmpty()) {
+				transactionTemplate.executeWithoutResult(status -> exportJobRepository.touch(ids, new Date()));
+			}
+		} catch (RuntimeException e) {
+			logger.warn("Could not update the export jobs of this node: " + e.getMessage());
+		}
+	}
+
+	private void failAbandonedExports() {
+		Date staleBefore = new Date(System.currentTimeMillis() - STALE_AFTER_MS);
+		for (ExportJob row : exportJobRepository.findUnfinishedNotUpdatedSince(staleBefore)) {
+			if (!tasks.containsKey(row.getId())) {
+				fail(row, "Interrupted: node " + row.getNodeId() + " stopped");
+			}
+		}
+	}
+
+	private void fail(ExportJob row, String message) {
+		row.setStatus(ECRExportJob.FAILED);
+		row.setErrorMessage(message);
+		row.setFinishedDate(new Date());
+		row.setLastUpdateDate(row.getFinishedDate());
+		exportJobRepository.save(row);
+		deletePart(row.getId());
+	}
+
+	// The partial file is only here if this node ran the job or ECR_EXPORT_DIR is shared.
+	private void deletePart(String id) {
+		Path part = directory.resolve(fileName(id) + PART_SUFFIX);
+		try {
+			Files.deleteIfExists(part);
+		} catch (IOException e) {
+			logger.warn("Could not delete " + part + ": " + e.getMessage());
+		}
+	}
+
+	private void run(ExportTask task) {
+		task.startedDate = new Date();
+		task.status = ECRExportJob.RUNNING;
+		persist(task);
+
+		Path part = directory.resolve(fileName(task.id) + PART_SUFFIX);
+		Path file = directory.resolve(fileName(task.id));
+		try {
+			try (OutputStream out = new GZIPOutputStream(new BufferedOutputStream(Files.newOutputStream(part)), 65536)) {
+				ecrCsvExporter.export(task.criteria, out, new ECRCsvExporter.Progress() {
+					private long persisted = System.currentTimeMillis();
+
+					@Override
+					public void total(long total) {
+						task.totalRows = total;
+						persist(task);
+					}
+
+					@Override
+					public void written(long written) {
+						task.writtenRows = written;
+						if (System.currentTimeMillis() - persisted >= PROGRESS_INTERVAL_MS) {
+							persisted = System.currentTimeMillis();
+							persist(task);
+						}
+					}
+				});
+			}
+			Files.move(part, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			task.fileName = file.getFileName().toString();
+			task.fileSize = Files.size(file);
+			task.status = ECRExportJob.DONE;
+			logger.info("Export " + task.id + " wrote " + task.writtenRows + " rows to " + file);
+		} catch (Exception e) {
+			logger.error("Export " + task.id + " failed", e);
+			task.message = e.getMessage();
+			task.status = ECRExportJob.FAILED;
+			try {
+				Files.deleteIfExists(part);
+			} catch (IOException ignored) {
+			}
+		} finally {
+			task.finishedDate = new Date();
+			try {
+				persist(task);
+			} finally {
+				tasks.remove(task.id);
+			}
+		}
+	}
+
+	private void persist(ExportTask task) {
+		ExportJob row = task.toRow(nodeId);
+		transactionTemplate.executeWithoutResult(status -> exportJobRepository.save(row));
+	}
+
+	private static String fileName(String id) {
+		return FILE_PREFIX + id + FILE_SUFFIX;
+	}
+
+	private static ECRExportJob toJob(ExportJob row) {
+		ECRExportJob job = new ECRExportJob();
+		job.setId(row.getId());
+		job.setNode(row.getNodeId());
+		job.setStatus(row.getStatus());
+		job.setCreatedDate(row.getCreatedDate());
+		job.setStartedDate(row.getStartedDate());
+		job.setFinishedDate(row.getFinishedDate());
+		job.setTotalRows(row.getTotalRows());
+		job.setWrittenRows(row.getWrittenRows());
+		job.setFileSize(row.getFileSize());
+		job.setMessage(row.getErrorMessage());
+		return job;
+	}
+
+	private static ECRSearchCriteria criteria(ECRExportRequest request) {
+		ECRSearchCriteria criteria = new ECRSearchCriteria()
+				.setLastName(request.getLastName())
+				.setFirstName(request.getFirstName())
+				.setZipCode(request.getZipCode())
+				.setDiagnosisCode(request.getDiagnosisCode())
+				.setPatientId(request.getPatientId());
+		for (String date : request.getFirstDate()) {
+			criteria.addFirstDate(date);
+		}
+		for (String date : request.getLastDate()) {
+			criteria.addLastDate(date);
+		}
+		return criteria;
+	}
+
+	// Written by the export thread, read by request threads.
+	private static class ExportTask {
+		private final String id;
+		private final ECRSearchCriteria criteria;
+		private final Date createdDate = new Date();
+		private volatile String status = ECRExportJob.QUEUED;
+		private volatile Date startedDate;
+		private volatile Date finishedDate;
+		private volatile Long totalRows;
+		private volatile long writtenRows;
+		private volatile Long fileSize;
+		private volatile String message;
+		private volatile String fileName;
+
+		private ExportTask(String id, ECRSearchCriteria criteria) {
+			this.id = id;
+			this.criteria = criteria;
+		}
+
+		private ExportJob toRow(String nodeId) {
+			ExportJob row = new ExportJob(id, nodeId, status);
+			row.setCreatedDate(createdDate);
+			row.setStartedDate(startedDate);
+			row.setFinishedDate(finishedDate);
+			row.setTotalRows(totalRows);
+			row.setWrittenRows(writtenRows);
+			row.setFileName(fileName);
+			row.setFileSize(fileSize);
+			row.setErrorMessage(message == null ? null : message.substring(0, Math.min(message.length(), 1024)));
+			row.setLastUpdateDate(new Date());
+			return row;
+		}
+
+		private ECRExportJob toJob(String nodeId) {
+			ECRExportJob job = new ECRExportJob();
+			job.setId(id);
+			job.setNode(nodeId);
+			job.setStatus(status);
+			job.setCreatedDate(createdDate);
+			job.setStartedDate(startedDate);
+			job.setFinishedDate(finishedDate);
+			job.setTotalRows(totalRows);
+			job.setWrittenRows(writtenRows);
+			job.setFileSize(fileSize);
+			job.setMessage(message);
+			return job;
+		}
+	}
+}
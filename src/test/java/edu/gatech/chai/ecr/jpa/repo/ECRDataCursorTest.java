@@ -0,0 +1,38 @@
+package edu.gatech.chai.ecr.jpa.repo;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+import org.junit.jupiter.api.Test;
+
+public class ECRDataCursorTest {
+	@Test
+	public void roundTrips() {
+		ECRDataCursor cursor = ECRDataCursor.decode(new ECRDataCursor(2147483, 98765).encode());
+		assertEquals(2147483, cursor.getECRId());
+		assertEquals(98765, cursor.getId());
+	}
+
+	@Test
+	public void encodesUrlSafeWithoutPadding() {
+		String token = new ECRDataCursor(Integer.MAX_VALUE, Integer.MAX_VALUE).encode();
+		assertTrue(token.matches("[A-Za-z0-9_-]+"), token);
+	}
+
+	@Test
+	public void rejectsMalformedTokens() {
+		assertThrows(IllegalArgumentException.class, () -> ECRDataCursor.decode("not base64!"));
+		assertThrows(IllegalArgumentException.class, () -> ECRDataCursor.decode(token("12")));
+		assertThrows(IllegalArgumentException.class, () -> ECRDataCursor.decode(token("12:34:56")));
+		assertThrows(IllegalArgumentException.class, () -> ECRDataCursor.decode(token("12:x")));
+		assertThrows(IllegalArgumentException.class, () -> ECRDataCursor.decode(""));
+	}
+
+	private static String token(String position) {
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(position.getBytes(StandardCharsets.UTF_8));
+	}
+}
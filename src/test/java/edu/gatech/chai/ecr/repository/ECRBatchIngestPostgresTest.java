@@ -0,0 +1,114 @@
+package edu.gatech.chai.ecr.repository;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfEnvironmentVariable;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.MediaType;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import org.springframework.test.web.servlet.MockMvc;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import edu.gatech.chai.ecr.jpa.json.ECR;
+import edu.gatech.chai.ecr.jpa.json.ECRBatchResult;
+import edu.gatech.chai.ecr.jpa.json.Patient;
+import edu.gatech.chai.ecr.jpa.json.Provider;
+import edu.gatech.chai.ecr.jpa.json.TypeableID;
+import edu.gatech.chai.ecr.jpa.model.ECRData;
+import edu.gatech.chai.ecr.jpa.model.ECRDataHistory;
+import edu.gatech.chai.ecr.jpa.repo.ECRDataHistoryRepository;
+import edu.gatech.chai.ecr.jpa.repo.ECRDataRepository;
+
+// POST /ECR/batch against a real PostgreSQL, like ECRBulkWriterPostgresTest: only runs when
+// ECR_IT_JDBC_URL points at a Postgres database. Every run uses its own identifier
+// system, so the database need not be empty.
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.MOCK)
+@AutoConfigureMockMvc
+@EnabledIfEnvironmentVariable(named = "ECR_IT_JDBC_URL", matches = "jdbc:postgresql:.*")
+public class ECRBatchIngestPostgresTest {
+	@Autowired
+	private MockMvc mockMvc;
+
+	@Autowired
+	private ObjectMapper objectMapper;
+
+	@Autowired
+	private ECRDataRepository ecrDataRepository;
+
+	@Autowired
+	private ECRDataHistoryRepository ecrDataHistoryRepository;
+
+	@DynamicPropertySource
+	static void database(DynamicPropertyRegistry registry) {
+		registry.add("spring.datasource.url", () -> System.getenv("ECR_IT_JDBC_URL"));
+		registry.add("spring.datasource.username", () -> System.getenv().getOrDefault("ECR_IT_JDBC_USERNAME", "postgres"));
+		registry.add("spring.datasource.password", () -> System.getenv().getOrDefault("ECR_IT_JDBC_PASSWORD", ""));
+		registry.add("spring.datasource.driver-class-name", () -> "org.postgresql.Driver");
+		registry.add("spring.jpa.properties.hibernate.dialect", () -> "org.hibernate.dialect.PostgreSQL10Dialect");
+		registry.add("server.port", () -> "0");
+	}
+
+	// Two messages for the same patient in one chunk: the second merges into the case the
+	// first created, and each keeps a history row with only what it brought.
+	@Test
+	public void mergesTwoMessagesForOnePatientInOneChunk() throws Exception {
+		String system = "urn:ecr-it:" + UUID.randomUUID();
+		String body = objectMapper.writeValueAsString(Arrays.asList(ecr(system, "first"), ecr(system, "second")));
+
+		String response = mockMvc.perform(post("/ECR/batch").contentType(MediaType.APPLICATION_JSON).content(body))
+				.andExpect(status().isOk())
+				.andReturn().getResponse().getContentAsString();
+		List<ECRBatchResult> results = objectMapper.readValue(response, new TypeReference<List<ECRBatchResult>>() {});
+
+		assertEquals(2, results.size());
+		assertEquals(ECRBatchResult.CREATED, results.get(0).getStatus());
+		assertEquals(ECRBatchResult.UPDATED, results.get(1).getStatus());
+		assertEquals(results.get(0).getEcrId(), results.get(1).getEcrId());
+		Integer ecrId = Integer.valueOf(results.get(0).getEcrId());
+
+		List<ECRData> cases = ecrDataRepository.findByEcrIdAndCurrentTrue(ecrId);
+		assertEquals(1, cases.size());
+		assertEquals(Arrays.asList("first", "second"), cases.get(0).getECR().getNotes());
+
+		List<ECRDataHistory> histories = new ArrayList<ECRDataHistory>(ecrDataHistoryRepository.findByEcrId(ecrId));
+		histories.sort(Comparator.comparing(ECRDataHistory::getId));
+		assertEquals(2, histories.size());
+		assertEquals(Arrays.asList("first"), histories.get(0).getECR().getNotes());
+		assertEquals(Arrays.asList("second"), histories.get(1).getECR().getNotes());
+	}
+
+	private static ECR ecr(String system, String note) {
+		Provider provider = new Provider();
+		provider.setname("LOCAL PROVIDER");
+		TypeableID providerId = new TypeableID();
+		providerId.settype("LOCAL_PROVIDER");
+		providerId.setvalue("1");
+		provider.setid(providerId);
+
+		TypeableID patientId = new TypeableID();
+		patientId.settype(system);
+		patientId.setvalue("1");
+		Patient patient = new Patient();
+		patient.setid(new ArrayList<TypeableID>(Arrays.asList(patientId)));
+
+		ECR ecr = new ECR();
+		ecr.setPatient(patient);
+		ecr.setProvider(new ArrayList<Provider>(Arrays.asList(provider)));
+		ecr.getNotes().add(note);
+		return ecr;
+	}
+}
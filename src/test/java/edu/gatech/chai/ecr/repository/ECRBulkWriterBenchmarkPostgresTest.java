@@ -0,0 +1,122 @@
+package edu.gatech.chai.ecr.repository;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfEnvironmentVariable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import edu.gatech.chai.ecr.jpa.json.ECR;
+import edu.gatech.chai.ecr.jpa.json.Patient;
+import edu.gatech.chai.ecr.jpa.json.Provider;
+import edu.gatech.chai.ecr.jpa.json.TypeableID;
+
+// Rows per second of each bulk write path (COPY, JDBC batch, JPA) on a real PostgreSQL.
+// Each path loads ECR_IT_BENCHMARK_ROWS new patients in chunks of ECR_IT_BENCHMARK_CHUNK
+// (default 500), then reads the same list again, which only updates. Runs only when both
+// ECR_IT_JDBC_URL and ECR_IT_BENCHMARK_ROWS are set, and logs the results; it checks the
+// row counts but not the speed.
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.NONE)
+@EnabledIfEnvironmentVariable(named = "ECR_IT_JDBC_URL", matches = "jdbc:postgresql:.*")
+@EnabledIfEnvironmentVariable(named = "ECR_IT_BENCHMARK_ROWS", matches = "[0-9]+")
+public class ECRBulkWriterBenchmarkPostgresTest {
+	private static final Logger logger = LoggerFactory.getLogger(ECRBulkWriterBenchmarkPostgresTest.class);
+
+	@Autowired
+	private ECRIngestService ecrIngestService;
+
+	@Autowired
+	private ECRBulkWriter ecrBulkWriter;
+
+	@DynamicPropertySource
+	static void database(DynamicPropertyRegistry registry) {
+		registry.add("spring.datasource.url", () -> System.getenv("ECR_IT_JDBC_URL"));
+		registry.add("spring.datasource.username", () -> System.getenv().getOrDefault("ECR_IT_JDBC_USERNAME", "postgres"));
+		registry.add("spring.datasource.password", () -> System.getenv().getOrDefault("ECR_IT_JDBC_PASSWORD", ""));
+		registry.add("spring.datasource.driver-class-name", () -> "org.postgresql.Driver");
+		registry.add("spring.jpa.properties.hibernate.dialect", () -> "org.hibernate.dialect.PostgreSQL10Dialect");
+		registry.add("server.port", () -> "0");
+	}
+
+	@Test
+	public void rowsPerSecondPerPath() {
+		int rows = Integer.parseInt(System.getenv("ECR_IT_BENCHMARK_ROWS"));
+		int chunkSize = Integer.parseInt(System.getenv().getOrDefault("ECR_IT_BENCHMARK_CHUNK", "500"));
+		String[] paths = { ECRBulkWriter.COPY, ECRBulkWriter.BATCH, ECRBulkWriter.JPA };
+		String configured = ecrBulkWriter.getPath();
+		try {
+			// One untimed chunk per path first, so the first path measured does not pay for
+			// class loading and JIT warm-up.
+			for (String path : paths) {
+				ReflectionTestUtils.setField(ecrBulkWriter, "path", path);
+				load("urn:ecr-bench:" + UUID.randomUUID(), chunkSize, chunkSize);
+			}
+
+			for (String path : paths) {
+				ReflectionTestUtils.setField(ecrBulkWriter, "path", path);
+				String system = "urn:ecr-bench:" + UUID.randomUUID();
+
+				long start = System.nanoTime();
+				assertEquals(rows, load(system, rows, chunkSize));
+				long insertNanos = System.nanoTime() - start;
+
+				start = System.nanoTime();
+				assertEquals(0, load(system, rows, chunkSize));
+				long updateNanos = System.nanoTime() - start;
+
+				logger.info(String.format("%-5s %d rows in chunks of %d: insert %.0f rows/s (%.1f s), update %.0f rows/s (%.1f s)",
+						path, rows, chunkSize, rows / (insertNanos / 1e9), insertNanos / 1e9,
+						rows / (updateNanos / 1e9), updateNanos / 1e9));
+			}
+		} finally {
+			ReflectionTestUtils.setField(ecrBulkWriter, "path", configured);
+		}
+	}
+
+	// Returns the cases created.
+	private int load(String system, int rows, int chunkSize) {
+		int created = 0;
+		for (int from = 0; from < rows; from += chunkSize) {
+			List<ECR> ecrs = new ArrayList<ECR>();
+			List<TypeableID> patientIds = new ArrayList<TypeableID>();
+			for (int i = from; i < Math.min(rows, from + chunkSize); i++) {
+				ECR ecr = ecr(system, Integer.toString(i));
+				ecrs.add(ecr);
+				patientIds.addAll(ecr.getPatient().getid());
+			}
+			created += ecrIngestService.ingestBulkChunk(ecrs, ecrIngestService.resolveCaseKeys(patientIds));
+		}
+		return created;
+	}
+
+	private static ECR ecr(String system, String value) {
+		Provider provider = new Provider();
+		provider.setname("LOCAL PROVIDER");
+		TypeableID providerId = new TypeableID();
+		providerId.settype("LOCAL_PROVIDER");
+		providerId.setvalue("1");
+		provider.setid(providerId);
+
+		TypeableID patientId = new TypeableID();
+		patientId.settype(system);
+		patientId.setvalue(value);
+		Patient patient = new Patient();
+		patient.setid(new ArrayList<TypeableID>(Arrays.asList(patientId)));
+
+		ECR ecr = new ECR();
+		ecr.setPatient(patient);
+		ecr.setProvider(new ArrayList<Provider>(Arrays.asList(provider)));
+		return ecr;
+	}
+}
@@ -0,0 +1,195 @@
+package edu.gatech.chai.ecr.repository;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfEnvironmentVariable;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+
+import edu.gatech.chai.ecr.jpa.json.BulkFileStatus;
+import edu.gatech.chai.ecr.jpa.json.ECR;
+import edu.gatech.chai.ecr.jpa.json.Patient;
+import edu.gatech.chai.ecr.jpa.json.Provider;
+import edu.gatech.chai.ecr.jpa.json.TypeableID;
+import edu.gatech.chai.ecr.repository.bulk.BulkFileIngester;
+
+// The COPY path of ECRBulkWriter against a real PostgreSQL: staging with COPY, the upserts
+// from the staging tables, and the same chunk written a second time. Only runs when
+// ECR_IT_JDBC_URL points at a Postgres database (ECR_IT_JDBC_USERNAME and
+// ECR_IT_JDBC_PASSWORD for the login); the schema is created or updated as on startup.
+// Every run uses its own identifier system, so the database need not be empty.
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.NONE)
+@EnabledIfEnvironmentVariable(named = "ECR_IT_JDBC_URL", matches = "jdbc:postgresql:.*")
+public class ECRBulkWriterPostgresTest {
+	private static final int PATIENTS = 120;
+
+	@Autowired
+	private ECRIngestService ecrIngestService;
+
+	@Autowired
+	private ECRBulkWriter ecrBulkWriter;
+
+	@Autowired
+	private BulkFileIngester bulkFileIngester;
+
+	@Autowired
+	private JdbcTemplate jdbcTemplate;
+
+	private String system;
+
+	@DynamicPropertySource
+	static void database(DynamicPropertyRegistry registry) {
+		registry.add("spring.datasource.url", () -> System.getenv("ECR_IT_JDBC_URL"));
+		registry.add("spring.datasource.username", () -> System.getenv().getOrDefault("ECR_IT_JDBC_USERNAME", "postgres"));
+		registry.add("spring.datasource.password", () -> System.getenv().getOrDefault("ECR_IT_JDBC_PASSWORD", ""));
+		registry.add("spring.datasource.driver-class-name", () -> "org.postgresql.Driver");
+		registry.add("spring.jpa.properties.hibernate.dialect", () -> "org.hibernate.dialect.PostgreSQL10Dialect");
+		registry.add("server.port", () -> "0");
+		registry.add("ecr.bulk.writer", () -> "auto");
+		registry.add("ecr.bulk.chunk-size", () -> "50");
+	}
+
+	@BeforeEach
+	public void setUp() {
+		system = "urn:ecr-it:" + UUID.randomUUID();
+	}
+
+	@Test
+	public void writesWithCopy() {
+		assertEquals(ECRBulkWriter.COPY, ecrBulkWriter.getPath());
+	}
+
+	@Test
+	public void rerunningAChunkUpdatesInPlace() {
+		assertEquals(PATIENTS, ingest(0, PATIENTS));
+		assertCounts(PATIENTS);
+		Long firstChange = maxChangeSeq();
+		List<Integer> keys = caseKeys();
+
+		// The same chunk again, e.g. after a node stopped before its checkpoint committed.
+		assertEquals(0, ingest(0, PATIENTS));
+		assertCounts(PATIENTS);
+		assertEquals(keys, caseKeys());
+		assertTrue(minChangeSeq() > firstChange, "every case is stamped with the new change number");
+
+		// Half known, half new.
+		assertEquals(PATIENTS / 2, ingest(PATIENTS / 2, PATIENTS + PATIENTS / 2));
+		assertCounts(PATIENTS + PATIENTS / 2);
+	}
+
+	@Test
+	public void mergesAPatientListedTwiceInAChunk() {
+		List<ECR> ecrs = new ArrayList<ECR>();
+		ecrs.add(ecr("1"));
+		ecrs.add(ecr("1"));
+		ecrs.add(ecr("2"));
+		assertEquals(2, ecrIngestService.ingestBulkChunk(ecrs, ecrIngestService.resolveCaseKeys(patientIds(ecrs))));
+		assertCounts(2);
+	}
+
+	@Test
+	public void uploadingAListAgainCreatesNothing() throws IOException {
+		StringBuilder list = new StringBuilder("# patients\n");
+		for (int i = 0; i < PATIENTS; i++) {
+			list.append(system).append(',').append(i).append('\n');
+		}
+		byte[] bytes = list.toString().getBytes(StandardCharsets.UTF_8);
+
+		BulkFileStatus first = upload(bytes);
+		assertEquals(BulkFileStatus.DONE, first.getStatus());
+		assertEquals(PATIENTS, first.getCreated());
+		assertEquals(3, first.getChunks());
+
+		BulkFileStatus second = upload(bytes);
+		assertEquals(BulkFileStatus.DONE, second.getStatus());
+		assertEquals(0, second.getCreated());
+		assertEquals(PATIENTS, second.getPatients());
+		assertCounts(PATIENTS);
+	}
+
+	private BulkFileStatus upload(byte[] bytes) throws IOException {
+		BulkFileStatus started = bulkFileIngester.startUpload("it");
+		return bulkFileIngester.ingestUpload(started.getId(), new ByteArrayInputStream(bytes), false);
+	}
+
+	// Patients from (inclusive) to (exclusive) as one chunk; returns the cases created.
+	private int ingest(int from, int to) {
+		List<ECR> ecrs = new ArrayList<ECR>();
+		for (int i = from; i < to; i++) {
+			ecrs.add(ecr(Integer.toString(i)));
+		}
+		return ecrIngestService.ingestBulkChunk(ecrs, ecrIngestService.resolveCaseKeys(patientIds(ecrs)));
+	}
+
+	// One current case, one identifier and one running job per patient.
+	private void assertCounts(int patients) {
+		assertEquals(patients, count("select count(*) from ecr.ecr_patient_identifier where type = ?"));
+		assertEquals(patients, count("select count(*) from ecr.ecr_data d where d.is_current = true and exists "
+				+ "(select 1 from ecr.ecr_patient_identifier i where i.case_report_key = d.case_report_key and i.type = ?)"));
+		assertEquals(patients, count("select count(*) from ecr.ecr_job j where j.status_code = 'R' and exists "
+				+ "(select 1 from ecr.ecr_patient_identifier i where i.case_report_key = j.case_report_key and i.type = ?)"));
+		assertEquals(patients, count("select count(distinct j.case_report_key) from ecr.ecr_job j where exists "
+				+ "(select 1 from ecr.ecr_patient_identifier i where i.case_report_key = j.case_report_key and i.type = ?)"));
+	}
+
+	private int count(String sql) {
+		return jdbcTemplate.queryForObject(sql, Integer.class, system);
+	}
+
+	private List<Integer> caseKeys() {
+		return jdbcTemplate.queryForList("select case_report_key from ecr.ecr_patient_identifier where type = ? "
+				+ "order by case_report_key", Integer.class, system);
+	}
+
+	private Long maxChangeSeq() {
+		return jdbcTemplate.queryForObject("select max(d.change_seq) from ecr.ecr_data d join ecr.ecr_patient_identifier i "
+				+ "on i.case_report_key = d.case_report_key where i.type = ?", Long.class, system);
+	}
+
+	private Long minChangeSeq() {
+		return jdbcTemplate.queryForObject("select min(d.change_seq) from ecr.ecr_data d join ecr.ecr_patient_identifier i "
+				+ "on i.case_report_key = d.case_report_key where i.type = ?", Long.class, system);
+	}
+
+	private ECR ecr(String value) {
+		Provider provider = new Provider();
+		provider.setname("LOCAL PROVIDER");
+		TypeableID providerId = new TypeableID();
+		providerId.settype("LOCAL_PROVIDER");
+		providerId.setvalue("1");
+		provider.setid(providerId);
+
+		TypeableID patientId = new TypeableID();
+		patientId.settype(system);
+		patientId.setvalue(value);
+		Patient patient = new Patient();
+		patient.setid(new ArrayList<TypeableID>(Arrays.asList(patientId)));
+
+		ECR ecr = new ECR();
+		ecr.setPatient(patient);
+		ecr.setProvider(new ArrayList<Provider>(Arrays.asList(provider)));
+		return ecr;
+	}
+
+	private static List<TypeableID> patientIds(List<ECR> ecrs) {
+		List<TypeableID> patientIds = new ArrayList<TypeableID>();
+		for (ECR ecr : ecrs) {
+			patientIds.addAll(ecr.getPatient().getid());
+		}
+		return patientIds;
+	}
+}
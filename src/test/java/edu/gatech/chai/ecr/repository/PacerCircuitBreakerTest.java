@@ -0,0 +1,123 @@
+package edu.gatech.chai.ecr.repository;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+public class PacerCircuitBreakerTest {
+	private static final String ENDPOINT = "https://pacer.example.org/JobManager";
+
+	private SimpleMeterRegistry meterRegistry;
+	private PacerCircuitBreaker breaker;
+
+	@BeforeEach
+	public void setUp() {
+		meterRegistry = new SimpleMeterRegistry();
+		breaker = new PacerCircuitBreaker();
+		ReflectionTestUtils.setField(breaker, "meterRegistry", meterRegistry);
+		ReflectionTestUtils.setField(breaker, "failureThreshold", 3);
+		ReflectionTestUtils.setField(breaker, "openSeconds", 300L);
+	}
+
+	@Test
+	public void opensAfterThresholdFailuresInARow() {
+		breaker.recordFailure(ENDPOINT);
+		breaker.recordFailure(ENDPOINT);
+		assertTrue(breaker.allowRequest(ENDPOINT));
+		assertEquals(PacerCircuitBreaker.CLOSED, state());
+
+		breaker.recordFailure(ENDPOINT);
+		assertEquals(PacerCircuitBreaker.OPEN, state());
+		assertFalse(breaker.allowRequest(ENDPOINT));
+		assertFalse(breaker.allowRequest(ENDPOINT));
+		assertEquals(2, meterRegistry.get("ecr.pacer.circuit.rejected").tag("endpoint", ENDPOINT).counter().count());
+		assertTrue(breaker.retryAt(ENDPOINT) >= System.currentTimeMillis() + 299000);
+	}
+
+	@Test
+	public void successResetsTheFailureCount() {
+		breaker.recordFailure(ENDPOINT);
+		breaker.recordFailure(ENDPOINT);
+		breaker.recordSuccess(ENDPOINT);
+		breaker.recordFailure(ENDPOINT);
+		breaker.recordFailure(ENDPOINT);
+		assertEquals(PacerCircuitBreaker.CLOSED, state());
+		assertTrue(breaker.allowRequest(ENDPOINT));
+	}
+
+	@Test
+	public void circuitsAreKeptPerEndpoint() {
+		open();
+		assertFalse(breaker.allowRequest(ENDPOINT));
+		assertTrue(breaker.allowRequest("https://other.example.org/JobManager"));
+	}
+
+	@Test
+	public void halfOpenLetsOneTrialThroughAndClosesOnSuccess() {
+		ReflectionTestUtils.setField(breaker, "openSeconds", 0L);
+		open();
+
+		assertTrue(breaker.allowRequest(ENDPOINT));
+		assertEquals(PacerCircuitBreaker.HALF_OPEN, state());
+		assertFalse(breaker.allowRequest(ENDPOINT));
+
+		breaker.recordSuccess(ENDPOINT);
+		assertEquals(PacerCircuitBreaker.CLOSED, state());
+		assertTrue(breaker.allowRequest(ENDPOINT));
+		assertTrue(breaker.allowRequest(ENDPOINT));
+	}
+
+	@Test
+	public void failedTrialOpensTheCircuitAgain() {
+		ReflectionTestUtils.setField(breaker, "openSeconds", 0L);
+		open();
+		assertTrue(breaker.allowRequest(ENDPOINT));
+		ReflectionTestUtils.setField(breaker, "openSeconds", 300L);
+
+		breaker.recordFailure(ENDPOINT);
+		assertEquals(PacerCircuitBreaker.OPEN, state());
+		assertFalse(breaker.allowRequest(ENDPOINT));
+	}
+
+	@Test
+	public void releasedTrialPassesToTheNextRequest() {
+		ReflectionTestUtils.setField(breaker, "openSeconds", 0L);
+		open();
+		assertTrue(breaker.allowRequest(ENDPOINT));
+		assertFalse(breaker.allowRequest(ENDPOINT));
+
+		breaker.releaseTrial(ENDPOINT);
+		assertEquals(PacerCircuitBreaker.HALF_OPEN, state());
+		assertTrue(breaker.allowRequest(ENDPOINT));
+		assertFalse(breaker.allowRequest(ENDPOINT));
+	}
+
+	@Test
+	public void countsTransitions() {
+		ReflectionTestUtils.setField(breaker, "openSeconds", 0L);
+		open();
+		breaker.allowRequest(ENDPOINT);
+		breaker.recordSuccess(ENDPOINT);
+
+		for (String state : new String[] { "open", "half-open", "closed" }) {
+			assertEquals(1, meterRegistry.get("ecr.pacer.circuit.transitions").tag("endpoint", ENDPOINT)
+					.tag("state", state).counter().count(), state);
+		}
+	}
+
+	private void open() {
+		for (int i = 0; i < 3; i++) {
+			breaker.recordFailure(ENDPOINT);
+		}
+	}
+
+	private int state() {
+		return (int) meterRegistry.get("ecr.pacer.circuit.state").tag("endpoint", ENDPOINT).gauge().value();
+	}
+}
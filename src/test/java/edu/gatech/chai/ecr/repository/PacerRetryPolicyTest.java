@@ -0,0 +1,59 @@
+package edu.gatech.chai.ecr.repository;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+public class PacerRetryPolicyTest {
+	private static final long MINUTE = 60000;
+
+	private PacerRetryPolicy policy;
+
+	@BeforeEach
+	public void setUp() {
+		policy = new PacerRetryPolicy();
+		ReflectionTestUtils.setField(policy, "baseMinutes", 5L);
+		ReflectionTestUtils.setField(policy, "maxMinutes", 60L);
+	}
+
+	@Test
+	public void doublesTheDelayWithEachAttempt() {
+		assertDelayBetween(1, 5 * MINUTE / 2, 5 * MINUTE);
+		assertDelayBetween(2, 5 * MINUTE, 10 * MINUTE);
+		assertDelayBetween(3, 10 * MINUTE, 20 * MINUTE);
+	}
+
+	@Test
+	public void capsTheDelay() {
+		assertDelayBetween(5, 30 * MINUTE, 60 * MINUTE);
+		assertDelayBetween(1000, 30 * MINUTE, 60 * MINUTE);
+	}
+
+	@Test
+	public void treatsAttemptsBelowOneAsTheFirst() {
+		assertDelayBetween(0, 5 * MINUTE / 2, 5 * MINUTE);
+		assertDelayBetween(-3, 5 * MINUTE / 2, 5 * MINUTE);
+	}
+
+	@Test
+	public void jittersWithinAMinute() {
+		long at = 1700000000000L;
+		for (int i = 0; i < 100; i++) {
+			long jittered = policy.jitter(at).getTime();
+			assertTrue(jittered >= at && jittered < at + MINUTE, String.valueOf(jittered));
+		}
+	}
+
+	// The delay is random, so every attempt is drawn a number of times.
+	private void assertDelayBetween(int attempt, long minMs, long maxMs) {
+		for (int i = 0; i < 100; i++) {
+			long before = System.currentTimeMillis();
+			long next = policy.nextAttempt(attempt).getTime();
+			long after = System.currentTimeMillis();
+			assertTrue(next >= before + minMs && next <= after + maxMs,
+					"attempt " + attempt + ": " + (next - before) + " ms");
+		}
+	}
+}
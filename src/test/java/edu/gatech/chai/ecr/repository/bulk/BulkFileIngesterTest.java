@@ -0,0 +1,124 @@
+package edu.gatech.chai.ecr.repository.bulk;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import edu.gatech.chai.ecr.jpa.json.Patient;
+import edu.gatech.chai.ecr.jpa.model.BulkFile;
+
+// Only the parse stage: lines to chunks and the checkpoint that goes with each chunk.
+public class BulkFileIngesterTest {
+	@TempDir
+	Path dir;
+
+	private BulkFileIngester ingester;
+
+	@BeforeEach
+	public void setUp() {
+		ingester = new BulkFileIngester();
+		ReflectionTestUtils.setField(ingester, "chunkSize", 2);
+		ReflectionTestUtils.setField(ingester, "pipelineDepth", 100);
+	}
+
+	@Test
+	public void chunksLinesAndCheckpointsAfterEachChunk() throws IOException {
+		String content = "# header\nMR,1\nMR,2\nbad\n\nMR,3";
+		BulkFileIngester.Pipeline pipeline = ingester.new Pipeline(new BulkFile("hash", "patients.csv", 0L));
+		List<BulkFileIngester.Chunk> chunks = parse(pipeline, content, 0);
+
+		assertEquals(2, chunks.size());
+		// A chunk covers the skipped lines before its first patient too.
+		assertEquals(1, chunks.get(0).firstLine);
+		assertEquals(3, chunks.get(0).endLine);
+		assertEquals("# header\nMR,1\nMR,2\n".length(), chunks.get(0).endOffset);
+		assertEquals(2, chunks.get(0).patients);
+		assertEquals(List.of("1", "2"), patientIds(chunks.get(0)));
+
+		// The last line has no newline; the checkpoint is the end of the file.
+		assertEquals(4, chunks.get(1).firstLine);
+		assertEquals(6, chunks.get(1).endLine);
+		assertEquals(content.length(), chunks.get(1).endOffset);
+		assertEquals(3, chunks.get(1).patients);
+		assertEquals(1, chunks.get(1).skipped);
+		assertEquals(List.of("3"), patientIds(chunks.get(1)));
+
+		assertEquals(content.length(), pipeline.offset);
+		assertEquals(6, pipeline.lineNumber);
+	}
+
+	@Test
+	public void stripsCarriageReturns() throws IOException {
+		BulkFileIngester.Pipeline pipeline = ingester.new Pipeline(new BulkFile("hash", "patients.csv", 0L));
+		List<BulkFileIngester.Chunk> chunks = parse(pipeline, "MR,1\r\nMR,2\r\n", 0);
+
+		assertEquals(1, chunks.size());
+		assertEquals(List.of("1", "2"), patientIds(chunks.get(0)));
+		assertEquals(12, chunks.get(0).endOffset);
+	}
+
+	@Test
+	public void resumesAfterTheLastCheckpoint() throws IOException {
+		String content = "MR,1\nMR,2\nMR,3\nMR,4\nMR,5\n";
+		Path file = dir.resolve("patients.csv");
+		Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+
+		// As committed with the first chunk before the node stopped.
+		BulkFile bulkFile = new BulkFile("hash", "patients.csv", (long) content.length());
+		bulkFile.setByteOffset(10L);
+		bulkFile.setLineNumber(2);
+		bulkFile.setPatientCount(2);
+		BulkFileIngester.Pipeline pipeline = ingester.new Pipeline(bulkFile);
+
+		List<BulkFileIngester.Chunk> chunks;
+		try (BulkLineReader reader = BulkLineReader.open(file, bulkFile.getByteOffset())) {
+			pipeline.parse(reader);
+			chunks = drain(pipeline);
+		}
+
+		assertEquals(2, chunks.size());
+		assertEquals(3, chunks.get(0).firstLine);
+		assertEquals(List.of("3", "4"), patientIds(chunks.get(0)));
+		assertEquals(20, chunks.get(0).endOffset);
+		assertEquals(4, chunks.get(0).endLine);
+		assertEquals(4, chunks.get(0).patients);
+		assertEquals(List.of("5"), patientIds(chunks.get(1)));
+		assertEquals(content.length(), chunks.get(1).endOffset);
+		assertEquals(5, chunks.get(1).patients);
+	}
+
+	private static List<BulkFileIngester.Chunk> parse(BulkFileIngester.Pipeline pipeline, String content, long offset)
+			throws IOException {
+		pipeline.parse(new BulkLineReader(new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8)), offset));
+		return drain(pipeline);
+	}
+
+	private static List<BulkFileIngester.Chunk> drain(BulkFileIngester.Pipeline pipeline) {
+		List<BulkFileIngester.Chunk> chunks = new ArrayList<BulkFileIngester.Chunk>();
+		BulkFileIngester.Chunk chunk;
+		while ((chunk = pipeline.parsed.poll()) != BulkFileIngester.END) {
+			chunks.add(chunk);
+		}
+		return chunks;
+	}
+
+	private static List<String> patientIds(BulkFileIngester.Chunk chunk) {
+		List<String> ids = new ArrayList<String>();
+		chunk.ecrs.forEach(ecr -> {
+			Patient patient = ecr.getPatient();
+			ids.add(patient.getid().get(0).getvalue());
+		});
+		return ids;
+	}
+}
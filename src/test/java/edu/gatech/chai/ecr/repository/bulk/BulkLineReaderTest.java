@@ -0,0 +1,125 @@
+package edu.gatech.chai.ecr.repository.bulk;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class BulkLineReaderTest {
+	private static final int BUFFER_SIZE = 65536;
+
+	@TempDir
+	Path dir;
+
+	@Test
+	public void readsLastLineWithoutNewline() throws IOException {
+		BulkLineReader reader = reader("a,1\nb,2");
+		assertEquals("a,1", reader.readLine());
+		assertEquals(4, reader.getOffset());
+		assertEquals("b,2", reader.readLine());
+		assertEquals(7, reader.getOffset());
+		assertNull(reader.readLine());
+		assertEquals(7, reader.getOffset());
+	}
+
+	@Test
+	public void dropsCarriageReturnButCountsItsByte() throws IOException {
+		BulkLineReader reader = reader("a,1\r\nb,2\r\n");
+		assertEquals("a,1", reader.readLine());
+		assertEquals(5, reader.getOffset());
+		assertEquals("b,2", reader.readLine());
+		assertEquals(10, reader.getOffset());
+		assertNull(reader.readLine());
+	}
+
+	@Test
+	public void returnsEmptyLines() throws IOException {
+		BulkLineReader reader = reader("\n\r\nx");
+		assertEquals("", reader.readLine());
+		assertEquals("", reader.readLine());
+		assertEquals("x", reader.readLine());
+		assertNull(reader.readLine());
+		assertEquals(4, reader.getOffset());
+	}
+
+	@Test
+	public void decodesCharactersSplitAcrossTheBuffer() throws IOException {
+		// The two bytes of é and the first two of € straddle the end of the first buffer.
+		String first = "x".repeat(BUFFER_SIZE - 1) + "é";
+		String second = "y".repeat(BUFFER_SIZE - 3) + "€z";
+		byte[] bytes = (first + "\n" + second + "\n").getBytes(StandardCharsets.UTF_8);
+
+		BulkLineReader reader = new BulkLineReader(new ByteArrayInputStream(bytes), 0);
+		assertEquals(first, reader.readLine());
+		assertEquals(first.getBytes(StandardCharsets.UTF_8).length + 1, reader.getOffset());
+		assertEquals(second, reader.readLine());
+		assertEquals(bytes.length, reader.getOffset());
+		assertNull(reader.readLine());
+	}
+
+	@Test
+	public void handlesShortReads() throws IOException {
+		byte[] bytes = "ü,1\r\nö,2".getBytes(StandardCharsets.UTF_8);
+		BulkLineReader reader = new BulkLineReader(new OneByteInputStream(bytes), 0);
+		assertEquals("ü,1", reader.readLine());
+		assertEquals(6, reader.getOffset());
+		assertEquals("ö,2", reader.readLine());
+		assertEquals(bytes.length, reader.getOffset());
+		assertNull(reader.readLine());
+	}
+
+	@Test
+	public void resumesFromAnOffset() throws IOException {
+		Path file = dir.resolve("patients.csv");
+		Files.write(file, "a,1\nb,2\nc,3\n".getBytes(StandardCharsets.UTF_8));
+
+		long offset;
+		try (BulkLineReader reader = BulkLineReader.open(file, 0)) {
+			assertEquals("a,1", reader.readLine());
+			offset = reader.getOffset();
+		}
+		try (BulkLineReader reader = BulkLineReader.open(file, offset)) {
+			assertEquals("b,2", reader.readLine());
+			assertEquals(8, reader.getOffset());
+			assertEquals("c,3", reader.readLine());
+			assertEquals(Files.size(file), reader.getOffset());
+			assertNull(reader.readLine());
+		}
+	}
+
+	private static BulkLineReader reader(String content) {
+		return new BulkLineReader(new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8)), 0);
+	}
+
+	// Hands out one byte per read, as a slow network stream may.
+	private static class OneByteInputStream extends InputStream {
+		private final byte[] bytes;
+		private int position = 0;
+
+		OneByteInputStream(byte[] bytes) {
+			this.bytes = bytes;
+		}
+
+		@Override
+		public int read() {
+			return position < bytes.length ? bytes[position++] & 0xff : -1;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) {
+			if (position == bytes.length) {
+				return -1;
+			}
+			buffer[offset] = bytes[position++];
+			return 1;
+		}
+	}
+}
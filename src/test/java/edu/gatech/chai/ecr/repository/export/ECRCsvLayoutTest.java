@@ -0,0 +1,80 @@
+package edu.gatech.chai.ecr.repository.export;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import edu.gatech.chai.ecr.jpa.json.ECR;
+import edu.gatech.chai.ecr.jpa.json.Provider;
+import edu.gatech.chai.ecr.jpa.json.TypeableID;
+
+public class ECRCsvLayoutTest {
+	@Test
+	public void sizesListColumnsToTheLargestList() {
+		ECRCsvLayout layout = new ECRCsvLayout();
+		layout.observe(ecr("1", 1, 0));
+		layout.observe(ecr("2", 2, 3));
+
+		List<String> header = Arrays.asList(layout.header());
+		assertEquals("id", header.get(0));
+		assertTrue(header.contains("Provider_id_2"));
+		assertFalse(header.contains("Provider_id_3"));
+		assertTrue(header.contains("note_3"));
+		assertFalse(header.contains("note_4"));
+		assertFalse(header.contains("patient_symptoms_1"));
+	}
+
+	@Test
+	public void padsShorterRowsToTheHeader() {
+		ECRCsvLayout layout = new ECRCsvLayout();
+		ECR small = ecr("1", 1, 0);
+		layout.observe(small);
+		layout.observe(ecr("2", 2, 3));
+
+		String[] header = layout.header();
+		List<String> row = layout.row(small);
+		assertEquals(header.length, row.size());
+		assertEquals("1", row.get(0));
+		assertEquals("provider 1", row.get(Arrays.asList(header).indexOf("provider_name_1")));
+		assertEquals("", row.get(Arrays.asList(header).indexOf("provider_name_2")));
+		assertEquals("", row.get(Arrays.asList(header).indexOf("note_1")));
+		assertEquals(0, layout.getTruncated());
+	}
+
+	@Test
+	public void truncatesAndCountsListsThatOutgrewTheHeader() {
+		ECRCsvLayout layout = new ECRCsvLayout();
+		layout.observe(ecr("1", 1, 1));
+
+		// The row grew between the two passes.
+		List<String> row = layout.row(ecr("1", 3, 2));
+		assertEquals(layout.header().length, row.size());
+		assertEquals(3, layout.getTruncated());
+	}
+
+	private static ECR ecr(String ecrId, int providers, int notes) {
+		ECR ecr = new ECR();
+		ecr.setECRId(ecrId);
+		List<Provider> providerList = new ArrayList<Provider>();
+		for (int i = 1; i <= providers; i++) {
+			Provider provider = new Provider();
+			TypeableID providerId = new TypeableID();
+			providerId.settype("NPI");
+			providerId.setvalue(String.valueOf(i));
+			provider.setid(providerId);
+			provider.setname("provider " + i);
+			providerList.add(provider);
+		}
+		ecr.setProvider(providerList);
+		for (int i = 1; i <= notes; i++) {
+			ecr.getNotes().add("note " + i);
+		}
+		return ecr;
+	}
+}